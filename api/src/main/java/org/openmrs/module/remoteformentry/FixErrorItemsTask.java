@@ -2,13 +2,8 @@ package org.openmrs.module.remoteformentry;
 
 import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathFactory;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Patient;
@@ -27,9 +22,6 @@ public class FixErrorItemsTask extends AbstractTask {
 	// Logger
 	private static Log log = LogFactory.getLog(FixErrorItemsTask.class);
 
-	private DocumentBuilderFactory documentBuilderFactory;
-	private XPathFactory xPathFactory;
-	
 	private RemoteFormEntryService remoteFormEntryService = null;
 	private FormEntryService formEntryService = null;
 	private PatientService patientService = null;
@@ -47,11 +39,8 @@ public class FixErrorItemsTask extends AbstractTask {
 			remoteFormEntryService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
 			formEntryService = (FormEntryService)Context.getService(FormEntryService.class);
 			patientService = Context.getPatientService();
-			xPathFactory = XPathFactory.newInstance();
-			documentBuilderFactory = DocumentBuilderFactory.newInstance();
-			
-			DocumentBuilder db = documentBuilderFactory.newDocumentBuilder();
-			XPath xp = xPathFactory.newXPath();
+			RemoteFormEntryParsingContext parsingContext = RemoteFormEntryParsingContext.get();
+			XPath xp = parsingContext.getXPath();
 			
 			for (FormEntryError errorItem : formEntryService.getFormEntryErrors()) {
 				String error = errorItem.getError();
@@ -59,9 +48,9 @@ public class FixErrorItemsTask extends AbstractTask {
 					String formData = errorItem.getFormData();
 					Document doc; 
 					try {
-						doc = db.parse(IOUtils.toInputStream(formData));
+						doc = parsingContext.parse(formData);
 						
-						String mrn = xp.evaluate("/form/patient/patient.medical_record_number", doc);
+						String mrn = parsingContext.evaluate("/form/patient/patient.medical_record_number", doc);
 						if (mrn.length() > 0) {
 							
 							List<Patient> patients = patientService.getPatientsByIdentifier(mrn, false);
@@ -96,8 +85,6 @@ public class FixErrorItemsTask extends AbstractTask {
 			}
 			
 			
-		} catch (ParserConfigurationException e) {
-			log.error("Unable to parse config", e);
 		}
 		finally {
 			Context.closeSession();
@@ -2,6 +2,7 @@ package org.openmrs.module.remoteformentry;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
 import org.openmrs.module.Activator;
 
 /**
@@ -11,12 +12,18 @@ public class RemoteFormEntryActivator implements Activator {
 
 	private Log log = LogFactory.getLog(this.getClass());
 	
+	private RemoteFormEntrySettings.Listener settingsListener = new RemoteFormEntrySettings.Listener();
+	
 	/**
 	 * @see org.openmrs.module.Activator#startup()
 	 */
 	@SuppressWarnings("deprecation")
     public void startup() {
 		log.info("Starting the Remote Form Entry module");
+		
+		// keep the cached global properties up to date
+		RemoteFormEntrySettings.invalidate();
+		Context.getAdministrationService().addGlobalPropertyListener(settingsListener);
 	}
 	
 	/**
@@ -25,6 +32,11 @@ public class RemoteFormEntryActivator implements Activator {
 	@SuppressWarnings("deprecation")
     public void shutdown() {
 		log.info("Shutting down the Remote Form Entry module");
+		
+		Context.getAdministrationService().removeGlobalPropertyListener(settingsListener);
+		RemoteFormEntrySettings.invalidate();
+		RemoteFormEntryMetadataCache.clear();
+		RemoteFormEntryJobManager.shutdown();
 	}
 	
 }
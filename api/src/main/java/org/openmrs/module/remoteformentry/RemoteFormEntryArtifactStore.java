@@ -0,0 +1,449 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Compressed copies of the generated return data files, each compressed only once no matter how
+ * many remote locations download it. An artifact is a plain gzip file named after the sha1 of what
+ * it holds and the {@link RemoteFormEntryCodec} it was compressed with, so the same content is only
+ * ever stored once. The deflate data inside the gzip is exactly what a zip entry holds, so
+ * {@link RemoteFormEntryVirtualZip} puts it into each location's zip by copying the bytes instead
+ * of compressing them again. With the stored codec nothing is compressed and the artifact is a
+ * plain copy of the file. Either way a download never reads the generated file itself, which the
+ * next generation rewrites in place.<br/>
+ * <br/>
+ * An index remembers which artifact was made from which file (by path, size, date and codec), so an
+ * unchanged file is never read again. When a file changes its old artifact is kept for
+ * {@link RemoteFormEntryConstants#GP_ARTIFACT_RETENTION} minutes more, for the downloads that are
+ * still reading it, and is thrown away after that if no other file has the same content.
+ */
+public class RemoteFormEntryArtifactStore {
+
+	private static final Log log = LogFactory.getLog(RemoteFormEntryArtifactStore.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * bytes before and after the deflate data in a file written by {@link GZIPOutputStream}
+	 */
+	private static final int GZIP_HEADER_LENGTH = 10;
+
+	private static final int GZIP_TRAILER_LENGTH = 8;
+
+	private static final String INDEX_FILENAME = "index.properties";
+
+	/**
+	 * the index values that were replaced by a new artifact, with the time they were replaced
+	 */
+	private static final String SUPERSEDED_FILENAME = "superseded.properties";
+
+	/**
+	 * guards the index and the artifact files. It is static because a new store is made for every
+	 * bundle, and the bundles of the locations are built at the same time
+	 */
+	private static final Object INDEX_LOCK = new Object();
+
+	/**
+	 * one lock per source file, so a file is only compressed once at a time. There are only ever
+	 * a few source files, so the locks are kept
+	 */
+	private static final Map<String, Object> SOURCE_LOCKS = new HashMap<String, Object>();
+
+	private final File dir;
+
+	/**
+	 * @param dir directory to keep the artifacts in
+	 */
+	public RemoteFormEntryArtifactStore(File dir) {
+		this.dir = dir;
+		if (!dir.exists())
+			dir.mkdirs();
+	}
+
+	/**
+	 * @return the store next to the generated return data
+	 */
+	public static RemoteFormEntryArtifactStore get() {
+		File generatedDataDir = RemoteFormEntryUtil.getGeneratedReturnDataFile().getParentFile();
+		return new RemoteFormEntryArtifactStore(new File(generatedDataDir, RemoteFormEntryConstants.ARTIFACT_DIRECTORY_NAME));
+	}
+
+	/**
+	 * Get the artifact of the given file, compressing it first if the file is new or has changed.
+	 * Callers asking for the same file at the same time wait for the one compressing it
+	 *
+	 * @param source the file
+	 * @param codec how to compress it
+	 * @return its artifact
+	 * @throws IOException if the file cannot be compressed
+	 */
+	public Artifact getArtifact(File source, RemoteFormEntryCodec codec) throws IOException {
+		String key = source.getAbsolutePath();
+		synchronized (getSourceLock(key)) {
+			String stamp = codec.getName() + ":" + source.length() + ":" + source.lastModified();
+			synchronized (INDEX_LOCK) {
+				String entry = readIndex().getProperty(key);
+				if (entry != null && entry.endsWith(" " + stamp)) {
+					Artifact artifact = load(entry.substring(0, entry.indexOf(' ')), codec);
+					if (artifact != null)
+						return artifact;
+				}
+			}
+
+			return compress(source, codec, key, stamp);
+		}
+	}
+
+	private static Object getSourceLock(String key) {
+		synchronized (SOURCE_LOCKS) {
+			Object lock = SOURCE_LOCKS.get(key);
+			if (lock == null) {
+				lock = new Object();
+				SOURCE_LOCKS.put(key, lock);
+			}
+			return lock;
+		}
+	}
+
+	/**
+	 * Compress the given file and point the given key of the index at its artifact
+	 */
+	private Artifact compress(File source, RemoteFormEntryCodec codec, String key, String stamp) throws IOException {
+		long start = System.currentTimeMillis();
+
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RemoteFormEntryException("SHA-1 is not available", e);
+		}
+		CRC32 crc = new CRC32();
+		long size = 0;
+
+		File tempFile = File.createTempFile("artifact", ".tmp", dir);
+		try {
+			InputStream in = new FileInputStream(source);
+			try {
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE);
+				if (codec.getMethod() == ZipEntry.DEFLATED)
+					out = new LevelGZIPOutputStream(out, codec.getLevel());
+				try {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int count;
+					while ((count = in.read(buffer)) != -1) {
+						sha1.update(buffer, 0, count);
+						crc.update(buffer, 0, count);
+						size += count;
+						out.write(buffer, 0, count);
+					}
+				}
+				finally {
+					out.close();
+				}
+			}
+			finally {
+				in.close();
+			}
+
+			String hash = toHex(sha1.digest());
+			File file = getFile(hash, codec);
+
+			// the artifact is put in place and indexed in one go, so that no other thread can
+			// delete it as unused in between
+			synchronized (INDEX_LOCK) {
+				if (file.exists())
+					tempFile.delete();
+				else
+					RemoteFormEntryUtil.moveFile(tempFile, file);
+
+				Properties properties = new Properties();
+				properties.setProperty("crc", String.valueOf(crc.getValue()));
+				properties.setProperty("size", String.valueOf(size));
+				writeProperties(properties, getPropertiesFile(hash));
+
+				String value = hash + " " + stamp;
+				String previous = updateIndex(key, value);
+				if (previous != null && !previous.equals(value))
+					supersede(previous);
+				deleteExpired();
+			}
+
+			log.info("Compressed " + source.getAbsolutePath() + " (" + size + " bytes) with " + codec.getName() + " to "
+			        + file.length() + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+
+			return new Artifact(file, hash, crc.getValue(), size, codec);
+		}
+		finally {
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * @return the artifact with the given hash, or null if it is not (completely) there
+	 */
+	private Artifact load(String hash, RemoteFormEntryCodec codec) throws IOException {
+		File file = getFile(hash, codec);
+		File propertiesFile = getPropertiesFile(hash);
+		if (!file.exists() || !propertiesFile.exists())
+			return null;
+
+		Properties properties = readProperties(propertiesFile);
+		return new Artifact(file, hash, Long.parseLong(properties.getProperty("crc")), Long.parseLong(properties
+		        .getProperty("size")), codec);
+	}
+
+	/**
+	 * Point the given key of the index at a new value. The caller holds {@link #INDEX_LOCK}
+	 *
+	 * @return the value the key pointed at before, or null
+	 */
+	private String updateIndex(String key, String value) throws IOException {
+		Properties index = readIndex();
+		String previous = index.getProperty(key);
+		index.setProperty(key, value);
+		writeProperties(index, new File(dir, INDEX_FILENAME));
+		return previous;
+	}
+
+	/**
+	 * Remember that the given index value was replaced, so its artifact is deleted once the
+	 * downloads reading it have had their time. The caller holds {@link #INDEX_LOCK}
+	 */
+	private void supersede(String value) throws IOException {
+		Properties superseded = readSuperseded();
+		if (superseded.getProperty(value) == null) {
+			superseded.setProperty(value, String.valueOf(System.currentTimeMillis()));
+			writeProperties(superseded, new File(dir, SUPERSEDED_FILENAME));
+		}
+	}
+
+	/**
+	 * Delete the artifacts of the index values that were replaced longer than
+	 * {@link RemoteFormEntryConstants#GP_ARTIFACT_RETENTION} minutes ago. The caller holds
+	 * {@link #INDEX_LOCK}
+	 */
+	private void deleteExpired() throws IOException {
+		Properties superseded = readSuperseded();
+		if (superseded.isEmpty())
+			return;
+
+		long retention = RemoteFormEntrySettings.get().getInt(RemoteFormEntryConstants.GP_ARTIFACT_RETENTION,
+		    RemoteFormEntryConstants.GP_ARTIFACT_RETENTION_DEFAULT) * 60 * 1000L;
+		long expiry = System.currentTimeMillis() - retention;
+
+		List<String> expired = new ArrayList<String>();
+		for (Object value : superseded.keySet()) {
+			if (Long.parseLong(superseded.getProperty((String) value)) < expiry)
+				expired.add((String) value);
+		}
+		if (expired.isEmpty())
+			return;
+
+		for (String value : expired)
+			superseded.remove(value);
+		writeProperties(superseded, new File(dir, SUPERSEDED_FILENAME));
+
+		// the artifacts still in the index and the ones replaced more recently stay
+		List<Object> used = new ArrayList<Object>(readIndex().values());
+		used.addAll(superseded.keySet());
+		for (String value : expired)
+			deleteIfUnused(value, used);
+	}
+
+	/**
+	 * Delete the artifact an index value pointed at if none of the given values points at it. The
+	 * caller holds {@link #INDEX_LOCK}
+	 */
+	private void deleteIfUnused(String value, Collection<Object> used) {
+		String hash = value.substring(0, value.indexOf(' '));
+		String codecName = value.substring(hash.length() + 1, value.indexOf(':'));
+		boolean hashUsed = false;
+		boolean fileUsed = false;
+		for (Object other : used) {
+			if (((String) other).startsWith(hash + " ")) {
+				hashUsed = true;
+				if (((String) other).startsWith(hash + " " + codecName + ":"))
+					fileUsed = true;
+			}
+		}
+
+		RemoteFormEntryCodec codec = RemoteFormEntryCodec.get(codecName);
+		if (!fileUsed)
+			getFile(hash, codec).delete();
+		if (!hashUsed)
+			getPropertiesFile(hash).delete();
+	}
+
+	private Properties readIndex() throws IOException {
+		File indexFile = new File(dir, INDEX_FILENAME);
+		if (!indexFile.exists())
+			return new Properties();
+		return readProperties(indexFile);
+	}
+
+	private Properties readSuperseded() throws IOException {
+		File supersededFile = new File(dir, SUPERSEDED_FILENAME);
+		if (!supersededFile.exists())
+			return new Properties();
+		return readProperties(supersededFile);
+	}
+
+	private File getFile(String hash, RemoteFormEntryCodec codec) {
+		if (codec.getMethod() == ZipEntry.DEFLATED)
+			return new File(dir, hash + "." + codec.getName() + ".gz");
+		return new File(dir, hash + "." + codec.getName());
+	}
+
+	private File getPropertiesFile(String hash) {
+		return new File(dir, hash + ".properties");
+	}
+
+	private static Properties readProperties(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		}
+		finally {
+			in.close();
+		}
+		return properties;
+	}
+
+	private static void writeProperties(Properties properties, File file) throws IOException {
+		File tempFile = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+		OutputStream out = new FileOutputStream(tempFile);
+		try {
+			properties.store(out, null);
+		}
+		finally {
+			out.close();
+		}
+		RemoteFormEntryUtil.moveFile(tempFile, file);
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * A {@link GZIPOutputStream} that compresses at the given level
+	 */
+	private static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+		LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+			super(out, BUFFER_SIZE);
+			def.setLevel(level);
+		}
+	}
+
+	/**
+	 * A compressed file in the store
+	 */
+	public static class Artifact {
+
+		private final File file;
+
+		private final String sha1;
+
+		private final long crc;
+
+		private final long size;
+
+		private final RemoteFormEntryCodec codec;
+
+		Artifact(File file, String sha1, long crc, long size, RemoteFormEntryCodec codec) {
+			this.file = file;
+			this.sha1 = sha1;
+			this.crc = crc;
+			this.size = size;
+			this.codec = codec;
+		}
+
+		/**
+		 * @return the gzip file, or the copy of the file with the stored codec
+		 */
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return the hex sha1 of the uncompressed content
+		 */
+		public String getSha1() {
+			return sha1;
+		}
+
+		/**
+		 * @return the crc32 of the uncompressed content
+		 */
+		public long getCrc() {
+			return crc;
+		}
+
+		/**
+		 * @return the size of the uncompressed content
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return the zip entry method of the data, {@link ZipEntry#STORED} or
+		 *         {@link ZipEntry#DEFLATED}
+		 */
+		public int getMethod() {
+			return codec.getMethod();
+		}
+
+		/**
+		 * @return the codec the artifact was compressed with
+		 */
+		public RemoteFormEntryCodec getCodec() {
+			return codec;
+		}
+
+		/**
+		 * @return where the data of the zip entry starts in the file
+		 */
+		public long getDataOffset() {
+			return codec.getMethod() == ZipEntry.DEFLATED ? GZIP_HEADER_LENGTH : 0;
+		}
+
+		/**
+		 * @return the length of the data of the zip entry in the file
+		 */
+		public long getDataLength() {
+			if (codec.getMethod() == ZipEntry.DEFLATED)
+				return file.length() - GZIP_HEADER_LENGTH - GZIP_TRAILER_LENGTH;
+			return size;
+		}
+	}
+
+}
@@ -0,0 +1,357 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A file being uploaded in chunks over a link that may drop at any time. Chunks are appended to a
+ * part file in the upload directory; the client asks for {@link #getReceivedBytes()} after a
+ * disconnect and carries on from there instead of sending the whole file again.<br/>
+ * <br/>
+ * Every chunk comes with the md5 of its bytes and is only added to the part file once the md5
+ * matches, so a chunk that was damaged on the way is simply sent again. A chunk may overlap the
+ * bytes already received (a resend after a lost reply); the overlapping bytes are skipped. A chunk
+ * that starts past the end of what has been received, or would make the file larger than its
+ * total size, is refused.<br/>
+ * <br/>
+ * Once the upload is complete a small done file remembers its size, its last chunk and the job it
+ * was handed to, so that last chunk sent again (because the reply to it was lost) is answered with
+ * that job instead of completing the upload a second time. Any other chunk starts a new upload
+ * under the same id.
+ */
+public class RemoteFormEntryChunkedUpload {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * the lock of every upload that is in use, by the path of its part file
+	 */
+	private static final Map<String, WeakReference<Object>> locks = new HashMap<String, WeakReference<Object>>();
+
+	private final String uploadId;
+
+	private final File partFile;
+
+	private final File doneFile;
+
+	private final Object lock;
+
+	private long lastOffset = -1;
+
+	private String lastMd5;
+
+	private long completedSize = -1;
+
+	/**
+	 * @param uploadDir directory holding the uploads in progress
+	 * @param uploadId id the client picked for this upload. Letters, digits, '-' and '_' only
+	 * @throws RemoteFormEntryException if the upload id is not valid
+	 */
+	public RemoteFormEntryChunkedUpload(File uploadDir, String uploadId) {
+		if (uploadId == null || !uploadId.matches("[A-Za-z0-9_-]{1,64}"))
+			throw new RemoteFormEntryException("Invalid upload id: " + uploadId);
+
+		this.uploadId = uploadId;
+		this.partFile = new File(uploadDir, uploadId + ".part");
+		this.doneFile = new File(uploadDir, uploadId + ".done");
+		this.lock = getLock(partFile.getAbsolutePath());
+	}
+
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	/**
+	 * @return the object {@link #writeChunk(long, InputStream, String, long)} holds. Hold it while
+	 *         checking whether the upload is complete and completing it, so that two requests
+	 *         cannot both complete it
+	 */
+	public Object getLock() {
+		return lock;
+	}
+
+	/**
+	 * @return number of bytes received so far, the offset the next chunk should start at. The size
+	 *         of the file once the upload is complete
+	 */
+	public long getReceivedBytes() {
+		if (partFile.exists() || !doneFile.exists())
+			return partFile.length();
+		return Long.parseLong(readDone().getProperty("size", "0"));
+	}
+
+	/**
+	 * @return true if the upload has been completed
+	 */
+	public boolean isComplete() {
+		return doneFile.exists();
+	}
+
+	/**
+	 * @return the id of the job the completed upload was handed to, or null if there is none
+	 */
+	public String getJobId() {
+		if (!doneFile.exists())
+			return null;
+		return readDone().getProperty("jobId");
+	}
+
+	/**
+	 * Add a chunk to the upload
+	 *
+	 * @param offset position of the first byte of the chunk in the whole file
+	 * @param in the bytes of the chunk
+	 * @param md5 hex md5 of the bytes of the chunk
+	 * @param totalSize size of the whole file
+	 * @return number of bytes received so far, including this chunk
+	 * @throws RemoteFormEntryException if the chunk starts past the received bytes, ends past the
+	 *         total size or its md5 does not match. Nothing is written in that case
+	 * @throws IOException if the chunk cannot be read or written
+	 */
+	public long writeChunk(long offset, InputStream in, String md5, long totalSize) throws IOException {
+		synchronized (lock) {
+			if (isComplete()) {
+				// the last chunk of the completed upload again, there is nothing more to write
+				if (isLastChunk(offset, md5, totalSize))
+					return getReceivedBytes();
+
+				// the id is being used for another file
+				doneFile.delete();
+			}
+
+			long received = getReceivedBytes();
+			if (offset < 0 || offset > received)
+				throw new RemoteFormEntryException("Chunk of " + uploadId + " starts at " + offset + " but " + received
+				        + " bytes have been received");
+			if (received > totalSize)
+				throw new RemoteFormEntryException(received + " bytes of " + uploadId
+				        + " have been received but it is only " + totalSize + " bytes");
+
+			// keep the chunk aside until its md5 has been checked
+			File chunkFile = new File(partFile.getParentFile(), uploadId + ".chunk");
+			try {
+				MessageDigest digest = newMd5();
+				OutputStream out = new FileOutputStream(chunkFile);
+				try {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					int count;
+					while ((count = in.read(buffer)) != -1) {
+						digest.update(buffer, 0, count);
+						out.write(buffer, 0, count);
+					}
+				}
+				finally {
+					out.close();
+				}
+
+				String actual = toHex(digest.digest());
+				if (md5 == null || !actual.equalsIgnoreCase(md5.trim()))
+					throw new RemoteFormEntryException("Chunk of " + uploadId + " at " + offset + " has md5 " + actual
+					        + " instead of " + md5);
+				if (offset + chunkFile.length() > totalSize)
+					throw new RemoteFormEntryException("Chunk of " + uploadId + " at " + offset + " ends past its size of "
+					        + totalSize);
+
+				// append whatever part of the chunk we don't have yet
+				long skip = received - offset;
+				if (chunkFile.length() > skip)
+					append(chunkFile, skip);
+
+				lastOffset = offset;
+				lastMd5 = actual;
+			}
+			finally {
+				chunkFile.delete();
+			}
+
+			return getReceivedBytes();
+		}
+	}
+
+	/**
+	 * @return hex md5 of all the bytes received so far
+	 * @throws IOException if the part file cannot be read
+	 */
+	public String getMd5() throws IOException {
+		MessageDigest digest = newMd5();
+		InputStream in = new FileInputStream(partFile);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) != -1)
+				digest.update(buffer, 0, count);
+		}
+		finally {
+			in.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Move the received file to its final place. The upload is not complete until
+	 * {@link #markComplete(String)} is called, if the file cannot be handed to a job put it back
+	 * with {@link #reopen(File)}. The caller holds {@link #getLock()}
+	 *
+	 * @param destination where to put the file
+	 * @throws IOException if the file cannot be moved. It is left in place
+	 */
+	public void complete(File destination) throws IOException {
+		long size = partFile.length();
+		RemoteFormEntryUtil.moveFile(partFile, destination);
+		completedSize = size;
+	}
+
+	/**
+	 * Put back a file moved by {@link #complete(File)}, so the upload can be completed again. The
+	 * caller holds {@link #getLock()}
+	 *
+	 * @param destination where the file was put
+	 * @throws IOException if the file cannot be moved back
+	 */
+	public void reopen(File destination) throws IOException {
+		RemoteFormEntryUtil.moveFile(destination, partFile);
+		completedSize = -1;
+	}
+
+	/**
+	 * Remember that the upload moved by {@link #complete(File)} was handed to the given job. The
+	 * size, the last chunk written by this object and the job are written in one go. The caller
+	 * holds {@link #getLock()}
+	 *
+	 * @param jobId id of the job
+	 * @throws IOException if it cannot be written
+	 */
+	public void markComplete(String jobId) throws IOException {
+		if (completedSize < 0)
+			throw new RemoteFormEntryException("Upload " + uploadId + " has not been moved to its final place");
+
+		Properties done = new Properties();
+		done.setProperty("size", String.valueOf(completedSize));
+		done.setProperty("lastOffset", String.valueOf(lastOffset));
+		if (lastMd5 != null)
+			done.setProperty("lastMd5", lastMd5);
+		done.setProperty("jobId", jobId);
+
+		File tempFile = new File(doneFile.getParentFile(), uploadId + ".done.tmp");
+		OutputStream out = new FileOutputStream(tempFile);
+		try {
+			done.store(out, null);
+		}
+		finally {
+			out.close();
+		}
+		RemoteFormEntryUtil.moveFile(tempFile, doneFile);
+	}
+
+	/**
+	 * Throw away what has been received so far, or that the upload was completed
+	 */
+	public void discard() {
+		partFile.delete();
+		doneFile.delete();
+	}
+
+	private Properties readDone() {
+		Properties done = new Properties();
+		try {
+			InputStream in = new FileInputStream(doneFile);
+			try {
+				done.load(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			throw new RemoteFormEntryException("Unable to read the state of upload " + uploadId, e);
+		}
+		return done;
+	}
+
+	/**
+	 * @return true if the given chunk is the one that completed the upload
+	 */
+	private boolean isLastChunk(long offset, String md5, long totalSize) {
+		Properties done = readDone();
+		return String.valueOf(totalSize).equals(done.getProperty("size"))
+		        && String.valueOf(offset).equals(done.getProperty("lastOffset")) && md5 != null
+		        && md5.trim().equalsIgnoreCase(done.getProperty("lastMd5"));
+	}
+
+	/**
+	 * @return the lock of the upload with the given part file, the same object for as long as
+	 *         anyone holds on to it
+	 */
+	private static Object getLock(String path) {
+		synchronized (locks) {
+			WeakReference<Object> reference = locks.get(path);
+			Object lock = reference == null ? null : reference.get();
+			if (lock == null) {
+				// forget the uploads nobody is using anymore
+				for (Iterator<WeakReference<Object>> i = locks.values().iterator(); i.hasNext();) {
+					if (i.next().get() == null)
+						i.remove();
+				}
+
+				lock = new Object();
+				locks.put(path, new WeakReference<Object>(lock));
+			}
+			return lock;
+		}
+	}
+
+	private void append(File chunkFile, long skip) throws IOException {
+		RandomAccessFile part = new RandomAccessFile(partFile, "rw");
+		try {
+			part.seek(part.length());
+			InputStream in = new FileInputStream(chunkFile);
+			try {
+				long skipped = 0;
+				while (skipped < skip)
+					skipped += in.skip(skip - skipped);
+
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int count;
+				while ((count = in.read(buffer)) != -1)
+					part.write(buffer, 0, count);
+			}
+			finally {
+				in.close();
+			}
+		}
+		finally {
+			part.close();
+		}
+	}
+
+	private static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RemoteFormEntryException("MD5 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+}
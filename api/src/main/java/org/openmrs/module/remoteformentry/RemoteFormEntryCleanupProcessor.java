@@ -10,14 +10,10 @@ import java.util.List;
 import java.util.Set;
 import java.util.Vector;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Encounter;
@@ -30,7 +26,6 @@ import org.openmrs.User;
 import org.openmrs.api.APIException;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.EncounterService;
-import org.openmrs.api.FormService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
 import org.openmrs.util.OpenmrsUtil;
@@ -50,8 +45,6 @@ public class RemoteFormEntryCleanupProcessor{
 	private static final Log log = LogFactory
 	.getLog(RemoteFormEntryCleanupProcessor.class);
 
-	private DocumentBuilderFactory documentBuilderFactory;
-	private XPathFactory xPathFactory;
 	private static Boolean isRunning = false; // allow only one running
 	
 	private static Integer runCounter = 0;
@@ -60,7 +53,6 @@ public class RemoteFormEntryCleanupProcessor{
 	
 	private RemoteFormEntryService remoteFormEntryService = null;
 	private PatientService patientService = null;
-	private FormService formService = null;
 	private EncounterService encService = null;
 
 	private int count = 0;
@@ -95,22 +87,20 @@ public class RemoteFormEntryCleanupProcessor{
 		
 		// First we parse the FormEntry xml data to obtain the formId of the
 		// form that was used to create the xml data
-		DocumentBuilderFactory dbf = getDocumentBuilderFactory();
-		DocumentBuilder db = dbf.newDocumentBuilder();
-		XPathFactory xpf = getXPathFactory();
-		XPath xp = xpf.newXPath();
-		Document doc = db.parse(IOUtils.toInputStream(formData));
+		RemoteFormEntryParsingContext parsingContext = RemoteFormEntryParsingContext.get();
+		XPath xp = parsingContext.getXPath();
+		Document doc = parsingContext.parse(formData);
 		
 		try {
-			formId = Integer.parseInt(xp.evaluate("/form/@id", doc));
+			formId = Integer.parseInt(parsingContext.evaluate(RemoteFormEntryConstants.FORM_ID_PATH, doc));
 		
 			// try to get the form
-			Form form = formService.getForm(formId);
+			Form form = RemoteFormEntryMetadataCache.getForm(formId);
 			if (form == null)
 				throw new RemoteFormEntryException("Error retrieving form id from data");
 			
 			// try to get the patient id
-			String pId = xp.evaluate("/form/patient/patient.patient_id", doc);
+			String pId = parsingContext.evaluate("/form/patient/patient.patient_id", doc);
 			if (pId == null)
 				throw new RemoteFormEntryException("Patient's id was not found in data in /form/patient/patient.patient_id");
 			Integer patientId = Integer.valueOf(pId);
@@ -125,41 +115,26 @@ public class RemoteFormEntryCleanupProcessor{
 			int i = 0;
 			while (patientByIdentifier == null && i < identifiers.size()) {
 				PatientIdentifier currentIdentifier = identifiers.get(i++);
-				String identifierString = currentIdentifier.getIdentifier();
-				Integer identifierTypeId = currentIdentifier.getIdentifierType().getPatientIdentifierTypeId();
-				
-				// search the database for all patients with this identifier string
-				List<Patient> patients = patientService.getPatients(null, identifierString, null);
-				
-				for (Patient p : patients) {
-					// loop over this patient's identifiers to make sure they have this 
-					// one _and_ this type.  if they do, great, its them.  if not, keep trying 
-					for (PatientIdentifier identifier : p.getIdentifiers()) {
-						if (identifier.getIdentifier().equals(identifierString) && 
-							identifierTypeId.equals(identifier.getIdentifierType().getPatientIdentifierTypeId())) {
-							patientByIdentifier = p;
-							break;
-						}
-					}
-				}
+				patientByIdentifier = remoteFormEntryService.getPatientByIdentifier(currentIdentifier.getIdentifier(),
+				    currentIdentifier.getIdentifierType().getPatientIdentifierTypeId());
 			}
 			
 			User enterer = RemoteFormEntryUtil.getEnterer(doc, xp);
 			DateFormat hl7DateFormat = new SimpleDateFormat("yyyy-MM-dd");
 		    
-			String encounterDateString = xp.evaluate("/form/encounter/encounter.encounter_datetime", doc);
+			String encounterDateString = parsingContext.evaluate("/form/encounter/encounter.encounter_datetime", doc);
 			if (encounterDateString == null)
 				throw new APIException("Unable to parse encounterDateString for: " + pendingQueue.getFileSystemUrl());
 			
 			Date encounterDate = hl7DateFormat.parse(encounterDateString);
 			
-			String providerIdString = xp.evaluate("substring-before(/form/encounter/encounter.provider_id, '^')", doc);
+			String providerIdString = parsingContext.evaluate("substring-before(/form/encounter/encounter.provider_id, '^')", doc);
 			if (providerIdString.length() < 1)
 				throw new APIException("Unable to parse provider for: " + pendingQueue.getFileSystemUrl());
 			
 			User provider = new User(Integer.valueOf(providerIdString));
 	
-			String locationIdString = xp.evaluate("substring-before(/form/encounter/encounter.location_id, '^')", doc);
+			String locationIdString = parsingContext.evaluate("substring-before(/form/encounter/encounter.location_id, '^')", doc);
 			if (locationIdString.length() < 1)
 				throw new APIException("Unable to parse location for: " + pendingQueue.getFileSystemUrl());
 			
@@ -194,10 +169,9 @@ public class RemoteFormEntryCleanupProcessor{
 				count = count + 1;
 			}
 			
-			if (runCounter++ % 50 == 0) {
+			// keep the session from growing, the loaded encounters are not needed again
+			if (runCounter++ % 50 == 0)
 				Context.clearSession();
-				System.gc();
-			}
 		
 		}
 		catch (Throwable t) {
@@ -250,24 +224,6 @@ public class RemoteFormEntryCleanupProcessor{
 		return null;
 	}
 
-	/**
-	 * @return DocumentBuilderFactory to be used for parsing XML
-	 */
-	private DocumentBuilderFactory getDocumentBuilderFactory() {
-		if (documentBuilderFactory == null)
-			documentBuilderFactory = DocumentBuilderFactory.newInstance();
-		return documentBuilderFactory;
-	}
-
-	/**
-	 * @return XPathFactory to be used for obtaining data from the parsed XML
-	 */
-	private XPathFactory getXPathFactory() {
-		if (xPathFactory == null)
-			xPathFactory = XPathFactory.newInstance();
-		return xPathFactory;
-	}
-
 	/**
 	 * Starts up a thread to process all existing RemoteFormEntryPendingQueue entries
 	 */
@@ -286,7 +242,6 @@ public class RemoteFormEntryCleanupProcessor{
 		
 		remoteFormEntryService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
 		patientService = Context.getPatientService();
-		formService = Context.getFormService();
 		encService = Context.getEncounterService();
 		
 		
@@ -299,6 +254,8 @@ public class RemoteFormEntryCleanupProcessor{
 		}
 		try {
 			log.debug("Start processing RemoteFormEntry pending queue");
+			RemoteFormEntryMetadataCache.clear();
+			remoteFormEntryService.loadPatientIdentifierIndex();
 			while (processNextRemoteFormEntryCleanupQueue() && count < 50) {
 				// loop until queue is empty
 			}
@@ -309,6 +266,7 @@ public class RemoteFormEntryCleanupProcessor{
 			log.error("Uh oh.  Got an error", e);
 		}
 		finally {
+			remoteFormEntryService.clearPatientIdentifierIndex();
 			isRunning = false;
 		}
 	}
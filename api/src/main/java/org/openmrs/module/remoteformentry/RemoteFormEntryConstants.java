@@ -99,6 +99,132 @@ public class RemoteFormEntryConstants {
 	 */
 	public static final String GP_INVALID_IDENTIFIER_TYPE = "remoteformentry.invalid_identifier_type";
 	
+	/**
+	 * Number of threads the pending queue processor uses. Forms for the same patient are always
+	 * handled by the same thread so they are processed in order. 1 processes the queue on the
+	 * scheduler thread like before
+	 */
+	public static final String GP_PENDING_QUEUE_WORKERS = "remoteformentry.pending_queue_workers";
+	
+	public static final String GP_PENDING_QUEUE_WORKERS_DEFAULT = "1";
+	
+	/**
+	 * Number of pending queue items whose patient changes are saved in one transaction. If an
+	 * item in a batch fails, the batch is rolled back and its items are processed one at a time.
+	 * 1 commits after every item
+	 */
+	public static final String GP_PENDING_QUEUE_BATCH_SIZE = "remoteformentry.pending_queue_batch_size";
+	
+	public static final String GP_PENDING_QUEUE_BATCH_SIZE_DEFAULT = "1";
+	
+	/**
+	 * Number of pending queue items read ahead of processing. The patients on those forms are
+	 * loaded with all of their names, addresses, identifiers and attributes in a few queries
+	 * before any of them are updated. 1 loads each patient as it is needed
+	 */
+	public static final String GP_PENDING_QUEUE_PREFETCH_SIZE = "remoteformentry.pending_queue_prefetch_size";
+	
+	public static final String GP_PENDING_QUEUE_PREFETCH_SIZE_DEFAULT = "50";
+	
+	/**
+	 * Whether the queue export also keeps a copy of the zip it streams to the user in the export
+	 * directory
+	 */
+	public static final String GP_EXPORT_KEEP_COPY = "remoteformentry.export_keep_copy";
+	
+	public static final String GP_EXPORT_KEEP_COPY_DEFAULT = "true";
+	
+	/**
+	 * Number of formentry queue items the queue export reads and zips at a time. They are moved to
+	 * the pending queue once the whole zip has been sent
+	 */
+	public static final String GP_EXPORT_PAGE_SIZE = "remoteformentry.export_page_size";
+	
+	public static final String GP_EXPORT_PAGE_SIZE_DEFAULT = "500";
+	
+	/**
+	 * Number of threads the central server uses to extract the entries of an imported queue zip
+	 * into the pending queue
+	 */
+	public static final String GP_IMPORT_THREADS = "remoteformentry.import_threads";
+	
+	public static final String GP_IMPORT_THREADS_DEFAULT = "4";
+	
+	/**
+	 * Whether central sends remote sites only the rows that changed since the last return data
+	 * they acknowledged instead of the whole database
+	 */
+	public static final String GP_RETURN_DATA_DELTA = "remoteformentry.return_data_delta";
+	
+	public static final String GP_RETURN_DATA_DELTA_DEFAULT = "true";
+	
+	/**
+	 * Minutes before the acknowledged sync mark that a return data delta starts from, so rows
+	 * saved by transactions that were still open when the mark was taken are not missed
+	 */
+	public static final String GP_RETURN_DATA_DELTA_OVERLAP = "remoteformentry.return_data_delta_overlap";
+	
+	public static final String GP_RETURN_DATA_DELTA_OVERLAP_DEFAULT = "60";
+	
+	/**
+	 * Minutes that the compressed copy of an old generation of a return data file is kept after a
+	 * new generation replaced it, for the downloads that are still reading it
+	 */
+	public static final String GP_ARTIFACT_RETENTION = "remoteformentry.artifact_retention";
+	
+	public static final String GP_ARTIFACT_RETENTION_DEFAULT = "1440";
+	
+	/**
+	 * The sync mark of the last return data from central that was applied on this remote site. It
+	 * is sent back to central with the next queue export
+	 */
+	public static final String GP_APPLIED_SYNC_MARK = "remoteformentry.applied_sync_mark";
+	
+	/**
+	 * How central writes the return data: "jdbc" streams the rows in-process into the
+	 * {@link org.openmrs.module.remoteformentry.db.jdbc.ReturnDataFormat} format, "mysqldump" runs
+	 * the mysqldump binary for remote sites that cannot read that format yet
+	 */
+	public static final String GP_RETURN_DATA_ENGINE = "remoteformentry.return_data_engine";
+	
+	/**
+	 * Number of tables and location files central writes at the same time when it generates the
+	 * return data. Each one uses a database connection of its own
+	 */
+	public static final String GP_GENERATION_THREADS = "remoteformentry.generation_threads";
+	
+	public static final String GP_GENERATION_THREADS_DEFAULT = "4";
+	
+	/**
+	 * Number of tables a remote server loads at the same time when it receives the return data
+	 * written by the jdbc engine. Each one uses a database connection of its own
+	 */
+	public static final String GP_RESTORE_THREADS = "remoteformentry.restore_threads";
+	
+	public static final String GP_RESTORE_THREADS_DEFAULT = "4";
+	
+	/**
+	 * Number of forms a remote server rebuilds the xsn of at the same time after it has received
+	 * the data from central
+	 */
+	public static final String GP_XSN_REBUILD_THREADS = "remoteformentry.xsn_rebuild_threads";
+	
+	public static final String GP_XSN_REBUILD_THREADS_DEFAULT = "4";
+	
+	/**
+	 * How the queue and return data zips are compressed: stored, deflate_fast, deflate or
+	 * deflate_max
+	 * 
+	 * @see RemoteFormEntryCodec
+	 */
+	public static final String GP_ARCHIVE_CODEC = "remoteformentry.archive_codec";
+	
+	public static final String GP_ARCHIVE_CODEC_DEFAULT = "deflate";
+	
+	public static final String RETURN_DATA_ENGINE_JDBC = "jdbc";
+	
+	public static final String RETURN_DATA_ENGINE_MYSQLDUMP = "mysqldump";
+	
 	public static final String ACK_FILENAME_SEPARATOR = ",";
 	
 	
@@ -167,6 +293,26 @@ public class RemoteFormEntryConstants {
 	public static final String PERSON_RELATIONSHIP_PERSON_BIRTHDATE = "person_relationship.birthdate";
 	public static final String PERSON_RELATIONSHIP_VOIDED = "person_relationship.voided";
 
+	/**
+	 * Path to the form id on a form
+	 */
+	public static final String FORM_ID_PATH = "/form/@id";
+	
+	/**
+	 * Path to the enterer of a form, e.g. "1^The Super User"
+	 */
+	public static final String ENTERER_PATH = "/form/header/enterer";
+	
+	/**
+	 * Path to the user id of the enterer of a form
+	 */
+	public static final String ENTERER_ID_PATH = "substring-before(" + ENTERER_PATH + ", '^')";
+	
+	/**
+	 * Path to all of the fields in the encounter section of a form
+	 */
+	public static final String ENCOUNTER_FIELDS_PATH = "/form/encounter/*";
+	
 	// all first level property nodes can be found in this section:
     public static final String nodePrefix = "/form/"
             + ALL_PATIENT_DATA.replace(" ", "_") + "/";
@@ -183,6 +329,19 @@ public class RemoteFormEntryConstants {
 	 */
 	public static final String IMPORT_DIRECTORY_NAME = "importedFilesIntoCentral";
 
+	/**
+	 * Directory name within the remoteformentry application data dir that
+	 * the forms of an uploaded file are extracted to before they are moved
+	 * into the pending queue
+	 */
+	public static final String IMPORT_STAGING_DIRECTORY_NAME = "importingIntoCentral";
+
+	/**
+	 * Directory name within the remoteformentry application data dir that
+	 * holds the chunked uploads that have not been completed yet
+	 */
+	public static final String UPLOAD_DIRECTORY_NAME = "uploadsInProgress";
+
 	/**
 	 * Directory name within the remoteformentry application data dir that
 	 * contains the list of files that have been uploaded by users from central
@@ -194,5 +353,22 @@ public class RemoteFormEntryConstants {
 	 * contains the list of files that have been downloaded on central for returning to remote sites
 	 */
 	public static final String RETURNED_DATA_DIRECTORY_NAME = "returnedDataToRemote";
+
+	/**
+	 * Name of the ack directory in the zip file going back to the remote site
+	 */
+	public static final String RETURNED_DATA_ACK_DIR_NAME = "ackDir";
+
+	/**
+	 * Directory name within the generated data dir that holds the compressed copies of the
+	 * generated return data files
+	 */
+	public static final String ARTIFACT_DIRECTORY_NAME = "artifacts";
+	
+	/**
+	 * File name within the remoteformentry application data directory that holds a hash of what
+	 * each form's xsn was last published from on this remote server
+	 */
+	public static final String PUBLISHED_XSN_FILENAME = "publishedXsns.properties";
 	
 }
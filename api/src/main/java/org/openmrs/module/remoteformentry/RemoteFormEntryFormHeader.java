@@ -0,0 +1,382 @@
+package org.openmrs.module.remoteformentry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.commons.lang.StringUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Everything the pending queue needs from a form to find, create or update the patient: the
+ * form id, the enterer, the encounter fields and the patient header in the "all patient data"
+ * section (identifiers, names, addresses, attributes, relationships and the person properties).<br/>
+ * <br/>
+ * Values are kept as the strings found on the form. A value that is missing from the form is
+ * returned as "", the same as an xpath evaluation that matches nothing.
+ *
+ * @see RemoteFormEntryFormHeaderReader
+ * @see #fromDocument(Document)
+ */
+public class RemoteFormEntryFormHeader {
+
+	/**
+	 * Fields read for each repeated section when the header is built from a DOM
+	 */
+	private static final String[] NAME_FIELDS = { RemoteFormEntryConstants.PERSON_NAME_GIVEN,
+	        RemoteFormEntryConstants.PERSON_NAME_MIDDLE, RemoteFormEntryConstants.PERSON_NAME_FAMILY,
+	        RemoteFormEntryConstants.PERSON_NAME_VOIDED, RemoteFormEntryConstants.PERSON_NAME_PREFERRED };
+
+	private static final String[] IDENTIFIER_FIELDS = { RemoteFormEntryConstants.PATIENT_IDENTIFIER_IDENTIFIER,
+	        RemoteFormEntryConstants.PATIENT_IDENTIFIER_TYPE, RemoteFormEntryConstants.PATIENT_IDENTIFIER_LOCATION,
+	        RemoteFormEntryConstants.PATIENT_IDENTIFIER_VOIDED, RemoteFormEntryConstants.PATIENT_IDENTIFIER_PREFERRED };
+
+	private static final String[] ADDRESS_FIELDS = { RemoteFormEntryConstants.PERSON_ADDRESS_ADDRESS1,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_ADDRESS2, RemoteFormEntryConstants.PERSON_ADDRESS_CITY_VILLAGE,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_NEIGHBORHOOD_CELL,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_COUNTY_DISTRICT,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_TOWNSHIP_DIVISION, RemoteFormEntryConstants.PERSON_ADDRESS_REGION,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_SUBREGION, RemoteFormEntryConstants.PERSON_ADDRESS_STATE_PROVINCE,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_COUNTRY, RemoteFormEntryConstants.PERSON_ADDRESS_POSTAL_CODE,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_LATITUDE, RemoteFormEntryConstants.PERSON_ADDRESS_LONGITUDE,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_VOIDED, RemoteFormEntryConstants.PERSON_ADDRESS_PREFERRED };
+
+	private static final String[] ATTRIBUTE_FIELDS = { RemoteFormEntryConstants.PERSON_ATTRIBUTE_TYPE,
+	        RemoteFormEntryConstants.PERSON_ATTRIBUTE_VALUE, RemoteFormEntryConstants.PERSON_ATTRIBUTE_VOIDED };
+
+	private static final String[] RELATIONSHIP_FIELDS = { RemoteFormEntryConstants.PERSON_RELATIONSHIP_TYPE,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_A_OR_B, RemoteFormEntryConstants.PERSON_RELATIONSHIP_UUID,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER_TYPE,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER_LOC,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_GIVENNAME,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_MIDDLENAME,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_FAMILYNAME,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_GENDER,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_BIRTHDATE,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_VOIDED };
+
+	/**
+	 * Single valued elements directly under the "all patient data" section
+	 */
+	private static final String[] PROPERTY_FIELDS = { RemoteFormEntryConstants.PATIENT_TRIBE,
+	        RemoteFormEntryConstants.PERSON_UUID, RemoteFormEntryConstants.PERSON_BIRTHDATE,
+	        RemoteFormEntryConstants.PERSON_BIRTHDATE_ESTIMATED, RemoteFormEntryConstants.PERSON_GENDER,
+	        RemoteFormEntryConstants.PERSON_DEAD, RemoteFormEntryConstants.PERSON_DEATH_DATE,
+	        RemoteFormEntryConstants.PERSON_DEATH_REASON };
+
+	private String formId = "";
+
+	private String enterer = "";
+
+	private Map<String, String> properties = new HashMap<String, String>();
+
+	private Map<String, String> encounterFields = new LinkedHashMap<String, String>();
+
+	private List<Section> names = new ArrayList<Section>();
+
+	private List<Section> identifiers = new ArrayList<Section>();
+
+	private List<Section> addresses = new ArrayList<Section>();
+
+	private List<Section> attributes = new ArrayList<Section>();
+
+	private List<Section> relationships = new ArrayList<Section>();
+
+	/**
+	 * Encoded form of each attribute added so far, used to drop duplicates
+	 */
+	private Set<String> knownAttributes = new HashSet<String>();
+
+	/**
+	 * Build the header from an already parsed form using this thread's compiled xpath
+	 * expressions. Used by the callers that still need the DOM for other things.
+	 *
+	 * @param doc parsed form data
+	 * @return the header of the given form
+	 * @throws XPathExpressionException
+	 */
+	public static RemoteFormEntryFormHeader fromDocument(Document doc) throws XPathExpressionException {
+		RemoteFormEntryParsingContext parsingContext = RemoteFormEntryParsingContext.get();
+		RemoteFormEntryFormHeader header = new RemoteFormEntryFormHeader();
+
+		header.setFormId(parsingContext.evaluate(RemoteFormEntryConstants.FORM_ID_PATH, doc));
+		header.setEnterer(parsingContext.evaluate(RemoteFormEntryConstants.ENTERER_PATH, doc));
+
+		for (String property : PROPERTY_FIELDS)
+			header.setProperty(property, parsingContext.evaluate(RemoteFormEntryConstants.nodePrefix + property, doc));
+
+		NodeList encounterNodes = (NodeList) parsingContext.evaluate(RemoteFormEntryConstants.ENCOUNTER_FIELDS_PATH, doc,
+		    XPathConstants.NODESET);
+		for (int i = 0; i < encounterNodes.getLength(); i++) {
+			Node node = encounterNodes.item(i);
+			header.setEncounterField(node.getNodeName(), node.getTextContent());
+		}
+
+		for (Section section : readSections(doc, RemoteFormEntryConstants.PERSON_NAME, NAME_FIELDS))
+			header.addName(section);
+		for (Section section : readSections(doc, RemoteFormEntryConstants.PATIENT_IDENTIFIER, IDENTIFIER_FIELDS))
+			header.addIdentifier(section);
+		for (Section section : readSections(doc, RemoteFormEntryConstants.PERSON_ADDRESS, ADDRESS_FIELDS))
+			header.addAddress(section);
+		for (Section section : readSections(doc, RemoteFormEntryConstants.PERSON_ATTRIBUTE, ATTRIBUTE_FIELDS))
+			header.addAttribute(section);
+		for (Section section : readSections(doc, RemoteFormEntryConstants.PERSON_RELATIONSHIP, RELATIONSHIP_FIELDS))
+			header.addRelationship(section);
+
+		return header;
+	}
+
+	/**
+	 * Read every instance of the given repeated section out of the document
+	 *
+	 * @param doc parsed form data
+	 * @param sectionName element name of the section, e.g. person_name
+	 * @param fields the child elements to read from each section
+	 * @return the sections in document order
+	 * @throws XPathExpressionException
+	 */
+	private static List<Section> readSections(Document doc, String sectionName, String[] fields)
+	                                                                                           throws XPathExpressionException {
+		RemoteFormEntryParsingContext parsingContext = RemoteFormEntryParsingContext.get();
+		List<Section> sections = new ArrayList<Section>();
+
+		NodeList nodeList = (NodeList) parsingContext.evaluate(RemoteFormEntryConstants.nodePrefix + sectionName, doc,
+		    XPathConstants.NODESET);
+		for (int i = 0; i < nodeList.getLength(); i++) {
+			Node node = nodeList.item(i);
+			Section section = new Section();
+			for (String field : fields)
+				section.setField(field, parsingContext.evaluate(field, node));
+			sections.add(section);
+		}
+
+		return sections;
+	}
+
+	/**
+	 * @return the id attribute on the root form element
+	 */
+	public String getFormId() {
+		return formId;
+	}
+
+	void setFormId(String formId) {
+		this.formId = valueOf(formId);
+	}
+
+	/**
+	 * @return the enterer as it is on the form, e.g. "1^The Super User"
+	 */
+	public String getEnterer() {
+		return enterer;
+	}
+
+	/**
+	 * @return the user id part of the enterer, "" if the enterer has no user id
+	 */
+	public String getEntererId() {
+		return substringBefore(enterer, "^");
+	}
+
+	void setEnterer(String enterer) {
+		this.enterer = valueOf(enterer);
+	}
+
+	/**
+	 * Get a single valued element from the "all patient data" section
+	 *
+	 * @param name element name, e.g. {@link RemoteFormEntryConstants#PERSON_BIRTHDATE}
+	 * @return the value or "" if the form does not have it
+	 */
+	public String getProperty(String name) {
+		return valueOf(properties.get(name));
+	}
+
+	/**
+	 * Set a property, keeping the first value if the form has the element more than once
+	 */
+	void setProperty(String name, String value) {
+		if (!properties.containsKey(name))
+			properties.put(name, valueOf(value));
+	}
+
+	/**
+	 * @return the person uuid on the form or "" if there is none
+	 */
+	public String getUuid() {
+		return getProperty(RemoteFormEntryConstants.PERSON_UUID);
+	}
+
+	/**
+	 * @return the concept id part of the cause of death, "" if none was given
+	 */
+	public String getDeathReasonId() {
+		return substringBefore(getProperty(RemoteFormEntryConstants.PERSON_DEATH_REASON), "^");
+	}
+
+	/**
+	 * Get a field from the encounter section of the form
+	 *
+	 * @param name element name, e.g. encounter.location_id
+	 * @return the value or "" if the form does not have it
+	 */
+	public String getEncounterField(String name) {
+		return valueOf(encounterFields.get(name));
+	}
+
+	/**
+	 * @return all of the fields in the encounter section of the form, in form order
+	 */
+	public Map<String, String> getEncounterFields() {
+		return encounterFields;
+	}
+
+	void setEncounterField(String name, String value) {
+		if (!encounterFields.containsKey(name))
+			encounterFields.put(name, valueOf(value));
+	}
+
+	/**
+	 * @return the person_name sections
+	 */
+	public List<Section> getNames() {
+		return names;
+	}
+
+	void addName(Section name) {
+		names.add(name);
+	}
+
+	/**
+	 * @return the patient_identifier sections
+	 */
+	public List<Section> getIdentifiers() {
+		return identifiers;
+	}
+
+	void addIdentifier(Section identifier) {
+		identifiers.add(identifier);
+	}
+
+	/**
+	 * @return the person_address sections
+	 */
+	public List<Section> getAddresses() {
+		return addresses;
+	}
+
+	void addAddress(Section address) {
+		addresses.add(address);
+	}
+
+	/**
+	 * @return the person_attribute sections, without duplicates
+	 */
+	public List<Section> getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * Add an attribute section unless the form already had one with the same type, value and
+	 * voided status
+	 *
+	 * @see RemoteFormEntryUtil#removeDuplicatePersonAttributes(Document, javax.xml.xpath.XPath)
+	 */
+	void addAttribute(Section attribute) {
+		String encoded = RemoteFormEntryUtil.encodedAttribute(attribute.get(RemoteFormEntryConstants.PERSON_ATTRIBUTE_TYPE),
+		    attribute.get(RemoteFormEntryConstants.PERSON_ATTRIBUTE_VALUE),
+		    attribute.get(RemoteFormEntryConstants.PERSON_ATTRIBUTE_VOIDED));
+		if (knownAttributes.add(encoded))
+			attributes.add(attribute);
+	}
+
+	/**
+	 * @return the person_relationship sections
+	 */
+	public List<Section> getRelationships() {
+		return relationships;
+	}
+
+	void addRelationship(Section relationship) {
+		relationships.add(relationship);
+	}
+
+	/**
+	 * Get a key naming the patient this form is for without looking anything up in the database.
+	 * The person uuid is used if the form has one, otherwise the first patient identifier and its
+	 * type
+	 *
+	 * @return the key or null if the form has neither a uuid nor a patient identifier
+	 */
+	public String getPatientKey() {
+		if (StringUtils.isNotBlank(getUuid()))
+			return getUuid();
+
+		if (identifiers.isEmpty())
+			return null;
+
+		Section identifier = identifiers.get(0);
+		return identifier.get(RemoteFormEntryConstants.PATIENT_IDENTIFIER_IDENTIFIER) + "^"
+		        + identifier.get(RemoteFormEntryConstants.PATIENT_IDENTIFIER_TYPE);
+	}
+
+	/**
+	 * Same as the xpath substring-before function: "" when the separator is not found
+	 */
+	private static String substringBefore(String value, String separator) {
+		int index = value.indexOf(separator);
+		if (index < 0)
+			return "";
+
+		return value.substring(0, index);
+	}
+
+	private static String valueOf(String value) {
+		return value == null ? "" : value;
+	}
+
+	/**
+	 * One instance of a repeated section of the patient header, e.g. one person_name. The
+	 * fields are keyed on their element names, e.g.
+	 * {@link RemoteFormEntryConstants#PERSON_NAME_GIVEN}
+	 */
+	public static class Section {
+
+		private Map<String, String> fields = new LinkedHashMap<String, String>();
+
+		/**
+		 * @param name element name of the field
+		 * @return the value or "" if the section does not have the field
+		 */
+		public String get(String name) {
+			return valueOf(fields.get(name));
+		}
+
+		/**
+		 * Set a field, keeping the first value if the section has the element more than once
+		 */
+		void setField(String name, String value) {
+			if (!fields.containsKey(name))
+				fields.put(name, valueOf(value));
+		}
+
+		/**
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return fields.toString();
+		}
+	}
+
+}
@@ -0,0 +1,240 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the {@link RemoteFormEntryFormHeader} out of form xml in a single streaming pass, without
+ * building a DOM. Only the form id, the header, the encounter section and the "all patient data"
+ * section are kept; the observations and everything else on the form are skipped over.<br/>
+ * <br/>
+ * The values read are the same as the xpath evaluations in {@link RemoteFormEntryUtil}: the text
+ * of the first matching element, or "" when there is none.
+ */
+public class RemoteFormEntryFormHeaderReader {
+
+	private static final String FORM = "form";
+
+	private static final String FORM_ID = "id";
+
+	private static final String HEADER = "header";
+
+	private static final String ENTERER = "enterer";
+
+	private static final String ENCOUNTER = "encounter";
+
+	private static final String ALL_PATIENT_DATA = RemoteFormEntryConstants.ALL_PATIENT_DATA.replace(" ", "_");
+
+	private static final XMLInputFactory inputFactory = createInputFactory();
+
+	/**
+	 * Read the header from the given form data
+	 *
+	 * @param formData xml string
+	 * @return the header of the form
+	 * @throws XMLStreamException if the form is not well formed
+	 */
+	public static RemoteFormEntryFormHeader read(String formData) throws XMLStreamException {
+		XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(formData));
+		try {
+			return read(reader);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Read the header from the given stream. The encoding is taken from the xml declaration
+	 *
+	 * @param formData stream of xml. The stream is not closed
+	 * @return the header of the form
+	 * @throws XMLStreamException if the form is not well formed
+	 */
+	public static RemoteFormEntryFormHeader read(InputStream formData) throws XMLStreamException {
+		XMLStreamReader reader = inputFactory.createXMLStreamReader(formData);
+		try {
+			return read(reader);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Read the header from the given file
+	 *
+	 * @param file file containing the form xml
+	 * @return the header of the form
+	 * @throws XMLStreamException if the form is not well formed
+	 * @throws IOException if the file can't be read
+	 */
+	public static RemoteFormEntryFormHeader read(File file) throws XMLStreamException, IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			return read(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Walks the document. Depth 1 is the form element, depth 2 its children (header, encounter,
+	 * all_patient_data, ...), depth 3 the fields and sections inside them and depth 4 the fields
+	 * of a section
+	 */
+	private static RemoteFormEntryFormHeader read(XMLStreamReader reader) throws XMLStreamException {
+		RemoteFormEntryFormHeader header = new RemoteFormEntryFormHeader();
+
+		int depth = 0;
+		String parent = null;
+		String sectionName = null;
+		RemoteFormEntryFormHeader.Section section = null;
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				String name = reader.getLocalName();
+
+				if (depth == 1) {
+					if (!FORM.equals(name))
+						throw new XMLStreamException("Expected a form element but found: " + name, reader.getLocation());
+					header.setFormId(reader.getAttributeValue(null, FORM_ID));
+				}
+				else if (depth == 2) {
+					parent = name;
+				}
+				else if (depth == 3) {
+					if (HEADER.equals(parent)) {
+						if (ENTERER.equals(name))
+							header.setEnterer(readText(reader));
+						else
+							skip(reader);
+						depth--;
+					}
+					else if (ENCOUNTER.equals(parent)) {
+						header.setEncounterField(name, readText(reader));
+						depth--;
+					}
+					else if (ALL_PATIENT_DATA.equals(parent)) {
+						if (isSection(name)) {
+							sectionName = name;
+							section = new RemoteFormEntryFormHeader.Section();
+						}
+						else {
+							header.setProperty(name, readText(reader));
+							depth--;
+						}
+					}
+					else {
+						// observations and anything else we don't need
+						skip(reader);
+						depth--;
+					}
+				}
+				else if (depth == 4 && section != null) {
+					section.setField(name, readText(reader));
+					depth--;
+				}
+				else {
+					skip(reader);
+					depth--;
+				}
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (depth == 3 && section != null) {
+					addSection(header, sectionName, section);
+					section = null;
+					sectionName = null;
+				}
+				else if (depth == 2) {
+					parent = null;
+				}
+				depth--;
+
+				if (depth == 0)
+					break;
+			}
+		}
+
+		return header;
+	}
+
+	/**
+	 * @return true if the given element under all_patient_data is a repeated section
+	 */
+	private static boolean isSection(String name) {
+		return RemoteFormEntryConstants.PERSON_NAME.equals(name)
+		        || RemoteFormEntryConstants.PATIENT_IDENTIFIER.equals(name)
+		        || RemoteFormEntryConstants.PERSON_ADDRESS.equals(name)
+		        || RemoteFormEntryConstants.PERSON_ATTRIBUTE.equals(name)
+		        || RemoteFormEntryConstants.PERSON_RELATIONSHIP.equals(name);
+	}
+
+	private static void addSection(RemoteFormEntryFormHeader header, String sectionName,
+	                               RemoteFormEntryFormHeader.Section section) {
+		if (RemoteFormEntryConstants.PERSON_NAME.equals(sectionName))
+			header.addName(section);
+		else if (RemoteFormEntryConstants.PATIENT_IDENTIFIER.equals(sectionName))
+			header.addIdentifier(section);
+		else if (RemoteFormEntryConstants.PERSON_ADDRESS.equals(sectionName))
+			header.addAddress(section);
+		else if (RemoteFormEntryConstants.PERSON_ATTRIBUTE.equals(sectionName))
+			header.addAttribute(section);
+		else if (RemoteFormEntryConstants.PERSON_RELATIONSHIP.equals(sectionName))
+			header.addRelationship(section);
+	}
+
+	/**
+	 * Read all of the text inside the current element (like the xpath string value) and leave the
+	 * reader on its end element
+	 */
+	private static String readText(XMLStreamReader reader) throws XMLStreamException {
+		StringBuilder text = new StringBuilder();
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+			else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+			        || event == XMLStreamConstants.SPACE)
+				text.append(reader.getText());
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Skip over the current element and everything in it, leaving the reader on its end element
+	 */
+	private static void skip(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT)
+				depth++;
+			else if (event == XMLStreamConstants.END_ELEMENT)
+				depth--;
+		}
+	}
+
+	private static XMLInputFactory createInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, Boolean.TRUE);
+		return factory;
+	}
+
+}
@@ -0,0 +1,113 @@
+package org.openmrs.module.remoteformentry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+
+/**
+ * In memory index from (identifier, identifier type) to patient id. It is loaded with one query at
+ * the start of a pending queue run so that matching a form to its patient is a map lookup instead
+ * of a patient search for every identifier on every form.<br/>
+ * <br/>
+ * The index is shared by the worker threads and is kept up to date as patients are created and
+ * updated during the run. An entry can go stale if its patient is removed or the transaction that
+ * created it is rolled back, so callers should check that the patient still exists.
+ *
+ * @see RemoteFormEntryService#getPatientByIdentifier(String, Integer)
+ */
+public class RemoteFormEntryIdentifierIndex {
+
+	private final Map<String, Integer> patientIds;
+
+	/**
+	 * Create an empty index
+	 *
+	 * @param expectedSize number of identifiers the index is expected to hold
+	 */
+	public RemoteFormEntryIdentifierIndex(int expectedSize) {
+		patientIds = new ConcurrentHashMap<String, Integer>(Math.max(16, expectedSize * 4 / 3 + 1));
+	}
+
+	/**
+	 * @param identifier the identifier string
+	 * @param identifierTypeId id of the identifier type
+	 * @return the id of the patient with the given identifier or null if there is none
+	 */
+	public Integer getPatientId(String identifier, Integer identifierTypeId) {
+		if (identifier == null || identifierTypeId == null)
+			return null;
+
+		return patientIds.get(key(identifier, identifierTypeId));
+	}
+
+	/**
+	 * Point the given identifier at the given patient, replacing the patient it pointed to before
+	 *
+	 * @param identifier the identifier string
+	 * @param identifierTypeId id of the identifier type
+	 * @param patientId id of the patient that has this identifier
+	 */
+	public void put(String identifier, Integer identifierTypeId, Integer patientId) {
+		if (identifier == null || identifierTypeId == null || patientId == null)
+			return;
+
+		patientIds.put(key(identifier, identifierTypeId), patientId);
+	}
+
+	/**
+	 * Add the non voided identifiers of the given (saved) patient to the index. Voided identifiers,
+	 * and all identifiers of a voided patient, are taken out of the index if they point at this
+	 * patient
+	 *
+	 * @param patient the patient to add
+	 */
+	public void addPatient(Patient patient) {
+		if (patient == null || patient.getPatientId() == null || patient.getIdentifiers() == null)
+			return;
+
+		boolean patientVoided = Boolean.TRUE.equals(patient.getVoided());
+		for (PatientIdentifier identifier : patient.getIdentifiers()) {
+			if (identifier.getIdentifier() == null || identifier.getIdentifierType() == null)
+				continue;
+
+			Integer identifierTypeId = identifier.getIdentifierType().getPatientIdentifierTypeId();
+			if (patientVoided || Boolean.TRUE.equals(identifier.getVoided())) {
+				if (identifierTypeId != null)
+					patientIds.remove(key(identifier.getIdentifier(), identifierTypeId), patient.getPatientId());
+			}
+			else
+				put(identifier.getIdentifier(), identifierTypeId, patient.getPatientId());
+		}
+	}
+
+	/**
+	 * Remove the entry for the given identifier
+	 *
+	 * @param identifier the identifier string
+	 * @param identifierTypeId id of the identifier type
+	 */
+	public void remove(String identifier, Integer identifierTypeId) {
+		if (identifier == null || identifierTypeId == null)
+			return;
+
+		patientIds.remove(key(identifier, identifierTypeId));
+	}
+
+	/**
+	 * @return the number of identifiers in the index
+	 */
+	public int size() {
+		return patientIds.size();
+	}
+
+	/**
+	 * The type id goes first so that an identifier containing the separator can't collide with
+	 * another identifier
+	 */
+	private static String key(String identifier, Integer identifierTypeId) {
+		return identifierTypeId + "^" + identifier;
+	}
+
+}
@@ -0,0 +1,80 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+
+/**
+ * Loads a queue zip uploaded from a remote site into the pending queue of the central server and
+ * writes the ack file for the site's next download
+ *
+ * @see RemoteFormEntryImporter
+ */
+public class RemoteFormEntryImportJob extends RemoteFormEntryJob {
+
+	private static final Log log = LogFactory.getLog(RemoteFormEntryImportJob.class);
+
+	public static final String TYPE = "import";
+
+	private final File zip;
+
+	/**
+	 * @param zip the uploaded queue zip
+	 */
+	public RemoteFormEntryImportJob(File zip) {
+		super(TYPE, zip.getName());
+		this.zip = zip;
+	}
+
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryJob#execute()
+	 */
+	@Override
+	protected void execute() throws Exception {
+		RemoteFormEntryService remoteService = (RemoteFormEntryService) Context.getService(RemoteFormEntryService.class);
+
+		setPhase("extracting");
+		int threads = RemoteFormEntrySettings.get().getInt(RemoteFormEntryConstants.GP_IMPORT_THREADS,
+		    RemoteFormEntryConstants.GP_IMPORT_THREADS_DEFAULT);
+		RemoteFormEntryImporter.Result result = new RemoteFormEntryImporter(threads).importQueueZip(zip, this);
+
+		// the names of the files uploaded
+		List<String> ackFilenames = result.getAckFilenames();
+
+		// get the location from the zip file
+		String locationId = result.getLocationId();
+
+		if (result.getFailedCount() > 0) {
+			setMessage(result.getFailedCount() + " forms could not be put in the pending queue and will not be acked");
+			log.warn(result.getFailedCount() + " forms in " + zip.getName()
+			        + " could not be put in the pending queue and will not be acked");
+		}
+
+		setPhase("acking");
+		Location location = null;
+		if (locationId.length() > 0)
+			location = RemoteFormEntryMetadataCache.getLocation(Integer.valueOf(locationId));
+
+		if (location == null)
+			log.warn("Unable to find location with id: " + locationId);
+
+		remoteService.createAckFile(location, ackFilenames);
+		addAckLinesWritten(ackFilenames.size());
+
+		// the site applied this return data, the next one only needs what changed since
+		if (location != null && result.getSyncMark() != null) {
+			try {
+				remoteService.acknowledgeSyncMark(location, new Date(Long.parseLong(result.getSyncMark())));
+			}
+			catch (NumberFormatException e) {
+				log.warn("Invalid sync mark from location " + locationId + ": " + result.getSyncMark());
+			}
+		}
+	}
+
+}
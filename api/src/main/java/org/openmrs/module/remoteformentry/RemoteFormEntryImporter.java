@@ -0,0 +1,325 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Loads a queue zip exported by a remote site into the pending queue of the central server.<br/>
+ * <br/>
+ * The zip is opened with {@link ZipFile} so its entries can be read independently of each other
+ * and are extracted on {@link RemoteFormEntryConstants#GP_IMPORT_THREADS} threads. Every entry is
+ * written to a staging directory first and then moved into the pending queue, so the pending
+ * queue processor never sees a half written file. Each form is available for processing as soon
+ * as it has been extracted, not when the whole zip is done.
+ *
+ * @see RemoteFormEntryService#moveToRemoteFormEntryPendingQueue(RemoteFormEntryPendingQueue)
+ */
+public class RemoteFormEntryImporter {
+
+	private static final Log log = LogFactory.getLog(RemoteFormEntryImporter.class);
+
+	/**
+	 * Prefix of the empty zip entry that carries the id of the remote location
+	 */
+	public static final String LOCATION_ID_PREFIX = "locationId-";
+
+	/**
+	 * Prefix of the empty zip entry that carries the sync mark of the last return data the remote
+	 * site applied
+	 */
+	public static final String SYNC_MARK_PREFIX = "syncMark-";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final int threads;
+
+	/**
+	 * @param threads number of threads to extract the entries on
+	 */
+	public RemoteFormEntryImporter(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Extract all forms in the given zip into the pending queue. A form that cannot be extracted
+	 * is logged and left out of the result so that the remote site sends it again.
+	 *
+	 * @param zip queue zip uploaded from a remote site
+	 * @return the location id and names of the forms that were put in the pending queue
+	 * @throws IOException if the zip cannot be read
+	 */
+	public Result importQueueZip(File zip) throws IOException {
+		return importQueueZip(zip, null);
+	}
+
+	/**
+	 * Same as {@link #importQueueZip(File)}, counting the bytes and entries extracted on the given
+	 * job as it goes
+	 *
+	 * @param zip queue zip uploaded from a remote site
+	 * @param job the job to report progress to, may be null
+	 * @return the location id and names of the forms that were put in the pending queue
+	 * @throws IOException if the zip cannot be read
+	 */
+	public Result importQueueZip(File zip, RemoteFormEntryJob job) throws IOException {
+		ZipFile zipFile = new ZipFile(zip);
+		File stagingDir = null;
+		try {
+			stagingDir = createStagingDir(zip);
+
+			String locationId = "";
+			String syncMark = null;
+			List<ZipEntry> entries = new ArrayList<ZipEntry>(zipFile.size());
+			Enumeration<? extends ZipEntry> e = zipFile.entries();
+			while (e.hasMoreElements()) {
+				ZipEntry entry = e.nextElement();
+				if (entry.isDirectory())
+					continue;
+				if (entry.getName().startsWith(LOCATION_ID_PREFIX))
+					locationId = entry.getName().substring(LOCATION_ID_PREFIX.length());
+				else if (entry.getName().startsWith(SYNC_MARK_PREFIX))
+					syncMark = entry.getName().substring(SYNC_MARK_PREFIX.length());
+				else
+					entries.add(entry);
+			}
+
+			boolean[] extracted = extract(zipFile, entries, stagingDir, job);
+
+			// ack in the order the remote site zipped them
+			List<String> ackFilenames = new ArrayList<String>(entries.size());
+			for (int i = 0; i < entries.size(); i++) {
+				if (extracted[i])
+					ackFilenames.add(entries.get(i).getName());
+			}
+
+			if (log.isDebugEnabled())
+				log.debug("Imported " + ackFilenames.size() + " of " + entries.size() + " forms from " + zip.getName());
+
+			return new Result(locationId, syncMark, ackFilenames, entries.size() - ackFilenames.size());
+		}
+		finally {
+			zipFile.close();
+			FileUtils.deleteQuietly(stagingDir);
+		}
+	}
+
+	/**
+	 * Zips from different sites (or two uploads of the same one) can have the same name, so every
+	 * import gets a staging directory of its own
+	 *
+	 * @return a new, empty directory in the staging directory
+	 */
+	private static File createStagingDir(File zip) throws IOException {
+		File parent = new File(OpenmrsUtil.getDirectoryInApplicationDataDirectory("remoteformentry"),
+		        RemoteFormEntryConstants.IMPORT_STAGING_DIRECTORY_NAME);
+		if (!parent.exists() && !parent.mkdirs())
+			throw new IOException("Unable to create the staging directory: " + parent);
+
+		File stagingDir = File.createTempFile(zip.getName() + "-", "", parent);
+		if (!stagingDir.delete() || !stagingDir.mkdir())
+			throw new IOException("Unable to create the staging directory: " + stagingDir);
+		return stagingDir;
+	}
+
+	/**
+	 * Extract the given entries on the importer's threads. The threads take the next entry off a
+	 * shared counter so that a few large forms don't hold up the rest
+	 *
+	 * @return which of the entries made it into the pending queue
+	 */
+	private boolean[] extract(ZipFile zipFile, List<ZipEntry> entries, File stagingDir, RemoteFormEntryJob job) {
+		boolean[] extracted = new boolean[entries.size()];
+		AtomicInteger next = new AtomicInteger();
+		UserContext userContext = Context.getUserContext();
+
+		int workers = Math.min(threads, Math.max(1, entries.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			for (int i = 0; i < workers; i++)
+				executor.execute(new ExtractWorker(zipFile, entries, stagingDir, extracted, next, userContext, job));
+		}
+		finally {
+			executor.shutdown();
+			// the workers write to the staging directory, which is deleted as soon as this returns
+			boolean interrupted = false;
+			while (!executor.isTerminated()) {
+				try {
+					if (!executor.awaitTermination(1, TimeUnit.MINUTES) && log.isDebugEnabled())
+						log.debug("Waiting for import workers, " + next.get() + " of " + entries.size() + " started");
+				}
+				catch (InterruptedException ie) {
+					if (!interrupted)
+						log.warn("Interrupted while waiting for import workers, stopping them after their current form");
+					interrupted = true;
+					executor.shutdownNow();
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		return extracted;
+	}
+
+	/**
+	 * Writes one zip entry to the staging directory and moves it into the pending queue
+	 */
+	private static void extractEntry(ZipFile zipFile, ZipEntry entry, File stagingDir, byte[] buffer,
+	        RemoteFormEntryJob job) throws IOException {
+		// entries are flat file names, anything else can't be allowed outside the staging dir
+		File file = new File(stagingDir, new File(entry.getName()).getName());
+
+		InputStream in = zipFile.getInputStream(entry);
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				int count;
+				while ((count = in.read(buffer)) != -1) {
+					out.write(buffer, 0, count);
+					if (job != null)
+						job.addBytesProcessed(count);
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+
+		RemoteFormEntryPendingQueue pendingQueue = new RemoteFormEntryPendingQueue();
+		pendingQueue.setFileSystemUrl(file.getAbsolutePath());
+		RemoteFormEntryService remoteService = (RemoteFormEntryService) Context.getService(RemoteFormEntryService.class);
+		remoteService.moveToRemoteFormEntryPendingQueue(pendingQueue);
+
+		if (job != null)
+			job.addEntriesExtracted(1);
+	}
+
+	/**
+	 * Extracts entries until there are none left, in its own session as the user that started
+	 * the import
+	 */
+	private static class ExtractWorker implements Runnable {
+
+		private ZipFile zipFile;
+
+		private List<ZipEntry> entries;
+
+		private File stagingDir;
+
+		private boolean[] extracted;
+
+		private AtomicInteger next;
+
+		private UserContext userContext;
+
+		private RemoteFormEntryJob job;
+
+		public ExtractWorker(ZipFile zipFile, List<ZipEntry> entries, File stagingDir, boolean[] extracted,
+		    AtomicInteger next, UserContext userContext, RemoteFormEntryJob job) {
+			this.zipFile = zipFile;
+			this.entries = entries;
+			this.stagingDir = stagingDir;
+			this.extracted = extracted;
+			this.next = next;
+			this.userContext = userContext;
+			this.job = job;
+		}
+
+		public void run() {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			try {
+				Context.openSession();
+				Context.setUserContext(userContext);
+
+				int i;
+				// an interrupted import leaves the rest for the remote site to send again
+				while (!Thread.currentThread().isInterrupted() && (i = next.getAndIncrement()) < entries.size()) {
+					ZipEntry entry = entries.get(i);
+					try {
+						extractEntry(zipFile, entry, stagingDir, buffer, job);
+						extracted[i] = true;
+					}
+					catch (Exception e) {
+						log.error("The pending dir couldn't be written to for: " + entry.getName(), e);
+					}
+				}
+			}
+			finally {
+				Context.closeSession();
+			}
+		}
+	}
+
+	/**
+	 * What came out of one import
+	 */
+	public static class Result {
+
+		private String locationId;
+
+		private String syncMark;
+
+		private List<String> ackFilenames;
+
+		private int failedCount;
+
+		public Result(String locationId, String syncMark, List<String> ackFilenames, int failedCount) {
+			this.locationId = locationId;
+			this.syncMark = syncMark;
+			this.ackFilenames = ackFilenames;
+			this.failedCount = failedCount;
+		}
+
+		/**
+		 * @return id of the remote location the zip came from, or an empty string if it didn't say
+		 */
+		public String getLocationId() {
+			return locationId;
+		}
+
+		/**
+		 * @return the sync mark of the last return data the remote site applied, or null if it
+		 *         didn't send one
+		 */
+		public String getSyncMark() {
+			return syncMark;
+		}
+
+		/**
+		 * @return names of the forms that were put in the pending queue, in zip order
+		 */
+		public List<String> getAckFilenames() {
+			return ackFilenames;
+		}
+
+		/**
+		 * @return number of forms that could not be extracted
+		 */
+		public int getFailedCount() {
+			return failedCount;
+		}
+	}
+
+}
@@ -0,0 +1,274 @@
+package org.openmrs.module.remoteformentry;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.User;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+
+/**
+ * A long running piece of work (importing a queue zip, receiving the data from central) that is
+ * run in the background by the {@link RemoteFormEntryJobManager} instead of on the http request
+ * that started it. The job runs in its own session. Jobs submitted from the web run as the
+ * scheduler user, like the scheduled tasks of the module, in a user context of their own: the
+ * user that started the job logging out or their session expiring does not affect it. The steps of
+ * a {@link RemoteFormEntryJobGraph} run as the user of the job that runs the graph.<br/>
+ * <br/>
+ * The counters and the phase are updated while the job runs so that its progress can be shown to
+ * the user.
+ */
+public abstract class RemoteFormEntryJob implements Runnable {
+
+	private static final Log log = LogFactory.getLog(RemoteFormEntryJob.class);
+
+	/**
+	 * the job each thread is running
+	 */
+	private static final ThreadLocal<RemoteFormEntryJob> current = new ThreadLocal<RemoteFormEntryJob>();
+
+	public enum Status {
+		QUEUED, RUNNING, COMPLETED, FAILED
+	}
+
+	private final String jobId = UUID.randomUUID().toString();
+
+	private final String type;
+
+	private final String filename;
+
+	private final UserContext userContext;
+
+	private final String submittedBy;
+
+	private final Date dateQueued = new Date();
+
+	private volatile Date dateStarted;
+
+	private volatile Date dateFinished;
+
+	private volatile Status status = Status.QUEUED;
+
+	private volatile String phase;
+
+	private volatile String message;
+
+	private final AtomicLong bytesProcessed = new AtomicLong();
+
+	private final AtomicLong entriesExtracted = new AtomicLong();
+
+	private final AtomicLong ackLinesWritten = new AtomicLong();
+
+	/**
+	 * A job that runs as the scheduler user
+	 *
+	 * @param type what kind of job this is, used to list the jobs on the right page
+	 * @param filename name of the uploaded file the job works on
+	 */
+	protected RemoteFormEntryJob(String type, String filename) {
+		this(type, filename, null);
+	}
+
+	/**
+	 * @param type what kind of job this is, used to list the jobs on the right page
+	 * @param filename name of the uploaded file the job works on
+	 * @param userContext the user the job runs as, null to run as the scheduler user
+	 */
+	protected RemoteFormEntryJob(String type, String filename, UserContext userContext) {
+		this.type = type;
+		this.filename = filename;
+		this.userContext = userContext;
+
+		User user = Context.isAuthenticated() ? Context.getAuthenticatedUser() : null;
+		this.submittedBy = user == null ? null : user.getSystemId();
+	}
+
+	/**
+	 * Do the actual work of the job. Runs in its own session
+	 *
+	 * @throws Exception if the job failed
+	 */
+	protected abstract void execute() throws Exception;
+
+	/**
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		dateStarted = new Date();
+		status = Status.RUNNING;
+		current.set(this);
+		try {
+			Context.openSession();
+			if (userContext != null)
+				Context.setUserContext(userContext);
+			else
+				authenticate();
+			execute();
+			// unless the job was given up on while it ran
+			if (status == Status.RUNNING)
+				status = Status.COMPLETED;
+		}
+		catch (Throwable t) {
+			log.error("Remote form entry " + type + " job failed for: " + filename, t);
+			message = t.getMessage() == null ? t.getClass().getName() : t.getMessage();
+			status = Status.FAILED;
+		}
+		finally {
+			try {
+				Context.closeSession();
+			}
+			finally {
+				current.remove();
+				dateFinished = new Date();
+				phase = null;
+			}
+		}
+	}
+
+	/**
+	 * Log the user context of the new session in as the scheduler user
+	 *
+	 * @throws RemoteFormEntryException if the scheduler user is not set up
+	 */
+	private void authenticate() {
+		AdministrationService adminService = Context.getAdministrationService();
+		try {
+			Context.authenticate(adminService.getGlobalProperty("scheduler.username"), adminService
+			        .getGlobalProperty("scheduler.password"));
+		}
+		catch (RuntimeException e) {
+			throw new RemoteFormEntryException("Unable to run the " + type + " job as the scheduler user, "
+			        + "check the scheduler.username and scheduler.password global properties", e);
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("Running " + type + " job " + jobId + " for user " + submittedBy + " as the scheduler user");
+	}
+
+	/**
+	 * @return the job running on this thread, or null if the thread is not running one
+	 */
+	static RemoteFormEntryJob getCurrent() {
+		return current.get();
+	}
+
+	/**
+	 * Mark the job as failed without running it (or without waiting for it to finish), because
+	 * something it needs did not work out
+	 *
+	 * @param message why the job was not run
+	 */
+	void skip(String message) {
+		this.message = message;
+		status = Status.FAILED;
+		dateFinished = new Date();
+	}
+
+	public String getJobId() {
+		return jobId;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getFilename() {
+		return filename;
+	}
+
+	/**
+	 * @return system id of the user that submitted the job, null if nobody was logged in
+	 */
+	public String getSubmittedBy() {
+		return submittedBy;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true if the job has completed or failed
+	 */
+	public boolean isFinished() {
+		return status == Status.COMPLETED || status == Status.FAILED;
+	}
+
+	public Date getDateQueued() {
+		return dateQueued;
+	}
+
+	public Date getDateStarted() {
+		return dateStarted;
+	}
+
+	public Date getDateFinished() {
+		return dateFinished;
+	}
+
+	/**
+	 * @return milliseconds the job has been running, or ran for if it is finished. Zero if it
+	 *         hasn't started yet
+	 */
+	public long getElapsedMillis() {
+		Date started = dateStarted;
+		if (started == null)
+			return 0;
+
+		Date finished = dateFinished;
+		return (finished == null ? System.currentTimeMillis() : finished.getTime()) - started.getTime();
+	}
+
+	/**
+	 * @return what the job is currently doing, or null if it isn't running
+	 */
+	public String getPhase() {
+		return phase;
+	}
+
+	protected void setPhase(String phase) {
+		if (log.isDebugEnabled())
+			log.debug("Job " + jobId + ": " + phase);
+		this.phase = phase;
+	}
+
+	/**
+	 * @return the error if the job failed, or a note about the result if it completed
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	protected void setMessage(String message) {
+		this.message = message;
+	}
+
+	public long getBytesProcessed() {
+		return bytesProcessed.get();
+	}
+
+	public void addBytesProcessed(long bytes) {
+		bytesProcessed.addAndGet(bytes);
+	}
+
+	public long getEntriesExtracted() {
+		return entriesExtracted.get();
+	}
+
+	public void addEntriesExtracted(int entries) {
+		entriesExtracted.addAndGet(entries);
+	}
+
+	public long getAckLinesWritten() {
+		return ackLinesWritten.get();
+	}
+
+	public void addAckLinesWritten(int lines) {
+		ackLinesWritten.addAndGet(lines);
+	}
+
+}
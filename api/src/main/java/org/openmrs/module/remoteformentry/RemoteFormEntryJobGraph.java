@@ -0,0 +1,156 @@
+package org.openmrs.module.remoteformentry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A set of {@link RemoteFormEntryJob}s that depend on each other, run on a bounded pool of
+ * threads. A job is started as soon as all of the jobs it depends on have completed; if one of them
+ * failed the job is not run and is marked as failed too. Jobs that don't depend on each other run
+ * side by side.<br/>
+ * <br/>
+ * Unlike the jobs of the {@link RemoteFormEntryJobManager}, {@link #run()} blocks until every job
+ * has finished. When it is called from a running job, the phase of that job shows how many of the
+ * jobs of the graph are done.
+ */
+public class RemoteFormEntryJobGraph {
+
+	private static final Log log = LogFactory.getLog(RemoteFormEntryJobGraph.class);
+
+	private final String name;
+
+	private final int threads;
+
+	private final Map<RemoteFormEntryJob, List<RemoteFormEntryJob>> dependencies = new LinkedHashMap<RemoteFormEntryJob, List<RemoteFormEntryJob>>();
+
+	/**
+	 * @param name name of the graph, used for the threads and in the log
+	 * @param threads the most jobs to run at the same time
+	 */
+	public RemoteFormEntryJobGraph(String name, int threads) {
+		this.name = name;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Add a job to the graph
+	 *
+	 * @param job the job to add
+	 * @param dependsOn jobs already in the graph that must complete before this one starts
+	 * @return the job
+	 */
+	public RemoteFormEntryJob add(RemoteFormEntryJob job, RemoteFormEntryJob... dependsOn) {
+		for (RemoteFormEntryJob dependency : dependsOn) {
+			if (!dependencies.containsKey(dependency))
+				throw new IllegalArgumentException(dependency.getFilename() + " has not been added to " + name);
+		}
+		dependencies.put(job, Arrays.asList(dependsOn));
+		return job;
+	}
+
+	/**
+	 * @return all of the jobs, in the order they were added
+	 */
+	public List<RemoteFormEntryJob> getJobs() {
+		return Collections.unmodifiableList(new ArrayList<RemoteFormEntryJob>(dependencies.keySet()));
+	}
+
+	/**
+	 * Run all of the jobs and wait for them to finish
+	 *
+	 * @return the number of jobs that failed or were not run
+	 * @throws InterruptedException if the thread is interrupted while waiting. The running jobs are
+	 *             interrupted too
+	 */
+	public int run() throws InterruptedException {
+		long start = System.currentTimeMillis();
+		RemoteFormEntryJob parent = RemoteFormEntryJob.getCurrent();
+		String parentPhase = parent == null ? null : parent.getPhase();
+
+		final AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		try {
+			CompletionService<RemoteFormEntryJob> finished = new ExecutorCompletionService<RemoteFormEntryJob>(executor);
+			List<RemoteFormEntryJob> waiting = new ArrayList<RemoteFormEntryJob>(dependencies.keySet());
+			int running = 0;
+
+			while (true) {
+				// dependencies are always added before the jobs that need them, so one pass in
+				// order starts (or skips) everything that can be
+				for (Iterator<RemoteFormEntryJob> iterator = waiting.iterator(); iterator.hasNext();) {
+					RemoteFormEntryJob job = iterator.next();
+					RemoteFormEntryJob failed = null;
+					boolean ready = true;
+					for (RemoteFormEntryJob dependency : dependencies.get(job)) {
+						if (dependency.getStatus() == RemoteFormEntryJob.Status.FAILED)
+							failed = dependency;
+						else if (dependency.getStatus() != RemoteFormEntryJob.Status.COMPLETED)
+							ready = false;
+					}
+
+					if (failed != null) {
+						job.skip("Not run because " + failed.getFilename() + " failed");
+						iterator.remove();
+					}
+					else if (ready) {
+						finished.submit(job, job);
+						iterator.remove();
+						running++;
+					}
+				}
+
+				if (running == 0)
+					break;
+
+				finished.take();
+				running--;
+
+				if (parent != null)
+					parent.setPhase(name + ": " + (dependencies.size() - waiting.size() - running) + " of "
+					        + dependencies.size() + " done");
+			}
+		}
+		finally {
+			executor.shutdownNow();
+			if (parent != null)
+				parent.setPhase(parentPhase);
+		}
+
+		int failures = 0;
+		for (RemoteFormEntryJob job : dependencies.keySet()) {
+			if (job.getStatus() != RemoteFormEntryJob.Status.COMPLETED)
+				failures++;
+			if (log.isDebugEnabled())
+				log.debug(name + ": " + job.getFilename() + " " + job.getStatus() + " in " + job.getElapsedMillis() + "ms"
+				        + (job.getMessage() == null ? "" : " (" + job.getMessage() + ")"));
+		}
+
+		log.info(name + ": " + dependencies.size() + " jobs, " + failures + " failed, on " + threads + " threads in "
+		        + (System.currentTimeMillis() - start) + "ms");
+
+		return failures;
+	}
+
+}
@@ -0,0 +1,111 @@
+package org.openmrs.module.remoteformentry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs {@link RemoteFormEntryJob}s in the background and keeps track of them so their progress
+ * can be looked up by id. Jobs run one at a time in the order they were submitted; imports and
+ * receives are heavy on the disk and the database and gain nothing by running side by side.<br/>
+ * <br/>
+ * Only the most recent finished jobs are remembered. Nothing survives a restart.
+ */
+public class RemoteFormEntryJobManager {
+
+	private static final int MAX_FINISHED_JOBS = 20;
+
+	private static final Map<String, RemoteFormEntryJob> jobs = new LinkedHashMap<String, RemoteFormEntryJob>();
+
+	private static ExecutorService executor;
+
+	/**
+	 * Queue the given job to be run in the background
+	 *
+	 * @param job the job to run
+	 * @return the id to look the job up by
+	 */
+	public static synchronized String submit(RemoteFormEntryJob job) {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "remoteformentry-job");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		pruneFinishedJobs();
+		jobs.put(job.getJobId(), job);
+		executor.execute(job);
+		return job.getJobId();
+	}
+
+	/**
+	 * @param jobId id returned by {@link #submit(RemoteFormEntryJob)}
+	 * @return the job or null if there is no such job (anymore)
+	 */
+	public static synchronized RemoteFormEntryJob getJob(String jobId) {
+		return jobs.get(jobId);
+	}
+
+	/**
+	 * @param type the type of jobs to get, or null for all of them
+	 * @return the known jobs of the given type, newest first
+	 */
+	public static synchronized List<RemoteFormEntryJob> getJobs(String type) {
+		List<RemoteFormEntryJob> list = new ArrayList<RemoteFormEntryJob>();
+		for (RemoteFormEntryJob job : jobs.values()) {
+			if (type == null || type.equals(job.getType()))
+				list.add(job);
+		}
+		Collections.reverse(list);
+		return list;
+	}
+
+	/**
+	 * Stop taking new jobs. The running job is interrupted and queued jobs are dropped, both are
+	 * marked as failed
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+
+		for (RemoteFormEntryJob job : jobs.values()) {
+			if (job.getStatus() == RemoteFormEntryJob.Status.QUEUED)
+				job.skip("The module was stopped before the job was run");
+			else if (job.getStatus() == RemoteFormEntryJob.Status.RUNNING)
+				job.skip("The module was stopped while the job was running");
+		}
+	}
+
+	/**
+	 * Forget the oldest finished jobs so that at most {@link #MAX_FINISHED_JOBS} are remembered
+	 */
+	private static void pruneFinishedJobs() {
+		int finished = 0;
+		for (RemoteFormEntryJob job : jobs.values()) {
+			if (job.isFinished())
+				finished++;
+		}
+
+		Iterator<RemoteFormEntryJob> iterator = jobs.values().iterator();
+		while (finished >= MAX_FINISHED_JOBS && iterator.hasNext()) {
+			if (iterator.next().isFinished()) {
+				iterator.remove();
+				finished--;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,177 @@
+package org.openmrs.module.remoteformentry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openmrs.EncounterType;
+import org.openmrs.Form;
+import org.openmrs.Location;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.RelationshipType;
+import org.openmrs.User;
+import org.openmrs.api.context.Context;
+
+/**
+ * Module wide cache of the metadata that is looked up for every form in the pending queue:
+ * identifier types, attribute types, relationship types, encounter types, locations, users and
+ * forms. These tables hardly ever change on a remote site, so the objects are kept across sessions
+ * and threads until {@link #clear()} is called. Lookups that find nothing are not cached.<br/>
+ * <br/>
+ * The cached objects are detached from the current session. They are only meant to be referenced
+ * by the patients, identifiers, attributes and relationships being saved, not modified.<br/>
+ * <br/>
+ * The cache is cleared at the start of every pending queue run and whenever the database is
+ * replaced with the data from the central server.
+ */
+public class RemoteFormEntryMetadataCache {
+
+	private static final Map<Integer, PatientIdentifierType> identifierTypes = new ConcurrentHashMap<Integer, PatientIdentifierType>();
+
+	private static final Map<Integer, PersonAttributeType> attributeTypes = new ConcurrentHashMap<Integer, PersonAttributeType>();
+
+	private static final Map<Integer, RelationshipType> relationshipTypes = new ConcurrentHashMap<Integer, RelationshipType>();
+
+	private static final Map<Integer, EncounterType> encounterTypes = new ConcurrentHashMap<Integer, EncounterType>();
+
+	private static final Map<Integer, Location> locations = new ConcurrentHashMap<Integer, Location>();
+
+	private static final Map<String, Location> locationsByName = new ConcurrentHashMap<String, Location>();
+
+	private static final Map<Integer, User> users = new ConcurrentHashMap<Integer, User>();
+
+	private static final Map<Integer, Form> forms = new ConcurrentHashMap<Integer, Form>();
+
+	/**
+	 * @param patientIdentifierTypeId primary key of the identifier type
+	 * @return the identifier type or null if there is none with this id
+	 */
+	public static PatientIdentifierType getPatientIdentifierType(Integer patientIdentifierTypeId) {
+		PatientIdentifierType type = identifierTypes.get(patientIdentifierTypeId);
+		if (type == null) {
+			type = Context.getPatientService().getPatientIdentifierType(patientIdentifierTypeId);
+			if (type != null)
+				identifierTypes.put(patientIdentifierTypeId, type);
+		}
+		return type;
+	}
+
+	/**
+	 * @param personAttributeTypeId primary key of the attribute type
+	 * @return the attribute type or null if there is none with this id
+	 */
+	public static PersonAttributeType getPersonAttributeType(Integer personAttributeTypeId) {
+		PersonAttributeType type = attributeTypes.get(personAttributeTypeId);
+		if (type == null) {
+			type = Context.getPersonService().getPersonAttributeType(personAttributeTypeId);
+			if (type != null)
+				attributeTypes.put(personAttributeTypeId, type);
+		}
+		return type;
+	}
+
+	/**
+	 * @param relationshipTypeId primary key of the relationship type
+	 * @return the relationship type or null if there is none with this id
+	 */
+	public static RelationshipType getRelationshipType(Integer relationshipTypeId) {
+		RelationshipType type = relationshipTypes.get(relationshipTypeId);
+		if (type == null) {
+			type = Context.getPersonService().getRelationshipType(relationshipTypeId);
+			if (type != null)
+				relationshipTypes.put(relationshipTypeId, type);
+		}
+		return type;
+	}
+
+	/**
+	 * @param encounterTypeId primary key of the encounter type
+	 * @return the encounter type or null if there is none with this id
+	 */
+	public static EncounterType getEncounterType(Integer encounterTypeId) {
+		EncounterType type = encounterTypes.get(encounterTypeId);
+		if (type == null) {
+			type = Context.getEncounterService().getEncounterType(encounterTypeId);
+			if (type != null)
+				encounterTypes.put(encounterTypeId, type);
+		}
+		return type;
+	}
+
+	/**
+	 * @param locationId primary key of the location
+	 * @return the location or null if there is none with this id
+	 */
+	public static Location getLocation(Integer locationId) {
+		Location location = locations.get(locationId);
+		if (location == null) {
+			location = Context.getLocationService().getLocation(locationId);
+			if (location != null)
+				locations.put(locationId, location);
+		}
+		return location;
+	}
+
+	/**
+	 * @param name name of the location
+	 * @return the location or null if there is none with this name
+	 */
+	public static Location getLocation(String name) {
+		Location location = locationsByName.get(name);
+		if (location == null) {
+			location = Context.getLocationService().getLocation(name);
+			if (location != null)
+				locationsByName.put(name, location);
+		}
+		return location;
+	}
+
+	/**
+	 * @param userId primary key of the user
+	 * @return the user or null if there is none with this id
+	 */
+	public static User getUser(Integer userId) {
+		User user = users.get(userId);
+		if (user == null) {
+			user = Context.getUserService().getUser(userId);
+			if (user != null)
+				users.put(userId, user);
+		}
+		return user;
+	}
+
+	/**
+	 * The encounter type of the form is loaded along with it so that it can be used after the
+	 * session the form was loaded in is gone
+	 *
+	 * @param formId primary key of the form
+	 * @return the form or null if there is none with this id
+	 */
+	public static Form getForm(Integer formId) {
+		Form form = forms.get(formId);
+		if (form == null) {
+			form = Context.getFormService().getForm(formId);
+			if (form != null) {
+				if (form.getEncounterType() != null)
+					form.getEncounterType().getName();
+				forms.put(formId, form);
+			}
+		}
+		return form;
+	}
+
+	/**
+	 * Forget everything that has been cached. The next lookups go to the database again
+	 */
+	public static void clear() {
+		identifierTypes.clear();
+		attributeTypes.clear();
+		relationshipTypes.clear();
+		encounterTypes.clear();
+		locations.clear();
+		locationsByName.clear();
+		users.clear();
+		forms.clear();
+	}
+
+}
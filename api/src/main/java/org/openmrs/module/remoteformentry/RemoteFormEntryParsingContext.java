@@ -0,0 +1,244 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Per-thread holder of the objects needed to read form xml: a reusable DocumentBuilder, an XPath
+ * and the compiled XPathExpressions for every path used on the forms. None of these are thread
+ * safe, so each thread gets its own context.<br/>
+ * <br/>
+ * The paths built from {@link RemoteFormEntryConstants} are compiled when the context is created.
+ * Any other path is compiled the first time it is used on a thread and then kept.<br/>
+ * <br/>
+ * Threads that are not the module's own (web request threads) must call {@link #remove()} when
+ * they are done, because a pooled thread would otherwise keep the context and with it the classes
+ * of the module after it is reloaded.
+ *
+ * <pre>
+ * RemoteFormEntryParsingContext context = RemoteFormEntryParsingContext.get();
+ * Document doc = context.parse(formData);
+ * String formId = context.evaluate(&quot;/form/@id&quot;, doc);
+ * </pre>
+ */
+public class RemoteFormEntryParsingContext {
+
+	private static final ThreadLocal<RemoteFormEntryParsingContext> contexts = new ThreadLocal<RemoteFormEntryParsingContext>() {
+
+		protected RemoteFormEntryParsingContext initialValue() {
+			return new RemoteFormEntryParsingContext();
+		}
+	};
+
+	/**
+	 * The paths that are evaluated on every form, compiled up front
+	 */
+	private static final String[] CONSTANT_PATHS = {
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_NAME,
+	        RemoteFormEntryConstants.PERSON_NAME_GIVEN,
+	        RemoteFormEntryConstants.PERSON_NAME_MIDDLE,
+	        RemoteFormEntryConstants.PERSON_NAME_FAMILY,
+	        RemoteFormEntryConstants.PERSON_NAME_VOIDED,
+	        RemoteFormEntryConstants.PERSON_NAME_PREFERRED,
+
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PATIENT_IDENTIFIER,
+	        RemoteFormEntryConstants.PATIENT_IDENTIFIER_IDENTIFIER,
+	        RemoteFormEntryConstants.PATIENT_IDENTIFIER_TYPE,
+	        RemoteFormEntryConstants.PATIENT_IDENTIFIER_LOCATION,
+	        RemoteFormEntryConstants.PATIENT_IDENTIFIER_VOIDED,
+	        RemoteFormEntryConstants.PATIENT_IDENTIFIER_PREFERRED,
+
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_ADDRESS,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_ADDRESS1,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_ADDRESS2,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_CITY_VILLAGE,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_NEIGHBORHOOD_CELL,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_COUNTY_DISTRICT,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_TOWNSHIP_DIVISION,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_REGION,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_SUBREGION,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_STATE_PROVINCE,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_COUNTRY,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_POSTAL_CODE,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_LATITUDE,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_LONGITUDE,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_VOIDED,
+	        RemoteFormEntryConstants.PERSON_ADDRESS_PREFERRED,
+
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PATIENT_TRIBE,
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_UUID,
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_BIRTHDATE,
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_BIRTHDATE_ESTIMATED,
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_GENDER,
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_DEAD,
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_DEATH_DATE,
+	        "substring-before(" + RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_DEATH_REASON + ", '^')",
+
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_ATTRIBUTE,
+	        RemoteFormEntryConstants.PERSON_ATTRIBUTE_TYPE,
+	        RemoteFormEntryConstants.PERSON_ATTRIBUTE_VALUE,
+	        RemoteFormEntryConstants.PERSON_ATTRIBUTE_VOIDED,
+
+	        RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_RELATIONSHIP,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_TYPE,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_A_OR_B,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_UUID,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER_TYPE,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER_LOC,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_GIVENNAME,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_MIDDLENAME,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_FAMILYNAME,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_GENDER,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_BIRTHDATE,
+	        RemoteFormEntryConstants.PERSON_RELATIONSHIP_VOIDED,
+
+	        RemoteFormEntryConstants.FORM_ID_PATH,
+	        RemoteFormEntryConstants.ENTERER_PATH,
+	        RemoteFormEntryConstants.ENTERER_ID_PATH,
+	        RemoteFormEntryConstants.ENCOUNTER_FIELDS_PATH };
+
+	private DocumentBuilder documentBuilder;
+
+	private XPath xpath;
+
+	private Map<String, XPathExpression> expressions = new HashMap<String, XPathExpression>();
+
+	/**
+	 * Get the parsing context for the current thread
+	 *
+	 * @return RemoteFormEntryParsingContext that may only be used on this thread
+	 */
+	public static RemoteFormEntryParsingContext get() {
+		return contexts.get();
+	}
+
+	/**
+	 * Drop the parsing context of the current thread. The next call to {@link #get()} on this
+	 * thread creates a new one
+	 */
+	public static void remove() {
+		contexts.remove();
+	}
+
+	private RemoteFormEntryParsingContext() {
+		xpath = XPathFactory.newInstance().newXPath();
+
+		for (String path : CONSTANT_PATHS) {
+			try {
+				getExpression(path);
+			}
+			catch (XPathExpressionException e) {
+				throw new RemoteFormEntryException("Invalid xpath: " + path, e);
+			}
+		}
+	}
+
+	/**
+	 * Parse the given form data
+	 *
+	 * @param formData xml string
+	 * @return the parsed document
+	 */
+	public Document parse(String formData) throws ParserConfigurationException, SAXException, IOException {
+		return getDocumentBuilder().parse(new InputSource(new StringReader(formData)));
+	}
+
+	/**
+	 * Parse the given form data
+	 *
+	 * @param formData stream of xml. The stream is not closed
+	 * @return the parsed document
+	 */
+	public Document parse(InputStream formData) throws ParserConfigurationException, SAXException, IOException {
+		return getDocumentBuilder().parse(formData);
+	}
+
+	/**
+	 * Parse the given file
+	 *
+	 * @param file file containing xml
+	 * @return the parsed document
+	 */
+	public Document parse(File file) throws ParserConfigurationException, SAXException, IOException {
+		return getDocumentBuilder().parse(file);
+	}
+
+	/**
+	 * @return this thread's XPath object, for anything that needs one directly
+	 */
+	public XPath getXPath() {
+		return xpath;
+	}
+
+	/**
+	 * Get the compiled form of the given path, compiling it if this thread has not used it yet
+	 *
+	 * @param path xpath expression
+	 * @return the compiled expression
+	 * @throws XPathExpressionException if the path is invalid
+	 */
+	public XPathExpression getExpression(String path) throws XPathExpressionException {
+		XPathExpression expression = expressions.get(path);
+		if (expression == null) {
+			expression = xpath.compile(path);
+			expressions.put(path, expression);
+		}
+		return expression;
+	}
+
+	/**
+	 * Evaluate the given path as a string
+	 *
+	 * @param path xpath expression
+	 * @param item document or node to evaluate the path against
+	 * @return the string value of the path, "" if nothing matched
+	 * @throws XPathExpressionException
+	 */
+	public String evaluate(String path, Object item) throws XPathExpressionException {
+		return getExpression(path).evaluate(item);
+	}
+
+	/**
+	 * Evaluate the given path
+	 *
+	 * @param path xpath expression
+	 * @param item document or node to evaluate the path against
+	 * @param returnType one of the {@link XPathConstants} types
+	 * @return the result of the path, of the given type
+	 * @throws XPathExpressionException
+	 */
+	public Object evaluate(String path, Object item, QName returnType) throws XPathExpressionException {
+		return getExpression(path).evaluate(item, returnType);
+	}
+
+	/**
+	 * @return this thread's DocumentBuilder, reset so it can parse another document
+	 */
+	private DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+		if (documentBuilder == null)
+			documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		else
+			documentBuilder.reset();
+
+		return documentBuilder;
+	}
+}
@@ -1,14 +1,15 @@
 package org.openmrs.module.remoteformentry;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathFactory;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.EncounterType;
@@ -17,8 +18,8 @@ import org.openmrs.Patient;
 import org.openmrs.PatientIdentifier;
 import org.openmrs.Person;
 import org.openmrs.api.APIException;
-import org.openmrs.api.FormService;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
 import org.openmrs.module.formentry.FormEntryError;
 import org.openmrs.module.formentry.FormEntryService;
 import org.springframework.transaction.annotation.Transactional;
@@ -47,8 +48,11 @@ public class RemoteFormEntryPendingProcessor{
 
     private static final int FORMENTRY_ERROR_COL_LENGTH=255;
 
-	private DocumentBuilderFactory documentBuilderFactory;
-	private XPathFactory xPathFactory;
+	/**
+	 * Number of batches each worker thread may have waiting for it when processing in parallel
+	 */
+	private static final int QUEUED_BATCHES_PER_WORKER = 4;
+
 	private static Boolean isRunning = false; // allow only one running
 
 	/**
@@ -73,68 +77,14 @@ public class RemoteFormEntryPendingProcessor{
 		log.get().debug("Transforming form entry queue");
 		
 		RemoteFormEntryService remoteFormEntryService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
-		FormService formService = Context.getFormService();
 		
-		String formData = pendingQueue.getFormData();
-		Integer formId = null;
 		String errorDetails = null;
 		
-		// First we parse the FormEntry xml data to obtain the formId of the
-		// form that was used to create the xml data
 		try {
-			DocumentBuilderFactory dbf = getDocumentBuilderFactory();
-			DocumentBuilder db = dbf.newDocumentBuilder();
-			XPathFactory xpf = getXPathFactory();
-			XPath xp = xpf.newXPath();
-			Document doc = db.parse(IOUtils.toInputStream(formData));
-			formId = Integer.parseInt(xp.evaluate("/form/@id", doc));
-			
-			// remove duplicate person attributes from the doc
-			RemoteFormEntryUtil.removeDuplicatePersonAttributes(doc, xp);
-			
-			// try to get the form
-			Form form = formService.getForm(formId);
-			if (form == null)
-				throw new RemoteFormEntryException("Error retrieving form id from data");
-			
-			Patient patient = getPatient(doc, xp);
-			
-			// if the patient wasn't found...
-			if (patient == null) {
-				if (log.get().isDebugEnabled())
-					log.get().debug("patient is null for pendingQueue: " + pendingQueue.getRemoteFormEntryPendingQueueId());
-				
-				// this patient has yet to be defined.  Do we need to create it?
-				List<EncounterType> initialEncounterTypes = remoteFormEntryService.getInitialEncounterTypes();
-				
-				if (initialEncounterTypes.contains(form.getEncounterType())) {
-					// the patient doesn't exist and this is an initial form.  Go to town on the patient. 
-					patient = remoteFormEntryService.createPatientInDatabase(doc, xp);
-				}
-				else {
-					// The patient doesn't exist and this is not an initial form.  Throw an error
-					// to get this put in the formentry archive
-					StringBuilder errorMessage = new StringBuilder("This form's encounter type is not set as an initial encounter and no patient was found with identifiers: ");
-					for (PatientIdentifier identifier : RemoteFormEntryUtil.getPatientIdentifiers(doc, xp, null)) {
-						errorMessage.append(identifier.getIdentifier());
-						errorMessage.append(":");
-						errorMessage.append(identifier.getIdentifierType());
-						errorMessage.append(", ");
-					}
-					
-					throw new RemoteFormEntryException(errorMessage.toString());
-				}
-				
-			} else {
-				if (log.get().isDebugEnabled())
-					log.get().debug("patientid is " + patient + " for pendingQueue: " + pendingQueue.getRemoteFormEntryPendingQueueId());
-				
-				// patient exists, update their information from the data on the form
-				remoteFormEntryService.updatePatientInDatabase(patient, doc, xp);
-			}
+			Patient patient = savePatient(pendingQueue);
 			
 			//assign the patient to this form
-			remoteFormEntryService.createFormEntryQueueForPatient(formData, patient);
+			remoteFormEntryService.createFormEntryQueueForPatient(pendingQueue, patient);
 			
 			// remove the now useless pending queue item
 			remoteFormEntryService.deleteRemoteFormEntryPendingQueue(pendingQueue);
@@ -150,6 +100,161 @@ public class RemoteFormEntryPendingProcessor{
 		}
 	}
 
+	/**
+	 * Process the given pending queue items with all of their patient changes saved in one
+	 * transaction. The forms are only handed to formentry once that transaction has committed.
+	 * If any item in the batch fails the whole transaction is rolled back and the items are
+	 * processed one at a time instead, so only the failing items end up in the error queue.
+	 * 
+	 * @param pendingQueues entries to be transformed, in queue order
+	 * @see RemoteFormEntryService#savePatientsForPendingQueues(List)
+	 */
+	public void processRemoteFormEntryPendingQueues(List<RemoteFormEntryPendingQueue> pendingQueues) {
+		processBatch(pendingQueues);
+		
+		// everything in the batch is committed, don't let the session grow across batches
+		Context.clearSession();
+	}
+
+	/**
+	 * Process a window of pending queue items. The patients on all of the forms in the window are
+	 * loaded up front with a few queries and then the items are processed in batches of
+	 * <code>batchSize</code>.
+	 * 
+	 * @param pendingQueues entries to be transformed, in queue order
+	 * @param batchSize number of items whose patient changes are saved in one transaction
+	 * @see RemoteFormEntryService#prefetchPatientsForPendingQueues(List)
+	 * @see #processRemoteFormEntryPendingQueues(List)
+	 */
+	public void processRemoteFormEntryPendingQueueWindow(List<RemoteFormEntryPendingQueue> pendingQueues, int batchSize) {
+		if (pendingQueues.size() > 1) {
+			try {
+				RemoteFormEntryService remoteFormEntryService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
+				remoteFormEntryService.prefetchPatientsForPendingQueues(pendingQueues);
+			}
+			catch (Throwable t) {
+				// only an optimization, the patients are loaded as they are needed instead
+				log.get().warn("Unable to prefetch the patients for " + pendingQueues.size() + " pending queue items", t);
+			}
+		}
+		
+		if (batchSize < 1)
+			batchSize = 1;
+		
+		for (int i = 0; i < pendingQueues.size(); i += batchSize)
+			processBatch(pendingQueues.subList(i, Math.min(i + batchSize, pendingQueues.size())));
+		
+		// everything in the window is committed, don't let the session grow across windows
+		Context.clearSession();
+	}
+
+	/**
+	 * @see #processRemoteFormEntryPendingQueues(List)
+	 */
+	private void processBatch(List<RemoteFormEntryPendingQueue> pendingQueues) {
+		if (pendingQueues.size() == 1) {
+			processRemoteFormEntryPendingQueue(pendingQueues.get(0));
+			return;
+		}
+		
+		RemoteFormEntryService remoteFormEntryService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
+		
+		List<Patient> patients;
+		try {
+			patients = remoteFormEntryService.savePatientsForPendingQueues(pendingQueues);
+		}
+		catch (Throwable t) {
+			if (log.get().isDebugEnabled())
+				log.get().debug("Batch of " + pendingQueues.size() + " pending queue items failed, processing them one at a time", t);
+			
+			// the session still holds the objects from the rolled back transaction
+			Context.clearSession();
+			
+			for (RemoteFormEntryPendingQueue pendingQueue : pendingQueues)
+				processRemoteFormEntryPendingQueue(pendingQueue);
+			
+			return;
+		}
+		
+		for (int i = 0; i < pendingQueues.size(); i++) {
+			RemoteFormEntryPendingQueue pendingQueue = pendingQueues.get(i);
+			try {
+				remoteFormEntryService.createFormEntryQueueForPatient(pendingQueue, patients.get(i));
+				remoteFormEntryService.deleteRemoteFormEntryPendingQueue(pendingQueue);
+			}
+			catch (Throwable t) {
+				setFatalError(pendingQueue, t.getMessage(), RemoteFormEntryUtil.join(t.getStackTrace(), "\n"));
+				
+				log.get().error("Error while parsing remoteformentry pending queue ("
+	                    + pendingQueue.getRemoteFormEntryPendingQueueId() + ")", t);
+			}
+		}
+	}
+
+	/**
+	 * Find the patient that the given pending queue item is for and copy the patient header on
+	 * the form to them. The patient is created if they are not found and this is an initial
+	 * encounter. Nothing is written to the formentry queue and the pending queue item is left in
+	 * place.
+	 * 
+	 * @param pendingQueue entry to be transformed
+	 * @return the created or updated patient
+	 * @throws Exception if the form can't be read, or the patient is not found and this is not an
+	 *             initial encounter
+	 */
+	public Patient savePatient(RemoteFormEntryPendingQueue pendingQueue) throws Exception {
+		RemoteFormEntryService remoteFormEntryService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
+		
+		// read the patient header and the formId of the form that was used to
+		// create the xml data in one pass, without building a DOM. Duplicate
+		// person attributes are left out of the header
+		RemoteFormEntryFormHeader header = pendingQueue.getFormHeader();
+		Integer formId = Integer.parseInt(header.getFormId());
+		
+		// try to get the form
+		Form form = RemoteFormEntryMetadataCache.getForm(formId);
+		if (form == null)
+			throw new RemoteFormEntryException("Error retrieving form id from data");
+		
+		Patient patient = getPatient(header);
+		
+		// if the patient wasn't found...
+		if (patient == null) {
+			if (log.get().isDebugEnabled())
+				log.get().debug("patient is null for pendingQueue: " + pendingQueue.getRemoteFormEntryPendingQueueId());
+			
+			// this patient has yet to be defined.  Do we need to create it?
+			List<EncounterType> initialEncounterTypes = remoteFormEntryService.getInitialEncounterTypes();
+			
+			if (initialEncounterTypes.contains(form.getEncounterType())) {
+				// the patient doesn't exist and this is an initial form.  Go to town on the patient. 
+				patient = remoteFormEntryService.createPatientInDatabase(header);
+			}
+			else {
+				// The patient doesn't exist and this is not an initial form.  Throw an error
+				// to get this put in the formentry archive
+				StringBuilder errorMessage = new StringBuilder("This form's encounter type is not set as an initial encounter and no patient was found with identifiers: ");
+				for (PatientIdentifier identifier : RemoteFormEntryUtil.getPatientIdentifiers(header, null)) {
+					errorMessage.append(identifier.getIdentifier());
+					errorMessage.append(":");
+					errorMessage.append(identifier.getIdentifierType());
+					errorMessage.append(", ");
+				}
+				
+				throw new RemoteFormEntryException(errorMessage.toString());
+			}
+			
+		} else {
+			if (log.get().isDebugEnabled())
+				log.get().debug("patientid is " + patient + " for pendingQueue: " + pendingQueue.getRemoteFormEntryPendingQueueId());
+			
+			// patient exists, update their information from the data on the form
+			remoteFormEntryService.updatePatientInDatabase(patient, header);
+		}
+		
+		return patient;
+	}
+
 	/**
 	 * finds a Patient based on information in the provided form
 	 * 
@@ -162,11 +267,22 @@ public class RemoteFormEntryPendingProcessor{
 	 * @should not fail if no UUID is provided
 	 */
 	protected Patient getPatient(Document doc, XPath xp) throws Exception {
+		return getPatient(RemoteFormEntryFormHeader.fromDocument(doc));
+	}
+
+	/**
+	 * finds a Patient based on the patient header of a form
+	 * 
+	 * @param header the header read from the form
+	 * @return the found Patient or null if not found
+	 * @throws Exception
+	 */
+	protected Patient getPatient(RemoteFormEntryFormHeader header) throws Exception {
 		Patient patient = null;
 		List<PatientIdentifier> identifiers = null;
 		
 		// start with the UUID
-		String uuid = RemoteFormEntryUtil.getPatientUuid(doc, xp);
+		String uuid = header.getUuid();
 		if (uuid != null && !uuid.isEmpty()) {
 			// check to see if the patient is already in the system
 			patient = Context.getPatientService().getPatientByUuid(uuid);
@@ -182,32 +298,18 @@ public class RemoteFormEntryPendingProcessor{
 		}
 
 		// try to get the patient identifier
-		identifiers = RemoteFormEntryUtil.getPatientIdentifiers(doc, xp, null);
+		identifiers = RemoteFormEntryUtil.getPatientIdentifiers(header, null);
 		
 		if (identifiers.size() < 1)
 			throw new RemoteFormEntryException("Unable to find any patient identifiers");
 		
 		// try to find this patient by identifier
+		RemoteFormEntryService remoteFormEntryService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
 		int i = 0;
 		while (patient == null && i < identifiers.size()) {
 			PatientIdentifier currentIdentifier = identifiers.get(i++);
-			String identifierString = currentIdentifier.getIdentifier();
-			Integer identifierTypeId = currentIdentifier.getIdentifierType().getPatientIdentifierTypeId();
-			
-			// search the database for all patients with this identifier string
-			List<Patient> patients = Context.getPatientService().getPatients(null, identifierString, null, true);
-			
-			for (Patient p : patients) {
-				// loop over this patient's identifiers to make sure they have this 
-				// one _and_ this type.  if they do, great, its them.  if not, keep trying 
-				for (PatientIdentifier identifier : p.getIdentifiers()) {
-					if (identifier.getIdentifier().equals(identifierString) && 
-						identifierTypeId.equals(identifier.getIdentifierType().getPatientIdentifierTypeId())) {
-						patient = p;
-						break;
-					}
-				}
-			}
+			patient = remoteFormEntryService.getPatientByIdentifier(currentIdentifier.getIdentifier(),
+			    currentIdentifier.getIdentifierType().getPatientIdentifierTypeId());
 		}
 
 		return patient;
@@ -239,24 +341,6 @@ public class RemoteFormEntryPendingProcessor{
 		return transformOccurred;
 	}
 
-	/**
-	 * @return DocumentBuilderFactory to be used for parsing XML
-	 */
-	private DocumentBuilderFactory getDocumentBuilderFactory() {
-		if (documentBuilderFactory == null)
-			documentBuilderFactory = DocumentBuilderFactory.newInstance();
-		return documentBuilderFactory;
-	}
-
-	/**
-	 * @return XPathFactory to be used for obtaining data from the parsed XML
-	 */
-	private XPathFactory getXPathFactory() {
-		if (xPathFactory == null)
-			xPathFactory = XPathFactory.newInstance();
-		return xPathFactory;
-	}
-
 	/**
 	 * Convenience method to handle fatal errors. In this case, a FormEntryError
 	 * object is built and stored based on the given queue entry and then the
@@ -306,13 +390,204 @@ public class RemoteFormEntryPendingProcessor{
 		}
 		try {
 			log.get().debug("Start processing RemoteFormEntry pending queue");
-			while (processNextRemoteFormEntryPendingQueue()) {
-				// loop until queue is empty
+			
+			// items left claimed by an earlier run are retried
+			RemoteFormEntryService remoteService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
+			remoteService.releaseRemoteFormEntryPendingQueueClaims();
+			
+			// metadata changed between runs (by hand or by new data from the central server) is picked up
+			RemoteFormEntryMetadataCache.clear();
+			
+			// forms are matched to patients through this instead of a search per identifier
+			remoteService.loadPatientIdentifierIndex();
+			
+			RemoteFormEntrySettings settings = RemoteFormEntrySettings.get();
+			int workers = settings.getInt(RemoteFormEntryConstants.GP_PENDING_QUEUE_WORKERS,
+			    RemoteFormEntryConstants.GP_PENDING_QUEUE_WORKERS_DEFAULT);
+			int batchSize = settings.getInt(RemoteFormEntryConstants.GP_PENDING_QUEUE_BATCH_SIZE,
+			    RemoteFormEntryConstants.GP_PENDING_QUEUE_BATCH_SIZE_DEFAULT);
+			int prefetchSize = settings.getInt(RemoteFormEntryConstants.GP_PENDING_QUEUE_PREFETCH_SIZE,
+			    RemoteFormEntryConstants.GP_PENDING_QUEUE_PREFETCH_SIZE_DEFAULT);
+			int windowSize = Math.max(batchSize, prefetchSize);
+			
+			if (workers > 1) {
+				processRemoteFormEntryPendingQueue(workers, batchSize, windowSize);
+			}
+			else if (windowSize > 1) {
+				List<RemoteFormEntryPendingQueue> window;
+				while (!(window = claimBatch(remoteService, windowSize)).isEmpty()) {
+					processRemoteFormEntryPendingQueueWindow(window, batchSize);
+				}
+			}
+			else {
+				while (processNextRemoteFormEntryPendingQueue()) {
+					// loop until queue is empty
+				}
 			}
 			log.get().debug("Done processing RemoteFormEntry pending queue");
 		}
 		finally {
-			isRunning = false;
+			try {
+				((RemoteFormEntryService)Context.getService(RemoteFormEntryService.class)).clearPatientIdentifierIndex();
+			}
+			finally {
+				isRunning = false;
+			}
+		}
+	}
+
+	/**
+	 * Claim up to <code>batchSize</code> pending queue items, in queue order
+	 * 
+	 * @param remoteService service to claim the items from
+	 * @param batchSize maximum number of items to claim
+	 * @return the claimed items, empty if the queue is empty
+	 */
+	private List<RemoteFormEntryPendingQueue> claimBatch(RemoteFormEntryService remoteService, int batchSize) {
+		List<RemoteFormEntryPendingQueue> batch = new ArrayList<RemoteFormEntryPendingQueue>(batchSize);
+		RemoteFormEntryPendingQueue pendingQueue;
+		while (batch.size() < batchSize && (pendingQueue = remoteService.claimNextRemoteFormEntryPendingQueue()) != null)
+			batch.add(pendingQueue);
+		
+		return batch;
+	}
+
+	/**
+	 * Process all pending queue items on the given number of threads. Items are routed to a
+	 * thread by their patient key so all forms for one patient are processed by the same thread
+	 * in the order they were queued. This keeps creates and updates for a patient in order and
+	 * keeps two threads from creating the same patient.
+	 * 
+	 * @param workers number of threads to use
+	 * @param batchSize number of items each thread processes per transaction
+	 * @param windowSize number of items handed to a thread at a time
+	 * @see RemoteFormEntryFormHeader#getPatientKey()
+	 * @see #processRemoteFormEntryPendingQueueWindow(List, int)
+	 */
+	private void processRemoteFormEntryPendingQueue(int workers, int batchSize, int windowSize) {
+		RemoteFormEntryService remoteService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
+		
+		UserContext userContext = Context.getUserContext();
+		
+		if (windowSize < 1)
+			windowSize = 1;
+		
+		ExecutorService[] lanes = new ExecutorService[workers];
+		List<List<RemoteFormEntryPendingQueue>> batches = new ArrayList<List<RemoteFormEntryPendingQueue>>(workers);
+		for (int i = 0; i < workers; i++) {
+			lanes[i] = Executors.newSingleThreadExecutor();
+			batches.add(new ArrayList<RemoteFormEntryPendingQueue>(windowSize));
+		}
+		
+		// keeps this thread from reading the whole queue into memory ahead of the workers
+		Semaphore permits = new Semaphore(workers * QUEUED_BATCHES_PER_WORKER);
+		
+		int count = 0;
+		try {
+			RemoteFormEntryPendingQueue pendingQueue;
+			while ((pendingQueue = remoteService.claimNextRemoteFormEntryPendingQueue()) != null) {
+				String key = getPatientKey(pendingQueue);
+				int lane = key == null ? 0 : Math.abs(key.hashCode() % workers);
+				
+				List<RemoteFormEntryPendingQueue> batch = batches.get(lane);
+				batch.add(pendingQueue);
+				if (batch.size() >= windowSize) {
+					permits.acquireUninterruptibly();
+					lanes[lane].execute(new PendingQueueWorker(batch, batchSize, userContext, permits));
+					batches.set(lane, new ArrayList<RemoteFormEntryPendingQueue>(windowSize));
+				}
+				count++;
+			}
+			
+			// hand out the partly filled batches
+			for (int lane = 0; lane < workers; lane++) {
+				List<RemoteFormEntryPendingQueue> batch = batches.get(lane);
+				if (!batch.isEmpty()) {
+					permits.acquireUninterruptibly();
+					lanes[lane].execute(new PendingQueueWorker(batch, batchSize, userContext, permits));
+				}
+			}
+		}
+		finally {
+			for (ExecutorService lane : lanes)
+				lane.shutdown();
+			
+			try {
+				for (ExecutorService lane : lanes) {
+					while (!lane.awaitTermination(1, TimeUnit.MINUTES)) {
+						if (log.get().isDebugEnabled())
+							log.get().debug("Waiting for pending queue workers to finish");
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				log.get().warn("Interrupted while waiting for pending queue workers to finish");
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		if (log.get().isDebugEnabled())
+			log.get().debug("Processed " + count + " pending queue items on " + workers + " threads");
+	}
+
+	/**
+	 * Get the routing key for the given pending queue item. Problems reading the form are left
+	 * for the worker to report
+	 * 
+	 * @param pendingQueue item to get the key for
+	 * @return the patient key or null if it could not be determined
+	 */
+	private String getPatientKey(RemoteFormEntryPendingQueue pendingQueue) {
+		try {
+			// the header is kept on the item so the worker does not read it again
+			return pendingQueue.getFormHeader().getPatientKey();
+		}
+		catch (Exception e) {
+			if (log.get().isDebugEnabled())
+				log.get().debug("Unable to get the patient key for: " + pendingQueue.getFileSystemUrl(), e);
+			return null;
+		}
+	}
+
+	/**
+	 * Processes a window of pending queue items on a worker thread in its own session, as the
+	 * user that started the run
+	 */
+	private static class PendingQueueWorker implements Runnable {
+
+		private List<RemoteFormEntryPendingQueue> pendingQueues;
+
+		private int batchSize;
+
+		private UserContext userContext;
+
+		private Semaphore permits;
+
+		public PendingQueueWorker(List<RemoteFormEntryPendingQueue> pendingQueues, int batchSize, UserContext userContext,
+		    Semaphore permits) {
+			this.pendingQueues = pendingQueues;
+			this.batchSize = batchSize;
+			this.userContext = userContext;
+			this.permits = permits;
+		}
+
+		public void run() {
+			try {
+				Context.openSession();
+				Context.setUserContext(userContext);
+				new RemoteFormEntryPendingProcessor().processRemoteFormEntryPendingQueueWindow(pendingQueues, batchSize);
+			}
+			catch (Throwable t) {
+				log.get().error("Error while processing a window of " + pendingQueues.size() + " remoteformentry pending queue items", t);
+			}
+			finally {
+				try {
+					Context.closeSession();
+				}
+				finally {
+					permits.release();
+				}
+			}
 		}
 	}
 
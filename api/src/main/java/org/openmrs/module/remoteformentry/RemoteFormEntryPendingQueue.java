@@ -25,6 +25,8 @@ public class RemoteFormEntryPendingQueue {
 	
 	private String fileSystemUrl;
 	
+	private RemoteFormEntryFormHeader formHeader;
+	
 	
 	/**
      * @see java.lang.Object#equals(java.lang.Object)
@@ -119,6 +121,44 @@ public class RemoteFormEntryPendingQueue {
 	 */
 	public void setFormData(String formData) {
 		this.formData = formData;
+		this.formHeader = null;
+	}
+
+	/**
+	 * @return true if the formData is held in memory, false if it would be lazy loaded from the
+	 *         filesystem by {@link #getFormData()}
+	 */
+	public boolean isFormDataLoaded() {
+		return formData != null;
+	}
+
+	/**
+	 * Gets the patient header of the form this queue item holds. The header is read once with a
+	 * streaming parser, straight from the filesystem if the formData has not been loaded, and
+	 * then kept on this queue item
+	 * 
+	 * @return the header of the form
+	 * @throws RemoteFormEntryException if the form can't be read
+	 */
+	public RemoteFormEntryFormHeader getFormHeader() {
+		if (formHeader == null) {
+			try {
+				if (formData == null && fileSystemUrl != null)
+					formHeader = RemoteFormEntryFormHeaderReader.read(new File(fileSystemUrl));
+				else if (getFormData() != null)
+					formHeader = RemoteFormEntryFormHeaderReader.read(getFormData());
+				else
+					throw new RemoteFormEntryException("There is no form data for this queue item");
+			}
+			catch (RemoteFormEntryException e) {
+				throw e;
+			}
+			catch (Exception e) {
+				throw new RemoteFormEntryException("Unable to read the form header from: " + fileSystemUrl, e);
+			}
+		}
+		
+		return formHeader;
 	}
 
 	/**
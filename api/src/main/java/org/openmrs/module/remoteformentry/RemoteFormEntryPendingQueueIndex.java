@@ -0,0 +1,368 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Ordered index over the files in the pending queue directory.<br/>
+ * <br/>
+ * The filenames are kept in an in-memory priority queue (ordered by name, the same order the
+ * processor has always used) so that finding the next item is O(log N) instead of a listing and
+ * sort of the whole directory. Every add and remove is appended to a journal file kept next to
+ * the pending queue directory so the index can be rebuilt at startup without listing the
+ * directory. The journal is rewritten from the live entries when it grows too large.<br/>
+ * <br/>
+ * Files that are dropped straight into the pending queue directory (without going through the
+ * service) are picked up by a directory rescan the next time the index runs empty.
+ */
+public class RemoteFormEntryPendingQueueIndex {
+
+	private Log log = LogFactory.getLog(this.getClass());
+
+	/**
+	 * Suffix of the journal file. The journal sits beside the pending queue directory so that
+	 * it is never mistaken for a queue item
+	 */
+	public static final String JOURNAL_SUFFIX = ".journal";
+
+	private static final char ADD = '+';
+
+	private static final char REMOVE = '-';
+
+	/**
+	 * The journal is compacted once it has this many more lines than there are live entries
+	 */
+	private static final int COMPACT_THRESHOLD = 1000;
+
+	private File queueDir;
+
+	private File journalFile;
+
+	private Writer journal;
+
+	private int journalLines = 0;
+
+	private boolean loaded = false;
+
+	/**
+	 * Names waiting to be handed out, smallest first. Names that have been removed from
+	 * <code>members</code> are skipped lazily when they reach the head of the queue
+	 */
+	private PriorityQueue<String> available = new PriorityQueue<String>();
+
+	/**
+	 * Every name currently in the pending queue, including those that have been claimed
+	 */
+	private Set<String> members = new HashSet<String>();
+
+	/**
+	 * Names that have been handed out by {@link #claim()} and not yet removed
+	 */
+	private Set<String> claimed = new HashSet<String>();
+
+	/**
+	 * @param queueDir the pending queue directory this index covers
+	 */
+	public RemoteFormEntryPendingQueueIndex(File queueDir) {
+		this.queueDir = queueDir;
+		this.journalFile = new File(queueDir.getAbsoluteFile().getParentFile(), queueDir.getName() + JOURNAL_SUFFIX);
+	}
+
+	/**
+	 * @return the directory this index covers
+	 */
+	public File getQueueDir() {
+		return queueDir;
+	}
+
+	/**
+	 * Record that the given file has been added to the pending queue directory
+	 *
+	 * @param filename name of the file (not the full path)
+	 */
+	public synchronized void add(String filename) {
+		ensureLoaded();
+		if (members.add(filename)) {
+			available.add(filename);
+			appendToJournal(ADD, filename);
+		}
+	}
+
+	/**
+	 * Record that the given file has been removed from the pending queue directory
+	 *
+	 * @param filename name of the file (not the full path)
+	 */
+	public synchronized void remove(String filename) {
+		ensureLoaded();
+		if (members.remove(filename)) {
+			claimed.remove(filename);
+			// the common case is removing the item just handed out, which is cheap. Anything
+			// else is dropped when it reaches the head of the queue
+			if (filename.equals(available.peek()))
+				available.poll();
+			appendToJournal(REMOVE, filename);
+		}
+	}
+
+	/**
+	 * Get the next file in the pending queue without taking it out of the index
+	 *
+	 * @return the next file or null if the pending queue is empty
+	 */
+	public synchronized File peek() {
+		ensureLoaded();
+		String head = nextAvailable();
+		if (head == null)
+			return null;
+
+		return new File(queueDir, head);
+	}
+
+	/**
+	 * Get the next file in the pending queue and take it out of the ordering so that the next
+	 * call hands out a different file. The file stays in the index until it is removed
+	 *
+	 * @return the next file or null if there are no unclaimed files
+	 * @see #releaseClaims()
+	 */
+	public synchronized File claim() {
+		ensureLoaded();
+		String head = nextAvailable();
+		if (head == null)
+			return null;
+
+		available.poll();
+		claimed.add(head);
+		return new File(queueDir, head);
+	}
+
+	/**
+	 * Put every claimed file that is still in the pending queue back into the ordering. Used
+	 * when starting a new run so items that a previous run failed to remove are retried
+	 */
+	public synchronized void releaseClaims() {
+		for (String name : claimed) {
+			if (members.contains(name))
+				available.add(name);
+		}
+		claimed.clear();
+	}
+
+	/**
+	 * @return the number of files in the pending queue
+	 */
+	public synchronized int size() {
+		ensureLoaded();
+		return members.size();
+	}
+
+	/**
+	 * Finds the next live name, dropping stale heads and rescanning the directory once if the
+	 * in-memory queue has run empty
+	 *
+	 * @return the next name or null if there are none
+	 */
+	private String nextAvailable() {
+		boolean rescanned = false;
+		while (true) {
+			String head = available.peek();
+			if (head == null) {
+				if (rescanned)
+					return null;
+				rescan();
+				rescanned = true;
+				continue;
+			}
+
+			if (!members.contains(head) || claimed.contains(head)) {
+				// removed (or re-added and handed out) while it was still queued
+				available.poll();
+				continue;
+			}
+
+			if (!new File(queueDir, head).exists()) {
+				// deleted outside of the service
+				available.poll();
+				members.remove(head);
+				appendToJournal(REMOVE, head);
+				continue;
+			}
+
+			return head;
+		}
+	}
+
+	/**
+	 * Loads the index from the journal, or from a listing of the directory when there is no
+	 * journal yet
+	 */
+	private void ensureLoaded() {
+		if (loaded)
+			return;
+
+		loaded = true;
+
+		if (!journalFile.exists()) {
+			rescan();
+			compact();
+			return;
+		}
+
+		Set<String> names = new LinkedHashSet<String>();
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() < 2)
+					continue;
+
+				String name = line.substring(1);
+				if (line.charAt(0) == ADD)
+					names.add(name);
+				else if (line.charAt(0) == REMOVE)
+					names.remove(name);
+			}
+		}
+		catch (IOException io) {
+			log.warn("Unable to read pending queue journal: " + journalFile + ". Rebuilding it from the directory", io);
+			names.clear();
+			members.clear();
+			available.clear();
+			rescan();
+			compact();
+			return;
+		}
+		finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				}
+				catch (IOException io) {}
+			}
+		}
+
+		for (String name : names) {
+			if (new File(queueDir, name).exists() && members.add(name))
+				available.add(name);
+		}
+
+		compact();
+
+		if (log.isDebugEnabled())
+			log.debug("Loaded " + members.size() + " pending queue items from journal: " + journalFile);
+	}
+
+	/**
+	 * Adds any files in the pending queue directory that the index does not know about yet
+	 */
+	private void rescan() {
+		File[] files = queueDir.listFiles();
+		if (files == null)
+			return;
+
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isFile() && members.add(name)) {
+				available.add(name);
+				appendToJournal(ADD, name);
+			}
+		}
+	}
+
+	/**
+	 * Appends one line to the journal, compacting the journal if it has grown too large
+	 *
+	 * @param op either {@link #ADD} or {@link #REMOVE}
+	 * @param filename the name that was added or removed
+	 */
+	private void appendToJournal(char op, String filename) {
+		if (journalLines - members.size() > COMPACT_THRESHOLD) {
+			compact();
+			return;
+		}
+
+		try {
+			if (journal == null)
+				journal = openJournal(true);
+			journal.write(op);
+			journal.write(filename);
+			journal.write('\n');
+			journal.flush();
+			journalLines++;
+		}
+		catch (IOException io) {
+			log.warn("Unable to write to pending queue journal: " + journalFile, io);
+			closeJournal();
+		}
+	}
+
+	/**
+	 * Rewrites the journal so that it only holds the live entries
+	 */
+	private void compact() {
+		closeJournal();
+
+		File tmpFile = new File(journalFile.getPath() + ".tmp");
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+			for (String name : members) {
+				writer.write(ADD);
+				writer.write(name);
+				writer.write('\n');
+			}
+			writer.close();
+			writer = null;
+
+			// renameTo will not replace an existing file on every platform
+			if (!tmpFile.renameTo(journalFile)) {
+				journalFile.delete();
+				if (!tmpFile.renameTo(journalFile))
+					throw new IOException("Unable to rename " + tmpFile + " to " + journalFile);
+			}
+
+			journalLines = members.size();
+		}
+		catch (IOException io) {
+			log.warn("Unable to compact pending queue journal: " + journalFile, io);
+		}
+		finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				}
+				catch (IOException io) {}
+			}
+		}
+	}
+
+	private Writer openJournal(boolean append) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, append), "UTF-8"));
+	}
+
+	private void closeJournal() {
+		if (journal != null) {
+			try {
+				journal.close();
+			}
+			catch (IOException io) {}
+			journal = null;
+		}
+	}
+}
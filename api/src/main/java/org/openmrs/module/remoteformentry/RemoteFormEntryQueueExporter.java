@@ -0,0 +1,166 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes the files of the formentry queue into the queue zip a remote site sends to central.<br/>
+ * <br/>
+ * Only the names of the queue files are listed up front. The files are read and zipped a page at a
+ * time and the zip is flushed after every page, so no more than one page of files is held at once.
+ * Between pages nothing is kept but which of the names were exported (one bit each), so the memory
+ * used does not grow with the size of the queue. The exported files are only handed back once the
+ * whole zip has been written, see {@link #getExportedFiles()}.
+ */
+public class RemoteFormEntryQueueExporter {
+
+	private static final Log log = LogFactory.getLog(RemoteFormEntryQueueExporter.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File queueDir;
+
+	private final String[] queueFilenames;
+
+	private final int pageSize;
+
+	private final BitSet exported;
+
+	/**
+	 * @param queueDir the formentry queue directory
+	 * @param queueFilenames names of the files in the queue, in the order they are zipped
+	 * @param pageSize the most files to read at a time
+	 */
+	public RemoteFormEntryQueueExporter(File queueDir, String[] queueFilenames, int pageSize) {
+		this.queueDir = queueDir;
+		this.queueFilenames = queueFilenames;
+		this.pageSize = Math.max(1, pageSize);
+		this.exported = new BitSet(queueFilenames.length);
+	}
+
+	/**
+	 * Add every file of the queue to the given zip as an entry with the same name. Files that have
+	 * gone away since the queue was listed are skipped
+	 *
+	 * @param zos the zip being built. It is flushed after every page and not closed
+	 * @param codec how to compress the entries
+	 * @throws IOException if a file cannot be read or the zip cannot be written
+	 */
+	public void export(ZipOutputStream zos, RemoteFormEntryCodec codec) throws IOException {
+		byte[] buf = new byte[BUFFER_SIZE];
+		for (int pageStart = 0; pageStart < queueFilenames.length; pageStart += pageSize) {
+			int pageEnd = Math.min(pageStart + pageSize, queueFilenames.length);
+			for (int i = pageStart; i < pageEnd; i++) {
+				File file = new File(queueDir, queueFilenames[i]);
+				if (!file.isFile())
+					continue;
+
+				addToZip(zos, file, codec, buf);
+				exported.set(i);
+			}
+
+			zos.flush();
+		}
+	}
+
+	/**
+	 * @return the number of files added to the zip
+	 */
+	public int getExportedCount() {
+		return exported.cardinality();
+	}
+
+	/**
+	 * @return the files that were added to the zip. They are made as they are iterated over
+	 */
+	public Iterable<File> getExportedFiles() {
+		return new Iterable<File>() {
+
+			public Iterator<File> iterator() {
+				return new Iterator<File>() {
+
+					private int next = exported.nextSetBit(0);
+
+					public boolean hasNext() {
+						return next >= 0;
+					}
+
+					public File next() {
+						if (next < 0)
+							throw new NoSuchElementException();
+						File file = new File(queueDir, queueFilenames[next]);
+						next = exported.nextSetBit(next + 1);
+						return file;
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Add an entry with the given content to the zip
+	 *
+	 * @param zos the zip being built
+	 * @param name name of the entry
+	 * @param data content of the entry
+	 * @param codec how to compress the entry
+	 * @throws IOException if the zip cannot be written
+	 */
+	public static void putEntry(ZipOutputStream zos, String name, byte[] data, RemoteFormEntryCodec codec)
+	        throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		if (codec.getMethod() == ZipEntry.STORED) {
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(data.length);
+			entry.setCompressedSize(data.length);
+			entry.setCrc(crc.getValue());
+		}
+		zos.putNextEntry(entry);
+		zos.write(data, 0, data.length);
+		zos.closeEntry();
+	}
+
+	/**
+	 * Add the given queue file to the zip as an entry with the same name
+	 */
+	private void addToZip(ZipOutputStream zos, File file, RemoteFormEntryCodec codec, byte[] buf) throws IOException {
+		if (log.isDebugEnabled())
+			log.debug("Writing filesystem file to zip file: " + file.getAbsolutePath());
+
+		// a stored entry needs its size and crc up front.  Queue items are small enough to read whole
+		if (codec.getMethod() == ZipEntry.STORED) {
+			putEntry(zos, file.getName(), FileUtils.readFileToByteArray(file), codec);
+			return;
+		}
+
+		FileInputStream in = new FileInputStream(file);
+		try {
+			zos.putNextEntry(new ZipEntry(file.getName()));
+			int len;
+			while ((len = in.read(buf)) > 0)
+				zos.write(buf, 0, len);
+			zos.closeEntry();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,149 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.SuffixFileFilter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.formentry.FormEntryUtil;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Loads a zip generated at central into this remote server: the acks are used to clear the
+ * pending queue and the sql scripts replace the database
+ */
+public class RemoteFormEntryReceiveJob extends RemoteFormEntryJob {
+
+	private static final Log log = LogFactory.getLog(RemoteFormEntryReceiveJob.class);
+
+	public static final String TYPE = "receive";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File zip;
+
+	/**
+	 * @param zip the zip uploaded from central
+	 */
+	public RemoteFormEntryReceiveJob(File zip) {
+		super(TYPE, zip.getName());
+		this.zip = zip;
+	}
+
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryJob#execute()
+	 */
+	@Override
+	protected void execute() throws Exception {
+		RemoteFormEntryService remoteService = (RemoteFormEntryService) Context.getService(RemoteFormEntryService.class);
+
+		File tempDir = FormEntryUtil.createTempDirectory("returnedData");
+		try {
+			File ackDir = new File(tempDir, RemoteFormEntryConstants.RETURNED_DATA_ACK_DIR_NAME);
+			ackDir.mkdir();
+
+			// write the zip to the temp folder
+			setPhase("extracting");
+			extract(tempDir);
+
+			// use the zipped ack file to determine what can be pulled off
+			// of the pending queue
+			setPhase("acks");
+			remoteService.receiveAckDirFromCentral(ackDir);
+
+			// exec the received sql scripts
+			setPhase("restoring");
+			File generatedData = new File(tempDir, RemoteFormEntryUtil.GENERATED_DATA_FILENAME);
+			remoteService.receiveGeneratedDataFromCentral(generatedData);
+
+			// exec the other received sql scripts
+			for (File file : tempDir.listFiles((FileFilter) new SuffixFileFilter("sql"))) {
+				setPhase("restoring " + file.getName());
+				remoteService.receiveGeneratedDataFromCentralForLocation(file);
+			}
+
+			// remember which return data this was, the next queue export tells central
+			File markFile = new File(tempDir, RemoteFormEntryUtil.SYNC_MARK_FILENAME);
+			if (markFile.exists()) {
+				String mark = OpenmrsUtil.getFileAsString(markFile).trim();
+				AdministrationService as = Context.getAdministrationService();
+				GlobalProperty gp = as.getGlobalPropertyObject(RemoteFormEntryConstants.GP_APPLIED_SYNC_MARK);
+				if (gp == null)
+					gp = new GlobalProperty(RemoteFormEntryConstants.GP_APPLIED_SYNC_MARK);
+				gp.setPropertyValue(mark);
+				as.saveGlobalProperty(gp);
+			}
+		}
+		finally {
+			// clean up the temp directory for the update
+			FileUtils.deleteQuietly(tempDir);
+		}
+
+		// check the pending queue and tell the user if there are still some left
+		int pendingQueueSize = remoteService.getRemoteFormEntryPendingQueueSize();
+		if (pendingQueueSize > 0)
+			setMessage(pendingQueueSize + " pending queue item(s) were not acked by central");
+	}
+
+	/**
+	 * Write every entry of the zip into the given directory
+	 */
+	private void extract(File dir) throws Exception {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		ZipFile zipFile = new ZipFile(zip);
+		try {
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (entry.isDirectory())
+					continue;
+
+				String pathName = entry.getName();
+				try {
+					if (log.isDebugEnabled())
+						log.debug("Extracting: " + entry);
+
+					File file = new File(dir, pathName);
+					file.getParentFile().mkdirs();
+
+					InputStream in = zipFile.getInputStream(entry);
+					try {
+						OutputStream out = new FileOutputStream(file);
+						try {
+							int count;
+							while ((count = in.read(buffer)) != -1) {
+								out.write(buffer, 0, count);
+								addBytesProcessed(count);
+							}
+						}
+						finally {
+							out.close();
+						}
+					}
+					finally {
+						in.close();
+					}
+					addEntriesExtracted(1);
+				}
+				catch (Exception e) {
+					log.error("The temp dir couldn't be written to for: " + pathName, e);
+				}
+			}
+		}
+		finally {
+			zipFile.close();
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.openmrs.Location;
+import org.openmrs.module.remoteformentry.db.jdbc.ReturnDataFormat;
+
+/**
+ * The zip of return data for one remote location. The zip holds:
+ * <ul>
+ * <li>the location's delta, or the whole database dump if it has none, as generatedReturnData</li>
+ * <li>the location's own files (obs.sql, encounter.sql, the sync mark)</li>
+ * <li>the acks of the queue items central has received from the location, in the ack dir</li>
+ * </ul>
+ * The bundle is a {@link RemoteFormEntryVirtualZip}: the big files are compressed once into the
+ * {@link RemoteFormEntryArtifactStore} with the {@link RemoteFormEntryCodec} of the
+ * {@link RemoteFormEntryConstants#GP_ARCHIVE_CODEC} global property, and every location's zip is
+ * made of the same compressed bytes, so the whole database dump is compressed once per generation,
+ * not once per location. The small files (the sync mark and the acks) and files that are compressed
+ * already (the return data written by the jdbc engine) are stored without compression. Putting the
+ * zip together only reads the headers of the files, so it is done again for every download.
+ */
+public class RemoteFormEntryReturnDataBundle {
+
+	/**
+	 * files smaller than this are stored in the zip as is instead of being compressed
+	 */
+	private static final long SMALL_FILE_SIZE = 64 * 1024;
+
+	private final RemoteFormEntryVirtualZip zip;
+
+	private RemoteFormEntryReturnDataBundle(RemoteFormEntryVirtualZip zip) {
+		this.zip = zip;
+	}
+
+	/**
+	 * Get the current bundle for the given location, compressing any of its files that have changed
+	 * since they were last compressed
+	 *
+	 * @param location the remote location
+	 * @return the current bundle
+	 * @throws IOException if a file cannot be read or compressed
+	 */
+	public static RemoteFormEntryReturnDataBundle get(Location location) throws IOException {
+		RemoteFormEntryArtifactStore store = RemoteFormEntryArtifactStore.get();
+		RemoteFormEntryCodec codec = RemoteFormEntryCodec.getArchiveCodec();
+		RemoteFormEntryVirtualZip zip = new RemoteFormEntryVirtualZip();
+		zip.setComment(codec.getComment());
+
+		// the main database dump, or only what changed since the site's last
+		// acknowledged return data if one was generated for it
+		addEntry(zip, store, codec, RemoteFormEntryUtil.GENERATED_DATA_FILENAME, getGeneratedData(location));
+
+		// each site/location specific sql file and the sync mark
+		for (File locationFile : getLocationFiles(location))
+			addEntry(zip, store, codec, locationFile.getName(), locationFile);
+
+		// the acks
+		for (File ack : getAckFiles(location))
+			addEntry(zip, store, codec, RemoteFormEntryConstants.RETURNED_DATA_ACK_DIR_NAME + "/" + ack.getName(), ack);
+
+		zip.finish();
+		return new RemoteFormEntryReturnDataBundle(zip);
+	}
+
+	/**
+	 * Compress the files of the given location's bundle now, so that the first download doesn't
+	 * have to
+	 *
+	 * @param location the remote location
+	 * @return the size of the bundle in bytes
+	 * @throws IOException if a file cannot be read or compressed
+	 */
+	public static long build(Location location) throws IOException {
+		return get(location).getSize();
+	}
+
+	/**
+	 * @return a hex hash that changes whenever the content of the zip does
+	 */
+	public String getETag() {
+		return zip.getETag();
+	}
+
+	/**
+	 * @return the size of the zip in bytes
+	 */
+	public long getSize() {
+		return zip.getSize();
+	}
+
+	/**
+	 * Write the given range of the zip
+	 *
+	 * @param out where to write it
+	 * @param start first byte to write
+	 * @param end last byte to write
+	 * @throws IOException if a file cannot be read or the stream cannot be written to
+	 */
+	public void write(OutputStream out, long start, long end) throws IOException {
+		zip.write(out, start, end);
+	}
+
+	private static void addEntry(RemoteFormEntryVirtualZip zip, RemoteFormEntryArtifactStore store,
+	                             RemoteFormEntryCodec codec, String name, File file) throws IOException {
+		if (file.length() < SMALL_FILE_SIZE) {
+			zip.addStored(name, FileUtils.readFileToByteArray(file), file.lastModified());
+			return;
+		}
+
+		// the sections of the jdbc return data are gzipped already
+		if (ReturnDataFormat.isReturnDataFile(file))
+			codec = RemoteFormEntryCodec.STORED;
+
+		RemoteFormEntryArtifactStore.Artifact artifact = store.getArtifact(file, codec);
+		zip.addFile(name, artifact.getMethod(), artifact.getFile(), artifact.getDataOffset(), artifact.getDataLength(),
+		    artifact.getCrc(), artifact.getSize(), file.lastModified(), artifact.getSha1());
+	}
+
+	/**
+	 * @return what changed since the location's acknowledged return data if it has that, the whole
+	 *         database dump otherwise
+	 */
+	private static File getGeneratedData(Location location) {
+		File locationFolder = RemoteFormEntryUtil.getGeneratedReturnDataFolderForLocation(location);
+		File generatedData = new File(locationFolder, RemoteFormEntryUtil.GENERATED_DATA_FILENAME);
+		if (!generatedData.exists())
+			generatedData = RemoteFormEntryUtil.getGeneratedReturnDataFile();
+		return generatedData;
+	}
+
+	private static List<File> getLocationFiles(Location location) {
+		List<File> files = new ArrayList<File>();
+		File[] listed = RemoteFormEntryUtil.getGeneratedReturnDataFolderForLocation(location).listFiles();
+		if (listed != null) {
+			Arrays.sort(listed);
+			for (File file : listed) {
+				if (file.isFile() && !file.getName().equals(RemoteFormEntryUtil.GENERATED_DATA_FILENAME))
+					files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private static List<File> getAckFiles(Location location) {
+		List<File> files = new ArrayList<File>();
+		File[] listed = RemoteFormEntryUtil.getAckDir(location).listFiles();
+		if (listed != null) {
+			Arrays.sort(listed);
+			for (File file : listed) {
+				if (file.isFile())
+					files.add(file);
+			}
+		}
+		return files;
+	}
+
+}
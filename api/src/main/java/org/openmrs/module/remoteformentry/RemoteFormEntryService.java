@@ -1,6 +1,7 @@
 package org.openmrs.module.remoteformentry;
 
 import java.io.File;
+import java.util.Date;
 import java.util.List;
 
 import javax.xml.xpath.XPath;
@@ -34,6 +35,19 @@ public interface RemoteFormEntryService {
 	public void createRemoteFormEntryPendingQueue(
 	        RemoteFormEntryPendingQueue pendingQueue);
 
+	/**
+	 * Moves the file of the given queue item into RemoteFormEntryConstants.GP_PENDING_QUEUE_DIR
+	 * under the same name. The file is renamed when it is on the same filesystem and copied byte
+	 * for byte otherwise; its contents are never read into memory. The fileSystemUrl of the item
+	 * is updated to the new location. Items without a file are created with
+	 * {@link #createRemoteFormEntryPendingQueue(RemoteFormEntryPendingQueue)}
+	 * 
+	 * @param pendingQueue queue item pointing at the file to move
+	 */
+	@Authorized( { RemoteFormEntryConstants.PRIV_IMPORT_REMOTE_FORM_ENTRY,
+	        RemoteFormEntryConstants.PRIV_EXPORT_REMOTE_FORM_ENTRY })
+	public void moveToRemoteFormEntryPendingQueue(RemoteFormEntryPendingQueue pendingQueue);
+
 	/**
 	 * Delete the given pending queue item
 	 * 
@@ -64,6 +78,28 @@ public interface RemoteFormEntryService {
 	        RemoteFormEntryConstants.PRIV_EXPORT_REMOTE_FORM_ENTRY })
 	public RemoteFormEntryPendingQueue getNextRemoteFormEntryPendingQueue();
 
+	/**
+	 * Find the next pending queue item to be processed and mark it as handed out so that
+	 * concurrent callers each get a different item. The item stays in the pending queue until it
+	 * is deleted
+	 * 
+	 * @return next unclaimed queue item or null if none
+	 * @see #releaseRemoteFormEntryPendingQueueClaims()
+	 */
+	@Transactional(readOnly = true)
+	@Authorized( { RemoteFormEntryConstants.PRIV_IMPORT_REMOTE_FORM_ENTRY,
+	        RemoteFormEntryConstants.PRIV_EXPORT_REMOTE_FORM_ENTRY })
+	public RemoteFormEntryPendingQueue claimNextRemoteFormEntryPendingQueue();
+
+	/**
+	 * Make all claimed pending queue items that have not been deleted available to
+	 * {@link #claimNextRemoteFormEntryPendingQueue()} again
+	 */
+	@Transactional(readOnly = true)
+	@Authorized( { RemoteFormEntryConstants.PRIV_IMPORT_REMOTE_FORM_ENTRY,
+	        RemoteFormEntryConstants.PRIV_EXPORT_REMOTE_FORM_ENTRY })
+	public void releaseRemoteFormEntryPendingQueueClaims();
+
 	/**
 	 * Get the number of queue items waiting to be processed
 	 * 
@@ -113,6 +149,90 @@ public interface RemoteFormEntryService {
 	 */
 	public void updatePatientInDatabase(Patient patient, Document doc, XPath xp) throws XPathExpressionException, Exception;
 
+	/**
+	 * Creates a patient from the given form header
+	 * 
+	 * @param header the patient header read from the form
+	 * @return newly created Patient
+	 * @see RemoteFormEntryFormHeaderReader
+	 */
+	public Patient createPatientInDatabase(RemoteFormEntryFormHeader header) throws Exception;
+
+	/**
+	 * Updates all of the patient data that is different between the given
+	 * patient and the given form header
+	 * 
+	 * @param patient patient to modify
+	 * @param header the patient header read from the form
+	 * @see RemoteFormEntryFormHeaderReader
+	 */
+	public void updatePatientInDatabase(Patient patient, RemoteFormEntryFormHeader header) throws Exception;
+
+	/**
+	 * Finds, creates or updates the patient for each of the given pending queue items inside one
+	 * transaction. Nothing is written to the formentry queue and the pending queue items are left
+	 * in place. If any item fails the whole transaction is rolled back.
+	 * 
+	 * @param pendingQueues pending queue items to save patients for, in queue order
+	 * @return the patients in the same order as the given items
+	 * @throws RemoteFormEntryException if any of the items fails
+	 * @see RemoteFormEntryPendingProcessor#savePatient(RemoteFormEntryPendingQueue)
+	 */
+	@Authorized( { RemoteFormEntryConstants.PRIV_IMPORT_REMOTE_FORM_ENTRY,
+	        RemoteFormEntryConstants.PRIV_EXPORT_REMOTE_FORM_ENTRY })
+	public List<Patient> savePatientsForPendingQueues(List<RemoteFormEntryPendingQueue> pendingQueues);
+
+	/**
+	 * Load every patient identifier into an in memory index so that
+	 * {@link #getPatientByIdentifier(String, Integer)} is a lookup instead of a patient search.
+	 * The index replaces any index loaded before and is kept up to date as patients are created
+	 * and updated by this service until {@link #clearPatientIdentifierIndex()} is called.
+	 * 
+	 * @see RemoteFormEntryIdentifierIndex
+	 */
+	@Transactional(readOnly = true)
+	@Authorized( { RemoteFormEntryConstants.PRIV_IMPORT_REMOTE_FORM_ENTRY,
+	        RemoteFormEntryConstants.PRIV_EXPORT_REMOTE_FORM_ENTRY })
+	public void loadPatientIdentifierIndex();
+
+	/**
+	 * Drop the index loaded by {@link #loadPatientIdentifierIndex()}. Later lookups search the
+	 * database again
+	 */
+	@Authorized( { RemoteFormEntryConstants.PRIV_IMPORT_REMOTE_FORM_ENTRY,
+	        RemoteFormEntryConstants.PRIV_EXPORT_REMOTE_FORM_ENTRY })
+	public void clearPatientIdentifierIndex();
+
+	/**
+	 * Find the patient that has the given identifier of the given type. Voided identifiers and the
+	 * identifiers of voided patients are not matched. Uses the index loaded by
+	 * {@link #loadPatientIdentifierIndex()} if there is one; the patients are searched by identifier
+	 * when there is no index or the identifier isn't in it, as it may have been added since the
+	 * index was loaded.
+	 * 
+	 * @param identifier the identifier string
+	 * @param identifierTypeId id of the PatientIdentifierType
+	 * @return the matching patient or null if none was found
+	 */
+	@Transactional(readOnly = true)
+	@Authorized( { RemoteFormEntryConstants.PRIV_IMPORT_REMOTE_FORM_ENTRY,
+	        RemoteFormEntryConstants.PRIV_EXPORT_REMOTE_FORM_ENTRY })
+	public Patient getPatientByIdentifier(String identifier, Integer identifierTypeId);
+
+	/**
+	 * Read the patient headers of the given pending queue items and load all of the patients they
+	 * match into the current session, with their names, addresses, identifiers and attributes, in
+	 * a few queries. Patients are matched by uuid and through the index loaded by
+	 * {@link #loadPatientIdentifierIndex()}. Items that can't be read are skipped; the error is
+	 * left for when the item is processed.
+	 * 
+	 * @param pendingQueues the next pending queue items to be processed
+	 */
+	@Transactional(readOnly = true)
+	@Authorized( { RemoteFormEntryConstants.PRIV_IMPORT_REMOTE_FORM_ENTRY,
+	        RemoteFormEntryConstants.PRIV_EXPORT_REMOTE_FORM_ENTRY })
+	public void prefetchPatientsForPendingQueues(List<RemoteFormEntryPendingQueue> pendingQueues);
+
 	/**
 	 * Receive and act upon the generated data from the central.
 	 * 
@@ -144,6 +264,24 @@ public interface RemoteFormEntryService {
 	 */
 	public void generateDataFile();
 	
+	/**
+	 * @return the jobs of the last {@link #generateDataFile()} since startup, with the status and
+	 *         timing of each file
+	 */
+	@Transactional(readOnly = true)
+	public List<RemoteFormEntryJob> getReturnDataGenerationJobs();
+	
+	/**
+	 * Record that the given remote location has applied the return data with the given sync mark.
+	 * The next return data generated for it only contains the rows changed since then
+	 * 
+	 * @param location the remote location
+	 * @param mark the sync mark the remote site sent back with its queue export
+	 * @see RemoteFormEntryConstants#GP_RETURN_DATA_DELTA
+	 */
+	@Authorized( { RemoteFormEntryConstants.PRIV_IMPORT_REMOTE_FORM_ENTRY })
+	public void acknowledgeSyncMark(Location location, Date mark);
+	
 	/**
 	 * Receive and act upon the ack files. All pending formentry queue items
 	 * that are in this ack file should be moved to the formentry archive
@@ -186,5 +324,17 @@ public interface RemoteFormEntryService {
      * @param patient Patient new/updated patient that this queue item should be attributed to
      */
     public void createFormEntryQueueForPatient(String formData, Patient patient);
+    
+    /**
+     * Creates a formentry queue item for the given patient from the given pending queue item.
+     * The form is copied from the pending queue file to the formentry queue through a small
+     * buffer with the patient id replaced on the way, so the form is never held in memory.
+     * The pending queue item is not deleted.
+     * 
+     * @param pendingQueue the pending queue item to copy
+     * @param patient Patient new/updated patient that this queue item should be attributed to
+     * @see RemoteFormEntryUtil#replacePatientIdInStream(Integer, java.io.InputStream, java.io.OutputStream)
+     */
+    public void createFormEntryQueueForPatient(RemoteFormEntryPendingQueue pendingQueue, Patient patient);
 
 }
@@ -0,0 +1,252 @@
+package org.openmrs.module.remoteformentry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+import org.openmrs.api.context.Context;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Snapshot of the remoteformentry.* global properties. All of them are read with one query the
+ * first time they are needed and then kept in memory, so processing a form never goes to the
+ * global_property table. The snapshot is thrown away by the {@link Listener} whenever one of the
+ * properties is saved or deleted, and when the database is replaced with the data from the central
+ * server, and is read again on next use.<br/>
+ * <br/>
+ * The values that are parsed (numbers and lists of ids) are parsed once when the snapshot is
+ * loaded.
+ */
+public class RemoteFormEntrySettings {
+
+	private static final Log log = LogFactory.getLog(RemoteFormEntrySettings.class);
+
+	private static final String PREFIX = "remoteformentry.";
+
+	private static volatile RemoteFormEntrySettings current;
+
+	/**
+	 * counts the calls to {@link #invalidate()}, so that a snapshot loaded from before one of them
+	 * is not kept. Guarded by the class
+	 */
+	private static long generation;
+
+	private final Map<String, String> values;
+
+	private final List<Integer> initialEncounterTypeIds;
+
+	private final Integer invalidIdentifierTypeId;
+
+	private final Integer locationId;
+
+	private final List<List<Integer>> remoteLocationIds;
+
+	/**
+	 * @return the current snapshot, loaded from the database if there is none
+	 */
+	public static RemoteFormEntrySettings get() {
+		RemoteFormEntrySettings settings = current;
+		if (settings == null) {
+			long loadGeneration;
+			synchronized (RemoteFormEntrySettings.class) {
+				loadGeneration = generation;
+			}
+
+			settings = load();
+
+			// if it was invalidated while loading, the values may already be old. They are used
+			// for this call only and the next one loads them again
+			synchronized (RemoteFormEntrySettings.class) {
+				if (generation == loadGeneration)
+					current = settings;
+			}
+		}
+		return settings;
+	}
+
+	/**
+	 * Drop the current snapshot. The next call to {@link #get()} reads the global properties again
+	 */
+	public static void invalidate() {
+		synchronized (RemoteFormEntrySettings.class) {
+			generation++;
+			current = null;
+		}
+	}
+
+	private static RemoteFormEntrySettings load() {
+		Map<String, String> values = new HashMap<String, String>();
+		for (GlobalProperty gp : Context.getAdministrationService().getGlobalPropertiesByPrefix(PREFIX)) {
+			if (gp.getPropertyValue() != null)
+				values.put(gp.getProperty(), gp.getPropertyValue());
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("Loaded " + values.size() + " remoteformentry global properties");
+
+		return new RemoteFormEntrySettings(values);
+	}
+
+	private RemoteFormEntrySettings(Map<String, String> values) {
+		this.values = values;
+		this.initialEncounterTypeIds = Collections.unmodifiableList(parseIds(getString(
+		    RemoteFormEntryConstants.GP_INITIAL_ENCOUNTER_TYPES, ""), ","));
+		this.invalidIdentifierTypeId = parseId(RemoteFormEntryConstants.GP_INVALID_IDENTIFIER_TYPE);
+		this.locationId = parseId(RemoteFormEntryConstants.GP_LOCATION_ID);
+
+		// groups of locations like "1,2 4 5,13,3 6"
+		List<List<Integer>> groups = new ArrayList<List<Integer>>();
+		for (String group : getString(RemoteFormEntryConstants.GP_REMOTE_LOCATIONS, "").split(",")) {
+			List<Integer> ids = parseIds(group, " ");
+			// skip over any double commas in the global property
+			if (!ids.isEmpty())
+				groups.add(Collections.unmodifiableList(ids));
+		}
+		this.remoteLocationIds = Collections.unmodifiableList(groups);
+	}
+
+	/**
+	 * Same as {@link org.openmrs.api.AdministrationService#getGlobalProperty(String, String)}
+	 *
+	 * @param property name of the global property
+	 * @param defaultValue value to return if the property is not set
+	 * @return the value of the property
+	 */
+	public String getString(String property, String defaultValue) {
+		String value = values.get(property);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * @param property name of an integer global property
+	 * @param defaultValue value to use when the property is not set
+	 * @return the value of the property, or the default if it is not a number
+	 */
+	public int getInt(String property, String defaultValue) {
+		String value = getString(property, defaultValue);
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value for " + property + ": " + value);
+			return Integer.parseInt(defaultValue);
+		}
+	}
+
+	/**
+	 * @return ids of the encounter types that may create a patient
+	 * @see RemoteFormEntryConstants#GP_INITIAL_ENCOUNTER_TYPES
+	 */
+	public List<Integer> getInitialEncounterTypeIds() {
+		return initialEncounterTypeIds;
+	}
+
+	/**
+	 * @return id of the identifier type to give identifiers with an invalid check digit, or null
+	 * @see RemoteFormEntryConstants#GP_INVALID_IDENTIFIER_TYPE
+	 */
+	public Integer getInvalidIdentifierTypeId() {
+		return invalidIdentifierTypeId;
+	}
+
+	/**
+	 * @return id of the location of this server, or null
+	 * @see RemoteFormEntryConstants#GP_LOCATION_ID
+	 */
+	public Integer getLocationId() {
+		return locationId;
+	}
+
+	/**
+	 * @return the groups of location ids defined by the remote locations property. The first id
+	 *         in each group is the remote location. Empty if the property is not set
+	 * @see RemoteFormEntryConstants#GP_REMOTE_LOCATIONS
+	 */
+	public List<List<Integer>> getRemoteLocationIds() {
+		return remoteLocationIds;
+	}
+
+	private Integer parseId(String property) {
+		String value = getString(property, "").trim();
+		if (value.length() < 1)
+			return null;
+
+		try {
+			return Integer.valueOf(value);
+		}
+		catch (NumberFormatException e) {
+			log.warn("Invalid value for " + property + ": " + value);
+			return null;
+		}
+	}
+
+	private static List<Integer> parseIds(String value, String separator) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (String id : value.split(separator)) {
+			// skip over any empty or blank spaces
+			id = id.trim();
+			if (id.length() > 0) {
+				try {
+					ids.add(Integer.valueOf(id));
+				}
+				catch (NumberFormatException e) {
+					log.warn("Unable to parse id: " + id, e);
+				}
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Drops the snapshot whenever a remoteformentry global property changes. Registered by the
+	 * {@link RemoteFormEntryActivator}
+	 */
+	public static class Listener implements GlobalPropertyListener {
+
+		/**
+		 * The listener is called before the change is committed, so a snapshot loaded in between
+		 * still has the old value. It is dropped again once the transaction is over
+		 */
+		private static void invalidateAfterCommit() {
+			invalidate();
+			if (TransactionSynchronizationManager.isSynchronizationActive()) {
+				TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+					@Override
+					public void afterCompletion(int status) {
+						invalidate();
+					}
+				});
+			}
+		}
+
+		/**
+		 * @see org.openmrs.api.GlobalPropertyListener#supportsPropertyName(java.lang.String)
+		 */
+		public boolean supportsPropertyName(String propertyName) {
+			return propertyName != null && propertyName.startsWith(PREFIX);
+		}
+
+		/**
+		 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyChanged(org.openmrs.GlobalProperty)
+		 */
+		public void globalPropertyChanged(GlobalProperty newValue) {
+			invalidateAfterCommit();
+		}
+
+		/**
+		 * @see org.openmrs.api.GlobalPropertyListener#globalPropertyDeleted(java.lang.String)
+		 */
+		public void globalPropertyDeleted(String propertyName) {
+			invalidateAfterCommit();
+		}
+	}
+
+}
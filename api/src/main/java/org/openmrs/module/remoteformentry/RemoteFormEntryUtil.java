@@ -1,8 +1,14 @@
 package org.openmrs.module.remoteformentry;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -16,6 +22,7 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.Vector;
 
+import javax.xml.namespace.QName;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
@@ -39,7 +46,6 @@ import org.openmrs.User;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.LocationService;
 import org.openmrs.api.PatientIdentifierException;
-import org.openmrs.api.UserService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.remoteformentry.RemoteFormEntryConstants.RP_SERVER_TYPES;
 import org.openmrs.util.OpenmrsUtil;
@@ -89,6 +95,12 @@ public class RemoteFormEntryUtil {
 	 */
 	public static final String GENERATED_DATA_FILENAME = "generatedReturnData";
 	
+	/**
+	 * Name of the file next to the return data for a location that holds the sync mark of that
+	 * return data
+	 */
+	public static final String SYNC_MARK_FILENAME = "syncMark";
+	
 	/**
 	 * Gets the directory where the user specified their queues were being stored
 	 * 
@@ -304,6 +316,193 @@ public class RemoteFormEntryUtil {
 		return builder.toString();
 	}
 	
+	/**
+	 * Move a file. It is renamed when both files are on the same filesystem, otherwise it is copied
+	 * byte for byte with {@link #copyFile(File, File)} and the original is deleted. An existing
+	 * file at <code>to</code> is replaced.
+	 * 
+	 * @param from file to move
+	 * @param to where to move it to
+	 * @throws IOException if the file can't be moved. The original is left in place
+	 */
+	public static void moveFile(File from, File to) throws IOException {
+		if (from.renameTo(to))
+			return;
+		
+		// most likely another filesystem (or windows not renaming over an existing file)
+		copyFile(from, to);
+		if (!from.delete()) {
+			to.delete();
+			throw new IOException("Unable to delete " + from.getAbsolutePath() + " after copying it to "
+			        + to.getAbsolutePath());
+		}
+	}
+	
+	/**
+	 * Copy a file byte for byte through file channels, letting the operating system do the copy
+	 * where it can. An existing file at <code>to</code> is replaced.
+	 * 
+	 * @param from file to copy
+	 * @param to file to copy it to
+	 * @throws IOException if the copy fails
+	 */
+	public static void copyFile(File from, File to) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		try {
+			FileOutputStream out = new FileOutputStream(to);
+			try {
+				FileChannel source = in.getChannel();
+				FileChannel target = out.getChannel();
+				long size = source.size();
+				long position = 0;
+				while (position < size)
+					position += source.transferTo(position, size - position, target);
+			}
+			finally {
+				out.close();
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Start of the element that holds the patient id on a form
+	 */
+	private static final byte[] PATIENT_ID_START = "<patient.patient_id".getBytes();
+	
+	/**
+	 * Start of the end tag of the element that holds the patient id on a form
+	 */
+	private static final byte[] PATIENT_ID_END = "</patient.patient_id".getBytes();
+	
+	/**
+	 * Copy the form data from the given stream to the given stream, replacing the value of the
+	 * patient.patient_id element with the given patientId on the way through. Only a small buffer
+	 * is held in memory no matter how large the form is. The form is expected to be in an ascii
+	 * compatible encoding (like utf-8), which is what formentry writes.
+	 * 
+	 * @param patientId integer patient id to put in the form
+	 * @param in form data to read. The stream is not closed
+	 * @param out where to write the changed form data. The stream is flushed but not closed
+	 * @throws IOException if reading or writing fails
+	 * @throws RemoteFormEntryException if the form does not have a patient.patient_id element
+	 * @see #replacePatientIdInDocument(Integer, String)
+	 */
+	public static void replacePatientIdInStream(Integer patientId, InputStream in, OutputStream out) throws IOException {
+		final int SEARCH = 0, IN_START_TAG = 1, IN_VALUE = 2, COPY = 3;
+		
+		byte[] value = String.valueOf(patientId).getBytes();
+		byte[] buffer = new byte[8192];
+		
+		int state = SEARCH;
+		int matched = 0;
+		boolean checkNameEnd = false;
+		boolean slash = false;
+		
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			int i = 0;
+			
+			// everything before the value is copied through, the value itself is dropped
+			while (i < read && state != COPY) {
+				byte b = buffer[i++];
+				
+				if (state == SEARCH) {
+					if (checkNameEnd) {
+						// make sure this is not just an element whose name starts with patient.patient_id
+						checkNameEnd = false;
+						slash = b == '/';
+						if (!slash)
+							out.write(b);
+						
+						if (b == '>') {
+							out.write(value);
+							state = IN_VALUE;
+						}
+						else if (slash || Character.isWhitespace((char) b)) {
+							state = IN_START_TAG;
+						}
+						matched = b == '<' ? 1 : 0;
+					}
+					else if (b == PATIENT_ID_START[matched]) {
+						out.write(b);
+						if (++matched == PATIENT_ID_START.length) {
+							matched = 0;
+							checkNameEnd = true;
+						}
+					}
+					else {
+						out.write(b);
+						matched = b == '<' ? 1 : 0;
+					}
+				}
+				else if (state == IN_START_TAG) {
+					if (b == '>') {
+						if (slash) {
+							// an empty <patient.patient_id/> element
+							out.write('>');
+							out.write(value);
+							out.write(PATIENT_ID_END);
+							out.write('>');
+							state = COPY;
+						}
+						else {
+							out.write(b);
+							out.write(value);
+							state = IN_VALUE;
+						}
+					}
+					else {
+						if (slash)
+							out.write('/');
+						slash = b == '/';
+						if (!slash)
+							out.write(b);
+					}
+				}
+				else if (state == IN_VALUE) {
+					if (b == PATIENT_ID_END[matched]) {
+						if (++matched == PATIENT_ID_END.length) {
+							out.write(PATIENT_ID_END);
+							state = COPY;
+						}
+					}
+					else {
+						matched = b == '<' ? 1 : 0;
+					}
+				}
+			}
+			
+			if (state == COPY && i < read)
+				out.write(buffer, i, read - i);
+		}
+		
+		if (state != COPY)
+			throw new RemoteFormEntryException("Unable to find the patient.patient_id element in the form data");
+		
+		out.flush();
+	}
+	
+	/**
+	 * Evaluate the given path using this thread's compiled expressions
+	 * 
+	 * @see RemoteFormEntryParsingContext#evaluate(String, Object)
+	 */
+	private static String evaluate(String path, Object item) throws XPathExpressionException {
+		return RemoteFormEntryParsingContext.get().evaluate(path, item);
+	}
+	
+	/**
+	 * Evaluate the given path using this thread's compiled expressions
+	 * 
+	 * @see RemoteFormEntryParsingContext#evaluate(String, Object, QName)
+	 */
+	private static Object evaluate(String path, Object item, QName returnType) throws XPathExpressionException {
+		return RemoteFormEntryParsingContext.get().evaluate(path, item, returnType);
+	}
+	
 	/**
 	 * Get the patient identifiers from the given form data
 	 * 
@@ -311,29 +510,36 @@ public class RemoteFormEntryUtil {
 	 * @param xp xpath transform
 	 * @return new list of PatientIdentifiers
 	 * @throws XPathExpressionException
+	 * @see #getPatientIdentifiers(RemoteFormEntryFormHeader, User)
 	 */
 	public static List<PatientIdentifier> getPatientIdentifiers(Document doc, XPath xp, User enterer)
 	                                                                                             throws XPathExpressionException, Exception {
+		return getPatientIdentifiers(RemoteFormEntryFormHeader.fromDocument(doc), enterer);
+	}
+	
+	/**
+	 * Get the patient identifiers from the given form header
+	 * 
+	 * @param header the patient header of the form
+	 * @param enterer user who entered this form
+	 * @return new list of PatientIdentifiers
+	 */
+	public static List<PatientIdentifier> getPatientIdentifiers(RemoteFormEntryFormHeader header, User enterer) {
 		
 		List<PatientIdentifier> patientIdentifiers = new ArrayList<PatientIdentifier>();
 		
-		// get the list of patient identifier nodes
-		NodeList nodeList = (NodeList) xp.evaluate(RemoteFormEntryConstants.nodePrefix
-		        + RemoteFormEntryConstants.PATIENT_IDENTIFIER, doc, XPathConstants.NODESET);
-		
-		// loop over the nodes
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			Node currentNode = nodeList.item(i);
+		// loop over the patient identifier sections
+		for (RemoteFormEntryFormHeader.Section section : header.getIdentifiers()) {
 			
 			PatientIdentifier pi = new PatientIdentifier();
 			
-			pi.setIdentifier(xp.evaluate(RemoteFormEntryConstants.PATIENT_IDENTIFIER_IDENTIFIER, currentNode));
+			pi.setIdentifier(section.get(RemoteFormEntryConstants.PATIENT_IDENTIFIER_IDENTIFIER));
 			
 			try {
-				String typeId = xp.evaluate(RemoteFormEntryConstants.PATIENT_IDENTIFIER_TYPE, currentNode);
+				String typeId = section.get(RemoteFormEntryConstants.PATIENT_IDENTIFIER_TYPE);
 				if (typeId != null) {
-					PatientIdentifierType pit = Context.getPatientService()
-					        .getPatientIdentifierType(Integer.valueOf(typeId));
+					PatientIdentifierType pit = RemoteFormEntryMetadataCache.getPatientIdentifierType(Integer
+					        .valueOf(typeId));
 					pi.setIdentifierType(pit);
 				}
 			}
@@ -342,7 +548,7 @@ public class RemoteFormEntryUtil {
 			}
 			
 			try {
-				String locationId = xp.evaluate(RemoteFormEntryConstants.PATIENT_IDENTIFIER_LOCATION, currentNode);
+				String locationId = section.get(RemoteFormEntryConstants.PATIENT_IDENTIFIER_LOCATION);
 				if (locationId != null)
 					pi.setLocation(new Location(Integer.valueOf(locationId)));
 			}
@@ -351,7 +557,7 @@ public class RemoteFormEntryUtil {
 			}
 			
 			// get the voided status
-			String voidStatus = xp.evaluate(RemoteFormEntryConstants.PATIENT_IDENTIFIER_VOIDED, currentNode);
+			String voidStatus = section.get(RemoteFormEntryConstants.PATIENT_IDENTIFIER_VOIDED);
 			if (!pi.isVoided() && voidStatus != null && voidStatus.equals("true")) {
 				pi.setVoided(true);
 				pi.setVoidReason("Voided at remote");
@@ -360,7 +566,7 @@ public class RemoteFormEntryUtil {
 			}
 			
 			// get the preferred status
-			String preferredStatus = xp.evaluate(RemoteFormEntryConstants.PATIENT_IDENTIFIER_PREFERRED, currentNode);
+			String preferredStatus = section.get(RemoteFormEntryConstants.PATIENT_IDENTIFIER_PREFERRED);
 			pi.setPreferred(preferredStatus != null && preferredStatus.equals("true"));
 			
 			pi.setCreator(enterer);
@@ -392,12 +598,11 @@ public class RemoteFormEntryUtil {
 			
 			if (!validCheckDigit) {
 				// see if the admin has given an identifierType to convert this to
-				String invalidTypeId = Context.getAdministrationService().getGlobalProperty(RemoteFormEntryConstants.GP_INVALID_IDENTIFIER_TYPE, "");
+				Integer invalidTypeId = RemoteFormEntrySettings.get().getInvalidIdentifierTypeId();
 				
 				// if the admin defined the global property, reset the type to the INVALID type 
-				if (!invalidTypeId.equals("")) {
-					PatientIdentifierType pit = Context.getPatientService()
-					        .getPatientIdentifierType(Integer.valueOf(invalidTypeId));
+				if (invalidTypeId != null) {
+					PatientIdentifierType pit = RemoteFormEntryMetadataCache.getPatientIdentifierType(invalidTypeId);
 					pi.setIdentifierType(pit);
 				}
 				else {
@@ -424,26 +629,34 @@ public class RemoteFormEntryUtil {
 	 * @param xp xpath transform
 	 * @return new list of PersonName s
 	 * @throws XPathExpressionException
+	 * @see #getPersonNames(RemoteFormEntryFormHeader, User)
 	 */
 	public static List<PersonName> getPersonNames(Document doc, XPath xp, User enterer) throws XPathExpressionException {
+		return getPersonNames(RemoteFormEntryFormHeader.fromDocument(doc), enterer);
+	}
+	
+	/**
+	 * Get a list of person names object out of the given form header
+	 * 
+	 * @param header the patient header of the form
+	 * @param enterer user who entered this form
+	 * @return new list of PersonName s
+	 */
+	public static List<PersonName> getPersonNames(RemoteFormEntryFormHeader header, User enterer) {
 		
 		List<PersonName> personNames = new Vector<PersonName>();
 		
-		NodeList nodeList = (NodeList) xp.evaluate(RemoteFormEntryConstants.nodePrefix
-		        + RemoteFormEntryConstants.PERSON_NAME, doc, XPathConstants.NODESET);
-		
-		// loop over the nodes
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			Node currentNode = nodeList.item(i);
+		// loop over the person name sections
+		for (RemoteFormEntryFormHeader.Section section : header.getNames()) {
 			
 			PersonName personName = new PersonName();
 			
-			personName.setGivenName(xp.evaluate(RemoteFormEntryConstants.PERSON_NAME_GIVEN, currentNode));
-			personName.setMiddleName(xp.evaluate(RemoteFormEntryConstants.PERSON_NAME_MIDDLE, currentNode));
-			personName.setFamilyName(xp.evaluate(RemoteFormEntryConstants.PERSON_NAME_FAMILY, currentNode));
+			personName.setGivenName(section.get(RemoteFormEntryConstants.PERSON_NAME_GIVEN));
+			personName.setMiddleName(section.get(RemoteFormEntryConstants.PERSON_NAME_MIDDLE));
+			personName.setFamilyName(section.get(RemoteFormEntryConstants.PERSON_NAME_FAMILY));
 			
 			// get the voided status
-			String voidStatus = xp.evaluate(RemoteFormEntryConstants.PERSON_NAME_VOIDED, currentNode);
+			String voidStatus = section.get(RemoteFormEntryConstants.PERSON_NAME_VOIDED);
 			if (!personName.isVoided() && voidStatus != null && voidStatus.equals("true")) {
 				personName.setVoided(true);
 				personName.setVoidedBy(enterer);
@@ -452,7 +665,7 @@ public class RemoteFormEntryUtil {
 			}
 			
 			// get the preferred status
-			String preferredStatus = xp.evaluate(RemoteFormEntryConstants.PERSON_NAME_PREFERRED, currentNode);
+			String preferredStatus = section.get(RemoteFormEntryConstants.PERSON_NAME_PREFERRED);
 			personName.setPreferred(preferredStatus != null && preferredStatus.equals("true"));
 			
 			personName.setCreator(enterer);
@@ -472,39 +685,44 @@ public class RemoteFormEntryUtil {
 	 * @param enterer user who entered this form
 	 * @return new list of PersonAddress's
 	 * @throws XPathExpressionException
+	 * @see #getPersonAddresses(RemoteFormEntryFormHeader, User)
 	 */
 	public static List<PersonAddress> getPersonAddresses(Document doc, XPath xp, User enterer)
 	                                                                                          throws XPathExpressionException {
+		return getPersonAddresses(RemoteFormEntryFormHeader.fromDocument(doc), enterer);
+	}
+	
+	/**
+	 * Create a list of PersonAddresses object from the given form header
+	 * 
+	 * @param header the patient header of the form
+	 * @param enterer user who entered this form
+	 * @return new list of PersonAddress's
+	 */
+	public static List<PersonAddress> getPersonAddresses(RemoteFormEntryFormHeader header, User enterer) {
 		
 		List<PersonAddress> personAddresses = new Vector<PersonAddress>();
 		
-		NodeList nodeList = (NodeList) xp.evaluate(RemoteFormEntryConstants.nodePrefix
-		        + RemoteFormEntryConstants.PERSON_ADDRESS, doc, XPathConstants.NODESET);
-		
-		// loop over the nodes
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			Node currentNode = nodeList.item(i);
+		// loop over the person address sections
+		for (RemoteFormEntryFormHeader.Section section : header.getAddresses()) {
 			
 			PersonAddress personAddress = new PersonAddress();
-			personAddress.setAddress1(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_ADDRESS1, currentNode));
-			personAddress.setAddress2(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_ADDRESS2, currentNode));
-			personAddress.setCityVillage(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_CITY_VILLAGE, currentNode));
-			personAddress.setCountry(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_COUNTRY, currentNode));
-			personAddress.setCountyDistrict(xp
-			        .evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_COUNTY_DISTRICT, currentNode));
-			personAddress.setLatitude(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_LATITUDE, currentNode));
-			personAddress.setLongitude(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_LONGITUDE, currentNode));
-			personAddress.setNeighborhoodCell(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_NEIGHBORHOOD_CELL,
-			    currentNode));
-			personAddress.setPostalCode(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_POSTAL_CODE, currentNode));
-			personAddress.setStateProvince(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_STATE_PROVINCE, currentNode));
-			personAddress.setRegion(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_REGION, currentNode));
-			personAddress.setSubregion(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_SUBREGION, currentNode));
-			personAddress.setTownshipDivision(xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_TOWNSHIP_DIVISION,
-			    currentNode));
+			personAddress.setAddress1(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_ADDRESS1));
+			personAddress.setAddress2(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_ADDRESS2));
+			personAddress.setCityVillage(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_CITY_VILLAGE));
+			personAddress.setCountry(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_COUNTRY));
+			personAddress.setCountyDistrict(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_COUNTY_DISTRICT));
+			personAddress.setLatitude(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_LATITUDE));
+			personAddress.setLongitude(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_LONGITUDE));
+			personAddress.setNeighborhoodCell(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_NEIGHBORHOOD_CELL));
+			personAddress.setPostalCode(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_POSTAL_CODE));
+			personAddress.setStateProvince(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_STATE_PROVINCE));
+			personAddress.setRegion(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_REGION));
+			personAddress.setSubregion(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_SUBREGION));
+			personAddress.setTownshipDivision(section.get(RemoteFormEntryConstants.PERSON_ADDRESS_TOWNSHIP_DIVISION));
 			
 			// get the voided status
-			String voidStatus = xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_VOIDED, currentNode);
+			String voidStatus = section.get(RemoteFormEntryConstants.PERSON_ADDRESS_VOIDED);
 			if (!personAddress.isVoided() && voidStatus != null && voidStatus.equals("true")) {
 				personAddress.setVoided(true);
 				personAddress.setVoidReason("Voided at remote");
@@ -513,7 +731,7 @@ public class RemoteFormEntryUtil {
 			}
 			
 			// get the preferred status
-			String preferredStatus = xp.evaluate(RemoteFormEntryConstants.PERSON_ADDRESS_PREFERRED, currentNode);
+			String preferredStatus = section.get(RemoteFormEntryConstants.PERSON_ADDRESS_PREFERRED);
 			personAddress.setPreferred(preferredStatus != null && preferredStatus.equals("true"));
 			
 			personAddress.setCreator(enterer);
@@ -534,38 +752,47 @@ public class RemoteFormEntryUtil {
 	 * @return list of person attributes
 	 * @throws XPathExpressionException
 	 * @throws NumberFormatException
+	 * @see #getPersonAttributes(RemoteFormEntryFormHeader, User)
 	 */
 	public static List<PersonAttribute> getPersonAttributes(Document doc, XPath xp, User enterer)
 	                                                                                             throws NumberFormatException,
 	                                                                                             XPathExpressionException {
+		return getPersonAttributes(RemoteFormEntryFormHeader.fromDocument(doc), enterer);
+	}
+	
+	/**
+	 * Get all of the person attributes from the given form header and return them
+	 * 
+	 * @param header the patient header of the form
+	 * @param enterer user that entered this
+	 * @return list of person attributes
+	 * @throws NumberFormatException
+	 */
+	public static List<PersonAttribute> getPersonAttributes(RemoteFormEntryFormHeader header, User enterer)
+	                                                                                                      throws NumberFormatException {
 		
 		// list to return
 		List<PersonAttribute> personAttributes = new ArrayList<PersonAttribute>();
 		
-		// get all person attribute nodes
-		NodeList nodeList = (NodeList) xp.evaluate(RemoteFormEntryConstants.nodePrefix
-		        + RemoteFormEntryConstants.PERSON_ATTRIBUTE, doc, XPathConstants.NODESET);
-		
-		// loop over the nodes
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			Node currentNode = nodeList.item(i);
+		// loop over the person attribute sections
+		for (RemoteFormEntryFormHeader.Section section : header.getAttributes()) {
 			
 			PersonAttribute personAttribute = new PersonAttribute();
 			
 			// get the type id
-			String typeId = xp.evaluate(RemoteFormEntryConstants.PERSON_ATTRIBUTE_TYPE, currentNode);
+			String typeId = section.get(RemoteFormEntryConstants.PERSON_ATTRIBUTE_TYPE);
 			if (typeId.length() > 0) {
-				PersonAttributeType pat = Context.getPersonService().getPersonAttributeType(Integer.valueOf(typeId));
+				PersonAttributeType pat = RemoteFormEntryMetadataCache.getPersonAttributeType(Integer.valueOf(typeId));
 				personAttribute.setAttributeType(pat);
 			} else
 				log.error("Uh oh. Going to have trouble creating an attribute with no attribute type id. node: "
-				        + currentNode.getTextContent());
+				        + section);
 			
 			// get the value
-			personAttribute.setValue(xp.evaluate(RemoteFormEntryConstants.PERSON_ATTRIBUTE_VALUE, currentNode));
+			personAttribute.setValue(section.get(RemoteFormEntryConstants.PERSON_ATTRIBUTE_VALUE));
 			
 			// get the voided status
-			String voidStatus = xp.evaluate(RemoteFormEntryConstants.PERSON_ATTRIBUTE_VOIDED, currentNode);
+			String voidStatus = section.get(RemoteFormEntryConstants.PERSON_ATTRIBUTE_VOIDED);
 			if (!personAttribute.isVoided() && voidStatus != null && voidStatus.equals("true")) {
 				personAttribute.setVoided(true);
 				personAttribute.setVoidReason("Voided at remote");
@@ -593,9 +820,9 @@ public class RemoteFormEntryUtil {
 	public static String encodePersonAttributeNode(Node node, XPath xp)
 			throws XPathExpressionException {
 		return encodedAttribute(
-				xp.evaluate(RemoteFormEntryConstants.PERSON_ATTRIBUTE_TYPE, node),
-				xp.evaluate(RemoteFormEntryConstants.PERSON_ATTRIBUTE_VALUE, node),
-				xp.evaluate(RemoteFormEntryConstants.PERSON_ATTRIBUTE_VOIDED, node));
+				evaluate(RemoteFormEntryConstants.PERSON_ATTRIBUTE_TYPE, node),
+				evaluate(RemoteFormEntryConstants.PERSON_ATTRIBUTE_VALUE, node),
+				evaluate(RemoteFormEntryConstants.PERSON_ATTRIBUTE_VOIDED, node));
 	}
 	
 
@@ -623,7 +850,7 @@ public class RemoteFormEntryUtil {
 		List<String> knownAttributes = new ArrayList<String>();
 
 		// get all person attribute nodes
-		NodeList nodeList = (NodeList) xp.evaluate(
+		NodeList nodeList = (NodeList) evaluate(
 				RemoteFormEntryConstants.nodePrefix
 						+ RemoteFormEntryConstants.PERSON_ATTRIBUTE, doc,
 				XPathConstants.NODESET);
@@ -652,6 +879,17 @@ public class RemoteFormEntryUtil {
 	 */
 	public static void setPatientProperties(Patient patient, Document doc, XPath xp, User enterer)
 	                                                                                              throws XPathExpressionException {
+		setPatientProperties(patient, (RemoteFormEntryFormHeader) null, enterer);
+	}
+	
+	/**
+	 * Add demographics/properties (like tribe, etc) to the given patient object
+	 * 
+	 * @param patient Patient object to modify
+	 * @param header the patient header of the form
+	 * @param enterer User that entered the form
+	 */
+	public static void setPatientProperties(Patient patient, RemoteFormEntryFormHeader header, User enterer) {
 		
 		if (patient.getCreator() == null) {
 			patient.setCreator(enterer);
@@ -667,13 +905,24 @@ public class RemoteFormEntryUtil {
 	 * @param xp xpath translator
 	 * @param enterer User that entered the form
 	 * @throws XPathExpressionException
+	 * @see #setPersonProperties(Person, RemoteFormEntryFormHeader, User)
 	 */
 	public static void setPersonProperties(Person person, Document doc, XPath xp, User enterer)
 	                                                                                           throws XPathExpressionException {
+		setPersonProperties(person, RemoteFormEntryFormHeader.fromDocument(doc), enterer);
+	}
+	
+	/**
+	 * Add demographics/properties (like birthdate, death status, etc) to the given person object
+	 * 
+	 * @param person Person object to modify
+	 * @param header the patient header of the form
+	 * @param enterer User that entered the form
+	 */
+	public static void setPersonProperties(Person person, RemoteFormEntryFormHeader header, User enterer) {
 		DateFormat hl7DateFormat = new SimpleDateFormat("yyyyMMdd");
 		
-		String birthdateString = xp.evaluate(
-		    RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_BIRTHDATE, doc);
+		String birthdateString = header.getProperty(RemoteFormEntryConstants.PERSON_BIRTHDATE);
 		try {
 			person.setBirthdate(hl7DateFormat.parse(birthdateString));
 		}
@@ -681,15 +930,13 @@ public class RemoteFormEntryUtil {
 			log.error("Error getting birthdate from string for person: " + person, e);
 		}
 		
-		String birthdateEstimated = xp.evaluate(RemoteFormEntryConstants.nodePrefix
-		        + RemoteFormEntryConstants.PERSON_BIRTHDATE_ESTIMATED, doc);
+		String birthdateEstimated = header.getProperty(RemoteFormEntryConstants.PERSON_BIRTHDATE_ESTIMATED);
 		person.setBirthdateEstimated(birthdateEstimated.length() > 0);
 		
-		String deathStatus = xp.evaluate(RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_DEAD, doc);
+		String deathStatus = header.getProperty(RemoteFormEntryConstants.PERSON_DEAD);
 		person.setDead(deathStatus != null && deathStatus.equals("true"));
 		
-		String deathDate = xp
-		        .evaluate(RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_DEATH_DATE, doc);
+		String deathDate = header.getProperty(RemoteFormEntryConstants.PERSON_DEATH_DATE);
 		try {
 			if (deathDate != null && deathDate.length() > 0)
 				person.setDeathDate(hl7DateFormat.parse(deathDate));
@@ -698,12 +945,11 @@ public class RemoteFormEntryUtil {
 			log.error("Error getting death date from string for person: " + person, e);
 		}
 		
-		String deathCause = xp.evaluate("substring-before(" + RemoteFormEntryConstants.nodePrefix
-		        + RemoteFormEntryConstants.PERSON_DEATH_REASON + ", '^')", doc);
+		String deathCause = header.getDeathReasonId();
 		if (deathCause != null && deathCause.length() > 0)
 			person.setCauseOfDeath(new Concept(Integer.valueOf(deathCause)));
 		
-		String gender = xp.evaluate(RemoteFormEntryConstants.nodePrefix + RemoteFormEntryConstants.PERSON_GENDER, doc);
+		String gender = header.getProperty(RemoteFormEntryConstants.PERSON_GENDER);
 		setGender(person, gender);
 		
 		if (person.getPersonCreator() == null) {
@@ -711,7 +957,7 @@ public class RemoteFormEntryUtil {
 			person.setPersonDateCreated(new Date());
 		}
 
-		String uuid = RemoteFormEntryUtil.getPatientUuid(doc, xp);
+		String uuid = header.getUuid();
 		if (uuid != null && !uuid.isEmpty() && !uuid.equals(person.getUuid())) {
 			// TODO: should we throw an exception if the UUIDs don't match?
 			if (person.getUuid() != null)
@@ -732,9 +978,21 @@ public class RemoteFormEntryUtil {
 	 * @throws XPathExpressionException
 	 * @should not duplicate existing attributes
 	 * @should void previously unvoided attributes if no match exists
+	 * @see #setPersonAttributes(Patient, RemoteFormEntryFormHeader, User)
 	 */
 	public static void setPersonAttributes(Patient patient, Document doc,
 			XPath xp, User enterer) throws XPathExpressionException {
+		setPersonAttributes(patient, RemoteFormEntryFormHeader.fromDocument(doc), enterer);
+	}
+	
+	/**
+	 * sets person attributes on patient if not already present
+	 * 
+	 * @param patient
+	 * @param header the patient header of the form
+	 * @param enterer
+	 */
+	public static void setPersonAttributes(Patient patient, RemoteFormEntryFormHeader header, User enterer) {
 		// create a map of hashed attributes to corresponding attributes
 		Map<String, PersonAttribute> knownAttributes = new HashMap<String, PersonAttribute>();
 		for (PersonAttribute attribute: patient.getAttributes())
@@ -745,7 +1003,7 @@ public class RemoteFormEntryUtil {
 								attribute.getVoided().toString()), attribute);
 		
 		// add all person attributes if patient doesn't have them yet
-		for (PersonAttribute newPersonAttribute : getPersonAttributes(doc, xp, enterer)) {
+		for (PersonAttribute newPersonAttribute : getPersonAttributes(header, enterer)) {
 
 			// check if it already exists (voided or non-voided)
 			if (!knownAttributes.keySet().contains(encodedAttribute(
@@ -802,9 +1060,21 @@ public class RemoteFormEntryUtil {
 	 * @param doc Document that represents the form
 	 * @param xp xpath translator
 	 * @param enterer User that entered this form
+	 * @see #getRelationships(Patient, RemoteFormEntryFormHeader, User)
 	 */
 	public static List<Relationship> getRelationships(Patient patient, Document doc, XPath xp, User enterer)
 	                                                                                                    throws XPathExpressionException {
+		return getRelationships(patient, RemoteFormEntryFormHeader.fromDocument(doc), enterer);
+	}
+	
+	/**
+	 * Create the relationship mappings for this patient
+	 * 
+	 * @param patient patient (and patient_id) to map the relationships to
+	 * @param header the patient header of the form
+	 * @param enterer User that entered this form
+	 */
+	public static List<Relationship> getRelationships(Patient patient, RemoteFormEntryFormHeader header, User enterer) {
 		
 		DateFormat hl7DateFormat = new SimpleDateFormat("yyyyMMdd");
 		
@@ -813,28 +1083,23 @@ public class RemoteFormEntryUtil {
 		// list to return
 		List<Relationship> relationships = new ArrayList<Relationship>();
 		
-		// get all person attribute nodes
-		NodeList nodeList = (NodeList) xp.evaluate(RemoteFormEntryConstants.nodePrefix
-		        + RemoteFormEntryConstants.PERSON_RELATIONSHIP, doc, XPathConstants.NODESET);
-		
-		// loop over the nodes
-		for (int i = 0; i < nodeList.getLength(); i++) {
-			Node currentNode = nodeList.item(i);
+		// loop over the relationship sections
+		for (RemoteFormEntryFormHeader.Section section : header.getRelationships()) {
 			
 			Relationship relationship = new Relationship();
 			
 			// get the type id
-			String typeId = xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_TYPE, currentNode);
+			String typeId = section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_TYPE);
 			if (StringUtils.isBlank(typeId)) {
 				log.error("skipping a relationship with no relationship type id. node: "
-				        + currentNode.getTextContent());
+				        + section);
 			} else {
 				try {
-					RelationshipType pat = Context.getPersonService().getRelationshipType(Integer.valueOf(typeId));
+					RelationshipType pat = RemoteFormEntryMetadataCache.getRelationshipType(Integer.valueOf(typeId));
 					relationship.setRelationshipType(pat);
 	
 					// get the other person from our db
-					String otherPersonsUuid = xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_UUID, currentNode);
+					String otherPersonsUuid = section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_UUID);
 					Person relative = Context.getPersonService().getPersonByUuid(otherPersonsUuid);
 					if (relative == null) {
 						// the person was created on the remote server. create the 
@@ -845,13 +1110,13 @@ public class RemoteFormEntryUtil {
 						relative.setUuid(otherPersonsUuid);
 						
 						// get patient identifier info on the relative
-						String identifierStr = xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER, currentNode);
-						String identifierTypeId = xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER_TYPE, currentNode);
-						String locationId = xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER_LOC, currentNode);
+						String identifierStr = section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER);
+						String identifierTypeId = section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER_TYPE);
+						String locationId = section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_IDENTIFIER_LOC);
 						PatientIdentifier pid = null;
 						
 						// get the birthdate
-						String birthdateString = xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_BIRTHDATE, currentNode);
+						String birthdateString = section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_BIRTHDATE);
 						try {
 							relative.setBirthdate(hl7DateFormat.parse(birthdateString));
 						}
@@ -860,22 +1125,22 @@ public class RemoteFormEntryUtil {
 						}
 						
 						// get the gender
-						String gender = xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_GENDER, currentNode);
+						String gender = section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_GENDER);
 						setGender(relative, gender);
 						
 						// set the person's name
 						PersonName pn = new PersonName();
-						pn.setGivenName(xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_GIVENNAME, currentNode));
-						pn.setMiddleName(xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_MIDDLENAME, currentNode));
-						pn.setFamilyName(xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_FAMILYNAME, currentNode));
+						pn.setGivenName(section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_GIVENNAME));
+						pn.setMiddleName(section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_MIDDLENAME));
+						pn.setFamilyName(section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_PERSON_FAMILYNAME));
 						relative.addName(pn);
 						
 						// generate a patient identifier if enough data exists
 						if (StringUtils.isNotBlank(identifierStr) &&
 								StringUtils.isNotBlank(identifierTypeId) &&
 								StringUtils.isNotBlank(locationId)) {
-							PatientIdentifierType pit = Context.getPatientService().getPatientIdentifierType(Integer.valueOf(identifierTypeId));
-							Location loc = Context.getLocationService().getLocation(locationId);
+							PatientIdentifierType pit = RemoteFormEntryMetadataCache.getPatientIdentifierType(Integer.valueOf(identifierTypeId));
+							Location loc = RemoteFormEntryMetadataCache.getLocation(locationId);
 							pid = new PatientIdentifier(identifierStr, pit, loc);
 						}
 
@@ -892,7 +1157,7 @@ public class RemoteFormEntryUtil {
 						}
 					}
 					
-					String personAorB = xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_A_OR_B, currentNode);
+					String personAorB = section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_A_OR_B);
 					personAorB = personAorB.trim(); // take out whitespace
 					if ("B".equals(personAorB)) { 
 						// the person defined here is person B, so person A 
@@ -907,7 +1172,7 @@ public class RemoteFormEntryUtil {
 					}
 					
 					// get the voided status
-					String voidStatus = xp.evaluate(RemoteFormEntryConstants.PERSON_RELATIONSHIP_VOIDED, currentNode);
+					String voidStatus = section.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_VOIDED);
 					if (!relationship.isVoided() && voidStatus != null && voidStatus.equals("true")) {
 						relationship.setVoided(true);
 						relationship.setVoidReason("Voided at remote");
@@ -921,7 +1186,7 @@ public class RemoteFormEntryUtil {
 					relationships.add(relationship);
 				} catch (NumberFormatException e) {
 					log.error("skipping a relationship with a numeric format error. node: "
-							+ currentNode.getTextContent(), e);
+							+ section, e);
 				}
 			}
 		}
@@ -952,10 +1217,21 @@ public class RemoteFormEntryUtil {
 	 * @return User that entered this form
 	 */
 	public static User getEnterer(Document doc, XPath xp) throws XPathExpressionException {
-		UserService userService = Context.getUserService();
+		Integer entererId = Integer.valueOf(evaluate(RemoteFormEntryConstants.ENTERER_ID_PATH, doc));
+		User enterer = RemoteFormEntryMetadataCache.getUser(entererId);
 		
-		Integer entererId = Integer.valueOf(xp.evaluate("substring-before(/form/header/enterer, '^')", doc));
-		User enterer = userService.getUser(entererId);
+		return enterer;
+	}
+	
+	/**
+	 * Look up the DA that entered this form
+	 * 
+	 * @param header the header of the form
+	 * @return User that entered this form
+	 */
+	public static User getEnterer(RemoteFormEntryFormHeader header) {
+		Integer entererId = Integer.valueOf(header.getEntererId());
+		User enterer = RemoteFormEntryMetadataCache.getUser(entererId);
 		
 		return enterer;
 	}
@@ -966,13 +1242,12 @@ public class RemoteFormEntryUtil {
 	public static Map<Location, List<Location>> getRemoteLocations() {
 		LocationService locationService = Context.getLocationService();
 		
-		String locationGP = Context.getAdministrationService().getGlobalProperty(
-		    RemoteFormEntryConstants.GP_REMOTE_LOCATIONS, "");
+		List<List<Integer>> groupedLocations = RemoteFormEntrySettings.get().getRemoteLocationIds();
 		
 		Map<Location, List<Location>> locations = new HashMap<Location, List<Location>>();
 		
 		// if no global property is defined, assume all locations
-		if (locationGP.length() < 1) {
+		if (groupedLocations.isEmpty()) {
 			for (Location loc : locationService.getAllLocations(false)) {
 				List<Location> locationList = new Vector<Location>();
 				locationList.add(loc);
@@ -981,24 +1256,14 @@ public class RemoteFormEntryUtil {
 		}
 		// if they defined the global property, build the list dynamically
 		else {
-			String[] groupedLocations = locationGP.split(",");
-			
-			// loop over the strings like "1", "2 4 5", "13", "3 6"
-			for (String locationIds : groupedLocations) {
-				String[] singleLocations = locationIds.split(" ");
+			// loop over the groups like "1", "2 4 5", "13", "3 6"
+			for (List<Integer> locationIds : groupedLocations) {
 				List<Location> locationList = new Vector<Location>();
-				for (String locationId : singleLocations) {
-					// skip over any empty or blank spaces
-					locationId = locationId.trim();
-					if (locationId.length() > 0)
-						locationList.add(locationService.getLocation(Integer.valueOf(locationId)));
-				}
+				for (Integer locationId : locationIds)
+					locationList.add(locationService.getLocation(locationId));
 				
-				// skip over any double commas in the global property
-				if (locationList.size() > 0) {
-					// the first location in the list is the key 
-					locations.put(locationList.get(0), locationList);
-				}
+				// the first location in the list is the key 
+				locations.put(locationList.get(0), locationList);
 			}
 		}
 		
@@ -1016,12 +1281,27 @@ public class RemoteFormEntryUtil {
 	public static String getPatientUuid(Document doc, XPath xp) {
 		String uuid = null;
 		try {
-			uuid = xp.evaluate(RemoteFormEntryConstants.nodePrefix
+			uuid = evaluate(RemoteFormEntryConstants.nodePrefix
 					+ RemoteFormEntryConstants.PERSON_UUID, doc);
 		} catch (XPathExpressionException e) { }
 		return uuid;
 	}
 
+	/**
+	 * Get a key naming the patient this form is for without looking anything up in the database.
+	 * The person uuid is used if the form has one, otherwise the first patient identifier and its
+	 * type
+	 * 
+	 * @param doc the document being searched
+	 * @param xp an initialized XPath object
+	 * @return the key or null if the form has neither a uuid nor a patient identifier
+	 * @throws XPathExpressionException
+	 * @see RemoteFormEntryFormHeader#getPatientKey()
+	 */
+	public static String getPatientKey(Document doc, XPath xp) throws XPathExpressionException {
+		return RemoteFormEntryFormHeader.fromDocument(doc).getPatientKey();
+	}
+	
     /**
      * This method compares two identifiers by checking identifier types and identifier values
      * @Author Simplex
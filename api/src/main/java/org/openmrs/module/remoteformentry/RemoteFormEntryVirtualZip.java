@@ -0,0 +1,388 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * A zip file that is never written to disk as a whole. It is laid out in memory as a list of
+ * segments: the zip headers, which are small, and ranges of files holding entry data that is
+ * already compressed or is stored as is (see {@link RemoteFormEntryArtifactStore}). Sending it, or
+ * any range of it, only copies bytes, so many zips can share the same big entry without compressing
+ * or storing it more than once.<br/>
+ * <br/>
+ * Zip64 records are added for entries and offsets past 4GB, so readers without zip64 support can
+ * only read zips that stay under that.
+ */
+public class RemoteFormEntryVirtualZip {
+
+	private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+	private static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+
+	/**
+	 * names are utf-8
+	 */
+	private static final int FLAG_UTF8 = 0x0800;
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+
+	private final MessageDigest digest;
+
+	private long size = 0;
+
+	private int entries = 0;
+
+	private byte[] comment = new byte[0];
+
+	private boolean finished = false;
+
+	public RemoteFormEntryVirtualZip() {
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RemoteFormEntryException("SHA-1 is not available", e);
+		}
+	}
+
+	/**
+	 * Add an entry whose data is a range of the given file
+	 *
+	 * @param name name of the entry
+	 * @param method {@link ZipEntry#STORED} if the data is the content as is,
+	 *            {@link ZipEntry#DEFLATED} if it is deflated
+	 * @param file file holding the data
+	 * @param offset where the data starts in the file
+	 * @param length length of the data
+	 * @param crc crc32 of the uncompressed content
+	 * @param uncompressedSize size of the uncompressed content
+	 * @param lastModified date of the entry
+	 * @param identity something that changes whenever the data does, e.g. a hash of the content. It
+	 *            goes into the {@link #getETag()} instead of the data itself
+	 */
+	public void addFile(String name, int method, File file, long offset, long length, long crc, long uncompressedSize,
+	                    long lastModified, String identity) {
+		if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)
+			throw new IllegalArgumentException("Unknown zip method: " + method);
+		addHeader(name, method, crc, length, uncompressedSize, lastModified);
+		update(identity + ":" + length);
+		segments.add(new Segment(file, offset, length));
+		size += length;
+	}
+
+	/**
+	 * Add an entry that is stored as is
+	 *
+	 * @param name name of the entry
+	 * @param data the content of the entry
+	 * @param lastModified date of the entry
+	 */
+	public void addStored(String name, byte[] data, long lastModified) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		addHeader(name, ZipEntry.STORED, crc.getValue(), data.length, data.length, lastModified);
+		addBytes(data);
+	}
+
+	/**
+	 * Set the comment of the zip
+	 *
+	 * @param comment the comment, at most 65535 bytes of utf-8
+	 */
+	public void setComment(String comment) {
+		if (finished)
+			throw new IllegalStateException("The zip has already been finished");
+		this.comment = toUTF8(comment);
+		if (this.comment.length > 0xFFFF)
+			throw new IllegalArgumentException("The zip comment is too long");
+	}
+
+	/**
+	 * Add the central directory. No more entries can be added after this
+	 */
+	public void finish() {
+		if (finished)
+			return;
+		finished = true;
+
+		long centralDirectoryOffset = size;
+		long centralDirectorySize = centralDirectory.size();
+		addBytes(centralDirectory.toByteArray());
+
+		ZipBuffer end = new ZipBuffer();
+		if (centralDirectoryOffset >= ZIP64_LIMIT || entries >= ZIP64_ENTRY_LIMIT) {
+			long zip64EndOffset = size;
+			end.writeInt(0x06064b50);
+			end.writeLong(44);
+			end.writeShort(45);
+			end.writeShort(45);
+			end.writeInt(0);
+			end.writeInt(0);
+			end.writeLong(entries);
+			end.writeLong(entries);
+			end.writeLong(centralDirectorySize);
+			end.writeLong(centralDirectoryOffset);
+
+			end.writeInt(0x07064b50);
+			end.writeInt(0);
+			end.writeLong(zip64EndOffset);
+			end.writeInt(1);
+		}
+		end.writeInt(0x06054b50);
+		end.writeShort(0);
+		end.writeShort(0);
+		end.writeShort(Math.min(entries, ZIP64_ENTRY_LIMIT));
+		end.writeShort(Math.min(entries, ZIP64_ENTRY_LIMIT));
+		end.writeInt(Math.min(centralDirectorySize, ZIP64_LIMIT));
+		end.writeInt(Math.min(centralDirectoryOffset, ZIP64_LIMIT));
+		end.writeShort(comment.length);
+		end.write(comment, 0, comment.length);
+		addBytes(end.toByteArray());
+	}
+
+	/**
+	 * @return the size of the zip in bytes
+	 */
+	public long getSize() {
+		finish();
+		return size;
+	}
+
+	/**
+	 * @return a hex sha1 of the headers and the identities of the entries, which changes whenever
+	 *         the content of the zip does
+	 */
+	public String getETag() {
+		finish();
+		byte[] hash;
+		try {
+			hash = ((MessageDigest) digest.clone()).digest();
+		}
+		catch (CloneNotSupportedException e) {
+			throw new RemoteFormEntryException("Unable to hash the zip", e);
+		}
+
+		StringBuilder hex = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Write the given range of the zip
+	 *
+	 * @param out where to write it
+	 * @param start first byte to write
+	 * @param end last byte to write
+	 * @throws IOException if a file cannot be read or the stream cannot be written to
+	 */
+	public void write(OutputStream out, long start, long end) throws IOException {
+		finish();
+		WritableByteChannel target = Channels.newChannel(out);
+		long position = 0;
+		for (Segment segment : segments) {
+			long segmentEnd = position + segment.length - 1;
+			if (segmentEnd >= start && position <= end) {
+				long from = Math.max(start, position) - position;
+				long to = Math.min(end, segmentEnd) - position;
+				segment.write(out, target, from, to - from + 1);
+			}
+			position = segmentEnd + 1;
+			if (position > end)
+				break;
+		}
+		out.flush();
+	}
+
+	private void addHeader(String name, int method, long crc, long compressedSize, long uncompressedSize,
+	                       long lastModified) {
+		if (finished)
+			throw new IllegalStateException("The zip has already been finished");
+
+		byte[] nameBytes = toUTF8(name);
+
+		long offset = size;
+		boolean zip64Sizes = compressedSize >= ZIP64_LIMIT || uncompressedSize >= ZIP64_LIMIT;
+		boolean zip64Offset = offset >= ZIP64_LIMIT;
+		int version = zip64Sizes || zip64Offset ? 45 : 20;
+		long dosTime = toDosTime(lastModified);
+
+		ZipBuffer local = new ZipBuffer();
+		local.writeInt(0x04034b50);
+		local.writeShort(version);
+		local.writeShort(FLAG_UTF8);
+		local.writeShort(method);
+		local.writeInt(dosTime);
+		local.writeInt(crc);
+		local.writeInt(zip64Sizes ? ZIP64_LIMIT : compressedSize);
+		local.writeInt(zip64Sizes ? ZIP64_LIMIT : uncompressedSize);
+		local.writeShort(nameBytes.length);
+		local.writeShort(zip64Sizes ? 20 : 0);
+		local.write(nameBytes, 0, nameBytes.length);
+		if (zip64Sizes) {
+			local.writeShort(0x0001);
+			local.writeShort(16);
+			local.writeLong(uncompressedSize);
+			local.writeLong(compressedSize);
+		}
+		addBytes(local.toByteArray());
+
+		ZipBuffer central = new ZipBuffer();
+		central.writeInt(0x02014b50);
+		central.writeShort(version);
+		central.writeShort(version);
+		central.writeShort(FLAG_UTF8);
+		central.writeShort(method);
+		central.writeInt(dosTime);
+		central.writeInt(crc);
+		central.writeInt(zip64Sizes ? ZIP64_LIMIT : compressedSize);
+		central.writeInt(zip64Sizes ? ZIP64_LIMIT : uncompressedSize);
+		central.writeShort(nameBytes.length);
+		central.writeShort((zip64Sizes || zip64Offset ? 4 : 0) + (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0));
+		central.writeShort(0);
+		central.writeShort(0);
+		central.writeShort(0);
+		central.writeInt(0);
+		central.writeInt(zip64Offset ? ZIP64_LIMIT : offset);
+		central.write(nameBytes, 0, nameBytes.length);
+		if (zip64Sizes || zip64Offset) {
+			central.writeShort(0x0001);
+			central.writeShort((zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0));
+			if (zip64Sizes) {
+				central.writeLong(uncompressedSize);
+				central.writeLong(compressedSize);
+			}
+			if (zip64Offset)
+				central.writeLong(offset);
+		}
+		byte[] centralBytes = central.toByteArray();
+		centralDirectory.write(centralBytes, 0, centralBytes.length);
+		entries++;
+	}
+
+	private void addBytes(byte[] bytes) {
+		digest.update(bytes);
+		segments.add(new Segment(bytes));
+		size += bytes.length;
+	}
+
+	private void update(String identity) {
+		digest.update(toUTF8(identity));
+	}
+
+	private static byte[] toUTF8(String string) {
+		try {
+			return string.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RemoteFormEntryException("UTF-8 is not available", e);
+		}
+	}
+
+	/**
+	 * @return the given date as the ms-dos date (high 16 bits) and time (low 16 bits) zips use
+	 */
+	private static long toDosTime(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+
+		long date = ((year - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5) | calendar.get(Calendar.DAY_OF_MONTH);
+		long dayTime = (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5)
+		        | (calendar.get(Calendar.SECOND) >> 1);
+		return (date << 16) | dayTime;
+	}
+
+	/**
+	 * Either bytes in memory or a range of a file
+	 */
+	private static class Segment {
+
+		private final byte[] bytes;
+
+		private final File file;
+
+		private final long offset;
+
+		private final long length;
+
+		Segment(byte[] bytes) {
+			this.bytes = bytes;
+			this.file = null;
+			this.offset = 0;
+			this.length = bytes.length;
+		}
+
+		Segment(File file, long offset, long length) {
+			this.bytes = null;
+			this.file = file;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		void write(OutputStream out, WritableByteChannel target, long from, long count) throws IOException {
+			if (bytes != null) {
+				out.write(bytes, (int) from, (int) count);
+				return;
+			}
+
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = in.getChannel();
+				long position = offset + from;
+				long end = position + count;
+				while (position < end) {
+					long sent = channel.transferTo(position, end - position, target);
+					if (sent <= 0)
+						throw new IOException(file.getAbsolutePath() + " is shorter than expected");
+					position += sent;
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Little endian writes
+	 */
+	private static class ZipBuffer extends ByteArrayOutputStream {
+
+		void writeShort(int value) {
+			write(value & 0xff);
+			write((value >>> 8) & 0xff);
+		}
+
+		void writeInt(long value) {
+			writeShort((int) (value & 0xffff));
+			writeShort((int) ((value >>> 16) & 0xffff));
+		}
+
+		void writeLong(long value) {
+			writeInt(value & 0xffffffffL);
+			writeInt(value >>> 32);
+		}
+	}
+
+}
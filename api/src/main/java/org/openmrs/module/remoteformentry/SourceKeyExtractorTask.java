@@ -4,14 +4,9 @@ import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.APIException;
@@ -32,8 +27,6 @@ public class SourceKeyExtractorTask extends AbstractTask {
 	// Logger
 	private static Log log = LogFactory.getLog(SourceKeyExtractorTask.class);
 	
-	private DocumentBuilderFactory documentBuilderFactory;
-	private XPathFactory xPathFactory;
 	private static Boolean isRunning = false; // allow only one running
 	
 	private AdministrationService adminService = null;
@@ -104,14 +97,11 @@ public class SourceKeyExtractorTask extends AbstractTask {
 		
 		// First we parse the FormEntry xml data to obtain the formId of the
 		// form that was used to create the xml data
-		DocumentBuilderFactory dbf = getDocumentBuilderFactory();
-		DocumentBuilder db = dbf.newDocumentBuilder();
-		XPathFactory xpf = getXPathFactory();
-		XPath xp = xpf.newXPath();
-		Document doc = db.parse(IOUtils.toInputStream(formData));
+		RemoteFormEntryParsingContext parsingContext = RemoteFormEntryParsingContext.get();
+		Document doc = parsingContext.parse(formData);
 		String uid = null;
 		try {
-			uid = xp.evaluate("/form/header/uid", doc);
+			uid = parsingContext.evaluate("/form/header/uid", doc);
 		}
 		catch (Throwable t) {
 			log.error("Error!", t);
@@ -151,24 +141,6 @@ public class SourceKeyExtractorTask extends AbstractTask {
 		
 	}
 
-	/**
-	 * @return DocumentBuilderFactory to be used for parsing XML
-	 */
-	private DocumentBuilderFactory getDocumentBuilderFactory() {
-		if (documentBuilderFactory == null)
-			documentBuilderFactory = DocumentBuilderFactory.newInstance();
-		return documentBuilderFactory;
-	}
-
-	/**
-	 * @return XPathFactory to be used for obtaining data from the parsed XML
-	 */
-	private XPathFactory getXPathFactory() {
-		if (xPathFactory == null)
-			xPathFactory = XPathFactory.newInstance();
-		return xPathFactory;
-	}
-	
 	/**
 	 * Clean up any resources here
 	 *
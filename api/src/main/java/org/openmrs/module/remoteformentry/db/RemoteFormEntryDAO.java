@@ -1,8 +1,13 @@
 package org.openmrs.module.remoteformentry.db;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 import org.openmrs.Location;
+import org.openmrs.module.remoteformentry.RemoteFormEntryIdentifierIndex;
 import org.openmrs.module.remoteformentry.RemoteFormEntryService;
 
 /**
@@ -16,6 +21,9 @@ import org.openmrs.module.remoteformentry.RemoteFormEntryService;
 public interface RemoteFormEntryDAO {
 
 	/**
+     * Write the {@link #getGeneratedDataTables()} to the given file, all of them read in one
+     * consistent snapshot of the database
+     * 
      * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#generateDataFile()
      */
     public void generateDataFile(File outFile);
@@ -27,17 +35,148 @@ public interface RemoteFormEntryDAO {
      * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#generateDataFile()
      */
     public void generateDataFileForLocation(File outFolder, Location location);
+    
+    /**
+     * Same as {@link #generateDataFileForLocation(File, Location)}, but for the tables with a
+     * sync mark only the rows that changed since that mark are dumped, as upserts
+     * 
+     * @param outFolder folder to write the sql files to
+     * @param location the remote location
+     * @param since the last acknowledged sync mark per table, may be null
+     */
+    public void generateDataFileForLocation(File outFolder, Location location, Map<String, Date> since);
+    
+    /**
+     * Create an sql file with the rows of the database that changed since the given sync marks.
+     * Rows of tables that record when they changed are written as upserts; tables that don't are
+     * written whole. Tables in the ignore global property are skipped, as for
+     * {@link #generateDataFile(File)}
+     * 
+     * @param outFile file to write to
+     * @param since the last acknowledged sync mark per table. Tables without a mark are sent whole
+     * @see #getChangeTrackedTables()
+     */
+    public void generateDeltaFile(File outFile, Map<String, Date> since);
+    
+    /**
+     * @return the tables that go into the file made by {@link #generateDataFile(File)}: all of
+     *         them except the ones in the ignore global property and the module's own
+     */
+    public List<String> getGeneratedDataTables();
+    
+    /**
+     * @return the tables written per location by {@link #generateLocationTableFile(File, Location, String, Map)}
+     */
+    public List<String> getLocationTables();
+    
+    /**
+     * Fill the table of the patients seen at the given location (or its sub locations) that
+     * {@link #generateLocationTableFile(File, Location, String, Map)} selects the rows by. Every
+     * location has a table of its own, so locations can be generated at the same time
+     * 
+     * @param location the remote location
+     */
+    public void preparePatientsForLocation(Location location);
+    
+    /**
+     * Drop the table filled by {@link #preparePatientsForLocation(Location)}
+     * 
+     * @param location the remote location
+     */
+    public void dropPatientsForLocation(Location location);
+    
+    /**
+     * Write the rows of one of the {@link #getLocationTables()} that belong to the patients of the
+     * given location to outFolder/&lt;table&gt;.sql. {@link #preparePatientsForLocation(Location)}
+     * must have been called first
+     * 
+     * @param outFolder folder to write to
+     * @param location the remote location
+     * @param table the table to write
+     * @param since the last acknowledged sync mark per table, may be null. Patients the location
+     *            did not have at that mark get all of their rows
+     * @see #generateDataFileForLocation(File, Location, Map)
+     */
+    public void generateLocationTableFile(File outFolder, Location location, String table, Map<String, Date> since);
+    
+    /**
+     * @return the names of the tables that have date_created, date_changed, date_voided or
+     *         date_retired columns, the ones that can be sent as deltas
+     */
+    public Collection<String> getChangeTrackedTables();
+    
+    /**
+     * @return the current time according to the database
+     */
+    public Date getDatabaseTime();
+    
+    /**
+     * @param location the remote location
+     * @return the newest acknowledged sync mark of each table for the given location
+     */
+    public Map<String, Date> getAcknowledgedSyncMarks(Location location);
+    
+    /**
+     * Record that return data with the given sync mark was generated for the given tables, and
+     * which patients the location had in it. {@link #preparePatientsForLocation(Location)} must
+     * have been called first
+     * 
+     * @param location the remote location the return data is for
+     * @param tables the tables in the return data
+     * @param mark the sync mark of the return data
+     */
+    public void saveSyncMarks(Location location, Collection<String> tables, Date mark);
+    
+    /**
+     * Mark the return data with the given sync mark as applied at the given location. Older marks
+     * of the location are forgotten
+     * 
+     * @param location the remote location
+     * @param mark the sync mark the site applied
+     * @return the number of tables acknowledged
+     */
+    public int acknowledgeSyncMark(Location location, Date mark);
 
 	/**
-     * Runs the sql contained in the given generatedDataFile
+     * Loads the given generatedDataFile into the database. Files written by the jdbc engine are
+     * checked and loaded in-process; anything else is run as sql with the mysql program
      * 
-     * @param generatedDataFile sql file to run on the database
+     * @param generatedDataFile return data file or sql file to run on the database
      * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#receieveGeneratedDataFromCentral(File)
      */
     public void execGeneratedFile(File generatedDataFile);
+    
+    /**
+     * Load one section (table) of a file written by the jdbc engine into the database, on the
+     * connection of the current session. Foreign key checks are off while it loads
+     * 
+     * @param generatedDataFile the return data file
+     * @param offset where the section starts in the file
+     * @return the number of rows loaded
+     * @see org.openmrs.module.remoteformentry.db.jdbc.ReturnDataImporter#split(File)
+     */
+    public long loadReturnDataSection(File generatedDataFile, long offset);
 
     /**
      * Convenience method to clear/commit the current session to the database.
      */
     public void commitSession();
+
+    /**
+     * Loads every patient identifier in the database into a new index with one query
+     * 
+     * @return index from identifier and identifier type to patient id
+     * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#loadPatientIdentifierIndex()
+     */
+    public RemoteFormEntryIdentifierIndex getPatientIdentifierIndex();
+
+    /**
+     * Loads the given patients into the current session together with their names, addresses,
+     * identifiers and attributes, using one query per collection for all of the patients
+     * 
+     * @param patientIds ids of the patients to load
+     * @param uuids uuids of more patients to load
+     * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#prefetchPatientsForPendingQueues(java.util.List)
+     */
+    public void prefetchPatients(Collection<Integer> patientIds, Collection<String> uuids);
 }
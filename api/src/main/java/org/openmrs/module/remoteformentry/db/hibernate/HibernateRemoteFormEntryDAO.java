@@ -1,29 +1,55 @@
 package org.openmrs.module.remoteformentry.db.hibernate;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.openmrs.Location;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.remoteformentry.RemoteFormEntryCleanupProcessor;
+import org.openmrs.module.remoteformentry.RemoteFormEntryCodec;
 import org.openmrs.module.remoteformentry.RemoteFormEntryConstants;
 import org.openmrs.module.remoteformentry.RemoteFormEntryException;
+import org.openmrs.module.remoteformentry.RemoteFormEntryIdentifierIndex;
+import org.openmrs.module.remoteformentry.RemoteFormEntrySettings;
 import org.openmrs.module.remoteformentry.RemoteFormEntryUtil;
 import org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO;
+import org.openmrs.module.remoteformentry.db.jdbc.ReturnDataExporter;
+import org.openmrs.module.remoteformentry.db.jdbc.ReturnDataFormat;
+import org.openmrs.module.remoteformentry.db.jdbc.ReturnDataImporter;
 import org.openmrs.util.OpenmrsConstants;
 import org.openmrs.util.OpenmrsUtil;
 import org.springframework.util.StringUtils;
@@ -32,6 +58,49 @@ public class HibernateRemoteFormEntryDAO implements RemoteFormEntryDAO {
 
 	protected final Log log = LogFactory.getLog(getClass());
 	
+	/**
+	 * patient collections loaded by {@link #prefetchPatients(Collection, Collection)}
+	 */
+	private static final String[] PREFETCHED_PATIENT_COLLECTIONS = { "names", "addresses", "identifiers", "attributes" };
+	
+	/**
+	 * table holding the sync marks of the return data generated for each location
+	 */
+	private static final String SYNC_MARK_TABLE = "remoteformentry_sync_mark";
+	
+	/**
+	 * table holding the patients of each location at each of its sync marks
+	 */
+	private static final String SYNC_PATIENT_TABLE = "remoteformentry_sync_patient";
+	
+	/**
+	 * columns that tell when a row last changed
+	 */
+	private static final String[] CHANGE_COLUMNS = { "date_created", "date_changed", "date_voided", "date_retired" };
+	
+	/**
+	 * rows sent to the database at a time when loading return data
+	 */
+	private static final int LOAD_BATCH_SIZE = 1000;
+	
+	/**
+	 * prefix of the tables holding the patients of each remote location
+	 */
+	private static final String PATIENTS_FOR_LOCATION_TABLE = "patients_for_location";
+	
+	/**
+	 * tables sent to each location with only the rows of its patients, and the column their
+	 * patient is in
+	 */
+	private static final String[] LOCATION_TABLES = { "obs", "encounter" };
+	
+	private static final String[] LOCATION_TABLE_PATIENT_COLUMNS = { "person_id", "patient_id" };
+	
+	/**
+	 * how much of the output of an external command is kept to return
+	 */
+	private static final int MAX_CMD_OUTPUT = 8 * 1024;
+	
 	/**
 	 * Hibernate session factory
 	 */
@@ -56,9 +125,6 @@ public class HibernateRemoteFormEntryDAO implements RemoteFormEntryDAO {
      */
     public void generateDataFile(File outFile) {
 	    
-    	String tablesToIgnoreGP = Context.getAdministrationService().getGlobalProperty(RemoteFormEntryConstants.GP_GENERATED_DATA_IGNORE_TABLES, "");
-    	String[] ignoreTables = StringUtils.commaDelimitedListToStringArray(tablesToIgnoreGP);
-    	
     	// TODO totally breaks if someone isn't using mysql as the backend
     	// TODO get custom location of mysql instead of just relying on path?
     	// TODO make this linux compatible 
@@ -76,10 +142,18 @@ public class HibernateRemoteFormEntryDAO implements RemoteFormEntryDAO {
     		throw new RemoteFormEntryException("Error while trying to create out file for return data: " + outFile.getAbsolutePath(), io);
     	}
     	
+    	if (isJdbcEngine()) {
+    		Map<String, String> whereByTable = new LinkedHashMap<String, String>();
+    		for (String table : getGeneratedDataTables())
+    			whereByTable.put(table, null);
+    		exportTables(outFile, whereByTable, null);
+    		return;
+    	}
+    	
+    	File optionsFile = createOptionsFile(username, password);
     	List<String> commands = new ArrayList<String>();
     	commands.add("mysqldump");
-    	commands.add("-u" + username);
-    	commands.add("-p" + password);
+    	commands.add("--defaults-extra-file=" + optionsFile.getAbsolutePath());
     	commands.add("-q");
     	commands.add("-e");
     	commands.add("--single-transaction");
@@ -87,21 +161,21 @@ public class HibernateRemoteFormEntryDAO implements RemoteFormEntryDAO {
     	commands.add(outFile.getAbsolutePath());
     	commands.add(database);
     	
-    	// mark the tables to ignore
-    	for (String table : ignoreTables) {
-    		table = table.trim();
-    		if (StringUtils.hasLength(table)) {
-	    		commands.add("--ignore-table");
-	    		commands.add(database + "." + table);
-    		}
-    	}
+    	// the tables are named instead of the ones in the ignore global property being left out,
+    	// so the patients tables that the locations make at the same time are left out as well
+    	commands.addAll(getGeneratedDataTables());
     	
     	String output;
-    	if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM) {
-    		output = execCmd(outFile.getParentFile(), commands.toArray(new String[] {}));
-        }else {
-			output = execCmd(null, commands.toArray(new String[] {}));
-        }
+    	try {
+	    	if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM) {
+	    		output = execCmd(outFile.getParentFile(), commands.toArray(new String[] {}));
+	        }else {
+				output = execCmd(null, commands.toArray(new String[] {}));
+	        }
+    	}
+    	finally {
+    		optionsFile.delete();
+    	}
 
     	if (output != null && output.length() > 0) {
     		log.info("Exec called: " + commands);
@@ -114,20 +188,46 @@ public class HibernateRemoteFormEntryDAO implements RemoteFormEntryDAO {
      * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#generateDataFile(java.io.File)
      */
     public void generateDataFileForLocation(File outFolder, Location location) {
-	    
-    	String[] includedTables  = new String[] {"obs", "encounter"};
-    	String[] columnToMatchOn = new String[] {"person_id", "patient_id"};
-    	
+    	generateDataFileForLocation(outFolder, location, null);
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#generateDataFileForLocation(java.io.File, org.openmrs.Location, java.util.Map)
+     */
+    public void generateDataFileForLocation(File outFolder, Location location, Map<String, Date> since) {
+    	preparePatientsForLocation(location);
+    	try {
+    		for (String table : LOCATION_TABLES)
+    			generateLocationTableFile(outFolder, location, table, since);
+    	}
+    	finally {
+    		dropPatientsForLocation(location);
+    	}
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#getLocationTables()
+     */
+    public List<String> getLocationTables() {
+    	return Arrays.asList(LOCATION_TABLES);
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#preparePatientsForLocation(org.openmrs.Location)
+     */
+    public void preparePatientsForLocation(Location location) {
     	Connection conn = sessionFactory.getCurrentSession().connection();
 		
     	Map<Location, List<Location>> mapToSubLocations = RemoteFormEntryUtil.getRemoteLocations();
     	
     	List<Location> allLocations = mapToSubLocations.get(location);
     	
+    	String patientsTable = getPatientsForLocationTable(location);
+    	
     	try {
-			PreparedStatement ps = conn.prepareStatement("create table if not exists patients_for_location (patient_id int(11) not null, primary key (patient_id))");
-			PreparedStatement ps1 = conn.prepareStatement("delete from patients_for_location"); 
-			String sql = "insert into patients_for_location (select distinct(patient_id) from encounter where location_id in (?";
+			PreparedStatement ps = conn.prepareStatement("create table if not exists " + patientsTable + " (patient_id int(11) not null, primary key (patient_id))");
+			PreparedStatement ps1 = conn.prepareStatement("delete from " + patientsTable); 
+			String sql = "insert into " + patientsTable + " (select distinct(patient_id) from encounter where location_id in (?";
 			for (int x=1; x<allLocations.size(); x++)
 				sql += ", ?";
 			sql += "))";
@@ -152,51 +252,622 @@ public class HibernateRemoteFormEntryDAO implements RemoteFormEntryDAO {
     
     	}
     	catch (SQLException sql) {
-    		log.error("Error while setting up the temporary table", sql);
+    		throw new RemoteFormEntryException("Error while setting up the patients table for location: " + location, sql);
     	}
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#dropPatientsForLocation(org.openmrs.Location)
+     */
+    public void dropPatientsForLocation(Location location) {
+    	try {
+    		Connection conn = sessionFactory.getCurrentSession().connection();
+    		PreparedStatement ps = conn.prepareStatement("drop table if exists " + getPatientsForLocationTable(location));
+    		try {
+    			ps.executeUpdate();
+    		}
+    		finally {
+    			ps.close();
+    		}
+    	}
+    	catch (SQLException sql) {
+    		log.warn("Unable to drop the patients table for location: " + location, sql);
+    	}
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#generateLocationTableFile(java.io.File, org.openmrs.Location, java.lang.String, java.util.Map)
+     */
+    public void generateLocationTableFile(File outFolder, Location location, String table, Map<String, Date> since) {
+    	String column = LOCATION_TABLE_PATIENT_COLUMNS[Arrays.asList(LOCATION_TABLES).indexOf(table)];
+    	
+    	if (!outFolder.exists())
+    		outFolder.mkdirs();
+    	
+		File outFile = new File(outFolder, table + ".sql");
+		String where = "exists (select 1 from " + getPatientsForLocationTable(location) + " p where p.patient_id = " + column + ")";
+		
+		if (since != null) {
+			// only the rows of this location's patients that changed since the site's last 
+			// acknowledged return data, as upserts into the tables it already has.  Patients the
+			// location did not have at that mark (transferred in, or newly identified there) get
+			// all of their rows
+			Date mark = since.get(table);
+			List<String> columns = getChangeColumns().get(table);
+			if (mark != null && columns != null)
+				where += " and (" + getChangedSinceClause(columns, mark) + " or not exists (select 1 from "
+				        + SYNC_PATIENT_TABLE + " k where k.location_id = " + location.getLocationId() + " and k.mark = "
+				        + formatMark(mark) + " and k.patient_id = " + column + "))";
+		}
+		
+		if (isJdbcEngine()) {
+			Set<String> upsertTables = since == null ? null : Collections.singleton(table);
+			exportTables(outFile, Collections.singletonMap(table, where), upsertTables);
+			return;
+		}
 		
-    	// TODO totally breaks if someone isn't using mysql as the backend
     	// TODO get custom location of mysql instead of just relying on path?
-    	// TODO make this linux compatible 
+    	
+    	String[] props = getConnectionProperties();
+    	String database = props[2];
+    	
+		File optionsFile = createOptionsFile(props[0], props[1]);
+		List<String> commands = new ArrayList<String>();
+		commands.add("mysqldump");
+		commands.add("--defaults-extra-file=" + optionsFile.getAbsolutePath());
+		commands.add("-x");
+		commands.add("-q");
+		commands.add("-e");
+		commands.add("-r");
+		commands.add(outFile.getAbsolutePath());
+		
+		if (since != null) {
+			commands.add("--no-create-info");
+			commands.add("--replace");
+		}
+		
+		commands.add("--where=" + where);
+		commands.add(database);
+		commands.add(table);
+		String[] command = commands.toArray(new String[] {});
+		
+		String output;
+		try {
+	    	if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM)
+	    		output = execCmd(outFolder.getParentFile(), command);
+			else
+				output = execCmd(null, command);
+		}
+		finally {
+			optionsFile.delete();
+		}
+    	log.warn("File name now is "+outFile.getAbsolutePath());
+        if(output != null && outFile.length()<1) log.warn("****Output is empty*********");
+    	if (output != null && output.length() > 0) {
+    		log.info("Exec called: " + Arrays.toString(command));
+    		log.info("Output of exec: " + output);
+    	}
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#getGeneratedDataTables()
+     */
+    public List<String> getGeneratedDataTables() {
+    	Set<String> ignoreTables = getIgnoredTables();
+    	List<String> tables = new ArrayList<String>();
+    	for (String table : getTableNames()) {
+    		if (!ignoreTables.contains(table) && !table.startsWith(PATIENTS_FOR_LOCATION_TABLE))
+    			tables.add(table);
+    	}
+    	return tables;
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#generateDeltaFile(java.io.File, java.util.Map)
+     */
+    public void generateDeltaFile(File outFile, Map<String, Date> since) {
+    	Map<String, List<String>> changeColumns = getChangeColumns();
+    	
+    	// tables that need the same where clause are dumped together.  Tables that don't
+    	// record when they change get an empty where clause and are sent whole
+    	Map<String, List<String>> tablesByWhere = new LinkedHashMap<String, List<String>>();
+    	for (String table : getGeneratedDataTables()) {
+    		String where = "";
+    		List<String> columns = changeColumns.get(table);
+    		if (columns != null) {
+    			Date mark = since == null ? null : since.get(table);
+    			where = mark == null ? "1=1" : getChangedSinceClause(columns, mark);
+    		}
+    		
+    		List<String> tables = tablesByWhere.get(where);
+    		if (tables == null) {
+    			tables = new ArrayList<String>();
+    			tablesByWhere.put(where, tables);
+    		}
+    		tables.add(table);
+    	}
+    	
+    	if (isJdbcEngine()) {
+    		Map<String, String> whereByTable = new LinkedHashMap<String, String>();
+    		Set<String> upsertTables = new HashSet<String>();
+    		for (Map.Entry<String, List<String>> entry : tablesByWhere.entrySet()) {
+    			for (String table : entry.getValue()) {
+    				if (entry.getKey().length() > 0) {
+    					whereByTable.put(table, entry.getKey());
+    					upsertTables.add(table);
+    				}
+    				else {
+    					whereByTable.put(table, null);
+    				}
+    			}
+    		}
+    		exportTables(outFile, whereByTable, upsertTables);
+    		return;
+    	}
     	
     	String[] props = getConnectionProperties();
     	String username = props[0];
     	String password = props[1];
     	String database = props[2];
     	
-    	if (!outFolder.exists())
-    		outFolder.mkdirs();
-    	
-    	for (int x = 0; x< includedTables.length; x++) {
-    		String table = includedTables[x];
-    		String column = columnToMatchOn[x];
-    		File outFile = new File(outFolder, table + ".sql");
-    		String[] command = {"mysqldump",
-					"-u" + username,
-					"-p" + password,
-					"-x",
-					"-q",
-					"-e",
-					"-r",
-					outFile.getAbsolutePath(),
-					"--where=exists (select 1 from patients_for_location p where p.patient_id = " + column + ")",
-					database,
-					table
-				   };    		
+    	File optionsFile = createOptionsFile(username, password);
+    	try {
+    		OutputStream out = new FileOutputStream(outFile);
+    		try {
+		    	for (Map.Entry<String, List<String>> entry : tablesByWhere.entrySet()) {
+		    		File partFile = File.createTempFile("delta", ".part", outFile.getParentFile());
+		    		try {
+			    		List<String> commands = new ArrayList<String>();
+			    		commands.add("mysqldump");
+			    		commands.add("--defaults-extra-file=" + optionsFile.getAbsolutePath());
+			    		commands.add("-q");
+			    		commands.add("-e");
+			    		commands.add("--single-transaction");
+			    		if (entry.getKey().length() > 0) {
+			    			// upsert the changed rows into the tables the site already has
+			    			commands.add("--no-create-info");
+			    			commands.add("--replace");
+			    			commands.add("--where=" + entry.getKey());
+			    		}
+			    		commands.add("-r");
+			    		commands.add(partFile.getAbsolutePath());
+			    		commands.add(database);
+			    		commands.addAll(entry.getValue());
+			    		
+			    		String output;
+			        	if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM)
+			        		output = execCmd(outFile.getParentFile(), commands.toArray(new String[] {}));
+			    		else
+			    			output = execCmd(null, commands.toArray(new String[] {}));
+			        	
+			        	if (log.isDebugEnabled())
+			        		log.debug("Dumped " + entry.getValue().size() + " tables where '" + entry.getKey() + "': " + output);
+			        	
+			        	InputStream in = new FileInputStream(partFile);
+			        	try {
+			        		IOUtils.copy(in, out);
+			        	}
+			        	finally {
+			        		in.close();
+			        	}
+		    		}
+		    		finally {
+		    			partFile.delete();
+		    		}
+		    	}
+    		}
+    		finally {
+    			out.close();
+    		}
+    	}
+    	catch (IOException io) {
+    		throw new RemoteFormEntryException("Error while writing the return data delta: " + outFile.getAbsolutePath(), io);
+    	}
+    	finally {
+    		optionsFile.delete();
+    	}
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#getChangeTrackedTables()
+     */
+    public Collection<String> getChangeTrackedTables() {
+    	Set<String> tables = new HashSet<String>(getChangeColumns().keySet());
+    	tables.remove(SYNC_MARK_TABLE);
+    	return tables;
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#getDatabaseTime()
+     */
+    public Date getDatabaseTime() {
+    	try {
+    		Connection conn = sessionFactory.getCurrentSession().connection();
+    		PreparedStatement ps = conn.prepareStatement("select now()");
+    		try {
+    			ResultSet rs = ps.executeQuery();
+    			rs.next();
+    			return new Date(rs.getTimestamp(1).getTime());
+    		}
+    		finally {
+    			ps.close();
+    		}
+    	}
+    	catch (SQLException e) {
+    		throw new RemoteFormEntryException("Unable to get the database time", e);
+    	}
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#getAcknowledgedSyncMarks(org.openmrs.Location)
+     */
+    public Map<String, Date> getAcknowledgedSyncMarks(Location location) {
+    	Map<String, Date> marks = new HashMap<String, Date>();
+    	try {
+    		Connection conn = sessionFactory.getCurrentSession().connection();
+    		PreparedStatement ps = conn.prepareStatement("select table_name, max(mark) from " + SYNC_MARK_TABLE
+    		        + " where location_id = ? and date_acknowledged is not null group by table_name");
+    		try {
+    			ps.setInt(1, location.getLocationId());
+    			ResultSet rs = ps.executeQuery();
+    			while (rs.next())
+    				marks.put(rs.getString(1), new Date(rs.getTimestamp(2).getTime()));
+    		}
+    		finally {
+    			ps.close();
+    		}
+    	}
+    	catch (SQLException e) {
+    		throw new RemoteFormEntryException("Unable to get the sync marks for location: " + location, e);
+    	}
+    	return marks;
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#saveSyncMarks(org.openmrs.Location, java.util.Collection, java.util.Date)
+     */
+    public void saveSyncMarks(Location location, Collection<String> tables, Date mark) {
+    	try {
+    		Connection conn = sessionFactory.getCurrentSession().connection();
+    		PreparedStatement ps = conn.prepareStatement("insert ignore into " + SYNC_MARK_TABLE
+    		        + " (location_id, table_name, mark) values (?, ?, ?)");
+    		try {
+    			for (String table : tables) {
+    				ps.setInt(1, location.getLocationId());
+    				ps.setString(2, table);
+    				ps.setTimestamp(3, new Timestamp(mark.getTime()));
+    				ps.addBatch();
+    			}
+    			ps.executeBatch();
+    		}
+    		finally {
+    			ps.close();
+    		}
     		
-    		String output;
-        	if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM)
-        		output = execCmd(outFolder.getParentFile(), command);
-    		else
-    			output = execCmd(null, command);
-        	log.warn("File name now is "+outFile.getAbsolutePath());
-            if(output != null && outFile.length()<1) log.warn("****Output is empty*********");
-	    	if (output != null && output.length() > 0) {
-	    		log.info("Exec called: " + Arrays.toString(command));
-	    		log.info("Output of exec: " + output);
-	    	}
+    		// the patients the location has once it applies this return data
+    		ps = conn.prepareStatement("insert ignore into " + SYNC_PATIENT_TABLE
+    		        + " (location_id, mark, patient_id) select ?, ?, patient_id from " + getPatientsForLocationTable(location));
+    		try {
+    			ps.setInt(1, location.getLocationId());
+    			ps.setTimestamp(2, new Timestamp(mark.getTime()));
+    			ps.executeUpdate();
+    		}
+    		finally {
+    			ps.close();
+    		}
+    	}
+    	catch (SQLException e) {
+    		throw new RemoteFormEntryException("Unable to save the sync marks for location: " + location, e);
+    	}
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#acknowledgeSyncMark(org.openmrs.Location, java.util.Date)
+     */
+    public int acknowledgeSyncMark(Location location, Date mark) {
+    	try {
+    		Connection conn = sessionFactory.getCurrentSession().connection();
+    		PreparedStatement ps = conn.prepareStatement("update " + SYNC_MARK_TABLE
+    		        + " set date_acknowledged = now() where location_id = ? and mark = ? and date_acknowledged is null");
+    		int count;
+    		try {
+    			ps.setInt(1, location.getLocationId());
+    			ps.setTimestamp(2, new Timestamp(mark.getTime()));
+    			count = ps.executeUpdate();
+    		}
+    		finally {
+    			ps.close();
+    		}
+    		
+    		// the older marks (and the patients at them) will never be needed again
+    		if (count > 0) {
+    			for (String table : new String[] { SYNC_MARK_TABLE, SYNC_PATIENT_TABLE }) {
+    				ps = conn.prepareStatement("delete from " + table + " where location_id = ? and mark < ?");
+    				try {
+    					ps.setInt(1, location.getLocationId());
+    					ps.setTimestamp(2, new Timestamp(mark.getTime()));
+    					ps.executeUpdate();
+    				}
+    				finally {
+    					ps.close();
+    				}
+    			}
+    		}
+    		
+    		return count;
+    	}
+    	catch (SQLException e) {
+    		throw new RemoteFormEntryException("Unable to acknowledge sync mark " + mark + " for location: " + location, e);
+    	}
+    }
+    
+    /**
+     * @return the change columns of each table in the database that has any
+     * @see #CHANGE_COLUMNS
+     */
+    private Map<String, List<String>> getChangeColumns() {
+    	Map<String, List<String>> changeColumns = new HashMap<String, List<String>>();
+    	try {
+    		Connection conn = sessionFactory.getCurrentSession().connection();
+    		PreparedStatement ps = conn.prepareStatement("select table_name, column_name from information_schema.columns "
+    		        + "where table_schema = database() and column_name in (?, ?, ?, ?)");
+    		try {
+    			for (int x = 0; x < CHANGE_COLUMNS.length; x++)
+    				ps.setString(x + 1, CHANGE_COLUMNS[x]);
+    			ResultSet rs = ps.executeQuery();
+    			while (rs.next()) {
+    				List<String> columns = changeColumns.get(rs.getString(1));
+    				if (columns == null) {
+    					columns = new ArrayList<String>();
+    					changeColumns.put(rs.getString(1), columns);
+    				}
+    				columns.add(rs.getString(2));
+    			}
+    		}
+    		finally {
+    			ps.close();
+    		}
+    	}
+    	catch (SQLException e) {
+    		throw new RemoteFormEntryException("Unable to read the columns of the database", e);
+    	}
+    	return changeColumns;
+    }
+    
+    /**
+     * @return the tables in the ignore global property and the module's own tables that only mean
+     *         something on central
+     */
+    private Set<String> getIgnoredTables() {
+    	String tablesToIgnoreGP = RemoteFormEntrySettings.get().getString(RemoteFormEntryConstants.GP_GENERATED_DATA_IGNORE_TABLES, "");
+    	Set<String> ignoreTables = new HashSet<String>();
+    	for (String table : StringUtils.commaDelimitedListToStringArray(tablesToIgnoreGP))
+    		ignoreTables.add(table.trim());
+    	ignoreTables.add(SYNC_MARK_TABLE);
+    	ignoreTables.add(SYNC_PATIENT_TABLE);
+    	return ignoreTables;
+    }
+    
+    /**
+     * @return the table of the patients of the given location
+     * @see #preparePatientsForLocation(Location)
+     */
+    private String getPatientsForLocationTable(Location location) {
+    	return PATIENTS_FOR_LOCATION_TABLE + "_" + location.getLocationId();
+    }
+    
+    /**
+     * @return the names of all tables in the database
+     */
+    private List<String> getTableNames() {
+    	List<String> tables = new ArrayList<String>();
+    	try {
+    		Connection conn = sessionFactory.getCurrentSession().connection();
+    		PreparedStatement ps = conn.prepareStatement("select table_name from information_schema.tables "
+    		        + "where table_schema = database() and table_type = 'BASE TABLE' order by table_name");
+    		try {
+    			ResultSet rs = ps.executeQuery();
+    			while (rs.next())
+    				tables.add(rs.getString(1));
+    		}
+    		finally {
+    			ps.close();
+    		}
+    	}
+    	catch (SQLException e) {
+    		throw new RemoteFormEntryException("Unable to read the tables of the database", e);
+    	}
+    	return tables;
+    }
+    
+    /**
+     * The rows are looked for from a while before the mark (see
+     * {@link RemoteFormEntryConstants#GP_RETURN_DATA_DELTA_OVERLAP}): a row is stamped when it is
+     * saved but only seen once its transaction commits, which may be after the mark was taken.
+     * Rows changed in the overlap are sent again; applying them twice does no harm
+     * 
+     * @return where clause matching the rows changed at or after the given mark
+     */
+    private String getChangedSinceClause(List<String> columns, Date mark) {
+    	int overlap = RemoteFormEntrySettings.get().getInt(RemoteFormEntryConstants.GP_RETURN_DATA_DELTA_OVERLAP,
+    	    RemoteFormEntryConstants.GP_RETURN_DATA_DELTA_OVERLAP_DEFAULT);
+    	String since = formatMark(new Date(mark.getTime() - Math.max(0, overlap) * 60 * 1000L));
+    	StringBuilder where = new StringBuilder("(");
+    	for (int x = 0; x < columns.size(); x++) {
+    		if (x > 0)
+    			where.append(" or ");
+    		where.append(columns.get(x)).append(" >= ").append(since);
+    	}
+    	return where.append(")").toString();
+    }
+    
+    /**
+     * @return the given sync mark as a quoted sql datetime
+     */
+    private String formatMark(Date mark) {
+    	return "'" + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(mark) + "'";
+    }
+    
+    /**
+     * @return true unless central is set to write the return data with mysqldump
+     * @see RemoteFormEntryConstants#GP_RETURN_DATA_ENGINE
+     */
+    private boolean isJdbcEngine() {
+    	String engine = RemoteFormEntrySettings.get().getString(RemoteFormEntryConstants.GP_RETURN_DATA_ENGINE,
+    	    RemoteFormEntryConstants.RETURN_DATA_ENGINE_JDBC);
+    	return !RemoteFormEntryConstants.RETURN_DATA_ENGINE_MYSQLDUMP.equalsIgnoreCase(engine.trim());
+    }
+    
+    /**
+     * Write the given tables into outFile in the {@link ReturnDataFormat}. The tables are all read
+     * in one consistent snapshot, the way mysqldump --single-transaction does
+     * 
+     * @param outFile file to write to
+     * @param whereByTable the tables to write, with the where clause of the rows to write (null for
+     *            all of them)
+     * @param upsertTables tables whose rows are upserted into the remote table instead of replacing
+     *            it, may be null
+     */
+    private void exportTables(File outFile, Map<String, String> whereByTable, Set<String> upsertTables) {
+    	long start = System.currentTimeMillis();
+    	long rows = 0;
+    	try {
+    		Connection conn = sessionFactory.getCurrentSession().connection();
+    		boolean autoCommit = conn.getAutoCommit();
+    		if (autoCommit)
+    			conn.setAutoCommit(false);
+    		try {
+    			PreparedStatement ps = conn.prepareStatement("start transaction with consistent snapshot");
+    			ps.execute();
+    			ps.close();
+    			
+    			ReturnDataExporter exporter = new ReturnDataExporter(conn, RemoteFormEntryCodec.getArchiveCodec().getLevel());
+    			OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile), 64 * 1024);
+    			try {
+    				ReturnDataExporter.writeHeader(out);
+    				for (Map.Entry<String, String> entry : whereByTable.entrySet()) {
+    					byte mode = ReturnDataFormat.MODE_REPLACE_TABLE;
+    					if (upsertTables != null && upsertTables.contains(entry.getKey()))
+    						mode = ReturnDataFormat.MODE_UPSERT;
+    					rows += exporter.exportTable(out, entry.getKey(), entry.getValue(), mode);
+    				}
+    				ReturnDataExporter.writeEnd(out);
+    			}
+    			finally {
+    				out.close();
+    			}
+    		}
+    		finally {
+    			// nothing was written, this only lets go of the snapshot
+    			conn.commit();
+    			if (autoCommit)
+    				conn.setAutoCommit(true);
+    		}
+    	}
+    	catch (SQLException e) {
+    		throw new RemoteFormEntryException("Error while reading the return data for: " + outFile.getAbsolutePath(), e);
+    	}
+    	catch (IOException e) {
+    		throw new RemoteFormEntryException("Error while writing the return data: " + outFile.getAbsolutePath(), e);
     	}
     	
+    	log.info("Wrote " + rows + " rows of " + whereByTable.size() + " tables to " + outFile.getName() + " in "
+    	        + (System.currentTimeMillis() - start) + "ms");
+    }
+    
+    /**
+     * Load a file in the {@link ReturnDataFormat}. The whole file is checked before anything is
+     * loaded
+     * 
+     * @param file the file to load
+     */
+    private void loadReturnDataFile(File file) {
+    	long start = System.currentTimeMillis();
+    	try {
+    		InputStream in = new FileInputStream(file);
+    		try {
+    			ReturnDataImporter.verify(in);
+    		}
+    		finally {
+    			in.close();
+    		}
+    		
+    		long rows;
+    		ReturnDataImporter importer = new ReturnDataImporter(sessionFactory.getCurrentSession().connection(), LOAD_BATCH_SIZE);
+    		in = new FileInputStream(file);
+    		try {
+    			rows = importer.load(in);
+    		}
+    		finally {
+    			in.close();
+    		}
+    		
+    		log.info("Loaded " + rows + " rows from " + file.getName() + " in " + (System.currentTimeMillis() - start) + "ms");
+    	}
+    	catch (IOException e) {
+    		throw new RemoteFormEntryException("Unable to read the return data file: " + file.getAbsolutePath(), e);
+    	}
+    	catch (SQLException e) {
+    		throw new RemoteFormEntryException("Error while loading the return data file: " + file.getAbsolutePath(), e);
+    	}
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#loadReturnDataSection(java.io.File, long)
+     */
+    public long loadReturnDataSection(File generatedDataFile, long offset) {
+    	try {
+    		ReturnDataImporter importer = new ReturnDataImporter(sessionFactory.getCurrentSession().connection(), LOAD_BATCH_SIZE);
+    		FileInputStream in = new FileInputStream(generatedDataFile);
+    		try {
+    			in.getChannel().position(offset);
+    			return importer.loadSection(in);
+    		}
+    		finally {
+    			in.close();
+    		}
+    	}
+    	catch (IOException e) {
+    		throw new RemoteFormEntryException("Unable to read the return data file: " + generatedDataFile.getAbsolutePath(), e);
+    	}
+    	catch (SQLException e) {
+    		throw new RemoteFormEntryException("Error while loading the return data file: " + generatedDataFile.getAbsolutePath(), e);
+    	}
+    }
+    
+    /**
+     * Write the credentials to a mysql option file for the mysql programs to read with
+     * --defaults-extra-file, so that the password doesn't show up in the list of processes.  The
+     * caller deletes the file when the program is done
+     * 
+     * @return the option file
+     */
+    private File createOptionsFile(String username, String password) {
+    	try {
+    		File file = File.createTempFile("remoteformentry", ".cnf");
+    		file.setReadable(false, false);
+    		file.setReadable(true, true);
+    		file.setWritable(false, false);
+    		file.setWritable(true, true);
+    		
+    		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+    		try {
+    			writer.write("[client]\n");
+    			writer.write("user=\"" + escapeOption(username) + "\"\n");
+    			writer.write("password=\"" + escapeOption(password) + "\"\n");
+    		}
+    		finally {
+    			writer.close();
+    		}
+    		return file;
+    	}
+    	catch (IOException io) {
+    		throw new RemoteFormEntryException("Unable to write the mysql option file", io);
+    	}
+    }
+    
+    private String escapeOption(String value) {
+    	return value.replace("\\", "\\\\").replace("\"", "\\\"");
     }
     
     /**
@@ -239,51 +910,54 @@ public class HibernateRemoteFormEntryDAO implements RemoteFormEntryDAO {
     }
 
 	/**
+     * Run an external command. Its output (stdout and stderr together) is logged as it comes at
+     * debug level and only the end of it is kept
      * 
      * @param cmdWithArguments
      * @param wd
-     * @return
+     * @return the last {@link #MAX_CMD_OUTPUT} characters of output of the command
      */
     private String execCmd(File wd, String[] cmdWithArguments) {
 		log.debug("executing command: " + Arrays.toString(cmdWithArguments));
 		
-		StringBuffer out = new StringBuffer();
+		StringBuilder out = new StringBuilder();
 		try {
 			// Needed to add support for working directory because of a linux
 			// file system permission issue.
-			Process p = (wd != null) ? Runtime.getRuntime().exec(cmdWithArguments, null, wd)
-						: Runtime.getRuntime().exec(cmdWithArguments);
-			
-			out.append("Normal cmd output:\n");
-			Reader reader = new InputStreamReader(p.getInputStream());
-			BufferedReader input = new BufferedReader(reader);
-			int readChar = 0;
-			while ((readChar = input.read()) != -1) {
-				out.append((char)readChar);
-			}
-			input.close();
-			reader.close();
+			ProcessBuilder builder = new ProcessBuilder(cmdWithArguments);
+			if (wd != null)
+				builder.directory(wd);
+			// one stream, so the command can't block on a full stderr while we read stdout
+			builder.redirectErrorStream(true);
+			Process p = builder.start();
 			
-			out.append("ErrorStream cmd output:\n");
-			reader = new InputStreamReader(p.getErrorStream());
-			input = new BufferedReader(reader);
-			readChar = 0;
-			while ((readChar = input.read()) != -1) {
-				out.append((char)readChar);
+			BufferedReader input = new BufferedReader(new InputStreamReader(p.getInputStream()));
+			try {
+				String line;
+				while ((line = input.readLine()) != null) {
+					log.debug(line);
+					out.append(line).append('\n');
+					if (out.length() > MAX_CMD_OUTPUT * 2)
+						out.delete(0, out.length() - MAX_CMD_OUTPUT);
 				}
-			input.close();
-			reader.close();
-			
-			Integer exitValue = p.waitFor();
+			}
+			finally {
+				input.close();
+			}
 			
-			log.debug("Process exit value: " + exitValue);
+			int exitValue = p.waitFor();
+			if (exitValue != 0)
+				log.warn("Process exit value: " + exitValue + " for " + cmdWithArguments[0]);
+			else
+				log.debug("Process exit value: " + exitValue);
 			
 		} catch (Exception e) {
-			log.error("Error while executing command: '" + cmdWithArguments + "'", e);
+			log.error("Error while executing command: '" + cmdWithArguments[0] + "'", e);
 		}
 		
-		log.debug("execCmd output: \n" + out.toString());
-    	
+		if (out.length() > MAX_CMD_OUTPUT)
+			out.delete(0, out.length() - MAX_CMD_OUTPUT);
+		
 		return out.toString();
 	}
 
@@ -292,6 +966,18 @@ public class HibernateRemoteFormEntryDAO implements RemoteFormEntryDAO {
      */
     public void execGeneratedFile(File generatedDataFile) {
 	    
+    	try {
+    		if (ReturnDataFormat.isReturnDataFile(generatedDataFile)) {
+    			loadReturnDataFile(generatedDataFile);
+    			return;
+    		}
+    	}
+    	catch (IOException io) {
+    		throw new RemoteFormEntryException("Unable to read the return data file: " + generatedDataFile.getAbsolutePath(), io);
+    	}
+    	
+    	// anything else is a mysqldump script from a central server set to use mysqldump
+    	
     	// this seems to be an mysql or c3p0 bug.  If you delete and recreate a table in a 
     	// separate process (like with the exec below) the form and scheduler tables won't 
     	// be recognized. However, attempting to delete (and failing) the form table seems
@@ -324,20 +1010,25 @@ public class HibernateRemoteFormEntryDAO implements RemoteFormEntryDAO {
     	String path = generatedDataFile.getAbsolutePath();
     	path = path.replace("\\", "/"); // replace windows file separator with forward slash
     	
+    	File optionsFile = createOptionsFile(username, password);
     	String[] commands = {"mysql",
+    					"--defaults-extra-file=" + optionsFile.getAbsolutePath(),
     					"-e",
     					"source " + path,
     					"-f",
-    					"-u" + username,
-    					"-p" + password,
     					"-D" + database
     					};
     	
     	String output;
-    	if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM)
-    		output = execCmd(generatedDataFile.getParentFile(), commands);
-		else
-			output = execCmd(null, commands);
+    	try {
+	    	if (OpenmrsConstants.UNIX_BASED_OPERATING_SYSTEM)
+	    		output = execCmd(generatedDataFile.getParentFile(), commands);
+			else
+				output = execCmd(null, commands);
+    	}
+    	finally {
+    		optionsFile.delete();
+    	}
     	
     	if (output != null && output.length() > 0) {
     		log.error("Exec call: " + Arrays.asList(commands));
@@ -366,4 +1057,62 @@ public class HibernateRemoteFormEntryDAO implements RemoteFormEntryDAO {
 		}
     }
     
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#getPatientIdentifierIndex()
+     */
+    public RemoteFormEntryIdentifierIndex getPatientIdentifierIndex() {
+    	Long count = (Long) sessionFactory.getCurrentSession().createQuery(
+    	    "select count(*) from PatientIdentifier pi where pi.voided = false and pi.patient.voided = false")
+    	    .uniqueResult();
+    	
+    	RemoteFormEntryIdentifierIndex index = new RemoteFormEntryIdentifierIndex(count.intValue());
+    	
+    	// voided identifiers and the identifiers of voided (or merged) patients are left out,
+    	// like the identifier search this replaces
+    	ScrollableResults results = sessionFactory.getCurrentSession().createQuery(
+    	    "select pi.identifier, pi.identifierType.patientIdentifierTypeId, pi.patient.patientId " +
+    	    "from PatientIdentifier pi where pi.voided = false and pi.patient.voided = false " +
+    	    "order by pi.patientIdentifierId")
+    	    .setReadOnly(true).scroll(ScrollMode.FORWARD_ONLY);
+    	try {
+    		while (results.next()) {
+    			index.put((String) results.get(0), (Integer) results.get(1), (Integer) results.get(2));
+    		}
+    	}
+    	finally {
+    		results.close();
+    	}
+    	
+    	if (log.isDebugEnabled())
+    		log.debug("Loaded " + index.size() + " patient identifiers into the index");
+    	
+    	return index;
+    }
+    
+    /**
+     * @see org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO#prefetchPatients(java.util.Collection, java.util.Collection)
+     */
+    @SuppressWarnings("unchecked")
+    public void prefetchPatients(Collection<Integer> patientIds, Collection<String> uuids) {
+    	Session session = sessionFactory.getCurrentSession();
+    	
+    	Set<Integer> ids = new HashSet<Integer>(patientIds);
+    	if (!uuids.isEmpty())
+    		ids.addAll(session.createQuery("select p.patientId from Patient p where p.uuid in (:uuids)")
+    		        .setParameterList("uuids", uuids).list());
+    	
+    	if (ids.isEmpty())
+    		return;
+    	
+    	// one collection per query so the rows don't multiply. each query fills in the
+    	// collection on the patient objects already in the session
+    	for (String collection : PREFETCHED_PATIENT_COLLECTIONS) {
+    		session.createQuery("select distinct p from Patient p left join fetch p." + collection
+    		        + " where p.patientId in (:ids)").setParameterList("ids", ids).list();
+    	}
+    	
+    	if (log.isDebugEnabled())
+    		log.debug("Prefetched " + ids.size() + " patients");
+    }
+    
 }
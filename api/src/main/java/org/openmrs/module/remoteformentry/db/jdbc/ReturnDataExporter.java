@@ -0,0 +1,302 @@
+package org.openmrs.module.remoteformentry.db.jdbc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes tables of the database into the {@link ReturnDataFormat} over jdbc. The rows are streamed
+ * from the database (a server side cursor on mysql) straight into the compressed section, so a
+ * table never has to fit in memory. Typical use:
+ *
+ * <pre>
+ * ReturnDataExporter.writeHeader(out);
+ * exporter.exportTable(out, &quot;obs&quot;, &quot;person_id in (...)&quot;, ReturnDataFormat.MODE_REPLACE_TABLE);
+ * ReturnDataExporter.writeEnd(out);
+ * </pre>
+ *
+ * Dates and times are written as their wall clock value so that they load the same on a server in
+ * another time zone.
+ */
+public class ReturnDataExporter {
+
+	private static final Log log = LogFactory.getLog(ReturnDataExporter.class);
+
+	/**
+	 * rows fetched at a time from databases other than mysql
+	 */
+	private static final int FETCH_SIZE = 1000;
+
+	private final Connection connection;
+
+	private final boolean mysql;
+
+	private final int level;
+
+	/**
+	 * @param connection connection to read the tables with
+	 * @throws SQLException if the connection cannot be asked what database it is
+	 */
+	public ReturnDataExporter(Connection connection) throws SQLException {
+		this(connection, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param connection connection to read the tables with
+	 * @param level the {@link Deflater} level to gzip the sections at
+	 * @throws SQLException if the connection cannot be asked what database it is
+	 */
+	public ReturnDataExporter(Connection connection, int level) throws SQLException {
+		this.connection = connection;
+		this.mysql = ReturnDataFormat.isMySQL(connection);
+		this.level = level;
+	}
+
+	/**
+	 * Write the start of a file, before the first section
+	 */
+	public static void writeHeader(OutputStream out) throws IOException {
+		out.write(ReturnDataFormat.MAGIC);
+	}
+
+	/**
+	 * Write the end of a file, after the last section
+	 */
+	public static void writeEnd(OutputStream out) throws IOException {
+		out.write(ReturnDataFormat.END);
+		out.flush();
+	}
+
+	/**
+	 * Write one table as a section
+	 *
+	 * @param out stream to write to. It is not closed
+	 * @param table the table to write
+	 * @param where rows to write, all of them if null or empty
+	 * @param mode {@link ReturnDataFormat#MODE_REPLACE_TABLE} or
+	 *            {@link ReturnDataFormat#MODE_UPSERT}
+	 * @return the number of rows written
+	 * @throws SQLException if the table cannot be read
+	 * @throws IOException if the section cannot be written
+	 */
+	public long exportTable(OutputStream out, String table, String where, byte mode) throws SQLException, IOException {
+		long start = System.currentTimeMillis();
+
+		String create = null;
+		if (mode == ReturnDataFormat.MODE_REPLACE_TABLE)
+			create = getCreateStatement(table);
+
+		String sql = "select * from " + ReturnDataFormat.quote(connection, table);
+		if (where != null && where.trim().length() > 0)
+			sql += " where " + where;
+
+		Statement stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try {
+			// Integer.MIN_VALUE makes mysql stream the rows one at a time instead of reading them all
+			stmt.setFetchSize(mysql ? Integer.MIN_VALUE : FETCH_SIZE);
+			ResultSet rs = stmt.executeQuery(sql);
+			ResultSetMetaData md = rs.getMetaData();
+			int columnCount = md.getColumnCount();
+			byte[] types = new byte[columnCount];
+
+			out.write(ReturnDataFormat.CODEC_GZIP);
+			ReturnDataFormat.BlockOutputStream blocks = new ReturnDataFormat.BlockOutputStream(out);
+			GZIPOutputStream gzip = new LevelGZIPOutputStream(blocks, level);
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(gzip, ReturnDataFormat.BUFFER_SIZE));
+
+			ReturnDataFormat.writeString(data, table);
+			data.writeByte(mode);
+			ReturnDataFormat.writeString(data, create);
+			data.writeInt(columnCount);
+			for (int x = 0; x < columnCount; x++) {
+				types[x] = getType(md.getColumnType(x + 1));
+				ReturnDataFormat.writeString(data, md.getColumnName(x + 1));
+				data.writeByte(types[x]);
+			}
+
+			long rows = 0;
+			while (rs.next()) {
+				data.writeByte(ReturnDataFormat.ROW);
+				for (int x = 0; x < columnCount; x++)
+					writeValue(data, rs, x + 1, types[x]);
+				rows++;
+			}
+			data.writeByte(ReturnDataFormat.END_OF_ROWS);
+			data.writeLong(rows);
+
+			data.flush();
+			gzip.finish();
+			blocks.finish();
+
+			if (log.isDebugEnabled())
+				log.debug("Exported " + rows + " rows of " + table + " in " + (System.currentTimeMillis() - start) + "ms");
+
+			return rows;
+		}
+		finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * @return the statement that creates the table, or null if the database can't tell (anything
+	 *         but mysql). Such tables are emptied instead of created again when loaded
+	 */
+	private String getCreateStatement(String table) throws SQLException {
+		if (!mysql)
+			return null;
+
+		Statement stmt = connection.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("show create table " + ReturnDataFormat.quote(connection, table));
+			return rs.next() ? rs.getString(2) : null;
+		}
+		finally {
+			stmt.close();
+		}
+	}
+
+	private static byte getType(int sqlType) {
+		switch (sqlType) {
+			case Types.BIT:
+			case Types.BOOLEAN:
+				return ReturnDataFormat.TYPE_BOOLEAN;
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+				return ReturnDataFormat.TYPE_LONG;
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return ReturnDataFormat.TYPE_DOUBLE;
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				return ReturnDataFormat.TYPE_DECIMAL;
+			case Types.TIMESTAMP:
+				return ReturnDataFormat.TYPE_TIMESTAMP;
+			case Types.DATE:
+				return ReturnDataFormat.TYPE_DATE;
+			case Types.TIME:
+				return ReturnDataFormat.TYPE_TIME;
+			case Types.BINARY:
+			case Types.VARBINARY:
+			case Types.LONGVARBINARY:
+			case Types.BLOB:
+				return ReturnDataFormat.TYPE_BYTES;
+			default:
+				return ReturnDataFormat.TYPE_STRING;
+		}
+	}
+
+	private static void writeValue(DataOutputStream data, ResultSet rs, int column, byte type) throws SQLException,
+	        IOException {
+		switch (type) {
+			case ReturnDataFormat.TYPE_BOOLEAN: {
+				boolean value = rs.getBoolean(column);
+				if (writeNull(data, rs))
+					return;
+				data.writeBoolean(value);
+				return;
+			}
+			case ReturnDataFormat.TYPE_LONG: {
+				long value = rs.getLong(column);
+				if (writeNull(data, rs))
+					return;
+				data.writeLong(value);
+				return;
+			}
+			case ReturnDataFormat.TYPE_DOUBLE: {
+				double value = rs.getDouble(column);
+				if (writeNull(data, rs))
+					return;
+				data.writeDouble(value);
+				return;
+			}
+			case ReturnDataFormat.TYPE_DECIMAL: {
+				BigDecimal value = rs.getBigDecimal(column);
+				if (writeNull(data, rs))
+					return;
+				ReturnDataFormat.writeString(data, value.toString());
+				return;
+			}
+			case ReturnDataFormat.TYPE_TIMESTAMP: {
+				Timestamp value = rs.getTimestamp(column);
+				if (writeNull(data, rs))
+					return;
+				ReturnDataFormat.writeString(data, value.toString());
+				return;
+			}
+			case ReturnDataFormat.TYPE_DATE: {
+				Date value = rs.getDate(column);
+				if (writeNull(data, rs))
+					return;
+				ReturnDataFormat.writeString(data, value.toString());
+				return;
+			}
+			case ReturnDataFormat.TYPE_TIME: {
+				Time value = rs.getTime(column);
+				if (writeNull(data, rs))
+					return;
+				ReturnDataFormat.writeString(data, value.toString());
+				return;
+			}
+			case ReturnDataFormat.TYPE_BYTES: {
+				byte[] value = rs.getBytes(column);
+				if (writeNull(data, rs))
+					return;
+				data.writeInt(value.length);
+				data.write(value);
+				return;
+			}
+			default: {
+				String value = rs.getString(column);
+				if (writeNull(data, rs))
+					return;
+				ReturnDataFormat.writeString(data, value);
+			}
+		}
+	}
+
+	/**
+	 * Write the null flag of the value just read
+	 *
+	 * @return true if the value was null and nothing more needs to be written
+	 */
+	private static boolean writeNull(DataOutputStream data, ResultSet rs) throws SQLException, IOException {
+		if (rs.wasNull()) {
+			data.writeByte(ReturnDataFormat.NULL);
+			return true;
+		}
+		data.writeByte(ReturnDataFormat.VALUE);
+		return false;
+	}
+
+	/**
+	 * A {@link GZIPOutputStream} that compresses at the given level
+	 */
+	private static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+		LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+			super(out, ReturnDataFormat.BUFFER_SIZE);
+			def.setLevel(level);
+		}
+	}
+
+}
@@ -0,0 +1,293 @@
+package org.openmrs.module.remoteformentry.db.jdbc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * The file format the return data is written in by {@link ReturnDataExporter} and read back by
+ * {@link ReturnDataImporter}:
+ *
+ * <pre>
+ * file    := MAGIC section* END
+ * section := codec block* 0
+ * block   := int length, length bytes of the (gzipped) section body
+ * body    := table name, mode, create statement, column count, (column name, type)*,
+ *            (ROW value*)*, END_OF_ROWS, long row count
+ * value   := NULL | VALUE data
+ * </pre>
+ *
+ * Every table is a section of its own that is compressed on its own, so sections written
+ * separately can be put one after the other into one file. The gzip crc of each section and the row
+ * count at its end are checked before anything is loaded, and the blocks let a section be written
+ * to a stream without knowing its length up front.
+ */
+public final class ReturnDataFormat {
+
+	/**
+	 * first bytes of every file in this format
+	 */
+	public static final byte[] MAGIC = { 'R', 'F', 'E', 'D', 'A', 'T', 'A', '1' };
+
+	/**
+	 * codec byte after the last section
+	 */
+	public static final int END = 0;
+
+	/**
+	 * codec byte of a gzipped section
+	 */
+	public static final int CODEC_GZIP = 1;
+
+	/**
+	 * the table is dropped, created again from the create statement (or emptied if there is none)
+	 * and loaded with the rows
+	 */
+	public static final byte MODE_REPLACE_TABLE = 1;
+
+	/**
+	 * the rows replace the rows with the same key in the table, other rows are left alone
+	 */
+	public static final byte MODE_UPSERT = 2;
+
+	public static final byte END_OF_ROWS = 0;
+
+	public static final byte ROW = 1;
+
+	public static final byte NULL = 0;
+
+	public static final byte VALUE = 1;
+
+	public static final byte TYPE_LONG = 1;
+
+	public static final byte TYPE_DOUBLE = 2;
+
+	public static final byte TYPE_DECIMAL = 3;
+
+	public static final byte TYPE_STRING = 4;
+
+	public static final byte TYPE_BYTES = 5;
+
+	public static final byte TYPE_TIMESTAMP = 6;
+
+	public static final byte TYPE_DATE = 7;
+
+	public static final byte TYPE_TIME = 8;
+
+	public static final byte TYPE_BOOLEAN = 9;
+
+	/**
+	 * the size of the blocks and of the buffers used on either side
+	 */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private ReturnDataFormat() {
+	}
+
+	/**
+	 * @param file the file to look at
+	 * @return true if the file starts with {@link #MAGIC}, false if it is something else, like a
+	 *         mysqldump script
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isReturnDataFile(File file) throws IOException {
+		if (!file.isFile() || file.length() < MAGIC.length)
+			return false;
+
+		byte[] start = new byte[MAGIC.length];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(start);
+		}
+		finally {
+			in.close();
+		}
+		return Arrays.equals(MAGIC, start);
+	}
+
+	/**
+	 * @return true if the connection is to a mysql database
+	 */
+	static boolean isMySQL(Connection connection) throws SQLException {
+		return connection.getMetaData().getDatabaseProductName().toLowerCase().contains("mysql");
+	}
+
+	/**
+	 * Quote a table or column name the way the database wants it
+	 */
+	static String quote(Connection connection, String name) throws SQLException {
+		String quote = connection.getMetaData().getIdentifierQuoteString();
+		if (quote == null || quote.trim().length() == 0)
+			return name;
+		return quote + name + quote;
+	}
+
+	/**
+	 * Write a string that may be null and may be longer than {@link DataOutputStream#writeUTF}
+	 * allows
+	 */
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Cuts what is written to it into length prefixed blocks. {@link #finish()} writes the empty
+	 * block that ends the section without closing the stream underneath
+	 */
+	static class BlockOutputStream extends FilterOutputStream {
+
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		private int count;
+
+		BlockOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length)
+				writeBlock();
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length)
+					writeBlock();
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// blocks are only written when full, or at the end of the section
+		}
+
+		@Override
+		public void close() throws IOException {
+			finish();
+		}
+
+		void finish() throws IOException {
+			if (count > 0)
+				writeBlock();
+			writeInt(0);
+			out.flush();
+		}
+
+		private void writeBlock() throws IOException {
+			writeInt(count);
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+
+		private void writeInt(int v) throws IOException {
+			out.write((v >>> 24) & 0xff);
+			out.write((v >>> 16) & 0xff);
+			out.write((v >>> 8) & 0xff);
+			out.write(v & 0xff);
+		}
+	}
+
+	/**
+	 * Reads the blocks written by a {@link BlockOutputStream} and ends at the empty block, leaving
+	 * the stream underneath at the start of the next section
+	 */
+	static class BlockInputStream extends InputStream {
+
+		private final DataInputStream in;
+
+		private int remaining;
+
+		private boolean finished;
+
+		BlockInputStream(InputStream in) {
+			this.in = new DataInputStream(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextBlock())
+				return -1;
+			remaining--;
+			return in.readUnsignedByte();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!nextBlock())
+				return -1;
+			int n = in.read(b, off, Math.min(len, remaining));
+			if (n == -1)
+				throw new EOFException("The return data ends in the middle of a block");
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return finished ? 0 : remaining;
+		}
+
+		@Override
+		public void close() throws IOException {
+			skipToEnd();
+		}
+
+		/**
+		 * Skip whatever is left of the section
+		 */
+		void skipToEnd() throws IOException {
+			while (nextBlock()) {
+				int skipped = in.skipBytes(remaining);
+				if (skipped == 0)
+					throw new EOFException("The return data ends in the middle of a block");
+				remaining -= skipped;
+			}
+		}
+
+		private boolean nextBlock() throws IOException {
+			while (remaining == 0 && !finished) {
+				remaining = in.readInt();
+				if (remaining < 0)
+					throw new IOException("Invalid block length in the return data: " + remaining);
+				if (remaining == 0)
+					finished = true;
+			}
+			return !finished;
+		}
+	}
+
+}
@@ -0,0 +1,449 @@
+package org.openmrs.module.remoteformentry.db.jdbc;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Loads a file written by {@link ReturnDataExporter} into the database with batched prepared
+ * statements. Call {@link #verify(InputStream)} on the whole file before {@link #load(InputStream)}
+ * so that a damaged or cut off file is refused before any table has been touched.<br/>
+ * <br/>
+ * Every section of the file can also be checked and loaded on its own with
+ * {@link #verifySection(InputStream)} and {@link #loadSection(InputStream)}, so that the tables can
+ * be loaded side by side on connections of their own. {@link #split(File)} finds the sections.
+ */
+public class ReturnDataImporter {
+
+	private static final Log log = LogFactory.getLog(ReturnDataImporter.class);
+
+	private final Connection connection;
+
+	private final int batchSize;
+
+	private final boolean mysql;
+
+	/**
+	 * @param connection connection to load the rows with. If it is not in auto commit mode every
+	 *            batch is committed
+	 * @param batchSize number of rows sent to the database at a time
+	 * @throws SQLException if the connection cannot be asked what database it is
+	 */
+	public ReturnDataImporter(Connection connection, int batchSize) throws SQLException {
+		this.connection = connection;
+		this.batchSize = batchSize;
+		this.mysql = ReturnDataFormat.isMySQL(connection);
+	}
+
+	/**
+	 * Read the whole file and check the checksum and row count of every section without loading
+	 * anything
+	 *
+	 * @param in the file
+	 * @return the number of rows in the file
+	 * @throws IOException if the file is not in the format or is damaged
+	 */
+	public static long verify(InputStream in) throws IOException {
+		try {
+			return read(in, null);
+		}
+		catch (SQLException e) {
+			// no database is used to verify
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Find the sections of the file without reading their rows
+	 *
+	 * @param file the file
+	 * @return the sections, in the order they are in the file
+	 * @throws IOException if the file is not in the format or has been cut off
+	 */
+	public static List<Section> split(File file) throws IOException {
+		List<Section> sections = new ArrayList<Section>();
+		CountingInputStream in = new CountingInputStream(new BufferedInputStream(new FileInputStream(file),
+		        ReturnDataFormat.BUFFER_SIZE));
+		try {
+			readMagic(in);
+			while (true) {
+				long offset = in.getByteCount();
+				int codec = readCodec(in);
+				if (codec == ReturnDataFormat.END)
+					break;
+
+				// the table name is at the start of the section, the rest is skipped
+				ReturnDataFormat.BlockInputStream blocks = new ReturnDataFormat.BlockInputStream(in);
+				String table = ReturnDataFormat.readString(new DataInputStream(new GZIPInputStream(blocks)));
+				blocks.skipToEnd();
+				sections.add(new Section(table, offset, in.getByteCount() - offset));
+			}
+		}
+		finally {
+			in.close();
+		}
+		return sections;
+	}
+
+	/**
+	 * Check the checksum and row count of the section the stream is at without loading anything
+	 *
+	 * @param in the file, at the start of a section
+	 * @return the number of rows in the section
+	 * @throws IOException if the section is damaged
+	 */
+	public static long verifySection(InputStream in) throws IOException {
+		try {
+			return readNextSection(new BufferedInputStream(in, ReturnDataFormat.BUFFER_SIZE), null);
+		}
+		catch (SQLException e) {
+			// no database is used to verify
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Load the section the stream is at into the database
+	 *
+	 * @param in the file, at the start of a section
+	 * @return the number of rows loaded
+	 * @throws IOException if the section is damaged
+	 * @throws SQLException if the rows cannot be loaded
+	 */
+	public long loadSection(InputStream in) throws IOException, SQLException {
+		if (mysql)
+			execute("set foreign_key_checks = 0");
+		try {
+			return readNextSection(new BufferedInputStream(in, ReturnDataFormat.BUFFER_SIZE), this);
+		}
+		finally {
+			if (mysql)
+				execute("set foreign_key_checks = 1");
+		}
+	}
+
+	/**
+	 * Load every section of the file into the database
+	 *
+	 * @param in the file
+	 * @return the number of rows loaded
+	 * @throws IOException if the file is not in the format or is damaged
+	 * @throws SQLException if the rows cannot be loaded
+	 */
+	public long load(InputStream in) throws IOException, SQLException {
+		if (mysql)
+			execute("set foreign_key_checks = 0");
+		try {
+			return read(in, this);
+		}
+		finally {
+			if (mysql)
+				execute("set foreign_key_checks = 1");
+		}
+	}
+
+	/**
+	 * Read every section of the file, loading them with the importer if there is one
+	 */
+	private static long read(InputStream in, ReturnDataImporter importer) throws IOException, SQLException {
+		in = new BufferedInputStream(in, ReturnDataFormat.BUFFER_SIZE);
+		readMagic(in);
+
+		long rows = 0;
+		while (true) {
+			long sectionRows = readNextSection(in, importer);
+			if (sectionRows == -1)
+				break;
+			rows += sectionRows;
+		}
+		return rows;
+	}
+
+	private static void readMagic(InputStream in) throws IOException {
+		byte[] magic = new byte[ReturnDataFormat.MAGIC.length];
+		new DataInputStream(in).readFully(magic);
+		if (!Arrays.equals(ReturnDataFormat.MAGIC, magic))
+			throw new IOException("Not a return data file");
+	}
+
+	private static int readCodec(InputStream in) throws IOException {
+		int codec = in.read();
+		if (codec == -1)
+			throw new EOFException("The return data has been cut off");
+		if (codec != ReturnDataFormat.END && codec != ReturnDataFormat.CODEC_GZIP)
+			throw new IOException("Unknown codec in the return data: " + codec);
+		return codec;
+	}
+
+	/**
+	 * Read the section the stream is at, loading it with the importer if there is one
+	 *
+	 * @return the number of rows in the section, or -1 if the stream is at the end of the file
+	 */
+	private static long readNextSection(InputStream in, ReturnDataImporter importer) throws IOException, SQLException {
+		if (readCodec(in) == ReturnDataFormat.END)
+			return -1;
+
+		ReturnDataFormat.BlockInputStream blocks = new ReturnDataFormat.BlockInputStream(in);
+		GZIPInputStream gzip = new GZIPInputStream(blocks, ReturnDataFormat.BUFFER_SIZE);
+		DataInputStream data = new DataInputStream(new BufferedInputStream(gzip, ReturnDataFormat.BUFFER_SIZE));
+		long rows = readSection(data, importer);
+
+		// reading to the end of the gzip stream checks its crc
+		if (data.read() != -1)
+			throw new IOException("Unexpected data after the rows of a section");
+		blocks.skipToEnd();
+		return rows;
+	}
+
+	private static long readSection(DataInputStream data, ReturnDataImporter importer) throws IOException, SQLException {
+		long start = System.currentTimeMillis();
+
+		String table = ReturnDataFormat.readString(data);
+		byte mode = data.readByte();
+		String create = ReturnDataFormat.readString(data);
+		int columnCount = data.readInt();
+		String[] columns = new String[columnCount];
+		byte[] types = new byte[columnCount];
+		for (int x = 0; x < columnCount; x++) {
+			columns[x] = ReturnDataFormat.readString(data);
+			types[x] = data.readByte();
+		}
+
+		PreparedStatement ps = importer == null ? null : importer.prepare(table, mode, create, columns);
+		try {
+			long rows = 0;
+			while (data.readByte() == ReturnDataFormat.ROW) {
+				for (int x = 0; x < columnCount; x++)
+					readValue(data, ps, x + 1, types[x]);
+				rows++;
+				if (ps != null) {
+					ps.addBatch();
+					if (rows % importer.batchSize == 0)
+						importer.executeBatch(ps);
+				}
+			}
+			long expected = data.readLong();
+			if (expected != rows)
+				throw new IOException("The return data for " + table + " has " + rows + " rows instead of " + expected);
+
+			if (ps != null) {
+				importer.executeBatch(ps);
+				if (log.isDebugEnabled())
+					log.debug("Loaded " + rows + " rows of " + table + " in " + (System.currentTimeMillis() - start) + "ms");
+			}
+			return rows;
+		}
+		finally {
+			if (ps != null)
+				ps.close();
+		}
+	}
+
+	/**
+	 * Get the table ready for its rows
+	 *
+	 * @return the statement to insert each row with
+	 */
+	private PreparedStatement prepare(String table, byte mode, String create, String[] columns) throws SQLException {
+		String quotedTable = ReturnDataFormat.quote(connection, table);
+		if (mode == ReturnDataFormat.MODE_REPLACE_TABLE) {
+			if (create != null) {
+				execute("drop table if exists " + quotedTable);
+				execute(create);
+			} else {
+				execute("delete from " + quotedTable);
+			}
+		}
+
+		StringBuilder sql = new StringBuilder();
+		if (mode == ReturnDataFormat.MODE_UPSERT)
+			sql.append(mysql ? "replace into " : "merge into ");
+		else
+			sql.append("insert into ");
+		sql.append(quotedTable).append(" (");
+		for (int x = 0; x < columns.length; x++) {
+			if (x > 0)
+				sql.append(", ");
+			sql.append(ReturnDataFormat.quote(connection, columns[x]));
+		}
+		sql.append(") values (");
+		for (int x = 0; x < columns.length; x++)
+			sql.append(x > 0 ? ", ?" : "?");
+		sql.append(")");
+
+		return connection.prepareStatement(sql.toString());
+	}
+
+	private void executeBatch(PreparedStatement ps) throws SQLException {
+		ps.executeBatch();
+		if (!connection.getAutoCommit())
+			connection.commit();
+	}
+
+	private void execute(String sql) throws SQLException {
+		Statement stmt = connection.createStatement();
+		try {
+			stmt.execute(sql);
+		}
+		finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Read one value and set it on the statement, if there is one
+	 */
+	private static void readValue(DataInputStream data, PreparedStatement ps, int index, byte type) throws IOException,
+	        SQLException {
+		if (data.readByte() == ReturnDataFormat.NULL) {
+			if (ps != null)
+				ps.setNull(index, getSqlType(type));
+			return;
+		}
+
+		switch (type) {
+			case ReturnDataFormat.TYPE_BOOLEAN: {
+				boolean value = data.readBoolean();
+				if (ps != null)
+					ps.setBoolean(index, value);
+				return;
+			}
+			case ReturnDataFormat.TYPE_LONG: {
+				long value = data.readLong();
+				if (ps != null)
+					ps.setLong(index, value);
+				return;
+			}
+			case ReturnDataFormat.TYPE_DOUBLE: {
+				double value = data.readDouble();
+				if (ps != null)
+					ps.setDouble(index, value);
+				return;
+			}
+			case ReturnDataFormat.TYPE_DECIMAL: {
+				String value = ReturnDataFormat.readString(data);
+				if (ps != null)
+					ps.setBigDecimal(index, new BigDecimal(value));
+				return;
+			}
+			case ReturnDataFormat.TYPE_TIMESTAMP: {
+				String value = ReturnDataFormat.readString(data);
+				if (ps != null)
+					ps.setTimestamp(index, Timestamp.valueOf(value));
+				return;
+			}
+			case ReturnDataFormat.TYPE_DATE: {
+				String value = ReturnDataFormat.readString(data);
+				if (ps != null)
+					ps.setDate(index, Date.valueOf(value));
+				return;
+			}
+			case ReturnDataFormat.TYPE_TIME: {
+				String value = ReturnDataFormat.readString(data);
+				if (ps != null)
+					ps.setTime(index, Time.valueOf(value));
+				return;
+			}
+			case ReturnDataFormat.TYPE_BYTES: {
+				byte[] value = new byte[data.readInt()];
+				data.readFully(value);
+				if (ps != null)
+					ps.setBytes(index, value);
+				return;
+			}
+			case ReturnDataFormat.TYPE_STRING: {
+				String value = ReturnDataFormat.readString(data);
+				if (ps != null)
+					ps.setString(index, value);
+				return;
+			}
+			default:
+				throw new IOException("Unknown column type in the return data: " + type);
+		}
+	}
+
+	private static int getSqlType(byte type) {
+		switch (type) {
+			case ReturnDataFormat.TYPE_BOOLEAN:
+				return Types.BOOLEAN;
+			case ReturnDataFormat.TYPE_LONG:
+				return Types.BIGINT;
+			case ReturnDataFormat.TYPE_DOUBLE:
+				return Types.DOUBLE;
+			case ReturnDataFormat.TYPE_DECIMAL:
+				return Types.DECIMAL;
+			case ReturnDataFormat.TYPE_TIMESTAMP:
+				return Types.TIMESTAMP;
+			case ReturnDataFormat.TYPE_DATE:
+				return Types.DATE;
+			case ReturnDataFormat.TYPE_TIME:
+				return Types.TIME;
+			case ReturnDataFormat.TYPE_BYTES:
+				return Types.VARBINARY;
+			default:
+				return Types.VARCHAR;
+		}
+	}
+
+	/**
+	 * Where one section of a file is
+	 */
+	public static class Section {
+
+		private final String table;
+
+		private final long offset;
+
+		private final long length;
+
+		Section(String table, long offset, long length) {
+			this.table = table;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return the table the section is for
+		 */
+		public String getTable() {
+			return table;
+		}
+
+		/**
+		 * @return where the section starts in the file
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * @return the length of the section in the file
+		 */
+		public long getLength() {
+			return length;
+		}
+	}
+
+}
@@ -1,17 +1,18 @@
 package org.openmrs.module.remoteformentry.impl;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +23,8 @@ import java.util.Vector;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathExpressionException;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.EncounterType;
@@ -36,7 +39,6 @@ import org.openmrs.PersonName;
 import org.openmrs.Relationship;
 import org.openmrs.User;
 import org.openmrs.api.AdministrationService;
-import org.openmrs.api.EncounterService;
 import org.openmrs.api.FormService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
@@ -45,9 +47,9 @@ import org.openmrs.module.formentry.FormEntryException;
 import org.openmrs.module.formentry.FormEntryQueue;
 import org.openmrs.module.formentry.FormEntryService;
 import org.openmrs.module.formentry.FormEntryUtil;
-import org.openmrs.module.formentry.PublishInfoPath;
 import org.openmrs.module.remoteformentry.*;
 import org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO;
+import org.openmrs.module.remoteformentry.db.jdbc.ReturnDataFormat;
 import org.openmrs.scheduler.SchedulerService;
 import org.openmrs.scheduler.TaskDefinition;
 import org.openmrs.util.OpenmrsUtil;
@@ -66,22 +68,27 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 	private Boolean isGeneratingDataFile = false;
 
 	/**
-	 * private comparator for use in ordering files
+	 * ordered index over the pending queue directory, created on first use
 	 */
-	private final FilenameComparator filenameComparator = new FilenameComparator();
+	private RemoteFormEntryPendingQueueIndex pendingQueueIndex;
 
 	/**
-	 * comparator class to order files by filename, ascending
+	 * index from patient identifier to patient id, only loaded while the pending queue is processed
 	 */
-	class FilenameComparator implements Comparator<File> {
+	private volatile RemoteFormEntryIdentifierIndex identifierIndex;
 
-		public int compare(File arg0, File arg1) {
-			if (arg0.getName() == null)
-				return -1;
-			if (arg1.getName() == null)
-				return 1;
-			return arg0.getName().compareTo(arg1.getName());
-		}
+	/**
+	 * Get the index over the pending queue directory. The index is rebuilt from its journal the
+	 * first time it is used after startup
+	 * 
+	 * @return RemoteFormEntryPendingQueueIndex for the current pending queue dir
+	 */
+	private synchronized RemoteFormEntryPendingQueueIndex getPendingQueueIndex() {
+		File queueDir = RemoteFormEntryUtil.getPendingQueueDir();
+		if (pendingQueueIndex == null || !pendingQueueIndex.getQueueDir().equals(queueDir))
+			pendingQueueIndex = new RemoteFormEntryPendingQueueIndex(queueDir);
+		
+		return pendingQueueIndex;
 	}
 
 	/**
@@ -125,14 +132,48 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 
 		// write the queue's data to the file
 		try {
-			FileWriter writer = new FileWriter(outFile);
-
-			writer.write(pendingQueue.getFormData());
-
-			writer.close();
+			if (!pendingQueue.isFormDataLoaded() && fileSystemUrl != null && new File(fileSystemUrl).exists()) {
+				// copy the file over without reading the whole form into memory
+				File inFile = new File(fileSystemUrl);
+				if (!inFile.getCanonicalFile().equals(outFile.getCanonicalFile()))
+					RemoteFormEntryUtil.copyFile(inFile, outFile);
+			}
+			else {
+				FileWriter writer = new FileWriter(outFile);
+	
+				writer.write(pendingQueue.getFormData());
+	
+				writer.close();
+			}
 		} catch (IOException io) {
 			throw new FormEntryException("Unable to save formentry queue", io);
 		}
+		
+		getPendingQueueIndex().add(outFile.getName());
+	}
+
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#moveToRemoteFormEntryPendingQueue(org.openmrs.module.remoteformentry.RemoteFormEntryPendingQueue)
+	 */
+	public void moveToRemoteFormEntryPendingQueue(RemoteFormEntryPendingQueue pendingQueue) {
+		String fileSystemUrl = pendingQueue.getFileSystemUrl();
+		if (fileSystemUrl == null || !new File(fileSystemUrl).exists()) {
+			createRemoteFormEntryPendingQueue(pendingQueue);
+			return;
+		}
+		
+		File inFile = new File(fileSystemUrl);
+		File outFile = new File(RemoteFormEntryUtil.getPendingQueueDir(), inFile.getName());
+		try {
+			if (!inFile.getCanonicalFile().equals(outFile.getCanonicalFile()))
+				RemoteFormEntryUtil.moveFile(inFile, outFile);
+		}
+		catch (IOException io) {
+			throw new FormEntryException("Unable to move " + fileSystemUrl + " to the pending queue", io);
+		}
+		
+		pendingQueue.setFileSystemUrl(outFile.getAbsolutePath());
+		getPendingQueueIndex().add(outFile.getName());
 	}
 
 	/**
@@ -178,25 +219,48 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 		if (file.exists()) {
 			file.delete();
 		}
+		
+		// only items living in the pending dir are indexed. (the cleanup processor
+		// deletes items out of its own directory through this method too)
+		File queueDir = RemoteFormEntryUtil.getPendingQueueDir();
+		if (queueDir.getAbsoluteFile().equals(file.getAbsoluteFile().getParentFile()))
+			getPendingQueueIndex().remove(file.getName());
 	}
 
 	/**
 	 * @see org.openmrs.module.formentry.RemoteFormEntryService#getNextRemoteFormEntryPendingQueue()
 	 */
 	public RemoteFormEntryPendingQueue getNextRemoteFormEntryPendingQueue() {
-		File queueDir = RemoteFormEntryUtil.getPendingQueueDir();
-
-		List<File> fileList = Arrays.asList(queueDir.listFiles());
-		Collections.sort(fileList, filenameComparator);
+		// the index keeps the files ordered by filename, ascending
+		File file = getPendingQueueIndex().peek();
 		
-		// return the first queue item
-		for (File file : fileList) {
-			RemoteFormEntryPendingQueue queueItem = new RemoteFormEntryPendingQueue();
-			queueItem.setFileSystemUrl(file.getAbsolutePath());
-			return queueItem;
-		}
+		if (file == null)
+			return null;
+		
+		RemoteFormEntryPendingQueue queueItem = new RemoteFormEntryPendingQueue();
+		queueItem.setFileSystemUrl(file.getAbsolutePath());
+		return queueItem;
+	}
 
-		return null;
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#claimNextRemoteFormEntryPendingQueue()
+	 */
+	public RemoteFormEntryPendingQueue claimNextRemoteFormEntryPendingQueue() {
+		File file = getPendingQueueIndex().claim();
+		
+		if (file == null)
+			return null;
+		
+		RemoteFormEntryPendingQueue queueItem = new RemoteFormEntryPendingQueue();
+		queueItem.setFileSystemUrl(file.getAbsolutePath());
+		return queueItem;
+	}
+	
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#releaseRemoteFormEntryPendingQueueClaims()
+	 */
+	public void releaseRemoteFormEntryPendingQueueClaims() {
+		getPendingQueueIndex().releaseClaims();
 	}
 
 	/**
@@ -212,24 +276,14 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#getInitialEncounterTypes()
 	 */
 	public List<EncounterType> getInitialEncounterTypes() {
-		AdministrationService as = Context.getAdministrationService();
-		EncounterService es = Context.getEncounterService();
-
-		String encounterTypeIdsString = as.getGlobalProperty(RemoteFormEntryConstants.GP_INITIAL_ENCOUNTER_TYPES,
-		                                                     "");
-		String[] encounterTypeIds = encounterTypeIdsString.split(",");
-
 		// populate the encounter type objects
 		List<EncounterType> encounterTypes = new Vector<EncounterType>();
-		for (String type : encounterTypeIds) {
-			type = type.trim();
-			if (type.length() > 0) {
-				try {
-					EncounterType encType = es.getEncounterType(Integer.valueOf(type));
-					encounterTypes.add(encType);
-				} catch (Exception e) {
-					log.warn("Unable to get encounter type with id: " + type, e);
-				}
+		for (Integer type : RemoteFormEntrySettings.get().getInitialEncounterTypeIds()) {
+			try {
+				EncounterType encType = RemoteFormEntryMetadataCache.getEncounterType(type);
+				encounterTypes.add(encType);
+			} catch (Exception e) {
+				log.warn("Unable to get encounter type with id: " + type, e);
 			}
 		}
 
@@ -262,39 +316,50 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 	 */
 	public Patient createPatientInDatabase(Document doc, XPath xp)
 	        throws XPathExpressionException, Exception {
+		return createPatientInDatabase(RemoteFormEntryFormHeader.fromDocument(doc));
+	}
+
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#createPatientInDatabase(org.openmrs.module.remoteformentry.RemoteFormEntryFormHeader)
+	 */
+	public Patient createPatientInDatabase(RemoteFormEntryFormHeader header) throws Exception {
 
 		PatientService patientService = Context.getPatientService();
 
-		User enterer = RemoteFormEntryUtil.getEnterer(doc, xp);
+		User enterer = RemoteFormEntryUtil.getEnterer(header);
 
 		Patient patient = new Patient();
 
 		// create the person name
-		for (PersonName personName : RemoteFormEntryUtil.getPersonNames(doc, xp, enterer))
+		for (PersonName personName : RemoteFormEntryUtil.getPersonNames(header, enterer))
 			patient.addName(personName);
 
 		// create the person address
-		for (PersonAddress address : RemoteFormEntryUtil.getPersonAddresses(doc, xp, enterer))
+		for (PersonAddress address : RemoteFormEntryUtil.getPersonAddresses(header, enterer))
 			patient.addAddress(address);
 
 		// create and add the patient identifier
-		patient.addIdentifiers(RemoteFormEntryUtil.getPatientIdentifiers(doc, xp, enterer));
+		patient.addIdentifiers(RemoteFormEntryUtil.getPatientIdentifiers(header, enterer));
 
 		// create and add all person attributes
-		for (PersonAttribute attr : RemoteFormEntryUtil.getPersonAttributes(doc, xp, enterer))
+		for (PersonAttribute attr : RemoteFormEntryUtil.getPersonAttributes(header, enterer))
 			patient.addAttribute(attr);
 
 		// set the person properties (like gender, death status, birthdate, etc)
-		RemoteFormEntryUtil.setPersonProperties(patient, doc, xp, enterer);
+		RemoteFormEntryUtil.setPersonProperties(patient, header, enterer);
 
 		// set the patient properties (like tribe, etc)
-		RemoteFormEntryUtil.setPatientProperties(patient, doc, xp, enterer);
+		RemoteFormEntryUtil.setPatientProperties(patient, header, enterer);
 
 		// now finally create the person in the database
 		Patient createdPatient = patientService.savePatient(patient);
 
+		RemoteFormEntryIdentifierIndex index = identifierIndex;
+		if (index != null)
+			index.addPatient(createdPatient);
+
 		// TODO create the relationships
-		for (Relationship rel : RemoteFormEntryUtil.getRelationships(createdPatient, doc, xp, enterer)) {
+		for (Relationship rel : RemoteFormEntryUtil.getRelationships(createdPatient, header, enterer)) {
 			Context.getPersonService().saveRelationship(rel);
 		}
 
@@ -311,15 +376,23 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 	 */
 	public void updatePatientInDatabase(Patient patient, Document doc, XPath xp)
 	        throws XPathExpressionException, Exception {
+		updatePatientInDatabase(patient, RemoteFormEntryFormHeader.fromDocument(doc));
+	}
+
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#updatePatientInDatabase(org.openmrs.Patient,
+	 *      org.openmrs.module.remoteformentry.RemoteFormEntryFormHeader)
+	 */
+	public void updatePatientInDatabase(Patient patient, RemoteFormEntryFormHeader header) throws Exception {
 		// loop over all possible things that could have been changed and
 		// update them for this patient object
 
 		PatientService patientService = Context.getPatientService();
 
-		User enterer = RemoteFormEntryUtil.getEnterer(doc, xp);
+		User enterer = RemoteFormEntryUtil.getEnterer(header);
 
 		// add the person name if the patient doesn't have it yet
-		for (PersonName newPersonName : RemoteFormEntryUtil.getPersonNames(doc, xp, enterer)) {
+		for (PersonName newPersonName : RemoteFormEntryUtil.getPersonNames(header, enterer)) {
 			boolean found = false;
 			for (PersonName currentName : patient.getNames()) {
 				if (currentName.equalsContent(newPersonName)) {
@@ -340,7 +413,7 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 		}
 
 		// add the person address if patient doesn't have it yet
-		for (PersonAddress newPersonAddress : RemoteFormEntryUtil.getPersonAddresses(doc, xp, enterer)) {
+		for (PersonAddress newPersonAddress : RemoteFormEntryUtil.getPersonAddresses(header, enterer)) {
 			boolean found = false;
 			for (PersonAddress currentAddress : patient.getAddresses()) {
 				if (currentAddress.equalsContent(newPersonAddress)) {
@@ -362,7 +435,7 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 
 		// add the patient identifier if patient doesn't have it yet
 		for (PatientIdentifier newPersonIdentifier : RemoteFormEntryUtil
-				.getPatientIdentifiers(doc, xp, enterer)) {
+				.getPatientIdentifiers(header, enterer)) {
 			// reassign it each time since the identifier could have been added
 			// in the last iteration of this loop
 			Set<PatientIdentifier> patientIdentifiers = patient
@@ -394,23 +467,34 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
         patient.getPatientIdentifier().setPreferred(true);
 
 		// set the person attributes
-		RemoteFormEntryUtil.setPersonAttributes(patient, doc, xp, enterer);
+		RemoteFormEntryUtil.setPersonAttributes(patient, header, enterer);
 
 		// set the person properties (like gender, death status, birthdate, etc)
-		RemoteFormEntryUtil.setPersonProperties(patient, doc, xp, enterer);
+		RemoteFormEntryUtil.setPersonProperties(patient, header, enterer);
 
 		// set the patient properties (like tribe, etc)
-		RemoteFormEntryUtil.setPatientProperties(patient, doc, xp, enterer);
+		RemoteFormEntryUtil.setPatientProperties(patient, header, enterer);
 
 		// now finally save the person in the database
 		patientService.savePatient(patient);
 
+		// the form may have added identifiers
+		RemoteFormEntryIdentifierIndex index = identifierIndex;
+		if (index != null)
+			index.addPatient(patient);
+
 		// Doing this after saving the patient so we're sure to have primary keys for both
 		// this new patient and the other person relation
-		// add all relationships if patient doesn't have them yet
-		for (Relationship newRelationship : RemoteFormEntryUtil.getRelationships(patient, doc, xp, enterer)) {
+		// add all relationships if patient doesn't have them yet. The patient's relationships are
+		// only looked up once; the ones saved here are added to that list
+		List<Relationship> newRelationships = RemoteFormEntryUtil.getRelationships(patient, header, enterer);
+		List<Relationship> currentRelationships = new ArrayList<Relationship>();
+		if (!newRelationships.isEmpty())
+			currentRelationships.addAll(Context.getPersonService().getRelationshipsByPerson(patient));
+		
+		for (Relationship newRelationship : newRelationships) {
 			boolean found = false;
-			for (Relationship rel : Context.getPersonService().getRelationshipsByPerson(patient)) {
+			for (Relationship rel : currentRelationships) {
 				// we want to use .equals() here instead of .equalsContent() because
 				// of the "voided" attribute needing to be included in the equalsContent
 				if (equalsContent(rel, newRelationship)) {
@@ -425,7 +509,7 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 			}
 
 			if (!found && newRelationship != null)
-				Context.getPersonService().saveRelationship(newRelationship);
+				currentRelationships.add(Context.getPersonService().saveRelationship(newRelationship));
 		}
 
 		// TODO add the program/workflow additions
@@ -433,6 +517,123 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 
 	}
 	
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#savePatientsForPendingQueues(java.util.List)
+	 */
+	public List<Patient> savePatientsForPendingQueues(List<RemoteFormEntryPendingQueue> pendingQueues) {
+		RemoteFormEntryPendingProcessor processor = new RemoteFormEntryPendingProcessor();
+		
+		List<Patient> patients = new ArrayList<Patient>(pendingQueues.size());
+		for (RemoteFormEntryPendingQueue pendingQueue : pendingQueues) {
+			try {
+				patients.add(processor.savePatient(pendingQueue));
+			}
+			catch (RuntimeException e) {
+				throw e;
+			}
+			catch (Exception e) {
+				// wrapped so that the transaction is rolled back
+				throw new RemoteFormEntryException("Unable to save the patient for: " + pendingQueue.getFileSystemUrl(), e);
+			}
+		}
+		
+		return patients;
+	}
+	
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#loadPatientIdentifierIndex()
+	 */
+	public void loadPatientIdentifierIndex() {
+		identifierIndex = dao.getPatientIdentifierIndex();
+	}
+
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#clearPatientIdentifierIndex()
+	 */
+	public void clearPatientIdentifierIndex() {
+		identifierIndex = null;
+	}
+
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#getPatientByIdentifier(java.lang.String,
+	 *      java.lang.Integer)
+	 */
+	public Patient getPatientByIdentifier(String identifier, Integer identifierTypeId) {
+		PatientService patientService = Context.getPatientService();
+
+		RemoteFormEntryIdentifierIndex index = identifierIndex;
+		if (index != null) {
+			Integer patientId = index.getPatientId(identifier, identifierTypeId);
+			if (patientId != null) {
+				Patient patient = patientService.getPatient(patientId);
+				if (patient != null)
+					return patient;
+
+				// the patient is gone (or its creation was rolled back) since it was indexed
+				index.remove(identifier, identifierTypeId);
+			}
+		}
+
+		// search the database for all patients with this identifier string
+		Patient found = null;
+		for (Patient p : patientService.getPatients(null, identifier, null, true)) {
+			// loop over this patient's identifiers to make sure they have this
+			// one _and_ this type.  if they do, great, its them.  if not, keep trying
+			for (PatientIdentifier patientIdentifier : p.getIdentifiers()) {
+				if (!patientIdentifier.isVoided() && patientIdentifier.getIdentifier().equals(identifier)
+				        && identifierTypeId.equals(patientIdentifier.getIdentifierType().getPatientIdentifierTypeId())) {
+					found = p;
+					break;
+				}
+			}
+		}
+
+		if (found != null && index != null)
+			index.put(identifier, identifierTypeId, found.getPatientId());
+
+		return found;
+	}
+
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#prefetchPatientsForPendingQueues(java.util.List)
+	 */
+	public void prefetchPatientsForPendingQueues(List<RemoteFormEntryPendingQueue> pendingQueues) {
+		RemoteFormEntryIdentifierIndex index = identifierIndex;
+		
+		Set<Integer> patientIds = new HashSet<Integer>();
+		Set<String> uuids = new HashSet<String>();
+		for (RemoteFormEntryPendingQueue pendingQueue : pendingQueues) {
+			RemoteFormEntryFormHeader header;
+			try {
+				header = pendingQueue.getFormHeader();
+			}
+			catch (RemoteFormEntryException e) {
+				continue;
+			}
+			
+			if (StringUtils.isNotBlank(header.getUuid()))
+				uuids.add(header.getUuid());
+			
+			if (index == null)
+				continue;
+			
+			for (RemoteFormEntryFormHeader.Section identifier : header.getIdentifiers()) {
+				try {
+					Integer patientId = index.getPatientId(identifier
+					        .get(RemoteFormEntryConstants.PATIENT_IDENTIFIER_IDENTIFIER), Integer.valueOf(identifier
+					        .get(RemoteFormEntryConstants.PATIENT_IDENTIFIER_TYPE)));
+					if (patientId != null)
+						patientIds.add(patientId);
+				}
+				catch (NumberFormatException e) {
+					// not a valid identifier type, the item will fail when processed
+				}
+			}
+		}
+		
+		dao.prefetchPatients(patientIds, uuids);
+	}
+	
 	/**
 	 * Compares personA's, personB's, and relationship type
 	 * 
@@ -451,6 +652,38 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 	 */
 	public void receiveGeneratedDataFromCentralForLocation(File generatedDataFile) {
 		synchronized (isGeneratingDataFile) {
+			restoreGeneratedFile(generatedDataFile);
+			RemoteFormEntryMetadataCache.clear();
+			RemoteFormEntrySettings.invalidate();
+		}
+	}
+	
+	/**
+	 * Load a file received from central into the database. Files written by the jdbc engine are
+	 * loaded a table per thread by the {@link ReturnDataRestorer}, anything else is run with the
+	 * mysql program
+	 * 
+	 * @param generatedDataFile the file to load
+	 */
+	private void restoreGeneratedFile(File generatedDataFile) {
+		boolean returnDataFile;
+		try {
+			returnDataFile = ReturnDataFormat.isReturnDataFile(generatedDataFile);
+		}
+		catch (IOException e) {
+			throw new RemoteFormEntryException("Unable to read the return data file: "
+			        + generatedDataFile.getAbsolutePath(), e);
+		}
+		
+		if (returnDataFile) {
+			int threads = RemoteFormEntrySettings.get().getInt(RemoteFormEntryConstants.GP_RESTORE_THREADS,
+			    RemoteFormEntryConstants.GP_RESTORE_THREADS_DEFAULT);
+			// the tables are dropped and loaded on other connections, which would wait for the
+			// locks this transaction holds on the tables it has read so far
+			dao.commitSession();
+			new ReturnDataRestorer(dao, threads).restore(generatedDataFile);
+		}
+		else {
 			dao.execGeneratedFile(generatedDataFile);
 		}
 	}
@@ -493,8 +726,12 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 				}
 			}
 			
-			// exec mysql again to run the script and overwrite the database?
-			dao.execGeneratedFile(generatedDataFile);
+			// overwrite the database with the one from central
+			restoreGeneratedFile(generatedDataFile);
+			
+			// the cached metadata is from the database that was just replaced
+			RemoteFormEntryMetadataCache.clear();
+			RemoteFormEntrySettings.invalidate();
             
 			// Clear the session so no ambiguous data gets saved at the end of
 			// the transaction
@@ -513,34 +750,12 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 			// rebuild all of the xsns after the data dump because they are most
 			// likely customized for this remote server
 			FormService formService = Context.getFormService();
-			Integer count = 0;
-			for (Form formObj : formService.getAllForms(false)) {
-				if (log.isDebugEnabled())
-					log.debug("Rebuilding form: " + formObj);
-				
-				try {
-					Object[] streamAndDir = FormEntryUtil.getCurrentXSN(formObj, false);
-					InputStream formStream = (InputStream) streamAndDir[0];
-					File tempDir = (File) streamAndDir[1];
-					if (formStream != null) {
-						PublishInfoPath.publishXSN(formStream);
-						count = count + 1;
-						try {
-							OpenmrsUtil.deleteDirectory(tempDir);
-						} catch (IOException ioe) {}
-						
-						try {
-							formStream.close();
-						} catch (IOException ioe) {}
-					}
-					else if (log.isDebugEnabled())
-						log.debug("Unable to rebuild form: " + formObj + " because the xsn stream is null");
-					
-				} 
-				catch (IOException ioe) {
-					log.warn("Unable to rebuild the xsn: " + formObj.getFormId());
-				}
-			}
+			List<Integer> formIds = new ArrayList<Integer>();
+			for (Form formObj : formService.getAllForms(false))
+				formIds.add(formObj.getFormId());
+			int threads = RemoteFormEntrySettings.get().getInt(RemoteFormEntryConstants.GP_XSN_REBUILD_THREADS,
+			    RemoteFormEntryConstants.GP_XSN_REBUILD_THREADS_DEFAULT);
+			Integer count = new XsnRebuilder(threads).rebuild(formIds);
 			if (log.isDebugEnabled())
 				log.debug(count + " xsn(s) rebuilt");
 			
@@ -584,19 +799,34 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 	 */
 	public void generateDataFile() {
 		synchronized (isGeneratingDataFile) {
-
-			File outFile = RemoteFormEntryUtil.getGeneratedReturnDataFile();
-
-			dao.generateDataFile(outFile);
+			RemoteFormEntrySettings settings = RemoteFormEntrySettings.get();
+			boolean delta = Boolean.valueOf(settings.getString(RemoteFormEntryConstants.GP_RETURN_DATA_DELTA,
+			    RemoteFormEntryConstants.GP_RETURN_DATA_DELTA_DEFAULT));
+			int threads = settings.getInt(RemoteFormEntryConstants.GP_GENERATION_THREADS,
+			    RemoteFormEntryConstants.GP_GENERATION_THREADS_DEFAULT);
 			
-			// loop over the user defined remote locations
-			for (Location location : RemoteFormEntryUtil.getRemoteLocations().keySet()) {
-				File outFolderForLocation = RemoteFormEntryUtil.getGeneratedReturnDataFolderForLocation(location);
-				dao.generateDataFileForLocation(outFolderForLocation, location);
-			}
+			new ReturnDataGenerator(dao, threads).generate(delta);
 		}
 	}
-
+	
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#getReturnDataGenerationJobs()
+	 */
+	public List<RemoteFormEntryJob> getReturnDataGenerationJobs() {
+		return ReturnDataGenerator.getLastRun();
+	}
+	
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#acknowledgeSyncMark(org.openmrs.Location, java.util.Date)
+	 */
+	public void acknowledgeSyncMark(Location location, Date mark) {
+		int count = dao.acknowledgeSyncMark(location, mark);
+		if (count == 0)
+			log.warn("Location " + location + " acknowledged unknown sync mark: " + mark.getTime());
+		else if (log.isDebugEnabled())
+			log.debug("Location " + location + " acknowledged sync mark " + mark.getTime() + " for " + count + " tables");
+	}
+	
 	/**
 	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#receiveAckDirFromCentral(java.io.File)
 	 */
@@ -704,17 +934,8 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#getLocationId()
 	 */
 	public Integer getLocationId() {
-		AdministrationService as = Context.getAdministrationService();
-		String id = as.getGlobalProperty(RemoteFormEntryConstants.GP_LOCATION_ID);
-
-		if (id != null && id.length() > 0) {
-			if (log.isDebugEnabled())
-				log.debug("Loaded location id from global properties: " + id);
-			return Integer.valueOf(id);
-		}
-
-		// return null if no location id was stored or not location was found
-		return null;
+		// null if no location id was stored
+		return RemoteFormEntrySettings.get().getLocationId();
 	}
 
 	/**
@@ -747,4 +968,52 @@ public class RemoteFormEntryServiceImpl implements RemoteFormEntryService {
 		formEntryService.createFormEntryQueue(queue);
 	}
 
+	/**
+	 * @see org.openmrs.module.remoteformentry.RemoteFormEntryService#createFormEntryQueueForPatient(org.openmrs.module.remoteformentry.RemoteFormEntryPendingQueue,
+	 *      org.openmrs.Patient)
+	 */
+	public void createFormEntryQueueForPatient(RemoteFormEntryPendingQueue pendingQueue, Patient patient) {
+		File pendingFile = null;
+		if (pendingQueue.getFileSystemUrl() != null)
+			pendingFile = new File(pendingQueue.getFileSystemUrl());
+		
+		if (pendingFile == null || !pendingFile.exists()) {
+			createFormEntryQueueForPatient(pendingQueue.getFormData(), patient);
+			return;
+		}
+		
+		File queueDir = FormEntryUtil.getFormEntryQueueDir();
+		File outFile = OpenmrsUtil.getOutFile(queueDir, new Date(), Context.getAuthenticatedUser());
+		
+		// written next to the queue dir and then moved in so that the formentry
+		// processor never picks up a partly written file
+		File tmpFile = new File(queueDir.getAbsoluteFile().getParentFile(), outFile.getName() + ".tmp");
+		
+		InputStream in = null;
+		OutputStream out = null;
+		try {
+			in = new FileInputStream(pendingFile);
+			out = new FileOutputStream(tmpFile);
+			
+			// add the possibly new patient_id to the document so the subsequent processing
+			// by the formentry processor finds the right patient
+			RemoteFormEntryUtil.replacePatientIdInStream(patient.getPatientId(), in, out);
+			
+			out.close();
+			out = null;
+			
+			if (!tmpFile.renameTo(outFile))
+				throw new IOException("Unable to move " + tmpFile + " to " + outFile);
+		}
+		catch (IOException io) {
+			throw new FormEntryException("Unable to save formentry queue", io);
+		}
+		finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+			if (tmpFile.exists())
+				tmpFile.delete();
+		}
+	}
+
 }
@@ -0,0 +1,245 @@
+package org.openmrs.module.remoteformentry.impl;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Location;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.remoteformentry.RemoteFormEntryArtifactStore;
+import org.openmrs.module.remoteformentry.RemoteFormEntryCodec;
+import org.openmrs.module.remoteformentry.RemoteFormEntryException;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJob;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJobGraph;
+import org.openmrs.module.remoteformentry.RemoteFormEntryReturnDataBundle;
+import org.openmrs.module.remoteformentry.RemoteFormEntryUtil;
+import org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO;
+import org.openmrs.module.remoteformentry.db.jdbc.ReturnDataFormat;
+
+/**
+ * Generates the return data for all of the remote locations as a {@link RemoteFormEntryJobGraph}:
+ *
+ * <pre>
+ * generatedReturnData ---------------------------------------------------+
+ * location: delta (if it has acknowledged marks) ------------------------+--> location: syncMark
+ * location: patients --> location: obs.sql, location: encounter.sql ----+
+ * generatedReturnData --> generatedReturnData.gz (if any location gets the whole dump) --+
+ * location: syncMark ------------------------------------------------------------------+--> location: bundle
+ * </pre>
+ *
+ * The tables of the generatedReturnData file are all read by one job, in one consistent snapshot of
+ * the database, so that the rows of one table never refer to rows the snapshot of another table
+ * doesn't have. Each location's files only depend on the location's own patients table, so all of
+ * the locations are generated side by side with it. The sync mark of a location is only saved once
+ * all of its files and the generatedReturnData file are written, and then the files of the
+ * {@link RemoteFormEntryReturnDataBundle} the location downloads are compressed. The
+ * generatedReturnData file is compressed by a job of its own, once for all of the locations.
+ */
+class ReturnDataGenerator {
+
+	private static final Log log = LogFactory.getLog(ReturnDataGenerator.class);
+
+	static final String TYPE = "generate";
+
+	private static volatile List<RemoteFormEntryJob> lastRun = Collections.emptyList();
+
+	private final RemoteFormEntryDAO dao;
+
+	private final int threads;
+
+	/**
+	 * @param dao the dao to generate the files with
+	 * @param threads the most jobs to run at the same time
+	 */
+	ReturnDataGenerator(RemoteFormEntryDAO dao, int threads) {
+		this.dao = dao;
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the jobs of the last generation, in the order they were planned
+	 */
+	static List<RemoteFormEntryJob> getLastRun() {
+		return lastRun;
+	}
+
+	/**
+	 * Generate the return data for every remote location and wait for it to finish
+	 *
+	 * @param delta true to only send each location what changed since its acknowledged sync marks
+	 * @throws RemoteFormEntryException if any of the jobs failed
+	 */
+	void generate(boolean delta) {
+		// rows that change from here on are left for the next return data
+		final Date mark = delta ? dao.getDatabaseTime() : null;
+		final Collection<String> changeTrackedTables = delta ? dao.getChangeTrackedTables() : null;
+
+		UserContext userContext = Context.getUserContext();
+		RemoteFormEntryJobGraph graph = new RemoteFormEntryJobGraph("remoteformentry-generate", threads);
+
+		final File outFile = RemoteFormEntryUtil.getGeneratedReturnDataFile();
+		RemoteFormEntryJob dump = graph.add(new Step(outFile.getName(), userContext) {
+
+			@Override
+			protected void execute() throws Exception {
+				dao.generateDataFile(outFile);
+				addBytesProcessed(outFile.length());
+			}
+		});
+
+		// compressed (once) for all of the locations that get the whole dump
+		RemoteFormEntryJob compress = null;
+
+		// loop over the user defined remote locations
+		Collection<Location> locations = RemoteFormEntryUtil.getRemoteLocations().keySet();
+		for (final Location location : locations) {
+			final File outFolder = RemoteFormEntryUtil.getGeneratedReturnDataFolderForLocation(location);
+			if (!outFolder.exists())
+				outFolder.mkdirs();
+			final File deltaFile = new File(outFolder, RemoteFormEntryUtil.GENERATED_DATA_FILENAME);
+			final File markFile = new File(outFolder, RemoteFormEntryUtil.SYNC_MARK_FILENAME);
+			deltaFile.delete();
+			markFile.delete();
+
+			Map<String, Date> acknowledged = delta ? dao.getAcknowledgedSyncMarks(location) : null;
+			// the site gets the whole database if it never acknowledged anything
+			final Map<String, Date> since = acknowledged == null || acknowledged.isEmpty() ? null : acknowledged;
+			String name = "location " + location.getLocationId() + ": ";
+
+			List<RemoteFormEntryJob> locationJobs = new ArrayList<RemoteFormEntryJob>();
+			locationJobs.add(dump);
+
+			if (since == null && compress == null) {
+				compress = graph.add(new Step(outFile.getName() + ".gz", userContext) {
+
+					@Override
+					protected void execute() throws Exception {
+						RemoteFormEntryArtifactStore.Artifact artifact = RemoteFormEntryArtifactStore.get().getArtifact(outFile,
+						    ReturnDataFormat.isReturnDataFile(outFile) ? RemoteFormEntryCodec.STORED : RemoteFormEntryCodec
+						            .getArchiveCodec());
+						addBytesProcessed(artifact.getFile().length());
+					}
+				}, dump);
+			}
+			else if (since != null) {
+				if (log.isDebugEnabled())
+					log.debug("Generating the return data for " + location + " since its sync marks: " + since);
+
+				locationJobs.add(graph.add(new Step(name + deltaFile.getName(), userContext) {
+
+					@Override
+					protected void execute() throws Exception {
+						dao.generateDeltaFile(deltaFile, since);
+						addBytesProcessed(deltaFile.length());
+					}
+				}));
+			}
+
+			RemoteFormEntryJob patients = graph.add(new Step(name + "patients", userContext) {
+
+				@Override
+				protected void execute() throws Exception {
+					dao.preparePatientsForLocation(location);
+				}
+			});
+			locationJobs.add(patients);
+
+			for (final String table : dao.getLocationTables()) {
+				locationJobs.add(graph.add(new Step(name + table + ".sql", userContext) {
+
+					@Override
+					protected void execute() throws Exception {
+						dao.generateLocationTableFile(outFolder, location, table, since);
+						addBytesProcessed(new File(outFolder, table + ".sql").length());
+					}
+				}, patients));
+			}
+
+			RemoteFormEntryJob syncMark = graph.add(new Step(name + markFile.getName(), userContext) {
+
+				@Override
+				protected void execute() throws Exception {
+					if (mark != null) {
+						// saves the location's patients along with the marks
+						dao.saveSyncMarks(location, changeTrackedTables, mark);
+						// this runs in a session of its own without a transaction around it, so
+						// the marks would be rolled back when the session is closed
+						dao.commitSession();
+						writeSyncMark(markFile, mark);
+					}
+				}
+			}, locationJobs.toArray(new RemoteFormEntryJob[] {}));
+
+			// compress it all now, so that the download doesn't have to
+			List<RemoteFormEntryJob> bundleJobs = new ArrayList<RemoteFormEntryJob>();
+			bundleJobs.add(syncMark);
+			if (since == null)
+				bundleJobs.add(compress);
+			graph.add(new Step(name + "bundle", userContext) {
+
+				@Override
+				protected void execute() throws Exception {
+					addBytesProcessed(RemoteFormEntryReturnDataBundle.build(location));
+				}
+			}, bundleJobs.toArray(new RemoteFormEntryJob[] {}));
+		}
+
+		int failures;
+		try {
+			failures = graph.run();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteFormEntryException("Interrupted while generating the return data", e);
+		}
+		finally {
+			lastRun = graph.getJobs();
+			// left until now for the sync marks, and dropped whether or not the jobs got that far
+			for (Location location : locations)
+				dao.dropPatientsForLocation(location);
+		}
+
+		if (failures > 0)
+			throw new RemoteFormEntryException(failures + " of the " + lastRun.size()
+			        + " return data jobs failed or were not run, see the log for why");
+	}
+
+	/**
+	 * Write the given sync mark (as milliseconds) to the given file
+	 */
+	private static void writeSyncMark(File markFile, Date mark) {
+		Writer writer = null;
+		try {
+			writer = new FileWriter(markFile);
+			writer.write(String.valueOf(mark.getTime()));
+		}
+		catch (IOException io) {
+			throw new RemoteFormEntryException("Unable to write the sync mark to: " + markFile.getAbsolutePath(), io);
+		}
+		finally {
+			IOUtils.closeQuietly(writer);
+		}
+	}
+
+	/**
+	 * One file of the return data
+	 */
+	private abstract static class Step extends RemoteFormEntryJob {
+
+		Step(String name, UserContext userContext) {
+			super(TYPE, name, userContext);
+		}
+	}
+
+}
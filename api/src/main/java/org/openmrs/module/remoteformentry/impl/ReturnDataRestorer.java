@@ -0,0 +1,150 @@
+package org.openmrs.module.remoteformentry.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.remoteformentry.RemoteFormEntryException;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJob;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJobGraph;
+import org.openmrs.module.remoteformentry.db.RemoteFormEntryDAO;
+import org.openmrs.module.remoteformentry.db.jdbc.ReturnDataImporter;
+
+/**
+ * Loads a return data file written by the jdbc engine into this remote server's database as a
+ * {@link RemoteFormEntryJobGraph}:
+ *
+ * <pre>
+ * verify table 1 .. verify table n --> verified --> table 1 .. table n
+ * </pre>
+ *
+ * Every section (table) of the file is checked side by side first, so that nothing is loaded from a
+ * damaged file. Then the tables are loaded side by side, each on a connection of its own with
+ * foreign key checks off. Sections of the same table are loaded one after the other, in the order
+ * they are in the file.<br/>
+ * <br/>
+ * How long each table took and how many rows it had is logged, and the phase of the job doing the
+ * restore shows how many tables are done.
+ */
+class ReturnDataRestorer {
+
+	private static final Log log = LogFactory.getLog(ReturnDataRestorer.class);
+
+	static final String TYPE = "restore";
+
+	private final RemoteFormEntryDAO dao;
+
+	private final int threads;
+
+	/**
+	 * @param dao the dao to load the tables with
+	 * @param threads the most tables to load at the same time
+	 */
+	ReturnDataRestorer(RemoteFormEntryDAO dao, int threads) {
+		this.dao = dao;
+		this.threads = threads;
+	}
+
+	/**
+	 * Load the given file and wait for it to finish
+	 *
+	 * @param file the return data file
+	 * @throws RemoteFormEntryException if the file is damaged or a table could not be loaded
+	 */
+	void restore(final File file) {
+		long start = System.currentTimeMillis();
+
+		List<ReturnDataImporter.Section> sections;
+		try {
+			sections = ReturnDataImporter.split(file);
+		}
+		catch (IOException e) {
+			throw new RemoteFormEntryException("Unable to read the return data file: " + file.getAbsolutePath(), e);
+		}
+
+		UserContext userContext = Context.getUserContext();
+		RemoteFormEntryJobGraph graph = new RemoteFormEntryJobGraph("restore " + file.getName(), threads);
+
+		List<RemoteFormEntryJob> verifyJobs = new ArrayList<RemoteFormEntryJob>();
+		for (final ReturnDataImporter.Section section : sections) {
+			verifyJobs.add(graph.add(new Step("verify " + section.getTable(), userContext) {
+
+				@Override
+				protected void execute() throws Exception {
+					FileInputStream in = new FileInputStream(file);
+					try {
+						in.getChannel().position(section.getOffset());
+						ReturnDataImporter.verifySection(in);
+					}
+					finally {
+						in.close();
+					}
+					addBytesProcessed(section.getLength());
+				}
+			}));
+		}
+
+		RemoteFormEntryJob verified = graph.add(new Step("verified", userContext) {
+
+			@Override
+			protected void execute() throws Exception {
+				// only here so that the tables wait for every section to be checked
+			}
+		}, verifyJobs.toArray(new RemoteFormEntryJob[] {}));
+
+		Map<String, RemoteFormEntryJob> lastJobByTable = new HashMap<String, RemoteFormEntryJob>();
+		for (final ReturnDataImporter.Section section : sections) {
+			RemoteFormEntryJob previous = lastJobByTable.get(section.getTable());
+			RemoteFormEntryJob[] dependsOn = previous == null ? new RemoteFormEntryJob[] { verified }
+			        : new RemoteFormEntryJob[] { verified, previous };
+
+			lastJobByTable.put(section.getTable(), graph.add(new Step(section.getTable(), userContext) {
+
+				@Override
+				protected void execute() throws Exception {
+					long tableStart = System.currentTimeMillis();
+					long rows = dao.loadReturnDataSection(file, section.getOffset());
+					addBytesProcessed(section.getLength());
+					setMessage(rows + " rows");
+					log.info("Loaded " + rows + " rows of " + section.getTable() + " in "
+					        + (System.currentTimeMillis() - tableStart) + "ms");
+				}
+			}, dependsOn));
+		}
+
+		int failures;
+		try {
+			failures = graph.run();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteFormEntryException("Interrupted while loading the return data", e);
+		}
+
+		if (failures > 0)
+			throw new RemoteFormEntryException(failures + " of the " + graph.getJobs().size() + " jobs loading "
+			        + file.getName() + " failed or were not run, see the log for why");
+
+		log.info("Loaded " + sections.size() + " tables from " + file.getName() + " on " + threads + " threads in "
+		        + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Checking or loading one section of the file
+	 */
+	private abstract static class Step extends RemoteFormEntryJob {
+
+		Step(String name, UserContext userContext) {
+			super(TYPE, name, userContext);
+		}
+	}
+
+}
@@ -0,0 +1,296 @@
+package org.openmrs.module.remoteformentry.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Concept;
+import org.openmrs.Field;
+import org.openmrs.Form;
+import org.openmrs.FormField;
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.Module;
+import org.openmrs.module.ModuleFactory;
+import org.openmrs.module.formentry.FormEntryService;
+import org.openmrs.module.formentry.FormEntryUtil;
+import org.openmrs.module.formentry.FormEntryXsn;
+import org.openmrs.module.formentry.PublishInfoPath;
+import org.openmrs.module.remoteformentry.RemoteFormEntryConstants;
+import org.openmrs.module.remoteformentry.RemoteFormEntryException;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJob;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJobGraph;
+import org.openmrs.module.remoteformentry.RemoteFormEntryUtil;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Rebuilds the xsns of the forms on this remote server after the data from central has been
+ * loaded, because they are most likely customized for this remote server. Each form is one job of
+ * a {@link RemoteFormEntryJobGraph}, so several forms are unpacked, rewritten and packed again at
+ * the same time.<br/>
+ * <br/>
+ * Rebuilding a form is skipped if nothing it is built from has changed since it was last published
+ * here: the form and its fields, the xsn stored for it, the formentry global properties and the
+ * version of the formentry module. A hash of those is kept for every form in
+ * {@link RemoteFormEntryConstants#PUBLISHED_XSN_FILENAME}, next to the other files of the module,
+ * so it is not replaced with the database. If the data from central brought its own copy of the
+ * xsn, the hash of the stored xsn is not the one that was published here and the form is rebuilt.
+ */
+class XsnRebuilder {
+
+	private static final Log log = LogFactory.getLog(XsnRebuilder.class);
+
+	static final String TYPE = "xsn";
+
+	private final int threads;
+
+	/**
+	 * @param threads the most forms to rebuild at the same time
+	 */
+	XsnRebuilder(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Rebuild the xsns of the given forms that have changed and wait for it to finish
+	 *
+	 * @param formIds the forms
+	 * @return the number of xsns rebuilt
+	 * @throws RemoteFormEntryException if a form could not be rebuilt for any reason other than its
+	 *             xsn not being readable
+	 */
+	int rebuild(List<Integer> formIds) {
+		long start = System.currentTimeMillis();
+
+		final File hashFile = new File(OpenmrsUtil.getDirectoryInApplicationDataDirectory("remoteformentry"),
+		        RemoteFormEntryConstants.PUBLISHED_XSN_FILENAME);
+		final Properties publishedHashes = readHashes(hashFile);
+		// only the forms that are published now are kept, Properties is synchronized
+		final Properties hashes = new Properties();
+		final String settings = getSettings();
+
+		final AtomicInteger rebuilt = new AtomicInteger();
+		final AtomicInteger unchanged = new AtomicInteger();
+
+		UserContext userContext = Context.getUserContext();
+		RemoteFormEntryJobGraph graph = new RemoteFormEntryJobGraph("rebuild xsns", threads);
+
+		for (final Integer formId : formIds) {
+			graph.add(new RemoteFormEntryJob(TYPE, "form " + formId, userContext) {
+
+				@Override
+				protected void execute() throws Exception {
+					String key = formId.toString();
+					Form form = Context.getFormService().getForm(formId);
+					String hash = getHash(form, settings);
+					if (hash.equals(publishedHashes.getProperty(key))) {
+						hashes.setProperty(key, hash);
+						unchanged.incrementAndGet();
+						setMessage("unchanged");
+						return;
+					}
+
+					if (log.isDebugEnabled())
+						log.debug("Rebuilding form: " + form);
+
+					try {
+						Object[] streamAndDir = FormEntryUtil.getCurrentXSN(form, false);
+						InputStream formStream = (InputStream) streamAndDir[0];
+						File tempDir = (File) streamAndDir[1];
+						if (formStream == null) {
+							if (log.isDebugEnabled())
+								log.debug("Unable to rebuild form: " + form + " because the xsn stream is null");
+							return;
+						}
+
+						try {
+							PublishInfoPath.publishXSN(formStream);
+						}
+						finally {
+							try {
+								OpenmrsUtil.deleteDirectory(tempDir);
+							}
+							catch (IOException ioe) {}
+
+							try {
+								formStream.close();
+							}
+							catch (IOException ioe) {}
+						}
+					}
+					catch (IOException ioe) {
+						log.warn("Unable to rebuild the xsn: " + formId);
+						return;
+					}
+					rebuilt.incrementAndGet();
+					setMessage("rebuilt");
+
+					// the next sync is compared with the form and the xsn as they were published
+					Context.clearSession();
+					hashes.setProperty(key, getHash(Context.getFormService().getForm(formId), settings));
+				}
+			});
+		}
+
+		int failures;
+		try {
+			failures = graph.run();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteFormEntryException("Interrupted while rebuilding the xsns", e);
+		}
+		finally {
+			writeHashes(hashes, hashFile);
+		}
+
+		if (failures > 0)
+			throw new RemoteFormEntryException(failures + " of the " + formIds.size()
+			        + " forms could not be rebuilt, see the log for why");
+
+		log.info("Rebuilt " + rebuilt + " xsn(s), " + unchanged + " unchanged, on " + threads + " threads in "
+		        + (System.currentTimeMillis() - start) + "ms");
+		return rebuilt.get();
+	}
+
+	/**
+	 * @return what every xsn is built from besides its own form: the formentry global properties
+	 *         and the version of the formentry module
+	 */
+	private static String getSettings() {
+		List<GlobalProperty> properties = new ArrayList<GlobalProperty>(Context.getAdministrationService()
+		        .getGlobalPropertiesByPrefix("formentry."));
+		Collections.sort(properties, new Comparator<GlobalProperty>() {
+
+			public int compare(GlobalProperty gp1, GlobalProperty gp2) {
+				return gp1.getProperty().compareTo(gp2.getProperty());
+			}
+		});
+
+		StringBuilder settings = new StringBuilder();
+		Module formentry = ModuleFactory.getModuleById("formentry");
+		if (formentry != null)
+			settings.append(formentry.getVersion());
+		settings.append('\n');
+		for (GlobalProperty gp : properties)
+			settings.append(gp.getProperty()).append('=').append(gp.getPropertyValue()).append('\n');
+		return settings.toString();
+	}
+
+	/**
+	 * @return a hex hash of everything the xsn of the given form is built from
+	 */
+	private static String getHash(Form form, String settings) throws IOException {
+		StringBuilder inputs = new StringBuilder(settings);
+		inputs.append(form.getFormId()).append('|').append(form.getName()).append('|').append(form.getVersion())
+		        .append('|').append(form.getBuild()).append('|').append(getTime(form.getDateChanged())).append('\n');
+
+		List<FormField> formFields = new ArrayList<FormField>();
+		if (form.getFormFields() != null)
+			formFields.addAll(form.getFormFields());
+		Collections.sort(formFields, new Comparator<FormField>() {
+
+			public int compare(FormField ff1, FormField ff2) {
+				return ff1.getFormFieldId().compareTo(ff2.getFormFieldId());
+			}
+		});
+		for (FormField formField : formFields) {
+			inputs.append(formField.getFormFieldId()).append('|');
+			inputs.append(formField.getParent() == null ? null : formField.getParent().getFormFieldId()).append('|');
+			inputs.append(formField.getFieldNumber()).append('|').append(formField.getFieldPart()).append('|');
+			inputs.append(formField.getPageNumber()).append('|').append(formField.getMinOccurs()).append('|');
+			inputs.append(formField.getMaxOccurs()).append('|').append(formField.getRequired()).append('|');
+			inputs.append(formField.getSortWeight()).append('|').append(getTime(formField.getDateChanged()));
+
+			Field field = formField.getField();
+			inputs.append('|').append(field.getFieldId()).append('|').append(getTime(field.getDateChanged()));
+			Concept concept = field.getConcept();
+			if (concept != null)
+				inputs.append('|').append(concept.getConceptId()).append('|').append(getTime(concept.getDateChanged()));
+			inputs.append('\n');
+		}
+
+		MessageDigest digest = newSha1();
+		digest.update(inputs.toString().getBytes("UTF-8"));
+		FormEntryXsn xsn = ((FormEntryService) Context.getService(FormEntryService.class)).getFormEntryXsn(form);
+		if (xsn != null && xsn.getXsnData() != null)
+			digest.update(xsn.getXsnData());
+		return toHex(digest.digest());
+	}
+
+	private static Long getTime(Date date) {
+		return date == null ? null : date.getTime();
+	}
+
+	private static Properties readHashes(File file) {
+		Properties properties = new Properties();
+		if (file.exists()) {
+			try {
+				InputStream in = new FileInputStream(file);
+				try {
+					properties.load(in);
+				}
+				finally {
+					in.close();
+				}
+			}
+			catch (IOException e) {
+				// every form is rebuilt
+				log.warn("Unable to read the hashes of the published xsns: " + file.getAbsolutePath(), e);
+			}
+		}
+		return properties;
+	}
+
+	private static void writeHashes(Properties properties, File file) {
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(tempFile);
+			try {
+				properties.store(out, null);
+			}
+			finally {
+				out.close();
+			}
+			RemoteFormEntryUtil.moveFile(tempFile, file);
+		}
+		catch (IOException e) {
+			// every form is rebuilt next time
+			log.warn("Unable to write the hashes of the published xsns: " + file.getAbsolutePath(), e);
+		}
+	}
+
+	private static MessageDigest newSha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RemoteFormEntryException("SHA-1 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+}
@@ -0,0 +1,232 @@
+package org.openmrs.module.remoteformentry.web;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.remoteformentry.RemoteFormEntryChunkedUpload;
+import org.openmrs.module.remoteformentry.RemoteFormEntryConstants;
+import org.openmrs.module.remoteformentry.RemoteFormEntryException;
+import org.openmrs.module.remoteformentry.RemoteFormEntryImportJob;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJob;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJobManager;
+import org.openmrs.module.remoteformentry.RemoteFormEntryReceiveJob;
+import org.openmrs.util.OpenmrsUtil;
+
+/**
+ * Resumable upload of queue zips (to central) and return data zips (to a remote site) for sites on
+ * links that drop. The client picks an upload id and sends the file as a series of chunks:
+ *
+ * <pre>
+ * GET    ?uploadId=x                     how many bytes have been received, to resume from
+ * POST   ?uploadId=x&amp;target=import|receive&amp;filename=f&amp;offset=n&amp;totalSize=t&amp;md5=m[&amp;fileMd5=m]
+ *        with the raw bytes of the chunk as the (application/octet-stream) request body, so the
+ *        parameters have to be in the query string
+ * DELETE ?uploadId=x                     abandon the upload
+ * </pre>
+ *
+ * When the last chunk is in (and the md5 of the whole file matches fileMd5, if given) the file is
+ * moved to the import or receive directory and the same background job as the upload forms use is
+ * started. Replies are json with the received bytes and, once complete, the job id. The last chunk
+ * sent again after the upload was completed gets the same job id back, any other chunk starts a
+ * new upload under the same id.
+ *
+ * @see RemoteFormEntryChunkedUpload
+ * @see JobStatusServlet
+ */
+public class ChunkedUploadServlet extends HttpServlet {
+
+	public static final long serialVersionUID = 1238934235L;
+
+	private static final Log log = LogFactory.getLog(ChunkedUploadServlet.class);
+
+	private static final String TARGET_IMPORT = "import";
+
+	private static final String TARGET_RECEIVE = "receive";
+
+	/**
+	 * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!isAllowed(request, response, null))
+			return;
+
+		RemoteFormEntryChunkedUpload upload = getUpload(request, response);
+		if (upload != null)
+			writeStatus(response, upload.getReceivedBytes(), upload.getJobId());
+	}
+
+	/**
+	 * @see javax.servlet.http.HttpServlet#doDelete(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	protected void doDelete(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!isAllowed(request, response, null))
+			return;
+
+		RemoteFormEntryChunkedUpload upload = getUpload(request, response);
+		if (upload != null) {
+			upload.discard();
+			writeStatus(response, 0, null);
+		}
+	}
+
+	/**
+	 * @see javax.servlet.http.HttpServlet#doPost(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String target = request.getParameter("target");
+		if (!TARGET_IMPORT.equals(target) && !TARGET_RECEIVE.equals(target)) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "target must be import or receive");
+			return;
+		}
+
+		if (!isAllowed(request, response, target))
+			return;
+
+		RemoteFormEntryChunkedUpload upload = getUpload(request, response);
+		if (upload == null)
+			return;
+
+		String filename = request.getParameter("filename");
+		long offset;
+		long totalSize;
+		try {
+			offset = Long.parseLong(request.getParameter("offset"));
+			totalSize = Long.parseLong(request.getParameter("totalSize"));
+		}
+		catch (NumberFormatException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "offset and totalSize are required numbers");
+			return;
+		}
+		if (filename == null || filename.trim().length() == 0) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "filename is required");
+			return;
+		}
+
+		long received;
+		try {
+			received = upload.writeChunk(offset, request.getInputStream(), request.getParameter("md5"), totalSize);
+		}
+		catch (RemoteFormEntryException e) {
+			// bad checksum, a gap or past the end, the client should resend from what we have
+			log.warn(e.getMessage());
+			response.setStatus(HttpServletResponse.SC_CONFLICT);
+			writeStatus(response, upload.getReceivedBytes(), null);
+			return;
+		}
+
+		if (received < totalSize) {
+			writeStatus(response, received, null);
+			return;
+		}
+
+		// the last chunk may be sent again if the reply to it was lost, or race a resend of
+		// itself.  Only the first one completes the upload, the others get its job
+		synchronized (upload.getLock()) {
+			if (upload.isComplete()) {
+				writeStatus(response, upload.getReceivedBytes(), upload.getJobId());
+				return;
+			}
+
+			String fileMd5 = request.getParameter("fileMd5");
+			if (fileMd5 != null && !fileMd5.trim().equalsIgnoreCase(upload.getMd5())) {
+				log.warn("Upload " + upload.getUploadId() + " of " + filename + " does not match its md5, starting over");
+				upload.discard();
+				response.setStatus(HttpServletResponse.SC_CONFLICT);
+				writeStatus(response, 0, null);
+				return;
+			}
+
+			// only the name, the client doesn't get to pick the directory
+			filename = new File(filename).getName();
+
+			File file;
+			RemoteFormEntryJob job;
+			if (TARGET_IMPORT.equals(target)) {
+				file = new File(getDirectory(RemoteFormEntryConstants.IMPORT_DIRECTORY_NAME), filename);
+				job = new RemoteFormEntryImportJob(file);
+			}
+			else {
+				file = new File(getDirectory(RemoteFormEntryConstants.RECEIVE_FILES_DIRECTORY_NAME), filename);
+				job = new RemoteFormEntryReceiveJob(file);
+			}
+
+			// the upload is only marked complete once its job is queued, so a failure on the way
+			// leaves it to be completed again by the next resend of the last chunk
+			upload.complete(file);
+			String jobId;
+			try {
+				jobId = RemoteFormEntryJobManager.submit(job);
+			}
+			catch (RuntimeException e) {
+				upload.reopen(file);
+				throw e;
+			}
+			upload.markComplete(jobId);
+			writeStatus(response, received, jobId);
+		}
+	}
+
+	/**
+	 * Check that the user is logged in and may upload to the given target (any target if null)
+	 */
+	private boolean isAllowed(HttpServletRequest request, HttpServletResponse response, String target) throws IOException {
+		if (Context.isAuthenticated() == false) {
+			response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			return false;
+		}
+
+		boolean canImport = Context.hasPrivilege(RemoteFormEntryConstants.PRIV_IMPORT_REMOTE_FORM_ENTRY);
+		boolean canReceive = Context.hasPrivilege(RemoteFormEntryConstants.PRIV_RECEIVE_DATA_REMOTE_FORM_ENTRY);
+		boolean allowed;
+		if (TARGET_IMPORT.equals(target))
+			allowed = canImport;
+		else if (TARGET_RECEIVE.equals(target))
+			allowed = canReceive;
+		else
+			allowed = canImport || canReceive;
+
+		if (!allowed)
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+		return allowed;
+	}
+
+	private RemoteFormEntryChunkedUpload getUpload(HttpServletRequest request, HttpServletResponse response)
+	        throws IOException {
+		try {
+			return new RemoteFormEntryChunkedUpload(getDirectory(RemoteFormEntryConstants.UPLOAD_DIRECTORY_NAME), request
+			        .getParameter("uploadId"));
+		}
+		catch (RemoteFormEntryException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return null;
+		}
+	}
+
+	private File getDirectory(String name) {
+		File remoteFormEntryDirectory = OpenmrsUtil.getDirectoryInApplicationDataDirectory("remoteformentry");
+		File dir = new File(remoteFormEntryDirectory, name);
+		if (!dir.exists())
+			dir.mkdir();
+		return dir;
+	}
+
+	private void writeStatus(HttpServletResponse response, long receivedBytes, String jobId) throws IOException {
+		response.setContentType("application/json");
+		response.setHeader("Cache-Control", "no-cache");
+		StringBuilder json = new StringBuilder("{\"receivedBytes\":").append(receivedBytes);
+		json.append(",\"complete\":").append(jobId != null);
+		if (jobId != null)
+			json.append(",\"jobId\":\"").append(jobId).append('"');
+		json.append('}');
+		response.getWriter().write(json.toString());
+	}
+
+}
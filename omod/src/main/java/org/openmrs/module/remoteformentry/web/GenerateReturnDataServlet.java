@@ -11,6 +11,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJob;
 import org.openmrs.module.remoteformentry.RemoteFormEntryService;
 import org.openmrs.web.WebConstants;
 
@@ -57,6 +58,14 @@ public class GenerateReturnDataServlet extends HttpServlet {
 		response.getOutputStream().println(" Start time: " + startTime);
 		response.getOutputStream().println(" End time: " + endTime);
 		
+		// how long each file took
+		response.getOutputStream().println();
+		for (RemoteFormEntryJob job : remoteService.getReturnDataGenerationJobs()) {
+			response.getOutputStream().println(" " + job.getFilename() + ": " + job.getStatus() + " in "
+			        + job.getElapsedMillis() + "ms, " + job.getBytesProcessed() + " bytes"
+			        + (job.getMessage() == null ? "" : " (" + job.getMessage() + ")"));
+		}
+		
 	}
 
 }
@@ -0,0 +1,144 @@
+package org.openmrs.module.remoteformentry.web;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.module.remoteformentry.RemoteFormEntryConstants;
+import org.openmrs.module.remoteformentry.RemoteFormEntryImportJob;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJob;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJobManager;
+import org.openmrs.module.remoteformentry.RemoteFormEntryReceiveJob;
+
+/**
+ * Reports the progress of the background import and receive jobs as json so that the pages that
+ * started them can poll it.<br/>
+ * <br/>
+ * With a <code>jobId</code> parameter the one job is returned, otherwise a list of all known jobs,
+ * optionally limited to those with the given <code>type</code>. Only the jobs of the types the user
+ * may start are shown: imports need the import privilege, receives the receive privilege.
+ */
+public class JobStatusServlet extends HttpServlet {
+
+	public static final long serialVersionUID = 1238934234L;
+
+	/**
+	 * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (Context.isAuthenticated() == false) {
+			response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+			return;
+		}
+
+		String type = request.getParameter("type");
+		boolean allowed;
+		if (type != null)
+			allowed = mayView(type);
+		else
+			allowed = mayView(RemoteFormEntryImportJob.TYPE) || mayView(RemoteFormEntryReceiveJob.TYPE);
+		if (!allowed) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+
+		String jobId = request.getParameter("jobId");
+		if (jobId != null) {
+			RemoteFormEntryJob job = RemoteFormEntryJobManager.getJob(jobId);
+			if (job == null || !mayView(job.getType())) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND, "No job with id: " + jobId);
+				return;
+			}
+			PrintWriter writer = response.getWriter();
+			writeJob(writer, job);
+		}
+		else {
+			List<RemoteFormEntryJob> jobs = new ArrayList<RemoteFormEntryJob>();
+			for (RemoteFormEntryJob job : RemoteFormEntryJobManager.getJobs(type)) {
+				if (mayView(job.getType()))
+					jobs.add(job);
+			}
+			PrintWriter writer = response.getWriter();
+			writer.write('[');
+			for (int i = 0; i < jobs.size(); i++) {
+				if (i > 0)
+					writer.write(',');
+				writeJob(writer, jobs.get(i));
+			}
+			writer.write(']');
+		}
+	}
+
+	/**
+	 * @return true if the user has the privilege needed to start jobs of the given type
+	 */
+	private boolean mayView(String type) {
+		if (RemoteFormEntryImportJob.TYPE.equals(type))
+			return Context.hasPrivilege(RemoteFormEntryConstants.PRIV_IMPORT_REMOTE_FORM_ENTRY);
+		if (RemoteFormEntryReceiveJob.TYPE.equals(type))
+			return Context.hasPrivilege(RemoteFormEntryConstants.PRIV_RECEIVE_DATA_REMOTE_FORM_ENTRY);
+		return false;
+	}
+
+	private void writeJob(PrintWriter writer, RemoteFormEntryJob job) {
+		writer.write('{');
+		writeField(writer, "jobId", job.getJobId());
+		writer.write(',');
+		writeField(writer, "type", job.getType());
+		writer.write(',');
+		writeField(writer, "filename", job.getFilename());
+		writer.write(',');
+		writeField(writer, "status", job.getStatus().name());
+		writer.write(',');
+		writeField(writer, "phase", job.getPhase());
+		writer.write(',');
+		writeField(writer, "message", job.getMessage());
+		writer.write(",\"bytesProcessed\":" + job.getBytesProcessed());
+		writer.write(",\"entriesExtracted\":" + job.getEntriesExtracted());
+		writer.write(",\"ackLinesWritten\":" + job.getAckLinesWritten());
+		writer.write(",\"elapsedMillis\":" + job.getElapsedMillis());
+		writer.write(",\"dateQueued\":" + toMillis(job.getDateQueued()));
+		writer.write(",\"dateStarted\":" + toMillis(job.getDateStarted()));
+		writer.write(",\"dateFinished\":" + toMillis(job.getDateFinished()));
+		writer.write('}');
+	}
+
+	private String toMillis(Date date) {
+		return date == null ? "null" : String.valueOf(date.getTime());
+	}
+
+	private void writeField(PrintWriter writer, String name, String value) {
+		writer.write('"');
+		writer.write(name);
+		writer.write("\":");
+		if (value == null) {
+			writer.write("null");
+			return;
+		}
+
+		writer.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				writer.write("\\" + c);
+			else if (c < 0x20)
+				writer.write(String.format("\\u%04x", (int) c));
+			else
+				writer.write(c);
+		}
+		writer.write('"');
+	}
+
+}
@@ -1,11 +1,14 @@
 package org.openmrs.module.remoteformentry.web;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.zip.ZipEntry;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 import java.util.zip.ZipOutputStream;
 
 import javax.servlet.ServletException;
@@ -14,20 +17,25 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Location;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.formentry.FormEntryQueue;
-import org.openmrs.module.formentry.FormEntryService;
+import org.openmrs.module.formentry.FormEntryUtil;
+import org.openmrs.module.remoteformentry.RemoteFormEntryCodec;
 import org.openmrs.module.remoteformentry.RemoteFormEntryConstants;
 import org.openmrs.module.remoteformentry.RemoteFormEntryException;
+import org.openmrs.module.remoteformentry.RemoteFormEntryImporter;
 import org.openmrs.module.remoteformentry.RemoteFormEntryPendingQueue;
+import org.openmrs.module.remoteformentry.RemoteFormEntryQueueExporter;
 import org.openmrs.module.remoteformentry.RemoteFormEntryService;
+import org.openmrs.module.remoteformentry.RemoteFormEntrySettings;
 import org.openmrs.module.remoteformentry.RemoteFormEntryUtil;
 import org.openmrs.util.OpenmrsUtil;
 import org.openmrs.web.WebConstants;
-import org.openmrs.web.WebUtil;
 
 /**
  * Downloads all FormEntryQueue items in a zipped form.  All zipped queue items
@@ -35,12 +43,30 @@ import org.openmrs.web.WebUtil;
  * 
  * The zipped queue items are meant to be taken to another server and uploaded 
  * and processed using the same RemoteFormEntryForm that this 
+ * 
+ * The zip is written straight to the response as it is built.  A copy is written 
+ * to the export directory at the same time unless the 
+ * {@link RemoteFormEntryConstants#GP_EXPORT_KEEP_COPY} global property is false 
+ * 
+ * The zip is compressed with the {@link RemoteFormEntryCodec} of the 
+ * {@link RemoteFormEntryConstants#GP_ARCHIVE_CODEC} global property 
+ * 
+ * The names of the zipped items are written to a list in the remoteformentry directory 
+ * before they are moved.  If the moves don't all happen, the next download finishes them 
+ * first, so the items aren't sent to central a second time 
  */
 public class QueueDownloadServlet extends HttpServlet {
 
 	public static final long serialVersionUID = 123423L;
 
 	private static final Log log = LogFactory.getLog(QueueDownloadServlet.class);
+	
+	private static final int EXPORT_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * suffix of the list of the items in a finished zip that still have to be moved
+	 */
+	private static final String EXPORTED_LIST_SUFFIX = ".exported";
 
 	/**
 	 * @see javax.servlet.http.HttpServlet#doPost(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
@@ -58,6 +84,10 @@ public class QueueDownloadServlet extends HttpServlet {
 		
 		log.debug("Getting formentry queue items");
 		
+		File outputFile = null;
+		OutputStream zipFileOutputStream = null;
+		boolean finished = false;
+		int moved = 0;
 		try {
 			// get the defined location for this remote site
 			RemoteFormEntryService remoteService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
@@ -74,146 +104,157 @@ public class QueueDownloadServlet extends HttpServlet {
 				exportDirectory.mkdir();
 			}
 			
+			// items of an earlier zip that didn't make it to the pending queue
+			File queueDir = FormEntryUtil.getFormEntryQueueDir();
+			finishExportedLists(remoteService, remoteFormEntryDirectory, queueDir);
+			
+			// only the names of the queue files are listed up front.  The queue items 
+			// themselves are made a page at a time
+			String[] queueFilenames = queueDir.list();
+			
+			// they clicked the button and there aren't any queue items
+			if (queueFilenames == null || queueFilenames.length < 1)
+				throw new RemoteFormEntryException("There are no queue items available at this time.  Perhaps they were downloaded already?");
+			
+			Arrays.sort(queueFilenames);
+			
 			// set up the response so the user/browser doesn't get ancy while waiting 
 			// for the zip file to be generated
 			response.setHeader("Content-Type", "application/zip");
 			String outputFilename = "formEntryQueues-from-remote-site-" + RemoteFormEntryUtil.getDownloadSuffix(location);
 			response.setHeader("Content-Disposition", "attachment; filename=" + outputFilename + ".zip");
 			
-			File outputFile = new File(exportDirectory, outputFilename + ".zip");
-			FileOutputStream zipFileOutputStream = new FileOutputStream(outputFile);
-			ZipOutputStream zos	= new ZipOutputStream(zipFileOutputStream);
-			FormEntryService fs	= (FormEntryService)Context.getService(FormEntryService.class);
-			
-			Collection<FormEntryQueue> queueItems = fs.getFormEntryQueues();
+			// the zip goes straight to the user as it is built.  The copy in the export 
+			// directory is written in the same pass instead of being read back afterwards
+			OutputStream out = response.getOutputStream();
+			String keepCopy = RemoteFormEntrySettings.get().getString(RemoteFormEntryConstants.GP_EXPORT_KEEP_COPY,
+			    RemoteFormEntryConstants.GP_EXPORT_KEEP_COPY_DEFAULT);
+			if (Boolean.valueOf(keepCopy.trim())) {
+				outputFile = new File(exportDirectory, outputFilename + ".zip");
+				zipFileOutputStream = new FileOutputStream(outputFile);
+				out = new TeeOutputStream(out, zipFileOutputStream);
+			}
+			ZipOutputStream zos	= new ZipOutputStream(new BufferedOutputStream(out, EXPORT_BUFFER_SIZE));
+			RemoteFormEntryCodec codec = RemoteFormEntryCodec.getArchiveCodec();
+			zos.setLevel(codec.getLevel());
+			zos.setComment(codec.getComment());
 			
-			// they clicked the button and there aren't any queue items
-			if (queueItems.size() < 1)
-				throw new RemoteFormEntryException("There are no queue items available at this time.  Perhaps they were downloaded already?");
+			int pageSize = RemoteFormEntrySettings.get().getInt(RemoteFormEntryConstants.GP_EXPORT_PAGE_SIZE,
+			    RemoteFormEntryConstants.GP_EXPORT_PAGE_SIZE_DEFAULT);
 			
-			 byte[] buf = new byte[1024];
-			 
-			 int cleanupInterval = 200;
-			 int counter = 0;
-
-			// loop over all queue items and add each to the zip file.  The
-			// zip file is stored on disk in a tmp folder and then downloaded to 
-			// prevent all of that backed up into java memory
-			for (FormEntryQueue queueItem : queueItems) {
-
-				String fileSystemUrl = queueItem.getFileSystemUrl();
-				
-				// if file is on the filesystem, do the zipping in this memory conscious way
-				if (fileSystemUrl != null) {
-					
-					String filename = WebUtil.stripFilename(queueItem.getFileSystemUrl());
-					
-					if (log.isDebugEnabled())
-						log.debug("Writing filesystem file to zip file: " + fileSystemUrl);
-					
-					FileInputStream in = new FileInputStream(fileSystemUrl);
-				    
-		            // Add ZIP entry to output stream.
-					zos.putNextEntry(new ZipEntry(filename));
-		    
-		            // Transfer bytes from the file to the ZIP file
-		            int len;
-		            while ((len = in.read(buf)) > 0) {
-		            	zos.write(buf, 0, len);
-		            }
-		            
-		         // Complete the entry
-					zos.closeEntry();
-		            in.close();
-		            
-				}
-				else {
-					// there is no filesystem url...so we're operating on a string for some reason
-
-					// formData of queue
-					String formData = queueItem.getFormData();
-			        
-					byte [] uncompressedBytes = formData.getBytes();
-			        
-					String filename = WebUtil.stripFilename(fileSystemUrl);
-					
-					if (log.isDebugEnabled())
-						log.debug("Zipping queue item: " + filename);
-					
-					// name this entry the same as the queue item
-			        ZipEntry zipEntry = new ZipEntry(filename);
-			        
-			        // Add ZIP entry to output stream.
-		            zos.putNextEntry(zipEntry);
-		    
-		            // Transfer bytes from the formData to the ZIP file
-		            zos.write(uncompressedBytes, 0, uncompressedBytes.length);
-		            
-		            zos.closeEntry();
-				}
-								
-				if (counter++ > cleanupInterval) {
-					counter = 0;
-					System.gc();
-				}
-	            
-			}
+			// the queue is zipped a page at a time.  Only the names of the exported files are 
+			// kept until the zip is finished
+			RemoteFormEntryQueueExporter exporter = new RemoteFormEntryQueueExporter(queueDir, queueFilenames, pageSize);
+			exporter.export(zos, codec);
 			
 			// add location id file to the zip
 			String filename = "locationId-" + locationId;
-			ZipEntry zipEntry = new ZipEntry(filename);
-			byte[] filenameBytes = filename.getBytes();
-	        
-		    // Add ZIP entry to output stream.
-	        zos.putNextEntry(zipEntry);
+	        RemoteFormEntryQueueExporter.putEntry(zos, filename, filename.getBytes(), codec);
 	        
-	        // Add the location file content to the ZIP file
-	        zos.write(filenameBytes, 0, filenameBytes.length);
-	        zos.closeEntry();
-			
-			// loop over queue items and move them to the archive
-			for (FormEntryQueue queueItem : queueItems) {
-				// move the queueItem to the remote entry pending queue
-				RemoteFormEntryPendingQueue pendingQueue = new RemoteFormEntryPendingQueue();
-				pendingQueue.setFormData(queueItem.getFormData());
-				pendingQueue.setCreator(queueItem.getCreator());
-				pendingQueue.setDateCreated(queueItem.getDateCreated());
-				pendingQueue.setFileSystemUrl(queueItem.getFileSystemUrl()); // so that when creating it, it uses the same filename as was passed to central
-				remoteService.createRemoteFormEntryPendingQueue(pendingQueue);
-				log.debug("Done creating remote pending queue item: " + pendingQueue.getFileSystemUrl());
-				
-				// delete the queue item so its not downloaded again
-				fs.deleteFormEntryQueue(queueItem);
-				log.debug("Deleted queue item: " + queueItem.getFileSystemUrl());
-				
-				if (counter++ > cleanupInterval) {
-					counter = 0;
-					System.gc();
-				}
-				
-			}
+	        // tell central which return data was applied here last so it only sends what changed since
+	        String syncMark = RemoteFormEntrySettings.get().getString(RemoteFormEntryConstants.GP_APPLIED_SYNC_MARK, "").trim();
+	        if (syncMark.length() > 0)
+	        	RemoteFormEntryQueueExporter.putEntry(zos, RemoteFormEntryImporter.SYNC_MARK_PREFIX + syncMark, new byte[0], codec);
 			
-			log.debug("Closing zos");
-			zos.close();
 			// after downloading, redirect the user back to the same page so the # of queue items refreshes
 			// redirect must be done in javascript/html in order to have the zip printed to the output stream
+			log.debug("Closing zos");
+			zos.close();
+			finished = true;
 			
-			// close the file for writing so that we can read from it
-			zipFileOutputStream.close();
-			
-			// set the size on the response so the user knows how much is to
-			// be downloaded and how much is left to go
-			response.setContentLength((int)outputFile.length());
+			// the items only leave the formentry queue once the whole zip has been sent.  If
+			// the download fails part way they are all still in the queue to be downloaded again
+			List<String> exportedNames = new ArrayList<String>();
+			for (File queueFile : exporter.getExportedFiles())
+				exportedNames.add(queueFile.getName());
+			File exportedList = writeExportedList(remoteFormEntryDirectory, outputFilename, exportedNames);
 			
-			// copy the file to the user's request
-			FileInputStream tmpFileInputStream = new FileInputStream(outputFile);
-			OpenmrsUtil.copyFile(tmpFileInputStream, response.getOutputStream());
-			tmpFileInputStream.close();
+			for (File queueFile : exporter.getExportedFiles()) {
+				moveToPendingQueue(remoteService, queueFile);
+				moved++;
+			}
+			exportedList.delete();
 			
 		}
 		catch (Throwable t) {
 			log.error("Error while downloading queue items", t);
+			if (moved > 0 && outputFile != null)
+				log.error(moved + " queue item(s) were moved to the pending queue, the zip holding them is kept at: "
+				        + outputFile.getAbsolutePath() + ".  The rest of them are moved by the next download");
+		}
+		finally {
+			IOUtils.closeQuietly(zipFileOutputStream);
+			
+			// don't leave a truncated zip in the export directory.  Once an item has been moved 
+			// the zip is complete and may be the only copy of it, so it is never deleted then
+			if (!finished && moved == 0 && outputFile != null && outputFile.exists())
+				outputFile.delete();
+		}
+	}
+	
+	/**
+	 * Write the names of the items in a finished zip to a list in the given directory, so that 
+	 * the next download can finish moving them if they don't all get moved now 
+	 * 
+	 * @return the list
+	 */
+	private File writeExportedList(File directory, String outputFilename, List<String> names) throws IOException {
+		File list = new File(directory, outputFilename + EXPORTED_LIST_SUFFIX);
+		File tempFile = File.createTempFile(list.getName(), ".tmp", directory);
+		try {
+			FileUtils.writeLines(tempFile, "UTF-8", names);
+			RemoteFormEntryUtil.moveFile(tempFile, list);
+		}
+		finally {
+			tempFile.delete();
 		}
+		return list;
+	}
+	
+	/**
+	 * Move the items named in the lists left behind by earlier downloads that are still in the 
+	 * formentry queue to the pending queue.  They were in a zip that was sent whole, so they 
+	 * are not put in another one 
+	 */
+	private void finishExportedLists(RemoteFormEntryService remoteService, File directory, File queueDir)
+	        throws IOException {
+		File[] lists = directory.listFiles();
+		if (lists == null)
+			return;
+		
+		for (File list : lists) {
+			if (!list.getName().endsWith(EXPORTED_LIST_SUFFIX))
+				continue;
+			
+			int moved = 0;
+			for (Object name : FileUtils.readLines(list, "UTF-8")) {
+				File queueFile = new File(queueDir, (String) name);
+				if (queueFile.exists()) {
+					moveToPendingQueue(remoteService, queueFile);
+					moved++;
+				}
+			}
+			log.warn("Moved " + moved + " queue item(s) to the pending queue that were left by the download listed in: "
+			        + list.getAbsolutePath());
+			list.delete();
+		}
+	}
+	
+	/**
+	 * Move the given queue file to the remote entry pending queue. The file is moved (renamed
+	 * when possible) so it leaves the formentry queue and is not downloaded again
+	 * 
+	 * @param remoteService service to move the queue item with
+	 * @param queueFile the file of the item to move
+	 */
+	private void moveToPendingQueue(RemoteFormEntryService remoteService, File queueFile) {
+		RemoteFormEntryPendingQueue pendingQueue = new RemoteFormEntryPendingQueue();
+		pendingQueue.setDateCreated(new Date(queueFile.lastModified()));
+		pendingQueue.setFileSystemUrl(queueFile.getAbsolutePath()); // so that the pending file has the same filename as was passed to central
+		remoteService.moveToRemoteFormEntryPendingQueue(pendingQueue);
+		
+		if (log.isDebugEnabled())
+			log.debug("Moved queue item: " + queueFile.getAbsolutePath() + " to: " + pendingQueue.getFileSystemUrl());
 	}
 
 }
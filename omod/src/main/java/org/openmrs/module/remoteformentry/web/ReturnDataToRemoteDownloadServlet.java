@@ -1,12 +1,6 @@
 package org.openmrs.module.remoteformentry.web;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -20,8 +14,8 @@ import org.openmrs.Location;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.remoteformentry.RemoteFormEntryConstants;
+import org.openmrs.module.remoteformentry.RemoteFormEntryReturnDataBundle;
 import org.openmrs.module.remoteformentry.RemoteFormEntryUtil;
-import org.openmrs.util.OpenmrsUtil;
 import org.openmrs.web.WebConstants;
 import org.springframework.web.bind.ServletRequestUtils;
 
@@ -32,13 +26,17 @@ import org.springframework.web.bind.ServletRequestUtils;
  * 1) A dump of the database (minus hl7* and obs*, orders*)
  * 2) An ack file listing all files received
  * 
+ * The zip is the {@link RemoteFormEntryReturnDataBundle} of the location, made of files that are
+ * already compressed, so sending it only copies bytes. It is sent with its size and a hash of its
+ * content as the ETag, and a GET with a Range header gets only
+ * that part of it, so a download that broke off can be resumed (e.g. with wget -c or curl -C -).
  */
 public class ReturnDataToRemoteDownloadServlet extends HttpServlet {
 
 	/**
 	 * Name of the ack directory in the zip file going back to the remote site
 	 */
-	public static final String ACK_DIR = "ackDir";
+	public static final String ACK_DIR = RemoteFormEntryConstants.RETURNED_DATA_ACK_DIR_NAME;
 
 	public static final long serialVersionUID = 123332222423L;
 
@@ -49,7 +47,19 @@ public class ReturnDataToRemoteDownloadServlet extends HttpServlet {
 	 */
 	protected void doPost(HttpServletRequest request,
 			HttpServletResponse response) throws ServletException, IOException {
-
+		download(request, response);
+	}
+	
+	/**
+	 * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+	 */
+	protected void doGet(HttpServletRequest request,
+			HttpServletResponse response) throws ServletException, IOException {
+		download(request, response);
+	}
+	
+	private void download(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		
 		if (Context.isAuthenticated() == false) {
 			HttpSession httpSession = request.getSession();
 			httpSession.setAttribute(WebConstants.OPENMRS_ERROR_ATTR,
@@ -58,12 +68,6 @@ public class ReturnDataToRemoteDownloadServlet extends HttpServlet {
 			return;
 		}
 		
-		File remoteFormEntryDirectory = OpenmrsUtil.getDirectoryInApplicationDataDirectory("remoteformentry");
-		File returnedDataDirectory = new File(remoteFormEntryDirectory, RemoteFormEntryConstants.RETURNED_DATA_DIRECTORY_NAME);
-		if (!returnedDataDirectory.exists()) {
-			returnedDataDirectory.mkdir();
-		}
-		
 		Integer locationId = ServletRequestUtils.getRequiredIntParameter(request, "locationId");
 
 		if (log.isDebugEnabled())
@@ -72,101 +76,94 @@ public class ReturnDataToRemoteDownloadServlet extends HttpServlet {
 		EncounterService encounterService = Context.getEncounterService();
 
 		Location location = encounterService.getLocation(locationId);
-
-		response.setHeader("Content-Type", "application/zip");
-		String filename = "returnData-for-remote-site-" + RemoteFormEntryUtil.getDownloadSuffix(location) + ".zip";
-		response.setHeader("Content-Disposition", "attachment; filename=" + filename);
-		
-		File outputFile = new File(returnedDataDirectory, filename);
-		FileOutputStream zipFileOutputStream = new FileOutputStream(outputFile);
 		
-		ZipOutputStream zos			= new ZipOutputStream(zipFileOutputStream);
-		ZipEntry zipEntry			= null;
-		long compressedSize			= 0L;
-		
-		// add the main database dump
-		File generatedData = RemoteFormEntryUtil.getGeneratedReturnDataFile();
-		if (log.isDebugEnabled())
-			log.debug("Zipping generated sql: " + generatedData.getAbsolutePath());
-
-		FileInputStream inputStream = new FileInputStream(generatedData);
-
-		// name this entry so we can retrieve it later
-		zipEntry = new ZipEntry(RemoteFormEntryUtil.GENERATED_DATA_FILENAME);
-		// Add ZIP entry to output stream.
-		zos.putNextEntry(zipEntry);
+		RemoteFormEntryReturnDataBundle bundle = RemoteFormEntryReturnDataBundle.get(location);
+		String etag = "\"" + bundle.getETag() + "\"";
+		long size = bundle.getSize();
 		
-		// Transfer bytes from the generated zip to the new return zip
-		writeEntry(inputStream, zos);
-
-		zos.closeEntry();
-		compressedSize += zipEntry.getCompressedSize();
-
-		// add each site/location specific sql file
-		File locationSpecificFolder = RemoteFormEntryUtil.getGeneratedReturnDataFolderForLocation(location);
-		if (log.isDebugEnabled())
-			log.debug("Zipping the site specific data from folder: " + locationSpecificFolder.getAbsolutePath());
+		response.setHeader("Accept-Ranges", "bytes");
+		response.setHeader("ETag", etag);
 		
-		for (File sqlFile : locationSpecificFolder.listFiles()) {
-			FileInputStream sqlFileInputStream = new FileInputStream(sqlFile);
-			// name this entry so we can retrieve it later
-			zipEntry = new ZipEntry(sqlFile.getName());
-			// Add ZIP entry to output stream.
-			zos.putNextEntry(zipEntry);
-			
-			// Transfer bytes from the generated zip to the new return zip
-			writeEntry(sqlFileInputStream, zos);
-
-			zos.closeEntry();
-			
-			compressedSize += zipEntry.getCompressedSize();
+		if (etag.equals(request.getHeader("If-None-Match"))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
 		}
+
+		response.setHeader("Content-Type", "application/zip");
+		String filename = "returnData-for-remote-site-" + RemoteFormEntryUtil.getDownloadSuffix(location) + ".zip";
+		response.setHeader("Content-Disposition", "attachment; filename=" + filename);
 		
-		// add the ack file to this zip download
-		File ackDir = RemoteFormEntryUtil.getAckDir(location);
-		for (File ack : ackDir.listFiles()) {
-			zipEntry = new ZipEntry(ACK_DIR + "/" + ack.getName());
-			zos.putNextEntry(zipEntry);
-			inputStream = new FileInputStream(ack);
-			writeEntry(inputStream, zos);
-			inputStream.close();
-			zos.closeEntry();
+		// only honour the range if the client still has the same zip (or doesn't say)
+		long start = 0;
+		long end = size - 1;
+		String range = request.getHeader("Range");
+		String ifRange = request.getHeader("If-Range");
+		if (range != null && (ifRange == null || ifRange.equals(etag))) {
+			long[] bounds = parseRange(range, size);
+			if (bounds != null && bounds.length == 0) {
+				response.setHeader("Content-Range", "bytes */" + size);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+			if (bounds != null) {
+				start = bounds[0];
+				end = bounds[1];
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+			}
 		}
 		
-		compressedSize += zipEntry.getCompressedSize();
-
-		if (log.isDebugEnabled())
-			log.debug("response total compressed size: " + compressedSize);
-
-		// buggy
-		//response.setContentLength((int)compressedSize);
-
-		zos.close();
-		zipFileOutputStream.close();
+		long length = end - start + 1;
+		response.setHeader("Content-Length", String.valueOf(length));
 		
-		InputStream fileInputStream = new FileInputStream(outputFile);
+		if ("HEAD".equals(request.getMethod()))
+			return;
 		
-		OpenmrsUtil.copyFile(fileInputStream, response.getOutputStream());
+		if (log.isDebugEnabled())
+			log.debug("Sending bytes " + start + "-" + end + " of the bundle of " + location);
 		
-		fileInputStream.close();
-
+		bundle.write(response.getOutputStream(), start, end);
 	}
 
 	/**
-	 * Write the given inputStream to the given zipoutputstream
+	 * Parse a single range of a Range header: "bytes=first-last", "bytes=first-" or
+	 * "bytes=-suffixLength"
 	 * 
-	 * @param inputStream
-	 * @param zos
-	 * @throws IOException 
+	 * @return the first and last byte of the range, an empty array if the range is past the end of
+	 *         the zip, or null if the header can't be parsed (or has several ranges) and the whole zip
+	 *         should be sent
 	 */
-	private void writeEntry(FileInputStream inputStream, ZipOutputStream zos) throws IOException {
-		int buffer = 2048;
-		int count;
-		byte data[] = new byte[buffer];
-
-		// write the entry data
-		while ((count = inputStream.read(data, 0, buffer)) != -1) {
-			zos.write(data, 0, count);
+	private long[] parseRange(String range, long size) {
+		range = range.trim();
+		if (!range.startsWith("bytes=") || range.indexOf(',') != -1)
+			return null;
+		
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash == -1)
+			return null;
+		
+		try {
+			long first;
+			long last;
+			if (dash == 0) {
+				long suffix = Long.parseLong(spec.substring(1));
+				first = Math.max(0, size - suffix);
+				last = size - 1;
+			}
+			else {
+				first = Long.parseLong(spec.substring(0, dash));
+				last = dash == spec.length() - 1 ? size - 1 : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+			}
+			
+			if (first >= size)
+				return new long[0];
+			if (first < 0 || first > last)
+				return null;
+			return new long[] { first, last };
+		}
+		catch (NumberFormatException e) {
+			return null;
 		}
 	}
 
@@ -1,19 +1,10 @@
 package org.openmrs.module.remoteformentry.web.controller;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Vector;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -21,12 +12,10 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.openmrs.Location;
-import org.openmrs.api.EncounterService;
 import org.openmrs.api.context.Context;
 import org.openmrs.module.remoteformentry.RemoteFormEntryConstants;
-import org.openmrs.module.remoteformentry.RemoteFormEntryService;
-import org.openmrs.module.remoteformentry.RemoteFormEntryUtil;
+import org.openmrs.module.remoteformentry.RemoteFormEntryImportJob;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJobManager;
 import org.openmrs.util.OpenmrsUtil;
 import org.openmrs.web.WebConstants;
 import org.springframework.validation.BindException;
@@ -71,81 +60,22 @@ public class ImportFormController extends SimpleFormController {
 			// they're uploading/importing a remote queue zip file...
 			
 			if (request instanceof MultipartHttpServletRequest) {
-				RemoteFormEntryService remoteService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
 				MultipartHttpServletRequest multipartRequest = (MultipartHttpServletRequest)request;
 				MultipartFile queueUpload = multipartRequest.getFile("queueImport");
 				if (queueUpload != null && !queueUpload.isEmpty()) {
 					
-					// copy the request file to the import dir in the application data dir
+					// move the upload into the import dir in the application data dir.  
+					// the multipart resolver renames its temp file when it can instead of copying it
 					File importingFileFromRequest = new File(importDirectory, queueUpload.getOriginalFilename());
-					OutputStream importDirOutputStream = new FileOutputStream(importingFileFromRequest);
-					InputStream inputStreamFromRequest = queueUpload.getInputStream();
-					OpenmrsUtil.copyFile(inputStreamFromRequest, importDirOutputStream);
-					inputStreamFromRequest.close();
-					
-					// open that newly saved file for input to the zip
-					InputStream inputStreamFromFile = new FileInputStream(importingFileFromRequest);
+					queueUpload.transferTo(importingFileFromRequest);
 					
 					// load the files in the zip into the remoteformentry_pending_queue 
-					// create the ack file for the next time this site is downloaded
-					ZipInputStream zis = new ZipInputStream(inputStreamFromFile);
-					
-					// the names of the files uploaded 
-					List<String> ackFilenames = new Vector<String>();
-					
-					// get the location from the zip file
-					String locationId = "";
-					
-					File pendingDir = RemoteFormEntryUtil.getPendingQueueDir();
-					
-					int buffer = 2048;
-					BufferedOutputStream dest = null;
-					ZipEntry entry;
-					while((entry = zis.getNextEntry()) != null) {
-						String pathName = entry.getName();
-						try {
-							log.debug("Extracting: " + entry);
-							if (pathName.startsWith("locationId-")) {
-								locationId = pathName.substring(11);
-							}
-							else {
-								ackFilenames.add(pathName);
-								
-								int count;
-								byte data[] = new byte[buffer];
-
-								// do the work
-								// write the imported files files to the disk
-								File file = new File(pendingDir, pathName);
-								FileOutputStream fos = new FileOutputStream(file);
-								dest = new BufferedOutputStream(fos, buffer);
-								while ((count = zis.read(data, 0, buffer)) != -1) {
-									dest.write(data, 0, count);
-								}
-								dest.flush();
-								dest.close();
-							}
-						}
-						catch(Exception e) {
-							log.error("The pending dir couldn't be written to for: " + pathName, e);
-						}
-					}
-					
-					zis.close();
-					inputStreamFromFile.close();
-					
-					Location location = null;
-					if (locationId.length() > 0) {
-						EncounterService encounterService = Context.getEncounterService();
-						location = encounterService.getLocation(Integer.valueOf(locationId));
-					}
-					
-					if (location == null)
-						log.warn("Unable to find location with id: " + locationId);
-					
-					remoteService.createAckFile(location, ackFilenames);
+					// and create the ack file for the next time this site is downloaded.
+					// this runs in the background, the page shows its progress
+					String jobId = RemoteFormEntryJobManager.submit(new RemoteFormEntryImportJob(importingFileFromRequest));
 					
-					request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ATTR, "remoteformentry.import.success");
+					request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ATTR, "remoteformentry.import.started");
+					request.getSession().setAttribute(WebConstants.OPENMRS_MSG_ARGS, jobId);
 				}
 				else {
 					request.getSession().setAttribute(WebConstants.OPENMRS_ERROR_ATTR, "remoteformentry.import.selectFile");
@@ -180,6 +110,7 @@ public class ImportFormController extends SimpleFormController {
 		
 		map.put("importedFiles", importedFiles);
 		map.put("importDirectory", importDirectory.getAbsolutePath());
+		map.put("jobs", RemoteFormEntryJobManager.getJobs(RemoteFormEntryImportJob.TYPE));
 		
 	    return map;
     }
@@ -1,33 +1,22 @@
 package org.openmrs.module.remoteformentry.web.controller;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
-import org.apache.commons.io.filefilter.SuffixFileFilter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.formentry.FormEntryUtil;
 import org.openmrs.module.remoteformentry.RemoteFormEntryConstants;
-import org.openmrs.module.remoteformentry.RemoteFormEntryService;
-import org.openmrs.module.remoteformentry.RemoteFormEntryUtil;
-import org.openmrs.module.remoteformentry.web.ReturnDataToRemoteDownloadServlet;
+import org.openmrs.module.remoteformentry.RemoteFormEntryJobManager;
+import org.openmrs.module.remoteformentry.RemoteFormEntryReceiveJob;
 import org.openmrs.util.OpenmrsUtil;
 import org.openmrs.web.WebConstants;
 import org.springframework.validation.BindException;
@@ -74,85 +63,20 @@ public class ReceiveDataFromCentralFormController extends SimpleFormController {
 			
 			if (request instanceof MultipartHttpServletRequest) {
 				HttpSession httpSession = request.getSession();
-				httpSession.setMaxInactiveInterval(-1); // don't let the session expire 
-				RemoteFormEntryService remoteService = (RemoteFormEntryService)Context.getService(RemoteFormEntryService.class);
 				MultipartHttpServletRequest multipartRequest = (MultipartHttpServletRequest)request;
 				MultipartFile returnedData = multipartRequest.getFile("returnedData");
 				if (returnedData != null && !returnedData.isEmpty()) {
 					
-					// copy the request file to the import dir in the application data dir
+					// move the upload into the receive dir in the application data dir
 					File receiveFileFromRequest = new File(importDirectory, returnedData.getOriginalFilename());
-					OutputStream receiveDirOutputStream = new FileOutputStream(receiveFileFromRequest);
-					InputStream inputStreamFromRequest = returnedData.getInputStream();
-					OpenmrsUtil.copyFile(inputStreamFromRequest, receiveDirOutputStream);
-					inputStreamFromRequest.close();
+					returnedData.transferTo(receiveFileFromRequest);
 					
-					// open that newly saved file for input to the zip
-					InputStream inputStreamFromFile = new FileInputStream(receiveFileFromRequest);
-					
-					// load the generatedData file in the uploaded zip into the db
-					ZipInputStream zis = new ZipInputStream(inputStreamFromFile);
-					
-					File tempDir = FormEntryUtil.createTempDirectory("returnedData");
-					File ackDir = new File(tempDir, ReturnDataToRemoteDownloadServlet.ACK_DIR);
-					ackDir.mkdir();
-					
-					// write the zip to the temp folder
-					int buffer = 2048;
-					BufferedOutputStream dest = null;
-					ZipEntry entry;
-					while((entry = zis.getNextEntry()) != null) {
-						String pathName = entry.getName();
-						try {
-							log.debug("Extracting: " + entry);
-							// do the writing to the disk
-							int count;
-							byte data[] = new byte[buffer];
-							
-							File file = new File(tempDir, pathName);
-							FileOutputStream fos = new FileOutputStream(file);
-							dest = new BufferedOutputStream(fos, buffer);
-							while ((count = zis.read(data, 0, buffer)) != -1) {
-								dest.write(data, 0, count);
-							}
-							dest.flush();
-							dest.close();
-						}
-						catch(Exception e) {
-							log.error("The pending dir couldn't be written to for: " + pathName, e);
-						}
-					}
-					zis.close();
-					
-					// use the zipped ack file to determine what can be pulled off
-					// of the pending queue
-					remoteService.receiveAckDirFromCentral(ackDir);
-					
-					// exec the received sql scripts
-					File generatedData = new File(tempDir, RemoteFormEntryUtil.GENERATED_DATA_FILENAME);
-					remoteService.receiveGeneratedDataFromCentral(generatedData);
-					
-					// exec the other received sql scripts
-					for (File file : tempDir.listFiles((FileFilter)new SuffixFileFilter("sql"))) {
-						log.debug("receiving sql: " + file.getName());
-						remoteService.receiveGeneratedDataFromCentralForLocation(file);
-					}
-					
-					// clean up the temp directory for the update
-					OpenmrsUtil.deleteDirectory(tempDir);
-					
-					// show the normal thank you and congrats message.
-					httpSession.setAttribute(WebConstants.OPENMRS_MSG_ATTR, "remoteformentry.receiveDataFromCentral.success");
-
-					// check the pending queue and send a note to the user if there are still some left
-					int pendingQueueSize = remoteService.getRemoteFormEntryPendingQueueSize();
-					
-					if (pendingQueueSize > 0) {
-						// show them an error saying that there are still pending queue items
-						httpSession.setAttribute(WebConstants.OPENMRS_ERROR_ATTR, "remoteformentry.receiveDataFromCentral.pending");
-						httpSession.setAttribute(WebConstants.OPENMRS_ERROR_ARGS, pendingQueueSize);
-					}
+					// the acks and the database restore run in the background and can take 
+					// hours.  the page shows the progress of the job
+					String jobId = RemoteFormEntryJobManager.submit(new RemoteFormEntryReceiveJob(receiveFileFromRequest));
 					
+					httpSession.setAttribute(WebConstants.OPENMRS_MSG_ATTR, "remoteformentry.receiveDataFromCentral.started");
+					httpSession.setAttribute(WebConstants.OPENMRS_MSG_ARGS, jobId);
 				}
 				else {
 					httpSession.setAttribute(WebConstants.OPENMRS_ERROR_ATTR, "remoteformentry.receiveDataFromCentral.error");
@@ -183,6 +107,7 @@ public class ReceiveDataFromCentralFormController extends SimpleFormController {
 		
 		map.put("receivedFiles", importedFiles);
 		map.put("receiveFilesDirectory", recieveFilesDirectory.getAbsolutePath());
+		map.put("jobs", RemoteFormEntryJobManager.getJobs(RemoteFormEntryReceiveJob.TYPE));
 		
 	    return map;
     }
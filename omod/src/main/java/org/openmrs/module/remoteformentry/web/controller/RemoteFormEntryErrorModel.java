@@ -1,14 +1,9 @@
 package org.openmrs.module.remoteformentry.web.controller;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathFactory;
-
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.module.formentry.FormEntryError;
+import org.openmrs.module.remoteformentry.RemoteFormEntryParsingContext;
 import org.w3c.dom.Document;
 
 /**
@@ -48,30 +43,30 @@ public class RemoteFormEntryErrorModel extends FormEntryError {
 		
 		if (getFormData() != null && getFormData().length() > 0) {
 			try {
-				Document formDataDoc = getDocumentForErrorQueueItem(getFormData());
-				XPath xp = getXPathFactory().newXPath();
+				RemoteFormEntryParsingContext parsingContext = RemoteFormEntryParsingContext.get();
+				Document formDataDoc = parsingContext.parse(getFormData());
 				
-				String firstName = xp.evaluate("/form/patient/patient.given_name", formDataDoc);
-				String middleName = xp.evaluate("/form/patient/patient.middle_name", formDataDoc);
-				String familyName = xp.evaluate("/form/patient/patient.family_name", formDataDoc);
+				String firstName = parsingContext.evaluate("/form/patient/patient.given_name", formDataDoc);
+				String middleName = parsingContext.evaluate("/form/patient/patient.middle_name", formDataDoc);
+				String familyName = parsingContext.evaluate("/form/patient/patient.family_name", formDataDoc);
 				setName(firstName + "  " + middleName + " " + familyName);
 				
-				setBirthdate(xp.evaluate("/form/patient/patient.birthdate", formDataDoc));
-				setIdentifier(xp.evaluate("/form/patient/patient.medical_record_number", formDataDoc));
-				setGender(xp.evaluate("/form/patient/patient.sex", formDataDoc));
+				setBirthdate(parsingContext.evaluate("/form/patient/patient.birthdate", formDataDoc));
+				setIdentifier(parsingContext.evaluate("/form/patient/patient.medical_record_number", formDataDoc));
+				setGender(parsingContext.evaluate("/form/patient/patient.sex", formDataDoc));
 				
-				String tribe = xp.evaluate("/form/patient/patient.tribe", formDataDoc);
+				String tribe = parsingContext.evaluate("/form/patient/patient.tribe", formDataDoc);
 				if (tribe.length() > 0) {
 					tribe = tribe.substring(tribe.indexOf("^") + 1);
 					setTribe(tribe);
 				}
 				
 				// parse the encounter info from the form data
-				String location = xp.evaluate("/form/encounter/encounter.location_id", formDataDoc);
+				String location = parsingContext.evaluate("/form/encounter/encounter.location_id", formDataDoc);
 				setLocation(location.substring(location.indexOf("^") + 1));
-				setEncounterDate(xp.evaluate("/form/encounter/encounter.encounter_datetime", formDataDoc));
-				setFormName(xp.evaluate("/form/@name", formDataDoc));
-				setFormId(xp.evaluate("/form/@version", formDataDoc));
+				setEncounterDate(parsingContext.evaluate("/form/encounter/encounter.encounter_datetime", formDataDoc));
+				setFormName(parsingContext.evaluate("/form/@name", formDataDoc));
+				setFormId(parsingContext.evaluate("/form/@version", formDataDoc));
 				
 			}
 			catch (Exception e) {
@@ -214,29 +209,7 @@ public class RemoteFormEntryErrorModel extends FormEntryError {
 	 * @throws Exception
 	 */
 	public Document getDocumentForErrorQueueItem(String formData) throws Exception {
-		DocumentBuilderFactory dbf = getDocumentBuilderFactory();
-		DocumentBuilder db = dbf.newDocumentBuilder();
-		Document doc = db.parse(IOUtils.toInputStream(formData));
-		return doc;
-	}
-	
-	private DocumentBuilderFactory documentBuilderFactory;
-	
-	private DocumentBuilderFactory getDocumentBuilderFactory() {
-		if (documentBuilderFactory == null)
-			documentBuilderFactory = DocumentBuilderFactory.newInstance();
-		return documentBuilderFactory;
-	}
-	
-	private XPathFactory xPathFactory;
-	
-	/**
-	 * @return XPathFactory to be used for obtaining data from the parsed XML
-	 */
-	private XPathFactory getXPathFactory() {
-		if (xPathFactory == null)
-			xPathFactory = XPathFactory.newInstance();
-		return xPathFactory;
+		return RemoteFormEntryParsingContext.get().parse(formData);
 	}
 	
 }
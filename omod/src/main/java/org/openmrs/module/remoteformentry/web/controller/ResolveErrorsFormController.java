@@ -23,6 +23,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.formentry.FormEntryError;
 import org.openmrs.module.formentry.FormEntryService;
 import org.openmrs.module.remoteformentry.RemoteFormEntryException;
+import org.openmrs.module.remoteformentry.RemoteFormEntryParsingContext;
 import org.openmrs.module.remoteformentry.RemoteFormEntryService;
 import org.openmrs.web.WebConstants;
 import org.springframework.validation.BindException;
@@ -44,6 +45,24 @@ public class ResolveErrorsFormController extends SimpleFormController {
 	private DocumentBuilderFactory documentBuilderFactory;
 	private XPathFactory xPathFactory;
 	
+	/**
+	 * Showing the errors and resolving them both read the forms with this thread's parser. This
+	 * is a request thread, so the parser is dropped once the request is done
+	 * 
+	 * @see org.springframework.web.servlet.mvc.AbstractFormController#handleRequestInternal(javax.servlet.http.HttpServletRequest,
+	 *      javax.servlet.http.HttpServletResponse)
+	 */
+	@Override
+	protected ModelAndView handleRequestInternal(HttpServletRequest request, HttpServletResponse response)
+	        throws Exception {
+		try {
+			return super.handleRequestInternal(request, response);
+		}
+		finally {
+			RemoteFormEntryParsingContext.remove();
+		}
+	}
+	
 	/**
 	 * @see org.springframework.web.servlet.mvc.AbstractFormController#formBackingObject(javax.servlet.http.HttpServletRequest)
 	 */
@@ -18,6 +18,8 @@
 	</form>
 </div>
 
+<%@ include file="jobs.jsp"%>
+
 <br/>
 <spring:message code="remoteformentry.import.files"/> ${importDirectory}:
 <table cellspacing="0" cellpadding="3">
@@ -0,0 +1,62 @@
+<%-- Table of the background jobs in ${jobs}.  Rows of unfinished jobs are kept up to date from the jobStatus servlet --%>
+<c:if test="${fn:length(jobs) > 0}">
+<br/>
+<b class="boxHeader"><spring:message code="remoteformentry.jobs.header" /></b>
+<div class="box">
+<table cellspacing="0" cellpadding="3">
+	<tr>
+		<th><spring:message code="remoteformentry.filename"/></th>
+		<th><spring:message code="remoteformentry.jobs.status"/></th>
+		<th><spring:message code="remoteformentry.jobs.bytesProcessed"/></th>
+		<th><spring:message code="remoteformentry.jobs.entriesExtracted"/></th>
+		<th><spring:message code="remoteformentry.jobs.ackLinesWritten"/></th>
+		<th><spring:message code="remoteformentry.jobs.elapsed"/></th>
+		<th><spring:message code="remoteformentry.jobs.message"/></th>
+	</tr>
+<c:forEach var="job" items="${jobs}" varStatus="rowStatus">
+	<tr id="job-${job.jobId}" class="<c:choose><c:when test="${rowStatus.index % 2 == 0}">evenRow</c:when><c:otherwise>oddRow</c:otherwise></c:choose>">
+		<td>${job.filename}</td>
+		<td class="status">${job.status}<c:if test="${not empty job.phase}"> (${job.phase})</c:if></td>
+		<td class="bytesProcessed">${job.bytesProcessed}</td>
+		<td class="entriesExtracted">${job.entriesExtracted}</td>
+		<td class="ackLinesWritten">${job.ackLinesWritten}</td>
+		<td class="elapsed">${job.elapsedMillis / 1000}s</td>
+		<td class="message"><c:out value="${job.message}"/></td>
+	</tr>
+</c:forEach>
+</table>
+</div>
+
+<script type="text/javascript">
+	function remoteFormEntryPollJobs() {
+		var request = window.XMLHttpRequest ? new XMLHttpRequest() : new ActiveXObject("Microsoft.XMLHTTP");
+		request.onreadystatechange = function() {
+			if (request.readyState != 4 || request.status != 200)
+				return;
+			var jobs = eval("(" + request.responseText + ")");
+			var running = false;
+			for (var i = 0; i < jobs.length; i++) {
+				var job = jobs[i];
+				var row = document.getElementById("job-" + job.jobId);
+				if (!row)
+					continue;
+				var cells = row.getElementsByTagName("td");
+				cells[1].innerHTML = job.status + (job.phase ? " (" + job.phase + ")" : "");
+				cells[2].innerHTML = job.bytesProcessed;
+				cells[3].innerHTML = job.entriesExtracted;
+				cells[4].innerHTML = job.ackLinesWritten;
+				cells[5].innerHTML = Math.floor(job.elapsedMillis / 1000) + "s";
+				cells[6].innerHTML = "";
+				cells[6].appendChild(document.createTextNode(job.message ? job.message : ""));
+				if (job.status == "QUEUED" || job.status == "RUNNING")
+					running = true;
+			}
+			if (running)
+				setTimeout(remoteFormEntryPollJobs, 5000);
+		};
+		request.open("GET", "${pageContext.request.contextPath}/moduleServlet/remoteformentry/jobStatus?type=${jobs[0].type}", true);
+		request.send(null);
+	}
+	setTimeout(remoteFormEntryPollJobs, 5000);
+</script>
+</c:if>
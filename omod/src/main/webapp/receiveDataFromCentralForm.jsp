@@ -19,6 +19,8 @@
 	</form>
 </div>
 
+<%@ include file="jobs.jsp"%>
+
 <br/>
 <spring:message code="remoteformentry.receiveDataFromCentral.files"/> ${receiveFilesDirectory}:
 <table cellspacing="0" cellpadding="3">
@@ -0,0 +1,162 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.security.MessageDigest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+import org.openmrs.util.OpenmrsUtil;
+
+public class RemoteFormEntryChunkedUploadTest {
+
+	private File uploadDir;
+
+	@Before
+	public void createUploadDir() throws Exception {
+		uploadDir = File.createTempFile("chunkedUploadTest", "");
+		uploadDir.delete();
+		uploadDir.mkdirs();
+	}
+
+	@After
+	public void deleteUploadDir() throws Exception {
+		OpenmrsUtil.deleteDirectory(uploadDir);
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryChunkedUpload#writeChunk(long,InputStream,String,long)}
+	 */
+	@Test
+	@Verifies(value = "should skip the bytes of a resent chunk that were already received", method = "writeChunk(long,InputStream,String,long)")
+	public void writeChunk_shouldSkipTheBytesOfAResentChunkThatWereAlreadyReceived() throws Exception {
+		RemoteFormEntryChunkedUpload upload = new RemoteFormEntryChunkedUpload(uploadDir, "site-1");
+		Assert.assertEquals(3, write(upload, 0, "abc", 8));
+		Assert.assertEquals(6, write(upload, 3, "def", 8));
+		Assert.assertEquals(8, write(upload, 4, "efgh", 8));
+
+		Assert.assertEquals(md5("abcdefgh"), upload.getMd5());
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryChunkedUpload#writeChunk(long,InputStream,String,long)}
+	 */
+	@Test
+	@Verifies(value = "should refuse a chunk with the wrong md5 or past the received bytes", method = "writeChunk(long,InputStream,String,long)")
+	public void writeChunk_shouldRefuseAChunkWithTheWrongMd5OrPastTheReceivedBytes() throws Exception {
+		RemoteFormEntryChunkedUpload upload = new RemoteFormEntryChunkedUpload(uploadDir, "site-1");
+		write(upload, 0, "abc", 8);
+
+		try {
+			upload.writeChunk(3, new ByteArrayInputStream("def".getBytes("UTF-8")), md5("xyz"), 8);
+			Assert.fail("a chunk with the wrong md5 should be refused");
+		}
+		catch (RemoteFormEntryException e) {}
+
+		try {
+			write(upload, 4, "efg", 8);
+			Assert.fail("a chunk that leaves a gap should be refused");
+		}
+		catch (RemoteFormEntryException e) {}
+
+		Assert.assertEquals(3, upload.getReceivedBytes());
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryChunkedUpload#writeChunk(long,InputStream,String,long)}
+	 */
+	@Test
+	@Verifies(value = "should refuse a chunk that ends past the total size", method = "writeChunk(long,InputStream,String,long)")
+	public void writeChunk_shouldRefuseAChunkThatEndsPastTheTotalSize() throws Exception {
+		RemoteFormEntryChunkedUpload upload = new RemoteFormEntryChunkedUpload(uploadDir, "site-1");
+		write(upload, 0, "abc", 6);
+
+		try {
+			write(upload, 3, "defg", 6);
+			Assert.fail("a chunk that ends past the total size should be refused");
+		}
+		catch (RemoteFormEntryException e) {}
+
+		Assert.assertEquals(3, upload.getReceivedBytes());
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryChunkedUpload#writeChunk(long,InputStream,String,long)}
+	 */
+	@Test
+	@Verifies(value = "should not write a resent chunk of a completed upload", method = "writeChunk(long,InputStream,String,long)")
+	public void writeChunk_shouldNotWriteAResentChunkOfACompletedUpload() throws Exception {
+		RemoteFormEntryChunkedUpload upload = new RemoteFormEntryChunkedUpload(uploadDir, "site-1");
+		write(upload, 0, "abc", 6);
+		write(upload, 3, "def", 6);
+
+		File destination = new File(uploadDir, "queue.zip");
+		upload.complete(destination);
+		upload.markComplete("job-1");
+
+		// the reply to the last chunk was lost
+		RemoteFormEntryChunkedUpload resent = new RemoteFormEntryChunkedUpload(uploadDir, "site-1");
+		Assert.assertEquals(6, write(resent, 3, "def", 6));
+		Assert.assertTrue(resent.isComplete());
+		Assert.assertEquals("job-1", resent.getJobId());
+		Assert.assertEquals(6, destination.length());
+		Assert.assertFalse(new File(uploadDir, "site-1.part").exists());
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryChunkedUpload#writeChunk(long,InputStream,String,long)}
+	 */
+	@Test
+	@Verifies(value = "should start a new upload when the id of a completed upload is used again", method = "writeChunk(long,InputStream,String,long)")
+	public void writeChunk_shouldStartANewUploadWhenTheIdOfACompletedUploadIsUsedAgain() throws Exception {
+		RemoteFormEntryChunkedUpload upload = new RemoteFormEntryChunkedUpload(uploadDir, "site-1");
+		write(upload, 0, "abcdef", 6);
+		upload.complete(new File(uploadDir, "queue.zip"));
+		upload.markComplete("job-1");
+
+		// the next queue zip of the same site, the same size as the last one
+		RemoteFormEntryChunkedUpload next = new RemoteFormEntryChunkedUpload(uploadDir, "site-1");
+		Assert.assertEquals(3, write(next, 0, "ghi", 6));
+		Assert.assertFalse(next.isComplete());
+		Assert.assertNull(next.getJobId());
+		Assert.assertEquals(6, write(next, 3, "jkl", 6));
+		Assert.assertEquals(md5("ghijkl"), next.getMd5());
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryChunkedUpload#reopen(File)}
+	 */
+	@Test
+	@Verifies(value = "should leave the upload to be completed again", method = "reopen(File)")
+	public void reopen_shouldLeaveTheUploadToBeCompletedAgain() throws Exception {
+		RemoteFormEntryChunkedUpload upload = new RemoteFormEntryChunkedUpload(uploadDir, "site-1");
+		write(upload, 0, "abcdef", 6);
+		File destination = new File(uploadDir, "queue.zip");
+		upload.complete(destination);
+
+		// the job could not be queued
+		upload.reopen(destination);
+
+		RemoteFormEntryChunkedUpload resent = new RemoteFormEntryChunkedUpload(uploadDir, "site-1");
+		Assert.assertFalse(resent.isComplete());
+		Assert.assertEquals(6, resent.getReceivedBytes());
+		Assert.assertEquals(6, write(resent, 0, "abcdef", 6));
+		Assert.assertFalse(destination.exists());
+	}
+
+	private long write(RemoteFormEntryChunkedUpload upload, long offset, String chunk, long totalSize) throws Exception {
+		return upload.writeChunk(offset, new ByteArrayInputStream(chunk.getBytes("UTF-8")), md5(chunk), totalSize);
+	}
+
+	private String md5(String value) throws Exception {
+		byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes("UTF-8"));
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+}
@@ -0,0 +1,59 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class RemoteFormEntryFormHeaderReaderTest {
+
+	private static final String SAMPLE_FORM = "src/test/resources/org/openmrs/module/remoteformentry/remotelyEnteredForm.xml";
+
+	/**
+	 * @see {@link RemoteFormEntryFormHeaderReader#read(File)}
+	 */
+	@Test
+	@Verifies(value = "should read the patient header of the form", method = "read(File)")
+	public void read_shouldReadThePatientHeaderOfTheForm() throws Exception {
+		RemoteFormEntryFormHeader header = RemoteFormEntryFormHeaderReader.read(new File(SAMPLE_FORM));
+
+		Assert.assertEquals("11", header.getFormId());
+		Assert.assertEquals("1", header.getEntererId());
+		Assert.assertEquals(RemoteFormEntryUtilTest.SAMPLE_XML_PERSON_UUID, header.getUuid());
+		Assert.assertEquals("19650919", header.getProperty(RemoteFormEntryConstants.PERSON_BIRTHDATE));
+		Assert.assertEquals("22", header.getDeathReasonId());
+
+		Assert.assertEquals(2, header.getIdentifiers().size());
+		Assert.assertEquals("123456789", header.getIdentifiers().get(1).get(
+		    RemoteFormEntryConstants.PATIENT_IDENTIFIER_IDENTIFIER));
+		Assert.assertEquals(2, header.getNames().size());
+		Assert.assertEquals(2, header.getAddresses().size());
+		Assert.assertEquals(3, header.getRelationships().size());
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryFormHeaderReader#read(File)}
+	 */
+	@Test
+	@Verifies(value = "should read the same values as the xpath expressions", method = "read(File)")
+	public void read_shouldReadTheSameValuesAsTheXpathExpressions() throws Exception {
+		File form = new File(SAMPLE_FORM);
+		RemoteFormEntryFormHeader streamed = RemoteFormEntryFormHeaderReader.read(form);
+		RemoteFormEntryFormHeader fromDom = RemoteFormEntryFormHeader.fromDocument(RemoteFormEntryParsingContext.get()
+		        .parse(form));
+
+		Assert.assertEquals(fromDom.getPatientKey(), streamed.getPatientKey());
+		Assert.assertEquals(fromDom.getAttributes().size(), streamed.getAttributes().size());
+		for (int i = 0; i < fromDom.getRelationships().size(); i++) {
+			RemoteFormEntryFormHeader.Section expected = fromDom.getRelationships().get(i);
+			RemoteFormEntryFormHeader.Section actual = streamed.getRelationships().get(i);
+			Assert.assertEquals(expected.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_TYPE), actual
+			        .get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_TYPE));
+			Assert.assertEquals(expected.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_UUID), actual
+			        .get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_UUID));
+			Assert.assertEquals(expected.get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_A_OR_B), actual
+			        .get(RemoteFormEntryConstants.PERSON_RELATIONSHIP_A_OR_B));
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.openmrs.module.remoteformentry;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.test.Verifies;
+
+public class RemoteFormEntryIdentifierIndexTest {
+
+	/**
+	 * @see {@link RemoteFormEntryIdentifierIndex#getPatientId(String,Integer)}
+	 */
+	@Test
+	@Verifies(value = "should match on both the identifier and its type", method = "getPatientId(String,Integer)")
+	public void getPatientId_shouldMatchOnBothTheIdentifierAndItsType() throws Exception {
+		RemoteFormEntryIdentifierIndex index = new RemoteFormEntryIdentifierIndex(2);
+		index.put("101-6", 1, 2);
+		index.put("101-6", 2, 7);
+		index.put("1^01-6", 1, 8);
+
+		Assert.assertEquals(Integer.valueOf(2), index.getPatientId("101-6", 1));
+		Assert.assertEquals(Integer.valueOf(7), index.getPatientId("101-6", 2));
+		Assert.assertEquals(Integer.valueOf(8), index.getPatientId("1^01-6", 1));
+		Assert.assertNull(index.getPatientId("101-6", 3));
+		Assert.assertNull(index.getPatientId("101", 1));
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryIdentifierIndex#addPatient(Patient)}
+	 */
+	@Test
+	@Verifies(value = "should add every identifier of the patient", method = "addPatient(Patient)")
+	public void addPatient_shouldAddEveryIdentifierOfThePatient() throws Exception {
+		Patient patient = new Patient(42);
+		patient.addIdentifier(new PatientIdentifier("abc", new PatientIdentifierType(1), null));
+		patient.addIdentifier(new PatientIdentifier("def", new PatientIdentifierType(2), null));
+
+		RemoteFormEntryIdentifierIndex index = new RemoteFormEntryIdentifierIndex(0);
+		index.addPatient(patient);
+
+		Assert.assertEquals(2, index.size());
+		Assert.assertEquals(Integer.valueOf(42), index.getPatientId("abc", 1));
+		Assert.assertEquals(Integer.valueOf(42), index.getPatientId("def", 2));
+
+		index.remove("abc", 1);
+		Assert.assertNull(index.getPatientId("abc", 1));
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryIdentifierIndex#addPatient(Patient)}
+	 */
+	@Test
+	@Verifies(value = "should skip voided identifiers and the identifiers of voided patients", method = "addPatient(Patient)")
+	public void addPatient_shouldSkipVoidedIdentifiersAndTheIdentifiersOfVoidedPatients() throws Exception {
+		RemoteFormEntryIdentifierIndex index = new RemoteFormEntryIdentifierIndex(0);
+		index.put("abc", 1, 42);
+		index.put("ghi", 1, 7);
+
+		Patient patient = new Patient(42);
+		PatientIdentifier voided = new PatientIdentifier("abc", new PatientIdentifierType(1), null);
+		voided.setVoided(true);
+		patient.addIdentifier(voided);
+		patient.addIdentifier(new PatientIdentifier("def", new PatientIdentifierType(2), null));
+		index.addPatient(patient);
+
+		Assert.assertNull(index.getPatientId("abc", 1));
+		Assert.assertEquals(Integer.valueOf(42), index.getPatientId("def", 2));
+
+		// a voided patient only takes out the identifiers that point at it
+		Patient merged = new Patient(43);
+		merged.setVoided(true);
+		merged.addIdentifier(new PatientIdentifier("ghi", new PatientIdentifierType(1), null));
+		merged.addIdentifier(new PatientIdentifier("jkl", new PatientIdentifierType(1), null));
+		index.addPatient(merged);
+
+		Assert.assertEquals(Integer.valueOf(7), index.getPatientId("ghi", 1));
+		Assert.assertNull(index.getPatientId("jkl", 1));
+	}
+}
@@ -0,0 +1,111 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+import org.openmrs.util.OpenmrsUtil;
+
+public class RemoteFormEntryPendingQueueIndexTest {
+
+	private File parentDir;
+
+	private File queueDir;
+
+	@Before
+	public void createQueueDir() throws Exception {
+		parentDir = File.createTempFile("pendingQueueIndexTest", "");
+		parentDir.delete();
+		parentDir.mkdirs();
+		queueDir = new File(parentDir, "pending");
+		queueDir.mkdirs();
+	}
+
+	@After
+	public void deleteQueueDir() throws Exception {
+		OpenmrsUtil.deleteDirectory(parentDir);
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryPendingQueueIndex#peek()}
+	 */
+	@Test
+	@Verifies(value = "should return files in filename order", method = "peek()")
+	public void peek_shouldReturnFilesInFilenameOrder() throws Exception {
+		RemoteFormEntryPendingQueueIndex index = new RemoteFormEntryPendingQueueIndex(queueDir);
+		index.add(createFile("b.xml"));
+		index.add(createFile("c.xml"));
+		index.add(createFile("a.xml"));
+
+		Assert.assertEquals("a.xml", index.peek().getName());
+		remove(index, "a.xml");
+		Assert.assertEquals("b.xml", index.peek().getName());
+		remove(index, "b.xml");
+		Assert.assertEquals("c.xml", index.peek().getName());
+		remove(index, "c.xml");
+		Assert.assertNull(index.peek());
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryPendingQueueIndex#peek()}
+	 */
+	@Test
+	@Verifies(value = "should rebuild the index from the journal", method = "peek()")
+	public void peek_shouldRebuildTheIndexFromTheJournal() throws Exception {
+		RemoteFormEntryPendingQueueIndex index = new RemoteFormEntryPendingQueueIndex(queueDir);
+		index.add(createFile("a.xml"));
+		index.add(createFile("b.xml"));
+		remove(index, "a.xml");
+
+		Assert.assertTrue(new File(parentDir, "pending" + RemoteFormEntryPendingQueueIndex.JOURNAL_SUFFIX).exists());
+
+		RemoteFormEntryPendingQueueIndex rebuilt = new RemoteFormEntryPendingQueueIndex(queueDir);
+		Assert.assertEquals(1, rebuilt.size());
+		Assert.assertEquals("b.xml", rebuilt.peek().getName());
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryPendingQueueIndex#peek()}
+	 */
+	@Test
+	@Verifies(value = "should pick up files added outside of the index", method = "peek()")
+	public void peek_shouldPickUpFilesAddedOutsideOfTheIndex() throws Exception {
+		RemoteFormEntryPendingQueueIndex index = new RemoteFormEntryPendingQueueIndex(queueDir);
+		Assert.assertNull(index.peek());
+
+		createFile("dropped.xml");
+		Assert.assertEquals("dropped.xml", index.peek().getName());
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryPendingQueueIndex#peek()}
+	 */
+	@Test
+	@Verifies(value = "should skip files deleted outside of the index", method = "peek()")
+	public void peek_shouldSkipFilesDeletedOutsideOfTheIndex() throws Exception {
+		RemoteFormEntryPendingQueueIndex index = new RemoteFormEntryPendingQueueIndex(queueDir);
+		index.add(createFile("a.xml"));
+		index.add(createFile("b.xml"));
+
+		new File(queueDir, "a.xml").delete();
+		Assert.assertEquals("b.xml", index.peek().getName());
+		Assert.assertEquals(1, index.size());
+	}
+
+	private String createFile(String name) throws IOException {
+		FileWriter writer = new FileWriter(new File(queueDir, name));
+		writer.write("<form/>");
+		writer.close();
+		return name;
+	}
+
+	private void remove(RemoteFormEntryPendingQueueIndex index, String name) {
+		new File(queueDir, name).delete();
+		index.remove(name);
+	}
+}
@@ -0,0 +1,147 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+import org.openmrs.util.OpenmrsUtil;
+
+public class RemoteFormEntryQueueExporterTest {
+
+	private static final String[] NAMES = { "a.xml", "b.xml", "c.xml", "d.xml", "e.xml" };
+
+	private File queueDir;
+
+	@Before
+	public void createQueueDir() throws Exception {
+		queueDir = File.createTempFile("queueExporterTest", "");
+		queueDir.delete();
+		queueDir.mkdirs();
+		for (String name : NAMES)
+			FileUtils.writeStringToFile(new File(queueDir, name), "<form>" + name + "</form>", "UTF-8");
+	}
+
+	@After
+	public void deleteQueueDir() throws Exception {
+		OpenmrsUtil.deleteDirectory(queueDir);
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryQueueExporter#export(ZipOutputStream,RemoteFormEntryCodec)}
+	 */
+	@Test
+	@Verifies(value = "should zip the queue a page at a time", method = "export(ZipOutputStream,RemoteFormEntryCodec)")
+	public void export_shouldZipTheQueueAPageAtATime() throws Exception {
+		PageRecorder out = new PageRecorder();
+		RemoteFormEntryQueueExporter exporter = new RemoteFormEntryQueueExporter(queueDir, NAMES, 2);
+		ZipOutputStream zos = new ZipOutputStream(out);
+		exporter.export(zos, RemoteFormEntryCodec.DEFLATE_FAST);
+		zos.close();
+
+		// pages of 2, 2 and 1 file
+		Assert.assertEquals(Arrays.asList(2, 4, 5), out.entriesAtFlush);
+		Assert.assertEquals(Arrays.asList(NAMES), readEntries(out.toByteArray()));
+		Assert.assertEquals(NAMES.length, exporter.getExportedCount());
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryQueueExporter#getExportedFiles()}
+	 */
+	@Test
+	@Verifies(value = "should only return the files that were zipped", method = "getExportedFiles()")
+	public void getExportedFiles_shouldOnlyReturnTheFilesThatWereZipped() throws Exception {
+		PageRecorder out = new PageRecorder() {
+
+			@Override
+			void pageDone(int page) throws Exception {
+				// a file of the next page is processed and a new one arrives while the zip is written
+				if (page == 1) {
+					new File(queueDir, "d.xml").delete();
+					FileUtils.writeStringToFile(new File(queueDir, "f.xml"), "<form>f.xml</form>", "UTF-8");
+				}
+			}
+		};
+		RemoteFormEntryQueueExporter exporter = new RemoteFormEntryQueueExporter(queueDir, NAMES, 2);
+		ZipOutputStream zos = new ZipOutputStream(out);
+		exporter.export(zos, RemoteFormEntryCodec.STORED);
+		zos.close();
+
+		List<String> expected = Arrays.asList("a.xml", "b.xml", "c.xml", "e.xml");
+		Assert.assertEquals(expected, readEntries(out.toByteArray()));
+		Assert.assertEquals(expected.size(), exporter.getExportedCount());
+
+		List<String> exported = new ArrayList<String>();
+		for (File file : exporter.getExportedFiles()) {
+			Assert.assertEquals(queueDir, file.getParentFile());
+			exported.add(file.getName());
+		}
+		Assert.assertEquals(expected, exported);
+	}
+
+	/**
+	 * @return the names of the entries of the given zip, checking that each holds its queue file
+	 */
+	private List<String> readEntries(byte[] zip) throws Exception {
+		List<String> names = new ArrayList<String>();
+		ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+		try {
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				Assert.assertEquals("<form>" + entry.getName() + "</form>", IOUtils.toString(zis, "UTF-8"));
+				names.add(entry.getName());
+			}
+		}
+		finally {
+			zis.close();
+		}
+		return names;
+	}
+
+	/**
+	 * Records how many entries had been started each time the exporter flushed the zip, which it
+	 * does after every page
+	 */
+	private static class PageRecorder extends ByteArrayOutputStream {
+
+		final List<Integer> entriesAtFlush = new ArrayList<Integer>();
+
+		@Override
+		public void flush() {
+			// the local header of every entry starts with PK\3\4
+			byte[] bytes = toByteArray();
+			int entries = 0;
+			for (int i = 0; i + 3 < bytes.length; i++) {
+				if (bytes[i] == 'P' && bytes[i + 1] == 'K' && bytes[i + 2] == 3 && bytes[i + 3] == 4)
+					entries++;
+			}
+			entriesAtFlush.add(entries);
+
+			try {
+				pageDone(entriesAtFlush.size());
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * Called after the given page (counting from 1) has been zipped
+		 */
+		void pageDone(int page) throws Exception {
+		}
+	}
+
+}
@@ -1,6 +1,9 @@
 package org.openmrs.module.remoteformentry;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
@@ -26,6 +29,7 @@ import org.openmrs.User;
 import org.openmrs.api.context.Context;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.test.Verifies;
+import org.openmrs.util.OpenmrsUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
 
@@ -250,4 +254,28 @@ public class RemoteFormEntryUtilTest extends BaseModuleContextSensitiveTest {
 		PersonAttribute actual = patient.getAttribute(8);
 		Assert.assertEquals("value was not overridden", "5", actual.getValue());
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @see {@link RemoteFormEntryUtil#replacePatientIdInStream(Integer,InputStream,OutputStream)}
+	 */
+	@Test
+	@Verifies(value = "should give the same result as replacing the id in the string", method = "replacePatientIdInStream(Integer,InputStream,OutputStream)")
+	public void replacePatientIdInStream_shouldGiveTheSameResultAsReplacingTheIdInTheString()
+			throws Exception {
+		File form = new File(
+				"src/test/resources/org/openmrs/module/remoteformentry/remotelyEnteredForm.xml");
+		String formData = OpenmrsUtil.getFileAsString(form);
+
+		InputStream in = new FileInputStream(form);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			RemoteFormEntryUtil.replacePatientIdInStream(1234, in, out);
+		} finally {
+			in.close();
+		}
+
+		Assert.assertEquals(RemoteFormEntryUtil.replacePatientIdInDocument(1234, formData),
+				out.toString("UTF-8"));
+		Assert.assertTrue(out.toString("UTF-8").contains(">1234</patient.patient_id>"));
+	}
+}
\ No newline at end of file
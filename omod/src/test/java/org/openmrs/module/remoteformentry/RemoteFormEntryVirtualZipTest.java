@@ -0,0 +1,92 @@
+package org.openmrs.module.remoteformentry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+import org.openmrs.util.OpenmrsUtil;
+
+public class RemoteFormEntryVirtualZipTest {
+
+	private File dir;
+
+	@Before
+	public void createDir() throws Exception {
+		dir = File.createTempFile("virtualZipTest", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void deleteDir() throws Exception {
+		OpenmrsUtil.deleteDirectory(dir);
+	}
+
+	/**
+	 * @see {@link RemoteFormEntryVirtualZip#write(OutputStream,long,long)}
+	 */
+	@Test
+	@Verifies(value = "should write a zip that holds the deflated and the stored entries", method = "write(OutputStream,long,long)")
+	public void write_shouldWriteAZipThatHoldsTheDeflatedAndTheStoredEntries() throws Exception {
+		StringBuilder dump = new StringBuilder();
+		for (int i = 0; i < 10000; i++)
+			dump.append("insert into obs values (").append(i).append(");\n");
+		File source = new File(dir, "generatedReturnData");
+		FileUtils.writeStringToFile(source, dump.toString(), "UTF-8");
+		File obs = new File(dir, "obs.sql");
+		FileUtils.writeStringToFile(obs, dump.toString(), "UTF-8");
+
+		RemoteFormEntryArtifactStore store = new RemoteFormEntryArtifactStore(new File(dir, "artifacts"));
+		RemoteFormEntryArtifactStore.Artifact artifact = store.getArtifact(source, RemoteFormEntryCodec.DEFLATE_FAST);
+		Assert.assertEquals(artifact.getFile(), store.getArtifact(source, RemoteFormEntryCodec.DEFLATE_FAST).getFile());
+		RemoteFormEntryArtifactStore.Artifact stored = store.getArtifact(obs, RemoteFormEntryCodec.STORED);
+		// a download must not read the file the next generation rewrites
+		Assert.assertFalse(obs.equals(stored.getFile()));
+
+		RemoteFormEntryVirtualZip zip = new RemoteFormEntryVirtualZip();
+		zip.setComment(RemoteFormEntryCodec.DEFLATE_FAST.getComment());
+		zip.addFile(source.getName(), artifact.getMethod(), artifact.getFile(), artifact.getDataOffset(), artifact
+		        .getDataLength(), artifact.getCrc(), artifact.getSize(), source.lastModified(), artifact.getSha1());
+		zip.addFile(obs.getName(), stored.getMethod(), stored.getFile(), stored.getDataOffset(), stored.getDataLength(),
+		    stored.getCrc(), stored.getSize(), obs.lastModified(), stored.getSha1());
+		zip.addStored("ackDir/ack-1", "ack".getBytes("UTF-8"), source.lastModified());
+
+		File zipFile = new File(dir, "bundle.zip");
+		OutputStream out = new FileOutputStream(zipFile);
+		try {
+			zip.write(out, 0, zip.getSize() - 1);
+		}
+		finally {
+			out.close();
+		}
+		Assert.assertEquals(zip.getSize(), zipFile.length());
+
+		ZipFile read = new ZipFile(zipFile);
+		try {
+			Assert.assertEquals(dump.toString(), IOUtils.toString(read.getInputStream(read.getEntry(source.getName())),
+			    "UTF-8"));
+			Assert.assertEquals(dump.toString(), IOUtils.toString(read.getInputStream(read.getEntry(obs.getName())), "UTF-8"));
+			Assert.assertEquals("ack", IOUtils.toString(read.getInputStream(read.getEntry("ackDir/ack-1")), "UTF-8"));
+		}
+		finally {
+			read.close();
+		}
+
+		// a range is the same bytes as that part of the whole zip
+		ByteArrayOutputStream range = new ByteArrayOutputStream();
+		zip.write(range, 20, 99);
+		byte[] whole = FileUtils.readFileToByteArray(zipFile);
+		for (int i = 0; i < 80; i++)
+			Assert.assertEquals(whole[20 + i], range.toByteArray()[i]);
+	}
+
+}
@@ -0,0 +1,179 @@
+package org.openmrs.module.remoteformentry.db.jdbc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.test.Verifies;
+
+public class ReturnDataImporterTest {
+
+	private static final String CREATE_TABLE = "create table obs_copy (obs_id int primary key, value_text varchar(50), "
+	        + "value_numeric decimal(10,2), date_created timestamp, value_complex varbinary(10), voided boolean)";
+
+	private Connection central;
+
+	private Connection remote;
+
+	@Before
+	public void createDatabases() throws Exception {
+		Class.forName("org.h2.Driver");
+		central = DriverManager.getConnection("jdbc:h2:mem:returnDataCentral", "sa", "");
+		remote = DriverManager.getConnection("jdbc:h2:mem:returnDataRemote", "sa", "");
+		execute(central, CREATE_TABLE);
+		execute(remote, CREATE_TABLE);
+		execute(central, "insert into obs_copy values (1, 'one', 1.50, '2010-02-03 04:05:06', X'0102', false)");
+		execute(central, "insert into obs_copy values (2, null, null, null, null, true)");
+		execute(central, "insert into obs_copy values (3, 'not sent', 3, '2010-01-01 00:00:00', null, false)");
+		execute(remote, "insert into obs_copy values (9, 'stale', 9, '2009-01-01 00:00:00', null, false)");
+	}
+
+	@After
+	public void dropDatabases() throws Exception {
+		central.close();
+		remote.close();
+	}
+
+	/**
+	 * @see {@link ReturnDataImporter#load(InputStream)}
+	 */
+	@Test
+	@Verifies(value = "should replace the table with the exported rows", method = "load(InputStream)")
+	public void load_shouldReplaceTheTableWithTheExportedRows() throws Exception {
+		byte[] file = export(ReturnDataFormat.MODE_REPLACE_TABLE);
+		Assert.assertEquals(2, ReturnDataImporter.verify(new ByteArrayInputStream(file)));
+
+		long rows = new ReturnDataImporter(remote, 1).load(new ByteArrayInputStream(file));
+		Assert.assertEquals(2, rows);
+
+		Statement stmt = remote.createStatement();
+		ResultSet rs = stmt.executeQuery("select * from obs_copy order by obs_id");
+		Assert.assertTrue(rs.next());
+		Assert.assertEquals(1, rs.getInt("obs_id"));
+		Assert.assertEquals("one", rs.getString("value_text"));
+		Assert.assertEquals("1.50", rs.getBigDecimal("value_numeric").toString());
+		Assert.assertEquals("2010-02-03 04:05:06.0", rs.getTimestamp("date_created").toString());
+		Assert.assertArrayEquals(new byte[] { 1, 2 }, rs.getBytes("value_complex"));
+		Assert.assertFalse(rs.getBoolean("voided"));
+		Assert.assertTrue(rs.next());
+		Assert.assertEquals(2, rs.getInt("obs_id"));
+		Assert.assertNull(rs.getString("value_text"));
+		Assert.assertNull(rs.getBigDecimal("value_numeric"));
+		Assert.assertNull(rs.getTimestamp("date_created"));
+		Assert.assertTrue(rs.getBoolean("voided"));
+		Assert.assertFalse(rs.next());
+		stmt.close();
+	}
+
+	/**
+	 * @see {@link ReturnDataImporter#verify(InputStream)}
+	 */
+	@Test
+	@Verifies(value = "should refuse a file that has been cut off", method = "verify(InputStream)")
+	public void verify_shouldRefuseAFileThatHasBeenCutOff() throws Exception {
+		byte[] file = export(ReturnDataFormat.MODE_REPLACE_TABLE);
+		byte[] cut = new byte[file.length - 1];
+		System.arraycopy(file, 0, cut, 0, cut.length);
+
+		try {
+			ReturnDataImporter.verify(new ByteArrayInputStream(cut));
+			Assert.fail("a cut off file should be refused");
+		}
+		catch (IOException e) {}
+	}
+
+	/**
+	 * @see {@link ReturnDataImporter#split(File)}
+	 */
+	@Test
+	@Verifies(value = "should find each section so that it can be loaded on its own", method = "split(File)")
+	public void split_shouldFindEachSectionSoThatItCanBeLoadedOnItsOwn() throws Exception {
+		execute(central, "create table encounter_copy (encounter_id int primary key)");
+		execute(remote, "create table encounter_copy (encounter_id int primary key)");
+		execute(central, "insert into encounter_copy values (7)");
+
+		File file = File.createTempFile("returnData", ".part");
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				ReturnDataExporter exporter = new ReturnDataExporter(central);
+				ReturnDataExporter.writeHeader(out);
+				exporter.exportTable(out, "OBS_COPY", "obs_id < 3", ReturnDataFormat.MODE_REPLACE_TABLE);
+				exporter.exportTable(out, "ENCOUNTER_COPY", null, ReturnDataFormat.MODE_UPSERT);
+				ReturnDataExporter.writeEnd(out);
+			}
+			finally {
+				out.close();
+			}
+
+			List<ReturnDataImporter.Section> sections = ReturnDataImporter.split(file);
+			Assert.assertEquals(2, sections.size());
+			Assert.assertEquals("OBS_COPY", sections.get(0).getTable());
+			Assert.assertEquals("ENCOUNTER_COPY", sections.get(1).getTable());
+			Assert.assertEquals(file.length() - 1, sections.get(1).getOffset() + sections.get(1).getLength());
+
+			// load the second section first, as another thread would
+			ReturnDataImporter importer = new ReturnDataImporter(remote, 1);
+			Assert.assertEquals(1, loadSection(importer, file, sections.get(1)));
+			Assert.assertEquals(2, loadSection(importer, file, sections.get(0)));
+
+			Statement stmt = remote.createStatement();
+			ResultSet rs = stmt.executeQuery("select count(*) from obs_copy");
+			rs.next();
+			Assert.assertEquals(2, rs.getInt(1));
+			rs = stmt.executeQuery("select encounter_id from encounter_copy");
+			Assert.assertTrue(rs.next());
+			Assert.assertEquals(7, rs.getInt(1));
+			stmt.close();
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	private long loadSection(ReturnDataImporter importer, File file, ReturnDataImporter.Section section) throws Exception {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			in.getChannel().position(section.getOffset());
+			long rows = ReturnDataImporter.verifySection(in);
+			in.getChannel().position(section.getOffset());
+			Assert.assertEquals(rows, importer.loadSection(in));
+			return rows;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private byte[] export(byte mode) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ReturnDataExporter.writeHeader(out);
+		new ReturnDataExporter(central).exportTable(out, "OBS_COPY", "obs_id < 3", mode);
+		ReturnDataExporter.writeEnd(out);
+		return out.toByteArray();
+	}
+
+	private void execute(Connection connection, String sql) throws Exception {
+		Statement stmt = connection.createStatement();
+		try {
+			stmt.execute(sql);
+		}
+		finally {
+			stmt.close();
+		}
+	}
+
+}